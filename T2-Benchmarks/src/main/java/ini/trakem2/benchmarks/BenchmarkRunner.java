@@ -0,0 +1,46 @@
+package ini.trakem2.benchmarks;
+
+import java.io.File;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/** Runs the benchmarks selected on the command line, as {@code org.openjdk.jmh.Main} does,
+ * but writing the results as JSON by default so that they can be compared between releases
+ * (for example with the JMH visualizer, or by diffing the scores).
+ *
+ * Usage: {@code java -jar T2-Benchmarks/target/benchmarks.jar [JMH options] [regexp]}
+ *
+ * The results go to {@code jmh-result.json} in the working directory, or to the file
+ * given with {@code -rff}; any {@code -rf} given on the command line takes precedence. */
+public class BenchmarkRunner
+{
+	static public final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+	public static void main(final String[] args) throws Exception {
+		final CommandLineOptions cmd = new CommandLineOptions(args);
+		if (cmd.shouldHelp()) {
+			cmd.showHelp();
+			return;
+		}
+		if (cmd.shouldList()) {
+			// Let JMH's own entry point list the benchmarks
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+		final ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd);
+		if (!cmd.getResultFormat().hasValue()) {
+			options.resultFormat(ResultFormatType.JSON);
+		}
+		if (!cmd.getResult().hasValue()) {
+			options.result(new File(DEFAULT_RESULT_FILE).getAbsolutePath());
+		}
+		if (cmd.getIncludes().isEmpty()) {
+			options.include(BenchmarkRunner.class.getPackage().getName() + ".*");
+		}
+		new Runner(options.build()).run();
+	}
+}
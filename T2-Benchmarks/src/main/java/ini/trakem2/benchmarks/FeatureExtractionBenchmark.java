@@ -0,0 +1,94 @@
+package ini.trakem2.benchmarks;
+
+import ij.ImagePlus;
+import ini.trakem2.Project;
+import ini.trakem2.display.Patch;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import mpicbg.ij.SIFT;
+import mpicbg.imagefeatures.Feature;
+import mpicbg.imagefeatures.FloatArray2DSIFT;
+import mpicbg.trakem2.align.AbstractAffineTile2D;
+import mpicbg.trakem2.align.AffineTile2D;
+import mpicbg.trakem2.align.Align;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Extraction of the SIFT features of one tile from its full resolution image, and from
+ * the mipmap that {@link Align#extractFeatures} takes instead with {@link Align.Param#siftFromMipMaps}.
+ * That both agree within tolerance is tested by mpicbg.trakem2.align.MipMapFeaturesTest. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FeatureExtractionBenchmark
+{
+	@State(Scope.Benchmark)
+	public static class TileState
+	{
+		/** Larger than twice the default maxOctaveSize of 600, so that a mipmap is used. */
+		@Param({"2048"})
+		public int tileSize;
+
+		public File dir;
+		public Project project;
+		public AbstractAffineTile2D<?> tile;
+		public Align.Param p;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			dir = SyntheticTiles.createTempDir("t2-bench-sift");
+			project = SyntheticTiles.createProject(dir, ImagePlus.GRAY8, 1, 1, tileSize, 0);
+			tile = new AffineTile2D((Patch) project.getRootLayerSet().getLayer(0).getDisplayables(Patch.class).get(0));
+			p = new Align.Param();
+			p.siftFromMipMaps = true;
+			if (0 == Align.siftSourceLevel(p, tile.getPatch())) {
+				throw new IllegalStateException("No mipmap is used for a " + tileSize + " px tile and maxOctaveSize " + p.sift.maxOctaveSize);
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			SyntheticTiles.destroy(project, dir);
+		}
+	}
+
+	static private final List<Feature> extractFullResolution(final TileState t) {
+		final ArrayList<Feature> fs = new ArrayList<Feature>();
+		new SIFT(new FloatArray2DSIFT(t.p.sift)).extractFeatures(t.tile.createMaskedByteImage(), fs);
+		return fs;
+	}
+
+	static private final List<Feature> extractFromMipMap(final TileState t) {
+		final ArrayList<Feature> fs = new ArrayList<Feature>();
+		Align.extractFeatures(t.p, new SIFT(new FloatArray2DSIFT(t.p.sift)), t.tile, fs);
+		return fs;
+	}
+
+	@Benchmark
+	public List<Feature> fullResolution(final TileState t) {
+		return extractFullResolution(t);
+	}
+
+	@Benchmark
+	public List<Feature> mipMap(final TileState t) {
+		return extractFromMipMap(t);
+	}
+}
@@ -0,0 +1,84 @@
+package ini.trakem2.benchmarks;
+
+import ij.process.ImageProcessor;
+import ini.trakem2.display.Patch;
+import ini.trakem2.io.RagMipMaps;
+import ini.trakem2.persistence.DownsamplerMipMaps;
+import ini.trakem2.persistence.ImageBytes;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Generation of the mipmap pyramid of one tile by area downsampling, and writing
+ * and reading of its levels in the {@link RagMipMaps} format. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MipMapsBenchmark
+{
+	@State(Scope.Benchmark)
+	public static class Pyramid
+	{
+		public Patch patch;
+		public int type;
+		public ImageProcessor ip;
+		public ImageBytes[] levels;
+		public File dir;
+
+		@Setup(Level.Trial)
+		public void setup(final ProjectState s) throws Exception {
+			patch = s.patches.get(0);
+			type = ProjectState.imageType(s.type);
+			ip = SyntheticTiles.tile(type, s.tileSize, s.tileSize, 0);
+			levels = DownsamplerMipMaps.create(patch, type, ip, null, null);
+			dir = SyntheticTiles.createTempDir("t2-bench-rag");
+			for (int i=0; i<levels.length; ++i) {
+				RagMipMaps.save(path(i), levels[i].c, levels[i].width, levels[i].height);
+			}
+		}
+
+		public String path(final int level) {
+			return new File(dir, level + ".rag").getAbsolutePath();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			SyntheticTiles.destroy(null, dir);
+		}
+	}
+
+	@Benchmark
+	public ImageBytes[] createPyramid(final Pyramid p) {
+		return DownsamplerMipMaps.create(p.patch, p.type, p.ip, null, null);
+	}
+
+	@Benchmark
+	public void saveRag(final Pyramid p, final Blackhole bh) {
+		for (int i=0; i<p.levels.length; ++i) {
+			bh.consume(RagMipMaps.save(p.path(i), p.levels[i].c, p.levels[i].width, p.levels[i].height));
+		}
+	}
+
+	@Benchmark
+	public void readRag(final Pyramid p, final Blackhole bh) {
+		for (int i=0; i<p.levels.length; ++i) {
+			bh.consume(RagMipMaps.read(p.path(i)));
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package ini.trakem2.benchmarks;
+
+import ij.ImagePlus;
+import ini.trakem2.Project;
+import ini.trakem2.display.Displayable;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.Patch;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/** A headless project with a montage of synthetic tiles, created once per trial
+ * in a temporary directory and deleted afterwards. */
+@State(Scope.Benchmark)
+public class ProjectState
+{
+	@Param({"GRAY8", "GRAY16", "COLOR_RGB"})
+	public String type;
+
+	/** Number of tiles along each side of the montage. */
+	@Param({"4"})
+	public int grid;
+
+	@Param({"1024"})
+	public int tileSize;
+
+	public File dir;
+	public Project project;
+	public Layer layer;
+	public List<Patch> patches;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		dir = SyntheticTiles.createTempDir("t2-bench");
+		project = SyntheticTiles.createProject(dir, imageType(type), grid, grid, tileSize, tileSize / 10);
+		layer = project.getRootLayerSet().getLayer(0);
+		patches = new ArrayList<Patch>();
+		for (final Displayable d : layer.getDisplayables(Patch.class)) {
+			patches.add((Patch) d);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		SyntheticTiles.destroy(project, dir);
+	}
+
+	static public final int imageType(final String name) {
+		if ("GRAY8".equals(name)) return ImagePlus.GRAY8;
+		if ("GRAY16".equals(name)) return ImagePlus.GRAY16;
+		if ("GRAY32".equals(name)) return ImagePlus.GRAY32;
+		if ("COLOR_RGB".equals(name)) return ImagePlus.COLOR_RGB;
+		throw new IllegalArgumentException("Unknown image type: " + name);
+	}
+}
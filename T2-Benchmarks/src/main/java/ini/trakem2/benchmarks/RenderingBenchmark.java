@@ -0,0 +1,76 @@
+package ini.trakem2.benchmarks;
+
+import ij.process.ImageProcessor;
+import ini.trakem2.display.MipMapImage;
+import ini.trakem2.display.Patch;
+import ini.trakem2.persistence.Loader;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Rendering of a montage into a flat image, and loading of mipmaps through the
+ * {@link Loader} with and without a warm cache. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenderingBenchmark
+{
+	@State(Scope.Benchmark)
+	public static class FlatImage
+	{
+		@Param({"1.0", "0.25"})
+		public double scale;
+
+		@Param({"GRAY8", "GRAY16"})
+		public String targetType;
+	}
+
+	@Benchmark
+	public ImageProcessor makeFlatImage(final ProjectState s, final FlatImage f) {
+		final Rectangle bounds = s.layer.getMinimalBoundingBox(Patch.class);
+		return Patch.makeFlatImage(ProjectState.imageType(f.targetType), s.layer, bounds, f.scale, s.patches, Color.black, true);
+	}
+
+	@State(Scope.Benchmark)
+	public static class Fetch
+	{
+		/** Mipmap level to fetch, 0 being full resolution. */
+		@Param({"0", "2"})
+		public int level;
+
+		/** Whether the cache is emptied before each fetch, to measure reading from disk. */
+		@Param({"true", "false"})
+		public boolean cold;
+
+		@Setup(Level.Invocation)
+		public void emptyCache(final ProjectState s) {
+			if (cold) s.project.getLoader().releaseAll();
+		}
+	}
+
+	@Benchmark
+	public void fetchAWTImage(final ProjectState s, final Fetch f, final Blackhole bh) {
+		final Loader loader = s.project.getLoader();
+		for (final Patch p : s.patches) {
+			final MipMapImage mmi = loader.fetchAWTImage(p, f.level, Loader.getHighestMipMapLevel(p));
+			bh.consume(mmi.image);
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package ini.trakem2.benchmarks;
+
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import ini.trakem2.ControlWindow;
+import ini.trakem2.Project;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.LayerSet;
+import ini.trakem2.display.Patch;
+import ini.trakem2.persistence.Loader;
+import ini.trakem2.utils.Bureaucrat;
+
+import java.awt.geom.AffineTransform;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** Generators of synthetic tiles and of headless projects montaged from them,
+ * so that benchmarks do not depend on any data set being present.
+ *
+ * Tiles show smooth blobs plus noise, which compresses and renders like
+ * EM images rather than like constant or purely random pixels. */
+public final class SyntheticTiles
+{
+	private SyntheticTiles() {}
+
+	/** A tile of the given ImagePlus type: GRAY8, GRAY16, GRAY32 or COLOR_RGB. */
+	static public final ImageProcessor tile(final int type, final int width, final int height, final long seed) {
+		final Random rnd = new Random(seed);
+		// A few gaussian blobs
+		final int nBlobs = 8;
+		final double[] bx = new double[nBlobs], by = new double[nBlobs], br = new double[nBlobs];
+		for (int i=0; i<nBlobs; ++i) {
+			bx[i] = rnd.nextDouble() * width;
+			by[i] = rnd.nextDouble() * height;
+			br[i] = (0.05 + 0.1 * rnd.nextDouble()) * Math.min(width, height);
+		}
+		final FloatProcessor fp = new FloatProcessor(width, height);
+		final float[] f = (float[]) fp.getPixels();
+		for (int y=0, i=0; y<height; ++y) {
+			for (int x=0; x<width; ++x, ++i) {
+				double v = 0.3;
+				for (int k=0; k<nBlobs; ++k) {
+					final double dx = (x - bx[k]) / br[k],
+					             dy = (y - by[k]) / br[k];
+					v += 0.5 * Math.exp(-0.5 * (dx * dx + dy * dy));
+				}
+				f[i] = (float) Math.min(1, v + 0.05 * rnd.nextGaussian());
+			}
+		}
+		switch (type) {
+			case ImagePlus.GRAY8:
+				return scaled(fp, new ByteProcessor(width, height), 255);
+			case ImagePlus.GRAY16:
+				return scaled(fp, new ShortProcessor(width, height), 4095);
+			case ImagePlus.GRAY32:
+				fp.resetMinAndMax();
+				return fp;
+			case ImagePlus.COLOR_RGB:
+				final ColorProcessor cp = new ColorProcessor(width, height);
+				final int[] c = (int[]) cp.getPixels();
+				for (int i=0; i<c.length; ++i) {
+					final int v = (int)(Math.max(0, f[i]) * 255);
+					c[i] = (v << 16) | ((255 - v) << 8) | (v >> 1);
+				}
+				return cp;
+			default:
+				throw new IllegalArgumentException("Unsupported type: " + type);
+		}
+	}
+
+	static private final ImageProcessor scaled(final FloatProcessor fp, final ImageProcessor ip, final int max) {
+		final float[] f = (float[]) fp.getPixels();
+		for (int i=0; i<f.length; ++i) {
+			ip.set(i, (int)(Math.max(0, f[i]) * max));
+		}
+		ip.resetMinAndMax();
+		return ip;
+	}
+
+	/** Create a new headless project in {@code dir} with one layer showing a
+	 * {@code cols} x {@code rows} montage of tiles that overlap by {@code overlap}
+	 * pixels, each slightly rotated. The tiles are saved as TIFF files into
+	 * {@code dir} and their mipmaps are generated before returning.
+	 *
+	 * @return the project; its single layer is at index 0 of the root {@link LayerSet}. */
+	static public final Project createProject(final File dir, final int type, final int cols, final int rows, final int tileSize, final int overlap) throws Exception {
+		return createProject(dir, type, cols, rows, 1, tileSize, overlap);
+	}
+
+	/** Like {@link #createProject(File, int, int, int, int, int)} but with {@code nLayers} layers. */
+	static public final Project createProject(final File dir, final int type, final int cols, final int rows, final int nLayers, final int tileSize, final int overlap) throws Exception {
+		ControlWindow.setGUIEnabled(false);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IllegalArgumentException("Cannot create " + dir);
+		}
+		String path = dir.getAbsolutePath().replace('\\', '/');
+		if (!path.endsWith("/")) path += "/";
+
+		final Project project = Project.newFSProject("blank", null, path, false);
+		if (null == project) throw new IllegalStateException("Could not create a project at " + path);
+		final Loader loader = project.getLoader();
+		final LayerSet ls = project.getRootLayerSet();
+
+		final Random rnd = new Random(42);
+		final int step = tileSize - overlap;
+		for (int z=0; z<nLayers; ++z) {
+			final Layer layer = new Layer(project, z, 1, ls);
+			ls.add(layer);
+			layer.recreateBuckets();
+			final List<Patch> patches = new ArrayList<Patch>();
+			for (int row=0; row<rows; ++row) {
+				for (int col=0; col<cols; ++col) {
+					final String name = "tile-z" + z + "-r" + row + "-c" + col + ".tif";
+					final ImagePlus imp = new ImagePlus(name, tile(type, tileSize, tileSize, (z * rows + row) * cols + col));
+					new FileSaver(imp).saveAsTiff(path + name);
+					final Patch patch = new Patch(project, name, col * step, row * step, imp);
+					loader.addedPatchFrom(path + name, patch);
+					final AffineTransform at = patch.getAffineTransformCopy();
+					at.rotate(Math.toRadians(rnd.nextDouble() * 2 - 1), tileSize / 2.0, tileSize / 2.0);
+					patch.setAffineTransform(at);
+					layer.add(patch, false);
+					patches.add(patch);
+				}
+			}
+			final Bureaucrat burro = loader.regenerateMipMaps(patches);
+			if (null != burro) burro.join();
+		}
+		ls.setMinimumDimensions();
+		return project;
+	}
+
+	/** Destroy the project and delete {@code dir} with all its contents. */
+	static public final void destroy(final Project project, final File dir) {
+		if (null != project) {
+			project.getLoader().setChanged(false);
+			project.destroy();
+		}
+		delete(dir);
+	}
+
+	static private final void delete(final File f) {
+		if (f.isDirectory()) {
+			final File[] files = f.listFiles();
+			if (null != files) for (final File g : files) delete(g);
+		}
+		f.delete();
+	}
+
+	/** A fresh temporary directory. */
+	static public final File createTempDir(final String prefix) throws Exception {
+		final File f = File.createTempFile(prefix, "");
+		if (!f.delete() || !f.mkdir()) throw new IllegalStateException("Cannot create temporary directory " + f);
+		return f;
+	}
+}
@@ -0,0 +1,87 @@
+package ini.trakem2.benchmarks;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.CoordinateTransform;
+import mpicbg.trakem2.transform.MovingLeastSquaresTransform;
+import mpicbg.trakem2.transform.TransformMesh;
+import mpicbg.trakem2.transform.TransformMeshMappingWithMasks;
+import mpicbg.trakem2.transform.TransformMeshMappingWithMasks.ImageProcessorWithMasks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Mapping of a tile through a {@link TransformMesh}, as done for every patch
+ * with a non-linear transform when rendering, for an affine and a moving least
+ * squares transform at a coarse and a fine mesh resolution. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransformBenchmark
+{
+	@Param({"affine", "mls"})
+	public String transform;
+
+	@Param({"32", "128"})
+	public int meshResolution;
+
+	@Param({"2048"})
+	public int tileSize;
+
+	@Param({"false", "true"})
+	public boolean interpolate;
+
+	private TransformMesh mesh;
+	private ImageProcessorWithMasks source;
+	private ImageProcessorWithMasks target;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		final CoordinateTransform t;
+		if ("affine".equals(transform)) {
+			final AffineModel2D affine = new AffineModel2D();
+			affine.set(0.98, 0.17, -0.17, 0.98, 40, -20);
+			t = affine;
+		} else {
+			final MovingLeastSquaresTransform mls = new MovingLeastSquaresTransform();
+			final int s = tileSize;
+			mls.init("affine 2 1 0 0 10 5 1 " + s + " 0 " + (s - 20) + " 15 1 0 " + s + " 12 " + (s - 8) + " 1 "
+					+ s + " " + s + " " + (s + 10) + " " + (s + 10) + " 1 " + (s / 2) + " " + (s / 2) + " " + (s / 2 + 25) + " " + (s / 2 - 15) + " 1");
+			t = mls;
+		}
+		final ImageProcessor ip = SyntheticTiles.tile(ImagePlus.GRAY8, tileSize, tileSize, 0);
+		final ByteProcessor alpha = new ByteProcessor(tileSize, tileSize);
+		alpha.setValue(255);
+		alpha.fill();
+		mesh = new TransformMesh(t, meshResolution, tileSize, tileSize);
+		final int w = mesh.getBoundingBox().width,
+		          h = mesh.getBoundingBox().height;
+		source = new ImageProcessorWithMasks(ip, alpha, null);
+		target = new ImageProcessorWithMasks(ip.createProcessor(w, h), new ByteProcessor(w, h), null);
+	}
+
+	@Benchmark
+	public ImageProcessorWithMasks map() {
+		final TransformMeshMappingWithMasks<TransformMesh> mapping = new TransformMeshMappingWithMasks<TransformMesh>(mesh);
+		if (interpolate) mapping.mapInterpolated(source, target);
+		else mapping.map(source, target);
+		return target;
+	}
+}
@@ -0,0 +1,69 @@
+package ini.trakem2.benchmarks;
+
+import ij.ImagePlus;
+import ini.trakem2.Project;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Saving and opening of the XML file of a project with many small tiles in
+ * many layers, where the cost is dominated by the XML and not by the images. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XMLBenchmark
+{
+	@Param({"20"})
+	public int nLayers;
+
+	@Param({"10"})
+	public int grid;
+
+	private File dir;
+	private Project project;
+	private String xmlPath;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		dir = SyntheticTiles.createTempDir("t2-bench-xml");
+		project = SyntheticTiles.createProject(dir, ImagePlus.GRAY8, grid, grid, nLayers, 64, 8);
+		xmlPath = new File(dir, "project.xml").getAbsolutePath();
+		project.saveAs(xmlPath, true);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		SyntheticTiles.destroy(project, dir);
+	}
+
+	@Benchmark
+	public String save() {
+		return project.saveAs(xmlPath, true);
+	}
+
+	@Benchmark
+	public int open() {
+		final Project p = Project.openFSProject(xmlPath, false);
+		final int n = p.getRootLayerSet().size();
+		p.getLoader().setChanged(false);
+		p.destroy();
+		return n;
+	}
+}
@@ -33,6 +33,7 @@ import ini.trakem2.display.Bucket;
 import ini.trakem2.display.Connector;
 import ini.trakem2.display.DLabel;
 import ini.trakem2.display.Display;
+import ini.trakem2.display.Display3D;
 import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Dissector;
 import ini.trakem2.display.Layer;
@@ -1500,6 +1501,8 @@ public class Project extends DBObject {
 		gd.addCheckbox("No_shutdown_hook to save the project", no_shutdown_hook);
 		int n_undo_steps = getProperty("n_undo_steps", 32);
 		gd.addSlider("Undo steps", 32, 200, n_undo_steps);
+		int undo_memory_budget = getProperty(LayerSet.undo_memory_budget, (int)(Runtime.getRuntime().maxMemory() / 8 / (1024 * 1024)));
+		gd.addNumericField("Undo_memory_budget:", undo_memory_budget, 0, 6, "MB");
 		boolean flood_fill_to_image_edge = "true".equals(ht_props.get("flood_fill_to_image_edge"));
 		gd.addCheckbox("AreaList_flood_fill_to_image_edges", flood_fill_to_image_edge);
 		int look_ahead_cache = (int)getProperty("look_ahead_cache", 0);
@@ -1510,6 +1513,12 @@ public class Project extends DBObject {
 		gd.addSlider("Number of threads for mipmaps", 1, n_mipmap_threads, n_mipmap_threads);
 		int meshResolution = getProperty("mesh_resolution", 32);
 		gd.addSlider("Default mesh resolution for images", 1, 512, meshResolution);
+		boolean simplify_meshes = getBooleanProperty(Display3D.simplify_meshes);
+		gd.addCheckbox("Simplify_3D_meshes to levels of detail", simplify_meshes);
+		int triangles_per_object = getProperty(Display3D.triangles_per_object, Display3D.DEFAULT_TRIANGLES_PER_OBJECT);
+		gd.addNumericField("3D_triangles_per_object:", triangles_per_object, 0, 9, "");
+		int triangles_per_scene = getProperty(Display3D.triangles_per_scene, Display3D.DEFAULT_TRIANGLES_PER_SCENE);
+		gd.addNumericField("3D_triangles_per_scene:", triangles_per_scene, 0, 9, "");
 		//
 		gd.showDialog();
 		//
@@ -1561,6 +1570,10 @@ public class Project extends DBObject {
 		n_undo_steps = (int)gd.getNextNumber();
 		if (n_undo_steps < 0) n_undo_steps = 0;
 		setProperty("n_undo_steps", Integer.toString(n_undo_steps));
+		final double d_undo_memory_budget = gd.getNextNumber();
+		if (!Double.isNaN(d_undo_memory_budget) && d_undo_memory_budget > 0 && (int)d_undo_memory_budget != undo_memory_budget) {
+			setProperty(LayerSet.undo_memory_budget, Integer.toString((int)d_undo_memory_budget));
+		}
 		adjustProp("flood_fill_to_image_edge", flood_fill_to_image_edge, gd.getNextBoolean());
 		double d_look_ahead_cache = gd.getNextNumber();
 		if (!Double.isNaN(d_look_ahead_cache) && d_look_ahead_cache >= 0) {
@@ -1596,6 +1609,15 @@ public class Project extends DBObject {
 				Utils.log("WARNING: ignoring invalid mesh resolution value " + meshResolution2);
 			}
 		}
+		adjustProp(Display3D.simplify_meshes, simplify_meshes, gd.getNextBoolean());
+		final double d_triangles_per_object = gd.getNextNumber();
+		if (!Double.isNaN(d_triangles_per_object) && d_triangles_per_object > 0 && (int)d_triangles_per_object != triangles_per_object) {
+			setProperty(Display3D.triangles_per_object, Integer.toString((int)d_triangles_per_object));
+		}
+		final double d_triangles_per_scene = gd.getNextNumber();
+		if (!Double.isNaN(d_triangles_per_scene) && d_triangles_per_scene > 0 && (int)d_triangles_per_scene != triangles_per_scene) {
+			setProperty(Display3D.triangles_per_scene, Integer.toString((int)d_triangles_per_scene));
+		}
 	}
 
 	/** Return the Universal Near-Unique Id of this project, which may be null for non-FSLoader projects. */
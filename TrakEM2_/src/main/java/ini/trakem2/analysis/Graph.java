@@ -1,25 +1,41 @@
 package ini.trakem2.analysis;
 
 import ij.gui.GenericDialog;
+import ij.io.SaveDialog;
 import ij.text.TextWindow;
 import ini.trakem2.display.AreaList;
 import ini.trakem2.display.AreaTree;
 import ini.trakem2.display.Ball;
+import ini.trakem2.display.ConnectivityIndex;
 import ini.trakem2.display.Connector;
 import ini.trakem2.display.DLabel;
 import ini.trakem2.display.Displayable;
+import ini.trakem2.display.Layer;
 import ini.trakem2.display.LayerSet;
+import ini.trakem2.display.Node;
 import ini.trakem2.display.Patch;
 import ini.trakem2.display.Pipe;
 import ini.trakem2.display.Polyline;
 import ini.trakem2.display.Profile;
 import ini.trakem2.display.Treeline;
 import ini.trakem2.display.ZDisplayable;
+import ini.trakem2.utils.Bureaucrat;
+import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Utils;
+import ini.trakem2.utils.Worker;
+import mpicbg.trakem2.util.SharedExecutor;
 
 import java.awt.Point;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -28,6 +44,16 @@ import javax.swing.SwingUtilities;
 
 public class Graph {
 
+	/** Formats for {@link #exportGraph(LayerSet, Set, Layer, Layer, int, Writer, Writer)}. */
+	static public final int SIF = 0,
+	                        GRAPHML = 1,
+	                        CSV = 2;
+	static public final String[] FORMATS = new String[]{"SIF", "GraphML", "CSV"};
+	static public final String[] EXTENSIONS = new String[]{".sif", ".graphml", ".csv"};
+
+	/** Connectors whose edges are formatted in parallel before writing them out, which bounds the text held in memory. */
+	static private final int BATCH_SIZE = 4096;
+
 
 	static public final <T extends Displayable> Map<String,StringBuilder> extractGraph(final LayerSet ls, final Set<Class<T>> only) {
 		
@@ -37,31 +63,39 @@ public class Graph {
 		
 		final Set<Displayable> seen = new HashSet<Displayable>();
 
-		for (final Connector con : ls.getAll(Connector.class)) {
-			Set<Displayable> origins = con.getOrigins();
-			if (origins.isEmpty()) {
-				Utils.log("Graph: ignoring connector without origins: #" + con.getId());
-				continue;
-			}
-			List<Set<Displayable>> target_lists = con.getTargets();
-			if (target_lists.isEmpty()) {
-				Utils.log("Graph: ignoring connector without targets: #" + con.getId());
-				continue;
-			}
-			for (final Displayable origin : origins) {
-				if (Thread.currentThread().isInterrupted()) return null;
-				if (null != only && !only.contains(origin.getClass())) continue;
-				seen.add(origin);
-				for (final Set<Displayable> targets : target_lists) {
-					for (final Displayable target : targets) {
-						if (null != only && !only.contains(target.getClass())) continue;
-						sif.append(origin.getId()).append(" pd ").append(target.getId()).append('\n');
-						xml.append('\t').append("<edge cid=\"").append(con.getId()).append("\" origin=\"").append(origin.getId()).append("\" target=\"").append(target.getId()).append("\" />\n");
-						seen.add(target);
+		// Connectivity is read from the index, which only recomputes connectors edited since the last query
+		final boolean[] interrupted = new boolean[1];
+		ls.getConnectivityIndex().visit(new ConnectivityIndex.Visitor() {
+			@Override
+			public boolean visit(final Connector con, final Set<Displayable> origins, final List<Set<Displayable>> target_lists) {
+				if (origins.isEmpty()) {
+					Utils.log("Graph: ignoring connector without origins: #" + con.getId());
+					return true;
+				}
+				if (target_lists.isEmpty()) {
+					Utils.log("Graph: ignoring connector without targets: #" + con.getId());
+					return true;
+				}
+				for (final Displayable origin : origins) {
+					if (Thread.currentThread().isInterrupted()) {
+						interrupted[0] = true;
+						return false;
+					}
+					if (null != only && !only.contains(origin.getClass())) continue;
+					seen.add(origin);
+					for (final Set<Displayable> targets : target_lists) {
+						for (final Displayable target : targets) {
+							if (null != only && !only.contains(target.getClass())) continue;
+							sif.append(origin.getId()).append(" pd ").append(target.getId()).append('\n');
+							xml.append('\t').append("<edge cid=\"").append(con.getId()).append("\" origin=\"").append(origin.getId()).append("\" target=\"").append(target.getId()).append("\" />\n");
+							seen.add(target);
+						}
 					}
 				}
+				return true;
 			}
-		}
+		});
+		if (interrupted[0]) return null;
 
 		xml.append("</graph>\n");
 
@@ -90,6 +124,192 @@ public class Graph {
 		}});
 	}
 
+	/** Write the edges of the graph defined by the connectors of @param ls directly to @param edges,
+	 * formatting them in parallel, one batch of connectors at a time, so that the memory used
+	 * does not grow with the size of the graph.
+	 *
+	 * @param only The classes of origins and targets to include, or null to include all.
+	 * @param first The first layer of the range, or null to include all layers.
+	 * @param last The last layer of the range, or null to include all layers. An edge is included
+	 *             when both the origin node and the target node of its connector lie within the range.
+	 * @param format {@link #SIF}, {@link #GRAPHML} or {@link #CSV}.
+	 * @param names Where to write a line with the id and the title of every object in any edge; may be null.
+	 *              Unused for GraphML, which has the titles as node labels.
+	 * @return The number of edges written, or -1 if the thread was interrupted. */
+	static public final <T extends Displayable> long exportGraph(final LayerSet ls, final Set<Class<T>> only,
+			final Layer first, final Layer last, final int format, final Writer edges, final Writer names) throws IOException {
+		final double z_min = null == first || null == last ? -Double.MAX_VALUE : Math.min(first.getZ(), last.getZ()),
+		             z_max = null == first || null == last ? Double.MAX_VALUE : Math.max(first.getZ(), last.getZ());
+		final ConnectivityIndex ci = ls.getConnectivityIndex();
+		final List<Connector> connectors = ls.getAll(Connector.class);
+		// In order of first appearance, for reproducible output
+		final Set<Displayable> seen = new LinkedHashSet<Displayable>();
+
+		switch (format) {
+			case GRAPHML:
+				edges.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+				          + "<graphml xmlns=\"http://graphml.graphdrawing.org/xmlns\">\n"
+				          + "\t<key id=\"label\" for=\"node\" attr.name=\"label\" attr.type=\"string\"/>\n"
+				          + "\t<key id=\"cid\" for=\"edge\" attr.name=\"connector\" attr.type=\"long\"/>\n"
+				          + "\t<graph id=\"" + ls.getId() + "\" edgedefault=\"directed\">\n");
+				break;
+			case CSV:
+				edges.write("connector,origin,target\n");
+				break;
+		}
+
+		long count = 0;
+		final int n_batches = (connectors.size() + BATCH_SIZE - 1) / BATCH_SIZE;
+		for (int b=0; b<n_batches; ++b) {
+			if (Thread.currentThread().isInterrupted()) return -1;
+			final int start = b * BATCH_SIZE,
+			          end = Math.min(connectors.size(), start + BATCH_SIZE);
+			final StringBuilder[] text = new StringBuilder[end - start];
+			final List<List<Displayable>> nodes = new ArrayList<List<Displayable>>(end - start);
+			for (int i=start; i<end; ++i) nodes.add(new ArrayList<Displayable>());
+			final long[] counts = new long[end - start];
+			// One lock for the whole batch; the workers below then don't touch the index
+			final ConnectivityIndex.Links[] batch = ci.getLinks(connectors.subList(start, end));
+			SharedExecutor.forEach(end - start, new SharedExecutor.Body() {
+				@Override
+				public void run(final int k) {
+					final Connector con = connectors.get(start + k);
+					final Node<Float> root = con.getRoot();
+					if (null == root || !within(root.getLayer(), z_min, z_max)) return;
+					if (null == batch[k]) return;
+					final Set<Displayable> origins = batch[k].getOrigins();
+					final List<Set<Displayable>> target_lists = batch[k].getTargets();
+					if (origins.isEmpty() || target_lists.isEmpty()) return;
+					final List<Node<Float>> target_nodes = root.getChildrenNodes();
+					final StringBuilder sb = new StringBuilder();
+					final List<Displayable> ns = nodes.get(k);
+					for (final Displayable origin : origins) {
+						if (null != only && !only.contains(origin.getClass())) continue;
+						boolean linked = false;
+						for (int t=0; t<target_lists.size(); ++t) {
+							if (t < target_nodes.size() && !within(target_nodes.get(t).getLayer(), z_min, z_max)) continue;
+							for (final Displayable target : target_lists.get(t)) {
+								if (null != only && !only.contains(target.getClass())) continue;
+								appendEdge(sb, format, con, origin, target);
+								ns.add(target);
+								linked = true;
+								++counts[k];
+							}
+						}
+						if (linked) ns.add(origin);
+					}
+					text[k] = sb;
+				}
+			});
+			for (int k=0; k<text.length; ++k) {
+				if (null == text[k]) continue;
+				edges.append(text[k]);
+				seen.addAll(nodes.get(k));
+				count += counts[k];
+			}
+		}
+
+		// The titles of all objects in any edge
+		final Writer w = GRAPHML == format ? edges : names;
+		if (null != w) {
+			final Displayable[] ds = seen.toArray(new Displayable[seen.size()]);
+			for (int start=0; start<ds.length; start+=BATCH_SIZE) {
+				if (Thread.currentThread().isInterrupted()) return -1;
+				final int offset = start;
+				final String[] titles = new String[Math.min(BATCH_SIZE, ds.length - start)];
+				SharedExecutor.forEach(titles.length, new SharedExecutor.Body() {
+					@Override
+					public void run(final int k) {
+						final Displayable d = ds[offset + k];
+						final String title = d.getProject().getMeaningfulTitle(d);
+						titles[k] = GRAPHML == format ?
+							"\t\t<node id=\"" + d.getId() + "\"><data key=\"label\">" + escapeXML(title) + "</data></node>\n"
+							: d.getId() + "\t" + title + "\n";
+					}
+				});
+				for (final String title : titles) w.write(title);
+			}
+		}
+		if (GRAPHML == format) edges.write("\t</graph>\n</graphml>\n");
+		return count;
+	}
+
+	static private final boolean within(final Layer la, final double z_min, final double z_max) {
+		if (null == la) return false;
+		final double z = la.getZ();
+		return z >= z_min && z <= z_max;
+	}
+
+	static private final void appendEdge(final StringBuilder sb, final int format, final Connector con, final Displayable origin, final Displayable target) {
+		switch (format) {
+			case SIF:
+				sb.append(origin.getId()).append(" pd ").append(target.getId()).append('\n');
+				break;
+			case GRAPHML:
+				sb.append("\t\t<edge source=\"").append(origin.getId()).append("\" target=\"").append(target.getId())
+				  .append("\"><data key=\"cid\">").append(con.getId()).append("</data></edge>\n");
+				break;
+			case CSV:
+				sb.append(con.getId()).append(',').append(origin.getId()).append(',').append(target.getId()).append('\n');
+				break;
+		}
+	}
+
+	static private final String escapeXML(final String s) {
+		return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+
+	/** Shows a dialog to pick the classes, the layer range and the format, and a file dialog,
+	 * then writes the graph to the chosen file and, except for GraphML, the titles to a second
+	 * file ending in ".names.txt". */
+	static public final void exportGraph(final LayerSet ls) {
+		final GenericDialog gd = new GenericDialog("Export graph");
+		gd.addChoice("Format:", FORMATS, FORMATS[GRAPHML]);
+		gd.addMessage("Layers of the connector nodes:");
+		Utils.addLayerRangeChoices(ls.getLayer(0), ls.getLayer(ls.size() -1), gd);
+		final Class<Displayable>[] c = new Class[]{AreaList.class, AreaTree.class, Ball.class, Connector.class, Patch.class, Pipe.class, Polyline.class, Profile.class, DLabel.class, Treeline.class};
+		final String[] types = new String[]{"AreaList", "AreaTree", "Ball", "Connector", "Image", "Pipe", "Polyline", "Profile", "Text", "Treeline"};
+		final boolean[] states = new boolean[]{true, true, false, false, false, false, true, true, false, true};
+		gd.addCheckboxGroup(types.length, 1, types, states, new String[]{"Include only:"});
+		gd.showDialog();
+		if (gd.wasCanceled()) return;
+		final int format = gd.getNextChoiceIndex();
+		final Layer first = ls.getLayer(gd.getNextChoiceIndex()),
+		            last = ls.getLayer(gd.getNextChoiceIndex());
+		final HashSet<Class<Displayable>> only = new HashSet<Class<Displayable>>();
+		for (int i=0; i<types.length; i++) {
+			if (gd.getNextBoolean()) only.add(c[i]);
+		}
+		final SaveDialog sd = new SaveDialog("Save graph", "graph", EXTENSIONS[format]);
+		if (null == sd.getFileName()) return;
+		final File f = new File(sd.getDirectory(), sd.getFileName());
+		Bureaucrat.createAndStart(new Worker.Task("Export graph") {
+			@Override
+			public void exec() {
+				Writer edges = null,
+				       names = null;
+				try {
+					edges = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(f), 65536), "UTF-8");
+					if (GRAPHML != format) {
+						names = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(f.getAbsolutePath() + ".names.txt"), 65536), "UTF-8");
+					}
+					final long n = exportGraph(ls, only, first, last, format, edges, names);
+					if (-1 == n) Utils.log("Graph export interrupted: " + f);
+					else Utils.log("Wrote " + n + " edges to " + f);
+				} catch (final Throwable t) {
+					IJError.print(t);
+				} finally {
+					try {
+						if (null != edges) edges.close();
+						if (null != names) names.close();
+					} catch (final IOException ioe) {
+						IJError.print(ioe);
+					}
+				}
+			}
+		}, ls.getProject());
+	}
+
 	/** Shows a dialog to pick which classes is one interested in. */
 	static public final void extractAndShowGraph(final LayerSet ls) {
 		GenericDialog gd = new GenericDialog("Graph elements");
@@ -42,13 +42,17 @@ import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 import ini.trakem2.Project;
 import ini.trakem2.display.paint.USHORTPaint;
+import ini.trakem2.parallel.Process;
 import ini.trakem2.persistence.XMLOptions;
 import ini.trakem2.utils.AreaUtils;
 import ini.trakem2.utils.CircularSequence;
+import ini.trakem2.utils.CompactAreaMap;
 import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.IndexedTriangleMesh;
 import ini.trakem2.utils.M;
 import ini.trakem2.utils.ProjectToolbar;
 import ini.trakem2.utils.Utils;
+import mpicbg.trakem2.util.SharedExecutor;
 
 import java.awt.AlphaComposite;
 import java.awt.Color;
@@ -65,7 +69,10 @@ import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.PathIterator;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -85,13 +92,14 @@ import javax.vecmath.Point3f;
 
 /** A list of brush painted areas similar to a set of labelfields in Amira.
  * 
- * For each layer where painting has been done, there is an entry in the ht_areas HashMap that contains the layer's id as a Long, and a java.awt.geom.Area object.
+ * For each layer where painting has been done, there is an entry in the ht_areas map that contains the layer's id as a Long, and a java.awt.geom.Area object.
  * All Area objects are local to this AreaList's AffineTransform.
+ * After loading, pixel-aligned areas are kept as compact runs of pixels until first requested; see {@link #compactAreas()}.
  */
 public class AreaList extends ZDisplayable implements AreaContainer, VectorData {
 
 	/** Contains the table of layer ids and their associated Area object.*/
-	private HashMap<Long,Area> ht_areas = new HashMap<Long,Area>();
+	private CompactAreaMap ht_areas = new CompactAreaMap();
 
 	/** Flag to signal dynamic loading from the database for the Area of a given layer id in the ht_areas HashMap. */
 	static private final Area UNLOADED = new Area();
@@ -374,16 +382,15 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 	 */
 	@Override
 	public boolean calculateBoundingBox(final Layer la) {
+		// Called after every edit of the areas, including those that leave them empty
+		// and hence return before updateInDatabase
+		geometryChanged();
 		try {
 			// check preconditions
 			if (0 == ht_areas.size()) return false;
 
-			Rectangle box = null;
-			for (final Area a : ht_areas.values()) {
-				if (null == a || a.isEmpty()) continue;
-				if (null == box) box = a.getBounds();
-				else box.add(a.getBounds());
-			}
+			// without unpacking compact areas
+			final Rectangle box = ht_areas.getBounds();
 
 			// If null, the AreaList was empty
 			// If box.width,height are zero, the AreaList was empty
@@ -402,13 +409,14 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 
 			// make local to overall box, so that box starts now at 0,0
 			final AffineTransform atb = new AffineTransform(1, 0, 0, 1, -box.x, -box.y);
+			final List<Area> areas = ht_areas.translatePacked(-box.x, -box.y);
 
 			// Guess if multithreaded processing would help
-			if (ht_areas.size() > 1 && (box.width > 2048 || box.height > 2048 || ht_areas.size() > 10)) {
+			if (areas.size() > 1 && (box.width > 2048 || box.height > 2048 || areas.size() > 10)) {
 				// Multithreaded
 				final ExecutorService exec = Utils.newFixedThreadPool("AreaList-CBB");
 				final List<Future<?>> fus = new ArrayList<Future<?>>();
-				for (final Area a : ht_areas.values()) {
+				for (final Area a : areas) {
 					fus.add(exec.submit(new Runnable() {
 						public void run() {
 							a.transform(atb);
@@ -419,7 +427,7 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 				exec.shutdown();
 			} else {
 				// Single threaded
-				for (final Area a : ht_areas.values()) {
+				for (final Area a : areas) {
 					a.transform(atb);
 				}
 			}
@@ -456,10 +464,10 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 		String[] RGB = Utils.getHexRGBColor(color);
 		sb_body.append(in).append("style=\"stroke:none;fill-opacity:").append(alpha).append(";fill:#").append(RGB[0]).append(RGB[1]).append(RGB[2]).append(";\"\n");
 		sb_body.append(indent).append(">\n");
-		for (final Map.Entry<Long,Area> entry : ht_areas.entrySet()) {
-			final Area area = entry.getValue();
+		for (final Long lid : ht_areas.keySet()) {
+			final Area area = ht_areas.peek(lid);
 			if (null == area || area.isEmpty()) continue;
-			sb_body.append(in).append("<t2_area layer_id=\"").append(entry.getKey()).append("\">\n");
+			sb_body.append(in).append("<t2_area layer_id=\"").append(lid).append("\">\n");
 			exportArea(sb_body, in + "\t", area);
 			sb_body.append(in).append("</t2_area>\n");
 		}
@@ -673,6 +681,14 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 	/** How many layers does this object paint to. */
 	public int getNAreas() { return ht_areas.size(); }
 
+	/** Store the areas that are pixel-aligned, such as those painted with the brush, as compact runs of pixels,
+	 * which are unpacked into an {@link Area} again when first requested. Only call it when no Area of this
+	 * AreaList is being held on to for editing, such as right after loading.
+	 * @return the number of areas compacted. */
+	public int compactAreas() {
+		return ht_areas.compact();
+	}
+
 	public Area getArea(Layer la) {
 		if (null == la) return null;
 		return getArea(la.getId());
@@ -696,19 +712,23 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 		}
 		final long nid = copy_id ? this.id : pr.getLoader().getNextId();
 		final AreaList copy = new AreaList(pr, nid, null != title ? title.toString() : null, width, height, alpha, this.visible, new Color(color.getRed(), color.getGreen(), color.getBlue()), this.visible, al_ul, (AffineTransform)this.at.clone());
-		for (final Map.Entry<Long,Area> entry : copy.ht_areas.entrySet()) {
-			entry.setValue(new Area(this.ht_areas.get(entry.getKey())));
-		}
+		copy.ht_areas = this.ht_areas.clone();
 		return copy;
 	}
 
 
 	public List<Point3f> generateTriangles(final double scale, final int resample) {
+		final IndexedTriangleMesh mesh = generateMesh(scale, resample);
+		return null == mesh ? null : mesh.toList();
+	}
+
+	/** Like {@link #generateTriangles(double, int)}, but as an indexed mesh. */
+	public IndexedTriangleMesh generateMesh(final double scale, final int resample) {
 		final HashMap<Layer,Area> areas = new HashMap<Layer,Area>();
-		for (final Map.Entry<Long,Area> e : ht_areas.entrySet()) {
-			areas.put(layer_set.getLayer((Long)e.getKey()), (Area)e.getValue());
+		for (final Long lid : ht_areas.keySet()) {
+			areas.put(layer_set.getLayer(lid), ht_areas.peek(lid));
 		}
-		return AreaUtils.generateTriangles(this, scale, resample, areas);
+		return AreaUtils.generateMesh(this, scale, resample, areas);
 	}
 
 	/** Directly place an Area for the specified layer. Keep in mind it will be added in this AreaList coordinate space, not the overall LayerSet coordinate space. Does not make it local, you should call calculateBoundingBox() after setting an area. */
@@ -1184,180 +1204,118 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 		AffineTransform aff2 = new AffineTransform();
 		// remove translation (for no reason other than historical, and that it may
 		//   help avoid numerical overflows)
-		Rectangle box = getBoundingBox(null);
+		final Rectangle box = getBoundingBox(null);
 		aff2.translate(-box.x, -box.y);
 		aff.preConcatenate(aff2);
 		aff2 = null;
 
-		double volume = 0;
-		double lower_bound_surface_h = 0;
-		double upper_bound_surface = 0;
-		double upper_bound_surface_smoothed = 0;
-		double prev_surface = 0;
-		double prev_perimeter = 0;
-		double prev_smooth_perimeter = 0;
-		double prev_thickness = 0;
-		double all_tops_and_bottoms = 0;  // i.e. surface area that is not part of the side area
-
-		Calibration cal = layer_set.getCalibration();
+		final Calibration cal = layer_set.getCalibration();
 		final double pixelWidth = cal.pixelWidth;
 		final double pixelHeight = cal.pixelHeight;
 
+		final float resampling_delta = project.getProperty("measurement_resampling_delta", 1.0f);
+		final boolean measure_largest_diameter = project.getBooleanProperty("measure_largest_diameter");
+
+		final long edit_count = getEditCount();
+
 		// Put areas in order of their layer index:
 		final TreeMap<Integer,Area> ias = new TreeMap<Integer,Area>();
-		for (final Map.Entry<Long,Area> e : ht_areas.entrySet()) {
-			int ilayer = layer_set.indexOf(layer_set.getLayer(e.getKey()));
+		for (final Map.Entry<Long,Area> e : new ArrayList<Map.Entry<Long,Area>>(ht_areas.entrySet())) {
+			final int ilayer = layer_set.indexOf(layer_set.getLayer(e.getKey()));
 			if (-1 == ilayer) {
 				Utils.log("Could not find a layer with id " + e.getKey());
 				continue;
 			}
-			ias.put(ilayer, e.getValue());
+			Area area = e.getValue();
+			if (UNLOADED == area) area = loadLayer(e.getKey());
+			if (null == area) continue;
+			ias.put(ilayer, area);
+		}
+
+		final ArrayList<Layer> layers = layer_set.getLayers();
+
+		// Everything else the measurements depend upon, to reuse them until the next edit
+		final ArrayList<Object> key = new ArrayList<Object>();
+		key.add(aff);
+		key.add(pixelWidth);
+		key.add(pixelHeight);
+		key.add(resampling_delta);
+		key.add(measure_largest_diameter);
+		for (final Integer layer_index : ias.keySet()) {
+			if (layer_index >= layers.size()) continue;
+			final Layer la = layers.get(layer_index);
+			key.add(layer_index);
+			key.add(la.getZ());
+			key.add(la.getThickness());
 		}
+		final double[] cached = getCachedMeasurements(key);
+		if (null != cached) return cached;
 
-		ArrayList<Layer> layers = layer_set.getLayers();
+		// Measure each section in parallel: its area, its perimeter, and its smoothed perimeter
+		final int[] layer_indices = new int[ias.size()];
+		final Area[] areas = new Area[ias.size()];
+		int k = 0;
+		for (final Map.Entry<Integer,Area> e : ias.entrySet()) {
+			layer_indices[k] = e.getKey();
+			areas[k] = e.getValue();
+			++k;
+		}
+		final double[] pixel_areas = new double[areas.length],
+		               pix_perimeters = new double[areas.length],
+		               smooth_pix_perimeters = new double[areas.length];
+		final float[][] contours = new float[areas.length][];
+		final AffineTransform to_world = aff;
+
+		SharedExecutor.forEach(areas.length, new SharedExecutor.Body() {
+			@Override
+			public void run(final int i) {
+				if (layer_indices[i] >= layers.size()) return;
+				// Transform area to world coordinates
+				final Area area = areas[i].createTransformedArea(to_world);
+				pixel_areas[i] = Math.abs(AreaCalculations.area(area.getPathIterator(null)));
+				pix_perimeters[i] = AreaCalculations.circumference(area.getPathIterator(null));
+				smooth_pix_perimeters[i] = measureSmoothPerimeter(area, resampling_delta);
+				contours[i] = getContourPoints(area);
+			}
+		});
+
+		double volume = 0;
+		double lower_bound_surface_h = 0;
+		double upper_bound_surface = 0;
+		double upper_bound_surface_smoothed = 0;
+		double prev_surface = 0;
+		double prev_perimeter = 0;
+		double prev_smooth_perimeter = 0;
+		double prev_thickness = 0;
+		double all_tops_and_bottoms = 0;  // i.e. surface area that is not part of the side area
 
 		int last_layer_index = -1;
 
-		ArrayList<Point3f> points = new ArrayList<Point3f>();
-		final float[] coords = new float[6];
+		final ArrayList<Point3f> points = new ArrayList<Point3f>();
 		final float fpixelWidth = (float) pixelWidth;
 		final float fpixelHeight = (float) pixelHeight;
-		
-		final float resampling_delta = project.getProperty("measurement_resampling_delta", 1.0f);
 
-		// for each area, measure its area and its perimeter, to compute volume and surface
-		for (final Map.Entry<Integer,Area> e : ias.entrySet()) {
+		// for each area, use its area and its perimeter to compute volume and surface
+		for (int i=0; i<areas.length; ++i) {
 
 			// fetch Layer
-			int layer_index = e.getKey();
-			if (layer_index > layers.size()) {
+			final int layer_index = layer_indices[i];
+			if (layer_index >= layers.size()) {
 				Utils.log("Could not find a layer at index " + layer_index);
 				continue;
 			}
-			
-			final Layer la = layers.get(layer_index);
 
-			// fetch Area
-			Area area = e.getValue();
-			if (UNLOADED == area) area = loadLayer(la.getId());
-			// Transform area to world coordinates
-			area = area.createTransformedArea(aff);
+			final Layer la = layers.get(layer_index);
 
 			// measure surface
-			double pixel_area = Math.abs(AreaCalculations.area(area.getPathIterator(null)));
-			double surface = pixel_area * pixelWidth * pixelHeight;
-
-			//Utils.log2(layer_index + " pixel_area: " + pixel_area + "  surface " + surface);
+			final double surface = pixel_areas[i] * pixelWidth * pixelHeight;
 
 			// measure volume
-			double thickness = la.getThickness() * pixelWidth;// the last one is NOT pixelDepth because layer thickness and Z are in pixels
+			final double thickness = la.getThickness() * pixelWidth;// the last one is NOT pixelDepth because layer thickness and Z are in pixels
 			volume += surface * thickness;
 
-			double pix_perimeter = AreaCalculations.circumference(area.getPathIterator(null));
-			double perimeter = pix_perimeter * pixelWidth;
-
-			double smooth_perimeter = 0;
-
-			// smoothed perimeter:
-			{
-				double smooth_pix_perimeter = 0;
-				for (final Polygon pol : M.getPolygons(area)) {
-					
-					try {
-						// Should use VectorString2D, but takes for ever -- bug in resample?
-						// And VectorString3D is likely not respecting the 'closed' flag for resampling.
-						// Also, VectorString3D gets stuck in an infinite loop if the sequence is 6 points!
-						//VectorString3D v = new VectorString3D(xp, yp, new double[pol.npoints], true);
-						
-						
-						
-						if (pol.npoints < 5) {
-							// No point in smoothing out such a short polygon:
-							// (Plus can't convolve it with a gaussian that needs 5 points adjacent)
-							smooth_perimeter += new PolygonRoi(pol, PolygonRoi.POLYGON).getLength();
-							continue;
-						}
-						/*
-						// Works but it is not the best smoothing of the Area's countour
-						double[] xp = new double[pol.npoints];
-						double[] yp = new double[pol.npoints];
-						for (int p=0; p<pol.npoints; p++) {
-							xp[p] = pol.xpoints[p];
-							yp[p] = pol.ypoints[p];
-						}
-						VectorString2D v = new VectorString2D(xp, yp, 0, true);
-						v.resample(resampling_delta);
-						smooth_pix_perimeter += v.length() * resampling_delta;
-						*/
-
-						// The best solution I've found:
-						// 1. Run getInterpolatedPolygon with an interval of 1 to get a point at every pixel
-						// 2. convolve with a gaussian
-						// Resample to 1 so that at every one pixel of the contour there is a point
-						FloatPolygon fpol = new FloatPolygon(new float[pol.npoints], new float[pol.npoints], pol.npoints);
-						for (int i=0; i<pol.npoints; ++i) {
-							fpol.xpoints[i] = pol.xpoints[i];
-							fpol.ypoints[i] = pol.ypoints[i];
-						}
-						fpol = M.createInterpolatedPolygon(fpol, 1, false);
-						final FloatPolygon fp;
-						if (fpol.npoints < 5) {
-							smooth_pix_perimeter += fpol.getLength(false);
-							fp = fpol;
-						} else {
-							// Convolve with a sigma of 1 to smooth it out
-							final FloatPolygon gpol = new FloatPolygon(new float[fpol.npoints], new float[fpol.npoints], fpol.npoints);
-							final CircularSequence seq = new CircularSequence(fpol.npoints);
-							M.convolveGaussianSigma1(fpol.xpoints, gpol.xpoints, seq);
-							M.convolveGaussianSigma1(fpol.ypoints, gpol.ypoints, seq);
-							// Resample it to the desired resolution (also facilitates measurement: npoints * resampling_delta)
-							if (gpol.npoints > resampling_delta) {
-								fp = M.createInterpolatedPolygon(gpol, resampling_delta, false);
-							} else {
-								fp = gpol;
-							}
-							// Measure perimeter: last line segment is potentially shorter or longer than resampling_delta
-							smooth_pix_perimeter += (fp.npoints -1) * resampling_delta
-													+ Math.sqrt(  Math.pow(fp.xpoints[0] - fp.xpoints[fp.npoints-1], 2)
-																+ Math.pow(fp.ypoints[0] - fp.ypoints[fp.npoints-1], 2));
-						}
-
-						// TEST:
-						//ij.plugin.frame.RoiManager.getInstance().addRoi(new PolygonRoi(fp, PolygonRoi.POLYGON));
-						
-						// TESTING: make a polygon roi and show it
-						// ... just in case to see that resampling works as expected, without weird endings
-						/*
-						int[] x = new int[v.length()];
-						int[] y = new int[x.length];
-						double[] xd = v.getPoints(0);
-						double[] yd = v.getPoints(1);
-						for (int p=0; p<x.length; p++) {
-							x[p] = (int)xd[p];
-							y[p] = (int)yd[p];
-						}
-						PolygonRoi proi = new PolygonRoi(x, y, x.length, PolygonRoi.POLYGON);
-						Rectangle b = proi.getBounds();
-						for (int p=0; p<x.length; p++) {
-							x[p] -= b.x;
-							y[p] -= b.y;
-						}
-						ImagePlus imp = new ImagePlus("test", new ByteProcessor(b.width, b.height));
-						imp.setRoi(new PolygonRoi(x, y, x.length, PolygonRoi.POLYGON));
-						imp.show();
-						*/
-					} catch (Exception le) { le.printStackTrace(); }
-				}
-
-				smooth_perimeter = smooth_pix_perimeter * pixelWidth;
-			}
-
-			//Utils.log2("p, sp: " + perimeter + ", " + smooth_perimeter);
-
-			//Utils.log2(layer_index + "  pixelWidth,pixelHeight: " + pixelWidth + ", " + pixelHeight);
-			//Utils.log2(layer_index + "  thickness: " + thickness);
-
-			//Utils.log2(layer_index + "  pix_perimeter: " + pix_perimeter + "   perimeter: " + perimeter);
+			final double perimeter = pix_perimeters[i] * pixelWidth;
+			final double smooth_perimeter = smooth_pix_perimeters[i] * pixelWidth;
 
 			if (-1 == last_layer_index) {
 				// Start of the very first continuous set:
@@ -1372,7 +1330,7 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 				upper_bound_surface += prev_surface + prev_perimeter * prev_thickness;
 				upper_bound_surface_smoothed += prev_surface + prev_smooth_perimeter * prev_thickness;
 				all_tops_and_bottoms += prev_surface;
-				
+
 				// ... and start of a new set
 				lower_bound_surface_h += surface;
 				upper_bound_surface += surface;
@@ -1394,7 +1352,7 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 				// PI * s * (r1 + r2) where s is the hypothenusa
 				double r1 = Math.sqrt(prev_surface / Math.PI);
 				double r2 = Math.sqrt(surface / Math.PI);
-				double hypothenusa = Math.sqrt(Math.pow(Math.abs(r1 - r2), 2) + Math.pow(thickness, 2)); 
+				double hypothenusa = Math.sqrt(Math.pow(Math.abs(r1 - r2), 2) + Math.pow(thickness, 2));
 				lower_bound_surface_h += Math.PI * hypothenusa * (r1 + r2);
 
 				// Adjust volume too:
@@ -1408,19 +1366,11 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 			last_layer_index = layer_index;
 			prev_thickness = thickness;
 
-			// Iterate points:
+			// Collect points:
 			final float z = (float) la.getZ();
-			for (PathIterator pit = area.getPathIterator(null); !pit.isDone(); pit.next()) {
-				switch (pit.currentSegment(coords)) {
-					case PathIterator.SEG_MOVETO:
-					case PathIterator.SEG_LINETO:
-					case PathIterator.SEG_CLOSE:
-						points.add(new Point3f(coords[0] * fpixelWidth, coords[1] * fpixelHeight, z * fpixelWidth));
-						break;
-					default:
-						Utils.log2("WARNING: unhandled seg type.");
-						break;
-				}
+			final float[] xy = contours[i];
+			for (int j=0; j<xy.length; j+=2) {
+				points.add(new Point3f(xy[j] * fpixelWidth, xy[j+1] * fpixelHeight, z * fpixelWidth));
 			}
 		}
 
@@ -1431,21 +1381,13 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 		all_tops_and_bottoms += prev_surface;
 
 		// Compute maximum diameter
-		final boolean measure_largest_diameter = project.getBooleanProperty("measure_largest_diameter");
-		double max_diameter_sq = measure_largest_diameter ? 0 : Double.NaN;
+		final double max_diameter_sq = measure_largest_diameter ? maxDistanceSq(points) : Double.NaN;
 		final int lp = points.size();
 		final Point3f c;
 		if (lp > 0) {
 			c = new Point3f(points.get(0)); // center of mass
-			for (int i=0; i<lp; i++) {
+			for (int i=1; i<lp; i++) {
 				final Point3f p = points.get(i);
-				if (measure_largest_diameter) {
-					for (int j=i; j<lp; j++) {
-						double len = p.distanceSquared(points.get(j));
-						if (len > max_diameter_sq) max_diameter_sq = len;
-					}
-				}
-				if (0 == i) continue;
 				c.x += p.x;
 				c.y += p.y;
 				c.z += p.z;
@@ -1458,9 +1400,110 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 		c.y = box.y + c.y / lp;
 		c.z /= lp;
 
-		return new double[]{volume, lower_bound_surface_h, upper_bound_surface_smoothed,
+		final double[] m = new double[]{volume, lower_bound_surface_h, upper_bound_surface_smoothed,
 				upper_bound_surface, Math.sqrt(max_diameter_sq), all_tops_and_bottoms,
 				c.x, c.y, c.z};
+		setCachedMeasurements(edit_count, key, m);
+		return m;
+	}
+
+	/** The x,y of every vertex of the @param area, in the order of its PathIterator. */
+	static private final float[] getContourPoints(final Area area) {
+		final float[] coords = new float[6];
+		float[] xy = new float[64];
+		int n = 0;
+		for (PathIterator pit = area.getPathIterator(null); !pit.isDone(); pit.next()) {
+			switch (pit.currentSegment(coords)) {
+				case PathIterator.SEG_MOVETO:
+				case PathIterator.SEG_LINETO:
+				case PathIterator.SEG_CLOSE:
+					if (xy.length == n) xy = Arrays.copyOf(xy, n * 2);
+					xy[n++] = coords[0];
+					xy[n++] = coords[1];
+					break;
+				default:
+					Utils.log2("WARNING: unhandled seg type.");
+					break;
+			}
+		}
+		return Arrays.copyOf(xy, n);
+	}
+
+	/** The largest squared distance between any two @param points, in parallel over chunks of the outer loop. */
+	static private final double maxDistanceSq(final List<Point3f> points) {
+		final int lp = points.size();
+		final int n_chunks = Math.min(lp, Process.NUM_PROCESSORS * 8);
+		final double[] max = new double[Math.max(1, n_chunks)];
+		SharedExecutor.forEach(n_chunks, new SharedExecutor.Body() {
+			@Override
+			public void run(final int chunk) {
+				// Interleave rows, since the inner loop shortens as i grows
+				double m = 0;
+				for (int i=chunk; i<lp; i+=n_chunks) {
+					final Point3f p = points.get(i);
+					for (int j=i; j<lp; j++) {
+						final double len = p.distanceSquared(points.get(j));
+						if (len > m) m = len;
+					}
+				}
+				max[chunk] = m;
+			}
+		});
+		double m = 0;
+		for (final double d : max) if (d > m) m = d;
+		return m;
+	}
+
+	/** The length of the outlines of the @param area after smoothing them with a gaussian
+	 *  and resampling them every @param resampling_delta pixels. */
+	static private final double measureSmoothPerimeter(final Area area, final float resampling_delta) {
+		double smooth_pix_perimeter = 0;
+		for (final Polygon pol : M.getPolygons(area)) {
+			try {
+				// Should use VectorString2D, but takes for ever -- bug in resample?
+				// And VectorString3D is likely not respecting the 'closed' flag for resampling.
+				// Also, VectorString3D gets stuck in an infinite loop if the sequence is 6 points!
+
+				if (pol.npoints < 5) {
+					// No point in smoothing out such a short polygon:
+					// (Plus can't convolve it with a gaussian that needs 5 points adjacent)
+					// ... nor in counting it towards the perimeter.
+					continue;
+				}
+
+				// The best solution I've found:
+				// 1. Run getInterpolatedPolygon with an interval of 1 to get a point at every pixel
+				// 2. convolve with a gaussian
+				// Resample to 1 so that at every one pixel of the contour there is a point
+				FloatPolygon fpol = new FloatPolygon(new float[pol.npoints], new float[pol.npoints], pol.npoints);
+				for (int i=0; i<pol.npoints; ++i) {
+					fpol.xpoints[i] = pol.xpoints[i];
+					fpol.ypoints[i] = pol.ypoints[i];
+				}
+				fpol = M.createInterpolatedPolygon(fpol, 1, false);
+				if (fpol.npoints < 5) {
+					smooth_pix_perimeter += fpol.getLength(false);
+				} else {
+					// Convolve with a sigma of 1 to smooth it out
+					final FloatPolygon gpol = new FloatPolygon(new float[fpol.npoints], new float[fpol.npoints], fpol.npoints);
+					final CircularSequence seq = new CircularSequence(fpol.npoints);
+					M.convolveGaussianSigma1(fpol.xpoints, gpol.xpoints, seq);
+					M.convolveGaussianSigma1(fpol.ypoints, gpol.ypoints, seq);
+					// Resample it to the desired resolution (also facilitates measurement: npoints * resampling_delta)
+					final FloatPolygon fp;
+					if (gpol.npoints > resampling_delta) {
+						fp = M.createInterpolatedPolygon(gpol, resampling_delta, false);
+					} else {
+						fp = gpol;
+					}
+					// Measure perimeter: last line segment is potentially shorter or longer than resampling_delta
+					smooth_pix_perimeter += (fp.npoints -1) * resampling_delta
+											+ Math.sqrt(  Math.pow(fp.xpoints[0] - fp.xpoints[fp.npoints-1], 2)
+														+ Math.pow(fp.ypoints[0] - fp.ypoints[fp.npoints-1], 2));
+				}
+			} catch (Exception le) { le.printStackTrace(); }
+		}
+		return smooth_pix_perimeter;
 	}
 
 	@Override
@@ -1474,22 +1517,44 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 		return new DPAreaList(this);
 	}
 
+	@Override
+	DataPackage readDataPackage(final DataInputStream in, final UndoJournal.Refs refs) throws IOException {
+		return new DPAreaList(in, refs);
+	}
+
 	static private final class DPAreaList extends Displayable.DataPackage {
-		final protected HashMap<Long,Area> ht;
+		final protected CompactAreaMap ht;
 		DPAreaList(final AreaList ali) {
 			super(ali);
-			this.ht = new HashMap<Long,Area>();
-			for (final Map.Entry<Long,Area> e : ali.ht_areas.entrySet()) {
-				this.ht.put(e.getKey(), new Area(e.getValue()));
-			}
+			// Nobody else holds the copies, so they can all be compacted
+			this.ht = ali.ht_areas.clone();
+			this.ht.compact();
+		}
+		DPAreaList(final DataInputStream in, final UndoJournal.Refs refs) throws IOException {
+			super(in, refs);
+			this.ht = CompactAreaMap.read(in);
+		}
+		@Override
+		boolean isSpillable() {
+			return true;
+		}
+		@Override
+		void write(final DataOutputStream out, final UndoJournal.Refs refs) throws IOException {
+			super.write(out, refs);
+			ht.write(out);
+		}
+		@Override
+		boolean sameData(final DataPackage p) {
+			return ht.sameAs(((DPAreaList)p).ht);
+		}
+		@Override
+		final long estimateBytes() {
+			return super.estimateBytes() + 64 * ht.size() + ht.estimateBytes();
 		}
 		final boolean to2(final Displayable d) {
 			super.to1(d);
 			final AreaList ali = (AreaList)d;
-			ali.ht_areas.clear();
-			for (final Map.Entry<Long,Area> e : ht.entrySet()) {
-				ali.ht_areas.put(e.getKey(), new Area(e.getValue()));
-			}
+			ali.ht_areas = ht.clone();
 			return true;
 		}
 	}
@@ -8,6 +8,7 @@ import ini.trakem2.Project;
 import ini.trakem2.imaging.Segmentation;
 import ini.trakem2.utils.AreaUtils;
 import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.IndexedTriangleMesh;
 import ini.trakem2.utils.M;
 import ini.trakem2.utils.ProjectToolbar;
 import ini.trakem2.utils.Utils;
@@ -556,7 +557,8 @@ public class AreaTree extends Tree<Area> implements AreaContainer {
 				areas.put(e.getKey(), a);
 			}
 		}
-		final List<Point3f> ps = AreaUtils.generateTriangles(this, scale, resample, areas);
+		final IndexedTriangleMesh mesh = AreaUtils.generateMesh(this, scale, resample, areas);
+		final List<Point3f> ps = null == mesh ? new ArrayList<Point3f>() : mesh.toList();
 		
 		final List<Color3f> colors = new ArrayList<Color3f>();
 		// Determine colors by proximity to a node, since there isn't any other way.
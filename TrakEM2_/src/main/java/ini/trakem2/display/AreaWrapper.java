@@ -11,6 +11,7 @@ import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.M;
 import ini.trakem2.utils.OptionPanel;
 import ini.trakem2.utils.ProjectToolbar;
+import ini.trakem2.utils.RunLengthArea;
 import ini.trakem2.utils.Utils;
 import ini.trakem2.vector.VectorString3D;
 
@@ -122,8 +123,13 @@ public class AreaWrapper {
 	private final class Painter extends Thread {
 		/** The area to paint into when done or when removing. */
 		final private Area target_area;
-		/** The temporary area to paint to, which is only different than target_area when adding. */
+		/** The area to subtract from, which is the target_area; null when adding. */
 		final private Area area;
+		/** The pixels painted so far when adding, merged into the target_area on mouse release; null when removing.
+		 * Each brush stroke is a cheap union of pixel runs rather than a geometric union of outlines.
+		 * Each dab rasterizes the same integer-cornered brush outline that erasing subtracts (see slashInInts),
+		 * hence it covers the pixels that filling that outline would paint. */
+		final private RunLengthArea stroke;
 		/** The list of all painted points. */
 		private final LinkedList<Point> points = new LinkedList<Point>();
 		/** The last point on which a paint event was done. */
@@ -153,12 +159,13 @@ public class AreaWrapper {
 			this.adding = (0 == (flags & alt));
 			// if adding areas, make it be a copy, to be added on mouse release
 			// (In this way, the receiving Area is small and can be operated on fast)
+			this.target_area = area;
 			if (adding) {
-				this.target_area = area;
-				this.area = new Area();
+				this.area = null;
+				this.stroke = new RunLengthArea();
 			} else {
-				this.target_area = area;
 				this.area = area;
+				this.stroke = null;
 			}
 
 			brush_size = ProjectToolbar.getBrushSize();
@@ -188,10 +195,16 @@ public class AreaWrapper {
 						// No interpolation required
 						final AffineTransform atb = new AffineTransform(1, 0, 0, 1, ps.get(0).x, ps.get(0).y);
 						atb.preConcatenate(at_inv);
-						Area chunk = slashInInts(brush.createTransformedArea(atb));
-						synchronized (arealock) {
-							if (adding) Painter.this.area.add(chunk);
-							else Painter.this.area.subtract(chunk);
+						if (adding) {
+							final RunLengthArea chunk = new RunLengthArea(slashInInts(brush.createTransformedArea(atb)));
+							synchronized (arealock) {
+								stroke.add(chunk);
+							}
+						} else {
+							final Area chunk = slashInInts(brush.createTransformedArea(atb));
+							synchronized (arealock) {
+								Painter.this.area.subtract(chunk);
+							}
 						}
 						return;
 					}
@@ -242,16 +255,27 @@ public class AreaWrapper {
 						xpd[xpd.length-1] = po.x;
 						ypd[ypd.length-1] = po.y;
 
-						final Area chunk = new Area();
 						final AffineTransform atb = new AffineTransform();
-						for (int i=0; i<xpd.length; i++) {
-							atb.setToTranslation((int)xpd[i], (int)ypd[i]); // always integers
-							atb.preConcatenate(at_inv);
-							chunk.add(slashInInts(brush.createTransformedArea(atb)));
-						}
-						synchronized (arealock) {
-							if (adding) Painter.this.area.add(chunk);
-							else Painter.this.area.subtract(chunk);
+						if (adding) {
+							final RunLengthArea chunk = new RunLengthArea();
+							for (int i=0; i<xpd.length; i++) {
+								atb.setToTranslation((int)xpd[i], (int)ypd[i]); // always integers
+								atb.preConcatenate(at_inv);
+								chunk.add(new RunLengthArea(slashInInts(brush.createTransformedArea(atb))));
+							}
+							synchronized (arealock) {
+								stroke.add(chunk);
+							}
+						} else {
+							final Area chunk = new Area();
+							for (int i=0; i<xpd.length; i++) {
+								atb.setToTranslation((int)xpd[i], (int)ypd[i]); // always integers
+								atb.preConcatenate(at_inv);
+								chunk.add(slashInInts(brush.createTransformedArea(atb)));
+							}
+							synchronized (arealock) {
+								Painter.this.area.subtract(chunk);
+							}
 						}
 
 						Display.repaint(Painter.this.la, 3, r_old, false, false);
@@ -265,15 +289,12 @@ public class AreaWrapper {
 			start();
 		}
 
-		/** Paint only if area is not the target_area. */
+		/** Paint only the stroke when adding, for the target_area is painted by its owner. */
 		private final void paint(final Graphics2D g, final AffineTransform aff, final boolean fill) {
-			if (area == target_area) return;
-			if (null != area) {
-				synchronized (arealock) {
-					if (null == area) return;
-					if (fill) g.fill(area.createTransformedArea(aff));
-					else      g.draw(area.createTransformedArea(aff)); // won't be perfect except on mouse release
-				}
+			if (null == stroke) return;
+			synchronized (arealock) {
+				if (fill) g.fill(aff.createTransformedShape(stroke.toShape()));
+				else      g.draw(aff.createTransformedShape(stroke.toOutline()));
 			}
 		}
 		
@@ -316,11 +337,7 @@ public class AreaWrapper {
 				} else {
 					// Just one point: no interpolation needed
 					// merge the temporary Area, if any, with the general one
-					if (adding) {
-						synchronized (arealock) {
-							this.target_area.add(area);
-						}
-					} else {
+					if (!adding) {
 						// If subtracting, it was already done
 						return;
 					}
@@ -331,7 +348,7 @@ public class AreaWrapper {
 
 					synchronized (arealock) {
 						added = new Area(this.target_area);
-						added.add(area);
+						added.add(stroke.toArea());
 					}
 
 					// now, depending on paint mode, alter the new target area:
@@ -348,7 +365,6 @@ public class AreaWrapper {
 							final Displayable d = e.getKey();
 							if (source == d) continue;
 							for (final Area a : e.getValue()) {
-								if (this.area == a) continue;
 								AffineTransform aff;
 								switch (PP.paint_mode) {
 								case PAINT_ERODE:
@@ -428,13 +444,16 @@ public class AreaWrapper {
 					public void run() {
 						final AffineTransform aff = new AffineTransform(1, 0, 0, 1, p.x, p.y);
 						aff.preConcatenate(at_inv);
-						final Area slash = slashInInts(brush.createTransformedArea(aff));
-						synchronized (arealock) {
-							if (0 == (flags & alt)) {
-								// no modifiers, just add
-								area.add(slash);
-							} else {
-								// with alt down, subtract
+						if (adding) {
+							// no modifiers, just add
+							final RunLengthArea slash = new RunLengthArea(slashInInts(brush.createTransformedArea(aff)));
+							synchronized (arealock) {
+								stroke.add(slash);
+							}
+						} else {
+							// with alt down, subtract
+							final Area slash = slashInInts(brush.createTransformedArea(aff));
+							synchronized (arealock) {
 								area.subtract(slash);
 							}
 						}
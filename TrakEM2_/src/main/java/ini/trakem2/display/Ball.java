@@ -28,6 +28,7 @@ import ij.measure.ResultsTable;
 import ini.trakem2.Project;
 import ini.trakem2.persistence.XMLOptions;
 import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.IndexedTriangleMesh;
 import ini.trakem2.utils.M;
 import ini.trakem2.utils.ProjectToolbar;
 import ini.trakem2.utils.Utils;
@@ -935,9 +936,15 @@ public class Ball extends ZDisplayable implements VectorData {
 			Utils.log("Java3D is not installed.");
 			return null;
 		}
+		return generateMesh(scale, globe).toList();
+	}
+
+	/** Like {@link #generateTriangles(double, double[][][])}, but as an indexed mesh: the vertices shared by the faces of a ball are stored only once. */
+	public IndexedTriangleMesh generateMesh(final double scale, final double[][][] globe) {
 		final Calibration cal = layer_set.getCalibrationCopy();
 		// modify the globe to fit each ball's radius and x,y,z position
-		final ArrayList<Point3f> list = new ArrayList<Point3f>();
+		final IndexedTriangleMesh mesh = new IndexedTriangleMesh(n_points * globe.length * globe[0].length);
+		final int[][] vi = new int[globe.length][globe[0].length];
 		// transform points
 		// local pointers, since they may be transformed
 		double[][] p = this.p;
@@ -960,22 +967,24 @@ public class Ball extends ZDisplayable implements VectorData {
 					ball[z][k][2] = (globe[z][k][2] * p_width[i] + layer_set.getLayer(p_layer[i]).getZ()) * scale * cal.pixelWidth * sign; // not pixelDepth, see day notes 20080227. Because pixelDepth is in microns/px, not in px/microns, and the z coord here is taken from the z of the layer, which is in pixels.
 				}
 			}
-			// create triangular faces and add them to the list
+			// add the vertices, merging the poles and the repeated meridian
+			for (int z=0; z<ball.length; z++) {
+				for (int k=0; k<ball[0].length; k++) {
+					vi[z][k] = mesh.addVertex((float)ball[z][k][0], (float)ball[z][k][1], (float)ball[z][k][2]);
+				}
+			}
+			// create triangular faces and add them to the mesh
 			for (int z=0; z<ball.length-1; z++) { // the parallels
 				for (int k=0; k<ball[0].length -1; k++) { // meridian points
 					// half quadrant (a triangle)
-					list.add(new Point3f((float)ball[z][k][0], (float)ball[z][k][1], (float)ball[z][k][2]));
-					list.add(new Point3f((float)ball[z+1][k+1][0], (float)ball[z+1][k+1][1], (float)ball[z+1][k+1][2]));
-					list.add(new Point3f((float)ball[z+1][k][0], (float)ball[z+1][k][1], (float)ball[z+1][k][2]));
+					mesh.addTriangle(vi[z][k], vi[z+1][k+1], vi[z+1][k]);
 					// the other half quadrant
-					list.add(new Point3f((float)ball[z][k][0], (float)ball[z][k][1], (float)ball[z][k][2]));
-					list.add(new Point3f((float)ball[z][k+1][0], (float)ball[z][k+1][1], (float)ball[z][k+1][2]));
-					list.add(new Point3f((float)ball[z+1][k+1][0], (float)ball[z+1][k+1][1], (float)ball[z+1][k+1][2]));
+					mesh.addTriangle(vi[z][k], vi[z][k+1], vi[z+1][k+1]);
 				}
-				// the Point3f could be initialized through reflection, by getting the Construntor from the Class and calling new Instance(new Object[]{new Double(x), new Double(y), new Double(z)), so it would compile even in the absence of java3d
 			}
 		}
-		return list;
+		mesh.trim();
+		return mesh;
 	}
 
 
@@ -0,0 +1,268 @@
+package ini.trakem2.display;
+
+import mpicbg.trakem2.util.SharedExecutor;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** Which {@link ZDisplayable} objects lie under the origin and under each target of every {@link Connector}
+ * of a {@link LayerSet}, and, in reverse, which connectors start or end at each {@link Displayable}.
+ *
+ * Finding these requires a spatial query for every node of every connector. The index runs them once,
+ * and afterwards only for connectors that were edited, added or removed, and for connectors linked to
+ * or overlapping the bounds of any other object that was edited, added or removed since the last query.
+ * Edits are noticed via {@link Displayable#updateInDatabase(String)} for the keys that may move or reshape
+ * an object, via the bounding box recalculation that follows every edit of a {@link Tree} or {@link AreaList},
+ * via undo, via the addition and removal methods of {@link Layer} and {@link LayerSet}, including the
+ * silent ones, and via the undo steps that replace the contents of layers or of the LayerSet.
+ *
+ * Only {@link ZDisplayable} objects are indexed, which are those that connectors relate; images, labels
+ * and profiles are left out, so that editing them, such as when aligning, costs nothing here.
+ * The results are the same as those of {@link Connector#getOrigins(Class, boolean)} and
+ * {@link Connector#getTargets(Class, boolean)} for {@link ZDisplayable}.
+ * All returned collections are copies, free to modify. Thread-safe. */
+public final class ConnectivityIndex {
+
+	/** The objects under the nodes of one connector; never modified once created. */
+	static public final class Links {
+		final Set<Displayable> origins;
+		final List<Set<Displayable>> targets;
+		/** The world bounds of the connector when the links were found. */
+		final Rectangle box;
+		Links(final Set<Displayable> origins, final List<Set<Displayable>> targets, final Rectangle box) {
+			this.origins = origins;
+			this.targets = targets;
+			this.box = box;
+		}
+		/** The objects under the root node; must not be modified. */
+		public Set<Displayable> getOrigins() {
+			return Collections.unmodifiableSet(origins);
+		}
+		/** The objects under each child node of the root, in order; must not be modified. */
+		public List<Set<Displayable>> getTargets() {
+			return Collections.unmodifiableList(targets);
+		}
+	}
+
+	/** Beyond this many edited objects, recomputing all connectors is cheaper than finding those affected. */
+	static private final int MAX_BOX_TESTS = 256;
+
+	private final LayerSet layer_set;
+
+	private final Map<Connector,Links> links = new HashMap<Connector,Links>();
+	/** The connectors whose origin lies on each Displayable. */
+	private final Map<Displayable,Set<Connector>> outgoing = new HashMap<Displayable,Set<Connector>>();
+	/** The connectors with a target on each Displayable. */
+	private final Map<Displayable,Set<Connector>> incoming = new HashMap<Displayable,Set<Connector>>();
+
+	/** Guards the sets of edited objects, so that edits don't wait for an update to finish. */
+	private final Object dirty_lock = new Object();
+	/** Before the first update, every connector is considered edited. */
+	private boolean initialized = false;
+	private Set<Connector> dirty_connectors = new HashSet<Connector>();
+	private Set<Displayable> dirty_others = new HashSet<Displayable>();
+
+	ConnectivityIndex(final LayerSet layer_set) {
+		this.layer_set = layer_set;
+	}
+
+	/** Notify that @param d was edited, added or removed. */
+	void changed(final Displayable d) {
+		if (!(d instanceof ZDisplayable)) return;
+		synchronized (dirty_lock) {
+			if (!initialized) return;
+			// A connector may also lie under the nodes of another connector
+			if (d instanceof Connector) dirty_connectors.add((Connector)d);
+			dirty_others.add(d);
+		}
+	}
+
+	/** Notify that the contents of the LayerSet were replaced wholesale, as when undoing
+	 * a change of the project trees: every connector is considered edited. */
+	void changedAll() {
+		synchronized (dirty_lock) {
+			initialized = false;
+			dirty_connectors = new HashSet<Connector>();
+			dirty_others = new HashSet<Displayable>();
+		}
+	}
+
+	/** Bring the index up to date with all edits so far. */
+	private synchronized void update() {
+		final Set<Connector> cs;
+		final Set<Displayable> ds;
+		final boolean all;
+		synchronized (dirty_lock) {
+			all = !initialized;
+			initialized = true;
+			cs = dirty_connectors;
+			ds = dirty_others;
+			dirty_connectors = new HashSet<Connector>();
+			dirty_others = new HashSet<Displayable>();
+		}
+		if (!all && cs.isEmpty() && ds.isEmpty()) return;
+
+		final Set<Connector> present = new HashSet<Connector>(layer_set.getAll(Connector.class));
+		if (all || ds.size() > MAX_BOX_TESTS) {
+			cs.addAll(present);
+			cs.addAll(links.keySet());
+		} else {
+			for (final Displayable d : ds) {
+				final Set<Connector> out = outgoing.get(d);
+				if (null != out) cs.addAll(out);
+				final Set<Connector> in = incoming.get(d);
+				if (null != in) cs.addAll(in);
+				final Rectangle b = d.getBoundingBox();
+				for (final Map.Entry<Connector,Links> e : links.entrySet()) {
+					if (e.getValue().box.intersects(b)) cs.add(e.getKey());
+				}
+			}
+			// Connectors added without notice, and connectors removed
+			for (final Connector c : present) {
+				if (!links.containsKey(c)) cs.add(c);
+			}
+			for (final Connector c : links.keySet()) {
+				if (!present.contains(c)) cs.add(c);
+			}
+		}
+
+		final ArrayList<Connector> todo = new ArrayList<Connector>(cs.size());
+		for (final Connector c : cs) {
+			unlink(c);
+			if (present.contains(c)) todo.add(c);
+		}
+		final Links[] found = new Links[todo.size()];
+		SharedExecutor.forEach(todo.size(), new SharedExecutor.Body() {
+			@Override
+			public void run(final int i) {
+				final Connector c = todo.get(i);
+				found[i] = new Links(c.getOrigins(ZDisplayable.class, true), c.getTargets(ZDisplayable.class, true), c.getBoundingBox());
+			}
+		});
+		for (int i=0; i<found.length; ++i) {
+			if (null != found[i]) link(todo.get(i), found[i]);
+		}
+	}
+
+	private void unlink(final Connector c) {
+		final Links l = links.remove(c);
+		if (null == l) return;
+		for (final Displayable d : l.origins) remove(outgoing, d, c);
+		for (final Set<Displayable> targets : l.targets) {
+			for (final Displayable d : targets) remove(incoming, d, c);
+		}
+	}
+
+	private void link(final Connector c, final Links l) {
+		links.put(c, l);
+		for (final Displayable d : l.origins) add(outgoing, d, c);
+		for (final Set<Displayable> targets : l.targets) {
+			for (final Displayable d : targets) add(incoming, d, c);
+		}
+	}
+
+	static private final void add(final Map<Displayable,Set<Connector>> m, final Displayable d, final Connector c) {
+		Set<Connector> s = m.get(d);
+		if (null == s) {
+			s = new HashSet<Connector>();
+			m.put(d, s);
+		}
+		s.add(c);
+	}
+
+	static private final void remove(final Map<Displayable,Set<Connector>> m, final Displayable d, final Connector c) {
+		final Set<Connector> s = m.get(d);
+		if (null == s) return;
+		s.remove(c);
+		if (s.isEmpty()) m.remove(d);
+	}
+
+	/** Same as {@link Connector#getOrigins()}. */
+	public synchronized Set<Displayable> getOrigins(final Connector c) {
+		update();
+		final Links l = links.get(c);
+		return null == l ? new HashSet<Displayable>() : new HashSet<Displayable>(l.origins);
+	}
+
+	/** Same as {@link Connector#getTargets()}. */
+	public synchronized List<Set<Displayable>> getTargets(final Connector c) {
+		update();
+		final Links l = links.get(c);
+		final List<Set<Displayable>> al = new ArrayList<Set<Displayable>>();
+		if (null == l) return al;
+		for (final Set<Displayable> targets : l.targets) al.add(new HashSet<Displayable>(targets));
+		return al;
+	}
+
+	/** The links of each connector in @param cs, read all at once under a single lock, for callers
+	 * that then process many connectors in parallel; null for connectors that are not in the LayerSet. */
+	public synchronized Links[] getLinks(final List<Connector> cs) {
+		update();
+		final Links[] ls = new Links[cs.size()];
+		for (int i=0; i<ls.length; ++i) ls[i] = links.get(cs.get(i));
+		return ls;
+	}
+
+	/** The connectors whose origin lies on @param d. */
+	public synchronized Set<Connector> getOutgoing(final Displayable d) {
+		update();
+		final Set<Connector> s = outgoing.get(d);
+		return null == s ? new HashSet<Connector>() : new HashSet<Connector>(s);
+	}
+
+	/** The connectors with at least one target on @param d. */
+	public synchronized Set<Connector> getIncoming(final Displayable d) {
+		update();
+		final Set<Connector> s = incoming.get(d);
+		return null == s ? new HashSet<Connector>() : new HashSet<Connector>(s);
+	}
+
+	/** The objects under the targets of all connectors whose origin lies on @param d. */
+	public synchronized Set<Displayable> getDownstream(final Displayable d) {
+		update();
+		final Set<Displayable> s = new HashSet<Displayable>();
+		final Set<Connector> out = outgoing.get(d);
+		if (null == out) return s;
+		for (final Connector c : out) {
+			for (final Set<Displayable> targets : links.get(c).targets) s.addAll(targets);
+		}
+		return s;
+	}
+
+	/** The objects under the origins of all connectors with a target on @param d. */
+	public synchronized Set<Displayable> getUpstream(final Displayable d) {
+		update();
+		final Set<Displayable> s = new HashSet<Displayable>();
+		final Set<Connector> in = incoming.get(d);
+		if (null == in) return s;
+		for (final Connector c : in) s.addAll(links.get(c).origins);
+		return s;
+	}
+
+	/** Invoke @param visitor for every connector, in the order of {@link LayerSet#getAll(Class)},
+	 * with its origins and targets; the sets must not be modified. */
+	public void visit(final Visitor visitor) {
+		final List<Connector> cs = layer_set.getAll(Connector.class);
+		final Map<Connector,Links> snapshot;
+		synchronized (this) {
+			update();
+			snapshot = new HashMap<Connector,Links>(links);
+		}
+		for (final Connector c : cs) {
+			final Links l = snapshot.get(c);
+			if (null == l) continue;
+			if (!visitor.visit(c, Collections.unmodifiableSet(l.origins), Collections.unmodifiableList(l.targets))) return;
+		}
+	}
+
+	static public interface Visitor {
+		/** @return false to stop visiting. */
+		public boolean visit(Connector c, Set<Displayable> origins, List<Set<Displayable>> targets);
+	}
+}
@@ -49,6 +49,7 @@ import ini.trakem2.imaging.LayerStack;
 import ini.trakem2.imaging.PatchStack;
 import ini.trakem2.imaging.Segmentation;
 import ini.trakem2.imaging.filters.FilterEditor;
+import ini.trakem2.io.MeshExporter;
 import ini.trakem2.io.NeuroML;
 import ini.trakem2.parallel.Process;
 import ini.trakem2.parallel.TaskFactory;
@@ -3270,7 +3271,9 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 		item.setEnabled(null != active && Tree.class.isInstance(active));
 		item = new JMenuItem("Tags..."); item.addActionListener(this); menu.add(item);
 		item = new JMenuItem("Connectivity graph..."); item.addActionListener(this); menu.add(item);
+		item = new JMenuItem("Connectivity graph to file..."); item.addActionListener(this); menu.add(item);
 		item = new JMenuItem("NeuroML..."); item.addActionListener(this); menu.add(item);
+		item = new JMenuItem("Meshes..."); item.addActionListener(this); menu.add(item);
 		popup.add(menu);
 
 		menu = new JMenu("Display");
@@ -3286,6 +3289,7 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 		item = new JMenuItem("Adjust arealist paint parameters..."); item.addActionListener(this); menu.add(item);
 		item = new JMenuItem("Show current 2D position in 3D"); item.addActionListener(this); menu.add(item);
 		item = new JMenuItem("Show layers as orthoslices in 3D"); item.addActionListener(this); menu.add(item);
+		item = new JMenuItem("3D level of detail..."); item.addActionListener(this); menu.add(item);
 		item = new JMenuItem("Inspect image mesh triangles"); item.addActionListener(this); menu.add(item);
 		popup.add(menu);
 
@@ -3738,43 +3742,17 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
                 public void exec() {
 
 
-			final Collection<Connector> connectors = (Collection<Connector>) (Collection) getLayerSet().getZDisplayables(Connector.class);
+			final ConnectivityIndex ci = getLayerSet().getConnectivityIndex();
 			final HashSet<Displayable> to_select = new HashSet<Displayable>();
 
 			if (command.equals("Select outgoing Connectors")) {
-				for (final Connector con : connectors) {
-					final Set<Displayable> origins = con.getOrigins();
-					origins.retainAll(sel);
-					if (origins.isEmpty()) continue;
-					to_select.add(con);
-				}
+				for (final Displayable d : sel) to_select.addAll(ci.getOutgoing(d));
 			} else if (command.equals("Select incoming Connectors")) {
-				for (final Connector con : connectors) {
-					for (final Set<Displayable> targets : con.getTargets()) {
-						targets.retainAll(sel);
-						if (targets.isEmpty()) continue;
-						to_select.add(con);
-					}
-				}
+				for (final Displayable d : sel) to_select.addAll(ci.getIncoming(d));
 			} else if (command.equals("Select downstream targets")) {
-				for (final Connector con : connectors) {
-					final Set<Displayable> origins = con.getOrigins();
-					origins.retainAll(sel);
-					if (origins.isEmpty()) continue;
-					// else, add all targets
-					for (final Set<Displayable> targets : con.getTargets()) {
-						to_select.addAll(targets);
-					}
-				}
+				for (final Displayable d : sel) to_select.addAll(ci.getDownstream(d));
 			} else if (command.equals("Select upstream targets")) {
-				for (final Connector con : connectors) {
-					for (final Set<Displayable> targets : con.getTargets()) {
-						targets.retainAll(sel);
-						if (targets.isEmpty()) continue;
-						to_select.addAll(con.getOrigins());
-						break; // origins will be the same for all targets of 'con'
-					}
-				}
+				for (final Displayable d : sel) to_select.addAll(ci.getUpstream(d));
 			}
 
 			selection.selectAll(new ArrayList<Displayable>(to_select));
@@ -5152,6 +5130,12 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 			final Point p = canvas.consumeLastPopupPoint();
 			if (null == p) return;
 			Display3D.addFatPoint("Current 2D Position", getLayerSet(), p.x, p.y, layer.getZ(), 10, Color.magenta);
+		} else if (command.equals("3D level of detail...")) {
+			final GenericDialog gd = new GenericDialog("3D level of detail");
+			gd.addSlider("Level (0 is finest):", 0, 4, Display3D.getLevelOfDetail(getLayerSet()));
+			gd.showDialog();
+			if (gd.wasCanceled()) return;
+			Display3D.setLevelOfDetail(getLayerSet(), (int)gd.getNextNumber());
 		} else if (command.equals("Show layers as orthoslices in 3D")) {
 			final GenericDialog gd = new GenericDialog("Options");
 			final Roi roi = canvas.getFakeImagePlus().getRoi();
@@ -6115,6 +6099,8 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 					Graph.extractAndShowGraph(getLayerSet());
 				}
 			}, getProject());
+		} else if (command.equals("Connectivity graph to file...")) {
+			Graph.exportGraph(getLayerSet());
 		} else if (command.equals("NeuroML...")) {
 			final GenericDialog gd = new GenericDialog("Export NeuroML");
 			final String[] a = new String[]{"NeuroML (arbors and synapses)", "MorphML (arbors)"};
@@ -6178,6 +6164,27 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 					}
 				}
 			}, getProject());
+		} else if (command.equals("Meshes...")) {
+			final GenericDialog gd = new GenericDialog("Export meshes");
+			gd.addChoice("Format:", MeshExporter.FORMATS, MeshExporter.FORMATS[MeshExporter.PLY]);
+			final String[] b = new String[]{"All arealists, treelines, areatrees, balls and pipes", "Selected ones"};
+			gd.addChoice("Export:", b, b[0]);
+			gd.addNumericField("Resample arealists and areatrees:", Display3D.DEFAULT_RESAMPLE, 0);
+			gd.showDialog();
+			if (gd.wasCanceled()) return;
+			final int format = gd.getNextChoiceIndex();
+			final int export = gd.getNextChoiceIndex();
+			final int resample = Math.max(1, (int)gd.getNextNumber());
+			final DirectoryChooser dc = new DirectoryChooser("Choose target folder");
+			final String dir = dc.getDirectory();
+			if (null == dir) return; // canceled
+			Bureaucrat.createAndStart(new Worker.Task("Export meshes") {
+				@Override
+				public void exec() {
+					final Collection<? extends Displayable> ds = 0 == export ? getLayerSet().getZDisplayables() : selection.getSelected();
+					MeshExporter.exportMeshes(ds, new File(dir), format, resample);
+				}
+			}, getProject());
 		} else if (command.equals("Measure")) {
 			if (selection.isEmpty()) {
 				Utils.log("Nothing selected to measure!");
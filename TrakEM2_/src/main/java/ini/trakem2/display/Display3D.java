@@ -16,6 +16,8 @@ import ini.trakem2.display.d3d.Display3DGUI;
 import ini.trakem2.imaging.PatchStack;
 import ini.trakem2.tree.ProjectThing;
 import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.IndexedTriangleMesh;
+import ini.trakem2.utils.MeshSimplifier;
 import ini.trakem2.utils.Utils;
 import ini.trakem2.vector.VectorString3D;
 
@@ -28,6 +30,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
@@ -73,7 +76,21 @@ public final class Display3D {
 	/** The dimensions of the LayerSet in 2D. */
 	private double width, height;
 	private int resample = -1; // unset
-	static private final int DEFAULT_RESAMPLE = 4;
+	static final int DEFAULT_RESAMPLE = 4;
+	/** Project property that enables the simplification of meshes to levels of detail; off by default. */
+	static public final String simplify_meshes = "3d_simplify_meshes";
+	/** Project properties with the maximum number of triangles of the mesh of one object, and of all meshes in the universe. */
+	static public final String triangles_per_object = "3d_triangles_per_object",
+	                           triangles_per_scene = "3d_triangles_per_scene";
+	static public final int DEFAULT_TRIANGLES_PER_OBJECT = 500000,
+	                        DEFAULT_TRIANGLES_PER_SCENE = 5000000;
+	/** Coarser meshes are made until reaching this number of triangles. */
+	static private final int MIN_LOD_TRIANGLES = 1000;
+	static private final int MAX_LOD_LEVELS = 5;
+	/** The simplified meshes of each AreaList, Ball or Pipe shown, when simplifying. */
+	private final Map<Displayable,LevelsOfDetail> lods = Collections.synchronizedMap(new HashMap<Displayable,LevelsOfDetail>());
+	/** The finest level of detail to show: 0 is the most detailed mesh within the per-object budget. */
+	private int lod_level = 0;
 	/** If the LayerSet dimensions are too large, then limit to max 2048 for width or height and setup a scale.*/
 	private final double scale = 1.0; // OBSOLETE: meshes are now generated with imglib ShapeList images.
 
@@ -129,6 +146,7 @@ public final class Display3D {
 				synchronized (ht_pt_meshes) {
 					ht_pt_meshes.clear();
 				}
+				lods.clear();
 			}
 			@Override
 			public void transformationUpdated(View arg0) {
@@ -533,6 +551,7 @@ public final class Display3D {
 						} catch (Throwable e) {
 							IJError.print(e);
 						}
+						d3d.rebalance();
 						// Reset cursor
 						doneWaiting();
 						Utils.showStatus(new StringBuilder("Done rendering ").append(counter.get()).append('/').append(hs.size()).toString());
@@ -655,6 +674,7 @@ public final class Display3D {
 		synchronized (d3d.ht_pt_meshes) {
 			name = d3d.ht_pt_meshes.remove(pt);
 		}
+		d3d.lods.remove(displ);
 		if (null == name) {
 			Utils.log2("No mesh contained within " + d3d + " for ProjectThing " + pt);
 			return;
@@ -665,6 +685,11 @@ public final class Display3D {
 
 	/** Creates a mesh for the given Displayable in a separate Thread, and adds it to the universe. */
 	private Future<Content> addMesh(final ProjectThing pt, final Displayable displ, final int resample) {
+		return addMesh(pt, displ, resample, true);
+	}
+
+	/** @param rebalance Whether to then show other meshes coarser or finer, for the scene budget is now shared differently. */
+	private Future<Content> addMesh(final ProjectThing pt, final Displayable displ, final int resample, final boolean rebalance) {
 		return executors.submit(new Callable<Content>() {
 			public Content call() {
 				try {
@@ -680,6 +705,8 @@ public final class Display3D {
 					}
 					// 3 - Add to universe, and wait
 					universe.addContentLater(content).get();
+					// 4 - Adjust the levels of detail of the other meshes
+					if (rebalance) rebalance();
 					
 					return content;
 
@@ -744,6 +771,7 @@ public final class Display3D {
 				continue; // no Display3D window open
 			}
 			String oldTitle = d3d.ht_pt_meshes.remove(child);
+			d3d.lods.remove(child.getObject());
 			if (null == oldTitle) {
 				Utils.log("Could not find a title for " + child);
 				continue;
@@ -791,12 +819,9 @@ public final class Display3D {
 			if (-1 == resample) rs = Display3D.this.resample = adjustResampling(); // will adjust this.resample, and return it (even if it's a default value)
 			else rs = Display3D.this.resample;
 		}
-		if (AreaList.class == c) {
-			triangles = ((AreaList)displ).generateTriangles(scale, rs);
+		if (AreaList.class == c || Ball.class == c || Pipe.class == c) {
+			triangles = toList(getLevelOfDetail(displ, scale, rs));
 			//triangles = removeNonManifold(triangles);
-		} else if (Ball.class == c) {
-			double[][][] globe = Ball.generateGlobe(12, 12);
-			triangles = ((Ball)displ).generateTriangles(scale, globe);
 		} else if (displ instanceof Line3D) {
 			// Pipe and Polyline
 			// adjustResampling();  // fails horribly, needs first to correct mesh-generation code
@@ -940,6 +965,176 @@ public final class Display3D {
 		}};
 	}
 
+	/** The simplified mesh levels of an object, valid while the object is not edited.
+	 * Only the levels that have been asked for are made, each from the previous one. */
+	static private final class LevelsOfDetail {
+		final long edit_count;
+		final int resample;
+		private final ArrayList<IndexedTriangleMesh> levels = new ArrayList<IndexedTriangleMesh>(MAX_LOD_LEVELS);
+		/** Whether there are no coarser levels to make. */
+		private boolean last = false;
+		/** The level in the universe, or -1 if none yet. */
+		int shown = -1;
+		LevelsOfDetail(final long edit_count, final int resample, final IndexedTriangleMesh first) {
+			this.edit_count = edit_count;
+			this.resample = resample;
+			this.levels.add(first);
+		}
+		/** The mesh at @param level, or at the coarsest level there is if that is finer. */
+		synchronized IndexedTriangleMesh get(final int level) {
+			while (level >= levels.size() && !last) {
+				final IndexedTriangleMesh coarsest = levels.get(levels.size() - 1);
+				final int n = coarsest.getTriangleCount();
+				if (levels.size() == MAX_LOD_LEVELS || n / 4 < MIN_LOD_TRIANGLES) {
+					last = true;
+					break;
+				}
+				final IndexedTriangleMesh next = MeshSimplifier.simplify(coarsest, n / 4);
+				// Stop if collapses are no longer possible
+				if (next.getTriangleCount() >= n) {
+					last = true;
+					break;
+				}
+				levels.add(next);
+			}
+			return levels.get(Math.min(level, levels.size() - 1));
+		}
+		/** The level of @param level or the next coarser one with at most @param max_triangles, or the coarsest. */
+		int fit(final int level, final long max_triangles) {
+			int i = level;
+			while (get(i).getTriangleCount() > max_triangles) {
+				if (last && i >= levels.size() - 1) break;
+				++i;
+			}
+			return Math.min(i, levels.size() - 1);
+		}
+	}
+
+	/** Generate the mesh of an AreaList, Ball or Pipe, or null for any other type. */
+	static private IndexedTriangleMesh generateMesh(final Displayable displ, final double scale, final int resample) {
+		if (AreaList.class == displ.getClass()) return ((AreaList)displ).generateMesh(scale, resample);
+		if (Ball.class == displ.getClass()) return ((Ball)displ).generateMesh(scale, Ball.generateGlobe(12, 12));
+		if (Pipe.class == displ.getClass()) return ((Pipe)displ).generateMesh(scale, 12, 1);
+		return null;
+	}
+
+	private boolean isSimplifying() {
+		return layer_set.getProject().getBooleanProperty(simplify_meshes);
+	}
+
+	/** Returns the mesh of @param displ to show. Unless simplifying meshes (see {@link #simplify_meshes}), that is
+	 * the full mesh, generated anew. Otherwise it is at {@link #lod_level} or coarser, so that it fits within the
+	 * per-object budget and within its part of the per-scene budget (see {@link #chooseLevels()}). The finest level
+	 * is simplified only if over the per-object budget, coarser ones only when needed, and all are reused until
+	 * the object is edited. */
+	private IndexedTriangleMesh getLevelOfDetail(final Displayable displ, final double scale, final int resample_) {
+		final int resample = AreaList.class == displ.getClass() ? resample_ : 1; // only AreaList meshes depend on it
+		if (!isSimplifying()) {
+			lods.remove(displ);
+			return generateMesh(displ, scale, resample);
+		}
+		final long edit_count = displ.getEditCount();
+		LevelsOfDetail lod = lods.get(displ);
+		if (null == lod || lod.edit_count != edit_count || lod.resample != resample) {
+			final IndexedTriangleMesh mesh = generateMesh(displ, scale, resample);
+			if (null == mesh) return null;
+			final int per_object = layer_set.getProject().getProperty(triangles_per_object, DEFAULT_TRIANGLES_PER_OBJECT);
+			lod = new LevelsOfDetail(edit_count, resample, MeshSimplifier.simplify(mesh, per_object));
+			lods.put(displ, lod);
+		}
+		final Integer level = chooseLevels().get(displ);
+		synchronized (lod) {
+			lod.shown = null == level ? lod.fit(lod_level, Long.MAX_VALUE) : level;
+			return lod.get(lod.shown);
+		}
+	}
+
+	/** Share the per-scene budget among all meshes with levels of detail: in order of size at {@link #lod_level},
+	 * each mesh gets an equal part of what the smaller meshes left unused, and the finest level that fits it.
+	 * @return the level for each object. */
+	private Map<Displayable,Integer> chooseLevels() {
+		final ArrayList<Map.Entry<Displayable,LevelsOfDetail>> entries;
+		synchronized (lods) {
+			entries = new ArrayList<Map.Entry<Displayable,LevelsOfDetail>>(lods.entrySet());
+		}
+		final int level = lod_level;
+		final long[] sizes = new long[entries.size()];
+		final Integer[] order = new Integer[entries.size()];
+		for (int i=0; i<sizes.length; ++i) {
+			sizes[i] = entries.get(i).getValue().get(level).getTriangleCount();
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(final Integer a, final Integer b) {
+				return sizes[a] < sizes[b] ? -1 : sizes[a] > sizes[b] ? 1 : 0;
+			}
+		});
+		final HashMap<Displayable,Integer> levels = new HashMap<Displayable,Integer>();
+		long remaining = layer_set.getProject().getProperty(triangles_per_scene, DEFAULT_TRIANGLES_PER_SCENE);
+		for (int k=0; k<order.length; ++k) {
+			final Map.Entry<Displayable,LevelsOfDetail> e = entries.get(order[k]);
+			final LevelsOfDetail lod = e.getValue();
+			final int i = lod.fit(level, Math.max(0, remaining) / (order.length - k));
+			remaining -= lod.get(i).getTriangleCount();
+			levels.put(e.getKey(), i);
+		}
+		return levels;
+	}
+
+	/** Replace the meshes in the universe whose level of detail no longer fits their part of the per-scene budget,
+	 * such as after adding or removing meshes. */
+	private void rebalance() {
+		if (!isSimplifying()) return;
+		final Map<Displayable,Integer> levels = chooseLevels();
+		final ArrayList<ProjectThing> pts;
+		synchronized (ht_pt_meshes) {
+			pts = new ArrayList<ProjectThing>(ht_pt_meshes.keySet());
+		}
+		for (final ProjectThing pt : pts) {
+			final Object ob = pt.getObject();
+			final Integer level = levels.get(ob);
+			if (null == level) continue;
+			final LevelsOfDetail lod = lods.get(ob);
+			if (null == lod || lod.shown == level) continue;
+			addMesh(pt, (Displayable)ob, resample, false);
+		}
+	}
+
+	/** Show the meshes of AreaList, Ball and Pipe instances at @param level of detail, where 0 is
+	 * the most detailed and each next level has about a quarter of the triangles of the previous.
+	 * Meshes already in the 3D Viewer of @param ls are replaced, reusing their simplified levels. */
+	static public void setLevelOfDetail(final LayerSet ls, final int level) {
+		final Display3D d3d = getDisplay(ls);
+		if (null == d3d) return;
+		d3d.lod_level = Math.max(0, Math.min(level, MAX_LOD_LEVELS - 1));
+		if (!d3d.isSimplifying()) {
+			Utils.log("Enable " + simplify_meshes + " in the project properties to show coarser 3D meshes.");
+			return;
+		}
+		final ArrayList<ProjectThing> pts;
+		synchronized (d3d.ht_pt_meshes) {
+			pts = new ArrayList<ProjectThing>(d3d.ht_pt_meshes.keySet());
+		}
+		for (final ProjectThing pt : pts) {
+			final Object ob = pt.getObject();
+			if (!(ob instanceof Displayable)) continue;
+			final Displayable d = (Displayable)ob;
+			if (AreaList.class != d.getClass() && Ball.class != d.getClass() && Pipe.class != d.getClass()) continue;
+			d3d.addMesh(pt, d, d3d.resample, false);
+		}
+	}
+
+	static public int getLevelOfDetail(final LayerSet ls) {
+		final Display3D d3d = getDisplay(ls);
+		return null == d3d ? 0 : d3d.lod_level;
+	}
+
+	/** The triangles of @param mesh as three consecutive points each, one Point3f per corner; null if the mesh is null. */
+	static private List<Point3f> toList(final IndexedTriangleMesh mesh) {
+		return null == mesh ? null : mesh.toList();
+	}
+
 	static public class VectorStringContent {
 		VectorString3D vs;
 		String title;
@@ -968,7 +1163,7 @@ public final class Display3D {
 			if (1 == transp) {
 				Utils.log("WARNING: adding a 3D object fully transparent.");
 			}
-			List<Point3f> triangles = Pipe.generateTriangles(Pipe.makeTube(vs.getPoints(0), vs.getPoints(1), vs.getPoints(2), wi, 1, 12, null), d3d.scale);
+			List<Point3f> triangles = Pipe.generateMesh(Pipe.makeTube(vs.getPoints(0), vs.getPoints(1), vs.getPoints(2), wi, 1, 12, null), d3d.scale).toList();
 			Content ct = d3d.universe.createContent(new CustomTriangleMesh(triangles, new Color3f(color), 0), title);
 			ct.setTransparency(transp);
 			ct.setLocked(true);
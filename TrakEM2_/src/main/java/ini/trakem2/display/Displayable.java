@@ -56,15 +56,21 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
 import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /** The class that any element to be drawn on a Display must extend. */
 public abstract class Displayable extends DBObject implements Paintable  {
@@ -1545,9 +1551,71 @@ public abstract class Displayable extends DBObject implements Paintable  {
 	public boolean updateInDatabase(String key) {
 		// ???? TODO ???? cruft from the past?  // project.getLoader().updateCache(this, key);
 		//if (Utils.java3d) Display3D.update(this);
+		if (isGeometryKey(key)) geometryChanged();
+		else invalidateMeasurements();
 		return super.updateInDatabase(key);
 	}
 
+	public boolean updateInDatabase(Set<String> keys) {
+		boolean geometry = false;
+		for (final String key : keys) geometry = geometry || isGeometryKey(key);
+		if (geometry) geometryChanged();
+		else invalidateMeasurements();
+		return super.updateInDatabase(keys);
+	}
+
+	/** Whether an update of @param key may move or reshape this object. */
+	static private final boolean isGeometryKey(final String key) {
+		return null == key
+		    || key.startsWith("points") // "points" or "points=<layer id>"
+		    || key.startsWith("transform") // "transform" or "transform+dimensions"
+		    || key.equals("dimensions")
+		    || key.equals("position")
+		    || key.equals("layer_id")
+		    || key.equals("all");
+	}
+
+	/** The last memoized measurements as {edit count, key, double[] values}; see {@link #getCachedMeasurements(Object)}. */
+	private volatile Object[] cached_measurements = null;
+	/** Counts edits, so that measurements computed while an edit happened are not reused. */
+	private final AtomicLong n_edits = new AtomicLong();
+
+	/** Discard memoized measurements; called on every edit via {@link #updateInDatabase(String)}, and on undo. */
+	protected final void invalidateMeasurements() {
+		n_edits.incrementAndGet();
+		cached_measurements = null;
+	}
+
+	/** Like {@link #invalidateMeasurements()}, and also notify the {@link ConnectivityIndex}, if any,
+	 *  when this is a {@link ZDisplayable}, the only kind of object it indexes. Called for edits that
+	 *  may move or reshape this object, and on undo. */
+	protected final void geometryChanged() {
+		invalidateMeasurements();
+		if (!(this instanceof ZDisplayable)) return;
+		final LayerSet ls = getLayerSet();
+		if (null != ls) ls.connectivityChanged(this);
+	}
+
+	/** The edit count to pass to {@link #setCachedMeasurements(long, Object, double[])}, read before measuring. */
+	protected final long getEditCount() {
+		return n_edits.get();
+	}
+
+	/** @return a copy of the measurements memoized with an equal @param key, or null if there weren't any
+	 *  or this object has been edited since. The key captures whatever else the measurements depend upon,
+	 *  such as the calibration, the affine transform or the project properties. */
+	protected final double[] getCachedMeasurements(final Object key) {
+		final Object[] c = cached_measurements;
+		if (null == c || n_edits.get() != (Long)c[0] || !c[1].equals(key)) return null;
+		return ((double[])c[2]).clone();
+	}
+
+	/** Memoize @param m for @param key, unless this object was edited after @param edit_count was read. */
+	protected final void setCachedMeasurements(final long edit_count, final Object key, final double[] m) {
+		if (edit_count != n_edits.get()) return;
+		cached_measurements = new Object[]{edit_count, key, m.clone()};
+	}
+
 	static public Rectangle getMinimalBoundingBox(Displayable[] d) {
 		final Rectangle box = d[0].getBoundingBox();
 		final Rectangle tmp = new Rectangle();
@@ -1863,6 +1931,31 @@ public abstract class Displayable extends DBObject implements Paintable  {
 			if (null == this.dependents) this.dependents = new HashSet<DoStep>();
 			this.dependents.addAll(dep);
 		}
+		long estimateBytes(final Collection<DataPackage> packages) {
+			long bytes = 64;
+			for (final DoEdit edit : edits) bytes += edit.estimateBytes(packages);
+			if (null != dependents) for (final DoStep step : dependents) bytes += Displayable.estimateBytes(step, packages);
+			return bytes;
+		}
+		boolean isSpillable() {
+			for (final DoEdit edit : edits) if (!edit.isSpillable()) return false;
+			if (null != dependents) for (final DoStep step : dependents) if (!UndoJournal.isSpillable(step)) return false;
+			return true;
+		}
+		void write(final DataOutputStream out, final UndoJournal.Refs refs) throws IOException {
+			out.writeInt(edits.size());
+			for (final DoEdit edit : edits) edit.write(out, refs);
+			out.writeInt(null == dependents ? 0 : dependents.size());
+			if (null != dependents) for (final DoStep step : dependents) UndoJournal.write(step, out, refs);
+		}
+		static DoEdits read(final DataInputStream in, final UndoJournal.Refs refs) throws IOException {
+			final DoEdits edits = new DoEdits(Collections.<Displayable>emptySet());
+			for (int i=in.readInt(); i>0; --i) edits.edits.add(DoEdit.read(in, refs));
+			final ArrayList<DoStep> dependents = new ArrayList<DoStep>();
+			for (int i=in.readInt(); i>0; --i) dependents.add(UndoJournal.read(in, refs));
+			if (!dependents.isEmpty()) edits.addDependents(dependents);
+			return edits;
+		}
 	}
 
 	/** For any Displayable data, including: title, visible, locked, color, alpha,
@@ -1942,7 +2035,7 @@ public abstract class Displayable extends DBObject implements Paintable  {
 			final Class<?>[] c = new Class[]{Displayable.class, d.getClass(), ZDisplayable.class};
 			for (int k=0; k<fields.length; k++) {
 				if ("data".equals(fields[k])) {
-					content.put(fields[k], d.getDataPackage());
+					content.put(fields[k], d.getUndoDataPackage());
 				} else {
 					// Search for the field in the entire parent chain specified in c
 					boolean got_it = false;
@@ -2025,6 +2118,53 @@ public abstract class Displayable extends DBObject implements Paintable  {
 		public boolean isEmpty() {
 			return null == d || (content.isEmpty() && (null == dependents || dependents.isEmpty()));
 		}
+		synchronized long estimateBytes(final Collection<DataPackage> packages) {
+			long bytes = 64;
+			for (final Object val : content.values()) {
+				if (val instanceof DataPackage) packages.add((DataPackage)val);
+				else bytes += 64;
+			}
+			if (null != dependents) for (final DoStep step : dependents) bytes += Displayable.estimateBytes(step, packages);
+			return bytes;
+		}
+		/** Only edits of the "data" alone, with a package that can be written, and whose dependents can be written too. */
+		synchronized boolean isSpillable() {
+			if (content.size() > 1) return false;
+			if (1 == content.size()) {
+				final Object data = content.get("data");
+				if (!(data instanceof DataPackage) || !((DataPackage)data).isSpillable()) return false;
+			}
+			if (null != dependents) for (final DoStep step : dependents) if (!UndoJournal.isSpillable(step)) return false;
+			return true;
+		}
+		synchronized void write(final DataOutputStream out, final UndoJournal.Refs refs) throws IOException {
+			out.writeInt(refs.index(d));
+			final DataPackage data = (DataPackage) content.get("data");
+			out.writeBoolean(null != data);
+			if (null != data) data.write(out, refs);
+			out.writeInt(null == dependents ? 0 : dependents.size());
+			if (null != dependents) for (final DoStep step : dependents) UndoJournal.write(step, out, refs);
+		}
+		static DoEdit read(final DataInputStream in, final UndoJournal.Refs refs) throws IOException {
+			final Displayable d = (Displayable) refs.get(in.readInt());
+			final DoEdit edit = new DoEdit(d);
+			if (in.readBoolean()) edit.add("data", d.readDataPackage(in, refs));
+			for (int i=in.readInt(); i>0; --i) edit.add(UndoJournal.read(in, refs));
+			return edit;
+		}
+	}
+
+	/** A rough estimate of the memory taken by an undo @param step and its dependents, to keep the undo history
+	 *  within a memory budget. Steps that hold no bulk data, such as the order or Z of layers, count as a small constant.
+	 *  Data packages are not counted but added to @param packages, for the caller to count each only once,
+	 *  given that consecutive steps share the packages of objects that did not change. */
+	static long estimateBytes(final DoStep step, final Collection<DataPackage> packages) {
+		if (step instanceof DoEdit) return ((DoEdit)step).estimateBytes(packages);
+		if (step instanceof DoEdits) return ((DoEdits)step).estimateBytes(packages);
+		if (step instanceof DoTransforms) return ((DoTransforms)step).estimateBytes();
+		if (step instanceof LayerSet.DoChangeTrees) return ((LayerSet.DoChangeTrees)step).estimateBytes(packages);
+		if (step instanceof UndoJournal.SpilledStep) return ((UndoJournal.SpilledStep)step).estimateBytes();
+		return 256;
 	}
 
 	static protected class DoTransforms implements DoStep {
@@ -2038,6 +2178,32 @@ public abstract class Displayable extends DBObject implements Paintable  {
 			}
 			return this;
 		}
+		long estimateBytes() {
+			// a map entry plus an AffineTransform
+			return 64 + 128L * ht.size();
+		}
+		void write(final DataOutputStream out, final UndoJournal.Refs refs) throws IOException {
+			final double[] m = new double[6];
+			out.writeInt(ht.size());
+			for (final Map.Entry<Displayable,AffineTransform> e : ht.entrySet()) {
+				out.writeInt(refs.index(e.getKey()));
+				e.getValue().getMatrix(m);
+				for (final double v : m) out.writeDouble(v);
+			}
+			out.writeInt(layers.size());
+			for (final Layer layer : layers) out.writeInt(refs.index(layer));
+		}
+		static DoTransforms read(final DataInputStream in, final UndoJournal.Refs refs) throws IOException {
+			final DoTransforms dt = new DoTransforms();
+			final double[] m = new double[6];
+			for (int i=in.readInt(); i>0; --i) {
+				final Displayable d = (Displayable) refs.get(in.readInt());
+				for (int k=0; k<6; ++k) m[k] = in.readDouble();
+				dt.ht.put(d, new AffineTransform(m));
+			}
+			for (int i=in.readInt(); i>0; --i) dt.layers.add((Layer) refs.get(in.readInt()));
+			return dt;
+		}
 		public boolean isEmpty() {
 			return null == ht || ht.isEmpty();
 		}
@@ -2085,6 +2251,7 @@ public abstract class Displayable extends DBObject implements Paintable  {
 			return false;
 		}
 		try {
+			geometryChanged();
 			return pkg.to2(this);
 
 		} catch (Exception e) {
@@ -2098,6 +2265,26 @@ public abstract class Displayable extends DBObject implements Paintable  {
 		Utils.log2("Displayable.getDataPackage not implemented yet for " + getClass());
 		return null;
 	}
+
+	/** The data package last stored for undo, if still held by any undo step. */
+	private WeakReference<DataPackage> undo_package = null;
+
+	/** A data package for undo: the one returned last time, if still held by an undo step and with the same data,
+	 *  so that consecutive undo steps share the data of objects that did not change; otherwise a new one. */
+	synchronized final DataPackage getUndoDataPackage() {
+		final DataPackage p = (DataPackage) getDataPackage();
+		if (null == p) return null;
+		final DataPackage last = null == undo_package ? null : undo_package.get();
+		if (null != last && last.sameAs(p)) return last;
+		undo_package = new WeakReference<DataPackage>(p);
+		return p;
+	}
+
+	/** Read a data package written by {@link DataPackage#write(DataOutputStream, UndoJournal.Refs)};
+	 *  overriden by the subclasses whose packages are spillable. */
+	DataPackage readDataPackage(final DataInputStream in, final UndoJournal.Refs refs) throws IOException {
+		throw new IOException("Can't read data package for " + getClass());
+	}
 	// Must be overriden by subclasses
 	Class<?> getInternalDataPackageClass() {
 		return DataPackage.class;
@@ -2122,6 +2309,73 @@ public abstract class Displayable extends DBObject implements Paintable  {
 			}
 		}
 
+		/** Read the fields written by {@link #write(DataOutputStream, UndoJournal.Refs)}. */
+		DataPackage(final DataInputStream in, final UndoJournal.Refs refs) throws IOException {
+			this.width = in.readFloat();
+			this.height = in.readFloat();
+			final double[] m = new double[6];
+			for (int k=0; k<6; ++k) m[k] = in.readDouble();
+			this.at = new AffineTransform(m);
+			final int n = in.readInt();
+			if (n < 0) return;
+			this.links = new HashMap<Displayable,HashSet<Displayable>>();
+			for (int i=0; i<n; ++i) {
+				final Displayable d = (Displayable) refs.get(in.readInt());
+				final HashSet<Displayable> hs = new HashSet<Displayable>();
+				for (int k=in.readInt(); k>0; --k) hs.add((Displayable) refs.get(in.readInt()));
+				this.links.put(d, hs);
+			}
+		}
+
+		/** Whether {@link #write(DataOutputStream, UndoJournal.Refs)} stores all of this package,
+		 *  so that undo steps holding it can be spilled to the {@link UndoJournal}. */
+		boolean isSpillable() {
+			return false;
+		}
+
+		/** Write the fields of this class; spillable subclasses write theirs afterwards. */
+		void write(final DataOutputStream out, final UndoJournal.Refs refs) throws IOException {
+			out.writeFloat(width);
+			out.writeFloat(height);
+			final double[] m = new double[6];
+			at.getMatrix(m);
+			for (final double v : m) out.writeDouble(v);
+			if (null == links) {
+				out.writeInt(-1);
+				return;
+			}
+			out.writeInt(links.size());
+			for (final Map.Entry<Displayable,HashSet<Displayable>> e : links.entrySet()) {
+				out.writeInt(refs.index(e.getKey()));
+				out.writeInt(e.getValue().size());
+				for (final Displayable d : e.getValue()) out.writeInt(refs.index(d));
+			}
+		}
+
+		/** Whether @param p holds the same data, so that it can be stored in place of @param p. */
+		final boolean sameAs(final DataPackage p) {
+			return getClass() == p.getClass()
+			    && width == p.width && height == p.height
+			    && at.equals(p.at)
+			    && (null == links ? null == p.links : links.equals(p.links))
+			    && sameData(p);
+		}
+
+		/** Whether the subclass specific data of @param p, of the same class, is the same;
+		 *  false unless overriden, so that packages are only shared when known to be equal. */
+		boolean sameData(final DataPackage p) {
+			return false;
+		}
+
+		/** A rough estimate of the memory taken by this package; subclasses that hold bulk data add their own. */
+		long estimateBytes() {
+			long bytes = 128;
+			if (null != links) {
+				for (final HashSet<Displayable> hs : links.values()) bytes += 64 + 48L * hs.size();
+			}
+			return bytes;
+		}
+
 		/** Set the Displayable's fields. */
 		final boolean to1(final Displayable d) {
 			d.width = width;
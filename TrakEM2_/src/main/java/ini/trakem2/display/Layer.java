@@ -312,6 +312,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 			Utils.log("Layer.addSilently: Not a Displayable/LayerSet, not adding DBObject id=" + displ.getId());
 			return;
 		}
+		if (null != parent) parent.connectivityChanged((Displayable)displ);
 	}
 
 	/** Will recreate the buckets; if you intend to remove many, use "removeAll" instead,
@@ -330,6 +331,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 		if (null != root) recreateBuckets();
 		parent.removeFromOffscreens(this);
 		Display.remove(this, displ);
+		parent.connectivityChanged(displ);
 		return true;
 	}
 	
@@ -343,6 +345,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 				it.remove();
 				parent.removeFromOffscreens(this);
 				Display.remove(this, d);
+				parent.connectivityChanged(d);
 			}
 		}
 		if (null != root) recreateBuckets();
@@ -1197,6 +1200,8 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 
 			la.al_displayables.clear();
 			la.al_displayables.addAll(this.al);
+			for (final Displayable d : sub1) la.parent.connectivityChanged(d);
+			for (final Displayable d : sub2) la.parent.connectivityChanged(d);
 			la.recreateBuckets();
 			Display.updateVisibleTabs();
 			Display.clearSelection();
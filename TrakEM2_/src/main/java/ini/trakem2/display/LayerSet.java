@@ -37,10 +37,12 @@ import ini.trakem2.persistence.XMLOptions;
 import ini.trakem2.tree.LayerThing;
 import ini.trakem2.tree.ProjectThing;
 import ini.trakem2.tree.TemplateThing;
+import ini.trakem2.tree.DNDTree;
 import ini.trakem2.tree.Thing;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.ProjectToolbar;
 import ini.trakem2.utils.Utils;
+import mpicbg.trakem2.util.SharedExecutor;
 
 import java.awt.AlphaComposite;
 import java.awt.Color;
@@ -52,12 +54,14 @@ import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
+import java.io.File;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -890,6 +894,34 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			IJError.print(e);
 			return;
 		}
+		connectivityChanged(zdispl);
+	}
+
+	/** Created on the first request; see {@link #getConnectivityIndex()}. */
+	private volatile ConnectivityIndex connectivity = null;
+
+	/** The index of which objects each {@link Connector} connects, kept up to date with every edit once created. */
+	public ConnectivityIndex getConnectivityIndex() {
+		ConnectivityIndex ci = connectivity;
+		if (null == ci) {
+			synchronized (this) {
+				ci = connectivity;
+				if (null == ci) connectivity = ci = new ConnectivityIndex(this);
+			}
+		}
+		return ci;
+	}
+
+	/** Notify the {@link ConnectivityIndex}, if any, that @param d was edited, added or removed. */
+	final void connectivityChanged(final Displayable d) {
+		final ConnectivityIndex ci = connectivity;
+		if (null != ci) ci.changed(d);
+	}
+
+	/** Notify the {@link ConnectivityIndex}, if any, that any object may have been added or removed. */
+	final void connectivityChangedAll() {
+		final ConnectivityIndex ci = connectivity;
+		if (null != ci) ci.changedAll();
 	}
 
 	/** Remove a child. Does not destroy the child nor remove it from the database, only from the LayerSet and the Display. */
@@ -905,6 +937,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		removeFromBuckets(zdispl, old_stack_index);
 		removeFromOffscreens(zdispl);
 		Display.remove(zdispl);
+		connectivityChanged(zdispl);
 		return true;
 	}
 	
@@ -920,6 +953,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 				it.remove();
 				removeFromOffscreens(zd);
 				Display.remove(zd);
+				connectivityChanged(zd);
 				count++;
 				if (zds.size() == count) break;
 			}
@@ -1309,6 +1343,9 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		synchronized (IDLAYERS_WRITE_LOCK) { this.idlayers = new HashMap<Long,Layer>(); } // like .clear()
 		synchronized (layerindices) { this.layerindices.clear(); }
 		this.offscreens.clear();
+		synchronized (edit_history) {
+			if (null != undo_journal) undo_journal.close();
+		}
 	}
 
 	/** Used by the Layer.setZ method. */
@@ -1889,6 +1926,104 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	/** Time vs DoStep; as steps are removed from the end of edit_history, they are put here. */
 	final private TreeMap<Long,DoStep> redo = new TreeMap<Long,DoStep>();
 
+	/** Project property key: the maximum memory, in megabytes, for the undo history.
+	 *  Defaults to an eighth of the maximum heap size. */
+	static public final String undo_memory_budget = "undo_memory_budget";
+
+	private final long getUndoMemoryBudget() {
+		final int mb = project.getProperty(undo_memory_budget, (int)(Runtime.getRuntime().maxMemory() / 8 / (1024 * 1024)));
+		return mb * 1024L * 1024L;
+	}
+
+	/** The estimated bytes of the steps in edit_history, updated as steps come and go, with each data package
+	 *  counted once however many steps share it. Dependents are final by the time a step enters edit_history. */
+	private long history_bytes = 0;
+	/** The number of steps in edit_history that hold each data package. */
+	private final IdentityHashMap<Displayable.DataPackage,int[]> package_holders = new IdentityHashMap<Displayable.DataPackage,int[]>();
+
+	/** Where steps are spilled when over the memory budget; created on first use. */
+	private UndoJournal undo_journal = null;
+
+	/** Count @param step in history_bytes, as entering edit_history if @param sign is 1 or leaving it if -1.
+	 *  Call from within a synchronized (edit_history) block. */
+	private final void account(final DoStep step, final int sign) {
+		final ArrayList<Displayable.DataPackage> packages = new ArrayList<Displayable.DataPackage>();
+		history_bytes += sign * Displayable.estimateBytes(step, packages);
+		for (final Displayable.DataPackage p : packages) {
+			int[] n = package_holders.get(p);
+			if (sign > 0) {
+				if (null == n) {
+					package_holders.put(p, n = new int[1]);
+					history_bytes += p.estimateBytes();
+				}
+				++n[0];
+			} else if (null != n && 0 == --n[0]) {
+				package_holders.remove(p);
+				history_bytes -= p.estimateBytes();
+			}
+		}
+	}
+
+	/** Notify that @param step left the undo machinery for good. */
+	private final void discard(final DoStep step) {
+		if (null != undo_journal) undo_journal.release(step);
+	}
+
+	private final UndoJournal getUndoJournal() {
+		if (null == undo_journal) {
+			final String folder = project.getLoader().getUNUIdFolder();
+			if (null == folder || !new File(folder).isAbsolute()) return null;
+			undo_journal = new UndoJournal(new File(folder, "trakem2.undo." + id + ".journal"));
+		}
+		return undo_journal;
+	}
+
+	/** Remove the oldest step of edit_history. Call from within a synchronized (edit_history) block. */
+	private final void removeOldestStep() {
+		final long t = edit_history.firstKey();
+		final DoStep st = edit_history.remove(t);
+		account(st, -1);
+		discard(st);
+		if (null != st.getD()) {
+			final TreeMap<Long,DoStep> m = dedits.get(st.getD());
+			m.remove(t);
+			if (0 == m.size()) dedits.remove(st.getD());
+		}
+	}
+
+	/** Write steps to the undo journal, oldest first, until within @param budget; the newest step stays in memory.
+	 *  Call from within a synchronized (edit_history) block. */
+	private final void spillSteps(final long budget) {
+		final UndoJournal journal = getUndoJournal();
+		if (null == journal) return;
+		final long newest = edit_history.lastKey();
+		for (final Map.Entry<Long,DoStep> e : edit_history.entrySet()) {
+			if (history_bytes <= budget || e.getKey() == newest) return;
+			final DoStep st = e.getValue();
+			final DoStep spilled = journal.spill(st);
+			if (null == spilled) continue;
+			account(st, -1);
+			account(spilled, 1);
+			e.setValue(spilled);
+			if (null != st.getD()) {
+				final TreeMap<Long,DoStep> m = dedits.get(st.getD());
+				m.remove(e.getKey());
+				if (0 == m.size()) dedits.remove(st.getD());
+			}
+		}
+	}
+
+	/** The most recent DoChangeTrees step, if any, to share with a new one whatever did not change. */
+	private final DoChangeTrees findLastChangeTreesStep() {
+		synchronized (edit_history) {
+			if (current_edit_step instanceof DoChangeTrees) return (DoChangeTrees)current_edit_step;
+			for (final DoStep step : edit_history.descendingMap().values()) {
+				if (step instanceof DoChangeTrees) return (DoChangeTrees)step;
+			}
+			return null;
+		}
+	}
+
 	/** Whether an initial step should be added or not. */
 	final boolean prepareStep(final Object ob) {
 		synchronized (edit_history) {
@@ -1985,7 +2120,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 
 	/** Add a step to undo the addition or deletion of one or more objects in this project and LayerSet. */
 	public DoChangeTrees addChangeTreesStep() {
-		DoChangeTrees step = new LayerSet.DoChangeTrees(this);
+		DoChangeTrees step = new LayerSet.DoChangeTrees(this, findLastChangeTreesStep());
 		if (prepareStep(step)) {
 			Utils.log2("Added change trees step.");
 			addEditStep(step);
@@ -2037,6 +2172,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			// Store current in undo queue
 			if (null != current_edit_step) {
 				edit_history.put(current_edit_time, current_edit_step);
+				account(current_edit_step, 1);
 				// Store for speedy access, if its Displayable-specific:
 				final Displayable d = current_edit_step.getD();
 				if (null != d) {
@@ -2048,16 +2184,12 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 					edits.put(current_edit_time, current_edit_step);
 				}
 
-				// prune if too large
-				while (edit_history.size() > project.getProperty("n_undo_steps", 32)) {
-					long t = edit_history.firstKey();
-					DoStep st = edit_history.remove(t);
-					if (null != st.getD()) {
-						TreeMap<Long,DoStep> m = dedits.get(st.getD());
-						m.remove(t);
-						if (0 == m.size()) dedits.remove(st.getD());
-					}
-				}
+				// prune if too many; if too large, spill old steps to disk and then prune; but keep at least the last one
+				final int max_steps = project.getProperty("n_undo_steps", 32);
+				final long budget = getUndoMemoryBudget();
+				while (edit_history.size() > max_steps) removeOldestStep();
+				if (history_bytes > budget) spillSteps(budget);
+				while (history_bytes > budget && edit_history.size() > 1) removeOldestStep();
 			}
 
 			// Set step as current
@@ -2065,6 +2197,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			current_edit_step = step;
 
 			// Bye bye redo! Can't branch.
+			for (final DoStep st : redo.values()) discard(st);
 			redo.clear();
 		}
 
@@ -2096,6 +2229,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			// Remove last step from undo queue, and set it as current
 			current_edit_time = edit_history.lastKey();
 			current_edit_step = edit_history.remove(current_edit_time);
+			account(current_edit_step, -1);
 
 			// Remove as well from dedits
 			if (null != current_edit_step.getD()) {
@@ -2119,6 +2253,8 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			if (edit_history.isEmpty()) return false;
 			final long time = edit_history.lastKey();
 			final DoStep step = edit_history.remove(time);
+			account(step, -1);
+			if (step != current_edit_step) discard(step);
 			if (null != step.getD()) dedits.get(step.getD()).remove(time);
 			// shift current
 			if (step == current_edit_step) {
@@ -2145,6 +2281,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			// Add current (if any) to undo queue
 			if (null != current_edit_step) {
 				edit_history.put(current_edit_time, current_edit_step);
+				account(current_edit_step, 1);
 				if (null != current_edit_step.getD()) {
 					dedits.get(current_edit_step.getD()).put(current_edit_time, current_edit_step);
 				}
@@ -2253,17 +2390,48 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 
 		HashSet<DoStep> dependents = null;
 
-		// TODO: does not consider recursive LayerSets!
+		/** The memory taken by this step, not counting what it shares with the previous one. */
+		private long bytes = 0;
+
 		public DoChangeTrees(final LayerSet ls) {
+			this(ls, null);
+		}
+
+		// TODO: does not consider recursive LayerSets!
+		/** @param previous An earlier step, possibly null, whose copies of the trees of Thing, lists of Displayable
+		 *  and sets of links are reused for those trees, layers and objects that did not change since, rather than
+		 *  storing copies again. The trees, lists and sets stored in a step are never modified: on undo, a copy
+		 *  of each tree becomes the live one. */
+		public DoChangeTrees(final LayerSet ls, final DoChangeTrees previous) {
 			this.ls = ls;
 			final Project p = ls.getProject();
 
-			this.ttree_exp = new HashMap<Thing,Boolean>();
-			this.troot = p.getTemplateTree().duplicate(this.ttree_exp);
-			this.ptree_exp = new HashMap<Thing,Boolean>();
-			this.proot = p.getProjectTree().duplicate(this.ptree_exp);
-			this.ltree_exp = new HashMap<Thing,Boolean>();
-			this.lroot = p.getLayerTree().duplicate(this.ltree_exp);
+			// Trees of Thing: an ordinary edit changes only one of them, if any
+			long n_things = 0;
+			if (null != previous && p.getTemplateTree().isDuplicate(previous.troot, previous.ttree_exp)) {
+				this.ttree_exp = previous.ttree_exp;
+				this.troot = previous.troot;
+			} else {
+				this.ttree_exp = new HashMap<Thing,Boolean>();
+				this.troot = p.getTemplateTree().duplicate(this.ttree_exp);
+				n_things += ttree_exp.size();
+			}
+			if (null != previous && p.getProjectTree().isDuplicate(previous.proot, previous.ptree_exp)) {
+				this.ptree_exp = previous.ptree_exp;
+				this.proot = previous.proot;
+			} else {
+				this.ptree_exp = new HashMap<Thing,Boolean>();
+				this.proot = p.getProjectTree().duplicate(this.ptree_exp);
+				n_things += ptree_exp.size();
+			}
+			if (null != previous && p.getLayerTree().isDuplicate(previous.lroot, previous.ltree_exp)) {
+				this.ltree_exp = previous.ltree_exp;
+				this.lroot = previous.lroot;
+			} else {
+				this.ltree_exp = new HashMap<Thing,Boolean>();
+				this.lroot = p.getLayerTree().duplicate(this.ltree_exp);
+				n_things += ltree_exp.size();
+			}
 
 			this.all_layers = ls.getLayers(); // a copy of the list, but each object is the running instance
 			this.all_zdispl = ls.getZDisplayables(); // idem
@@ -2272,6 +2440,10 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 				this.layerindices = new HashMap<Layer,Integer>(ls.layerindices);
 			}
 
+			// Copied trees of Thing, plus the lists and maps above
+			this.bytes = 160L * n_things
+			           + 48L * (all_layers.size() + all_zdispl.size() + idlayers.size() + layerindices.size());
+
 			this.links = new HashMap<Displayable,Set<Displayable>>();
 			for (final ZDisplayable zd : this.all_zdispl) {
 				this.links.put(zd, zd.hs_linked); // LayerSet is a Displayable
@@ -2279,13 +2451,37 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 
 			this.all_displ = new HashMap<Layer,ArrayList<Displayable>>();
 			for (final Layer layer : all_layers) {
-				final ArrayList<Displayable> al = layer.getDisplayables(); // a copy
+				ArrayList<Displayable> al = layer.getDisplayables(); // a copy
+				if (null != previous) {
+					final ArrayList<Displayable> prev = previous.all_displ.get(layer);
+					if (null != prev && prev.equals(al)) al = prev;
+				}
+				if (null == previous || al != previous.all_displ.get(layer)) {
+					this.bytes += 64 + 8L * al.size();
+				}
 				this.all_displ.put(layer, al);
 				for (final Displayable d : al) {
-					this.links.put(d, null == d.hs_linked ? null : new HashSet<Displayable>(d.hs_linked));
+					Set<Displayable> hs = null;
+					if (null != d.hs_linked) {
+						if (null != previous) {
+							final Set<Displayable> prev = previous.links.get(d);
+							if (null != prev && prev.equals(d.hs_linked)) hs = prev;
+						}
+						if (null == hs) {
+							hs = new HashSet<Displayable>(d.hs_linked);
+							this.bytes += 64 + 48L * hs.size();
+						}
+					}
+					this.links.put(d, hs);
 				}
+				this.bytes += 48L * al.size(); // the entries of the links map
 			}
 		}
+		long estimateBytes(final Collection<Displayable.DataPackage> packages) {
+			long b = bytes;
+			if (null != dependents) for (final DoStep step : dependents) b += Displayable.estimateBytes(step, packages);
+			return b;
+		}
 		public Displayable getD() { return null; }
 		public boolean isEmpty() { return false; }
 		public boolean isIdenticalTo(final Object ob) {
@@ -2293,12 +2489,6 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			return false;
 		}
 		public boolean apply(int action) {
-			// Replace all trees
-			final Project p = ls.getProject();
-			p.resetRootTemplateThing((TemplateThing)this.troot, ttree_exp);
-			p.resetRootProjectThing((ProjectThing)this.proot, ptree_exp);
-			p.resetRootLayerThing((LayerThing)this.lroot, ltree_exp);
-			
 			// Replace all layers
 			ls.al_layers.clear();
 			ls.al_layers.addAll(this.all_layers);
@@ -2339,6 +2529,19 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			ls.al_zdispl.clear();
 			ls.al_zdispl.addAll(this.all_zdispl);
 
+			// Replace all trees, with copies: the stored ones may be shared with other steps.
+			// After the layers, for copies of LayerThing are inserted in layer order.
+			final Project p = ls.getProject();
+			final HashMap<Thing,Boolean> t_exp = new HashMap<Thing,Boolean>(),
+			                             p_exp = new HashMap<Thing,Boolean>(),
+			                             l_exp = new HashMap<Thing,Boolean>();
+			p.resetRootTemplateThing((TemplateThing)DNDTree.duplicate(this.troot, ttree_exp, t_exp), t_exp);
+			p.resetRootProjectThing((ProjectThing)DNDTree.duplicate(this.proot, ptree_exp, p_exp), p_exp);
+			p.resetRootLayerThing((LayerThing)DNDTree.duplicate(this.lroot, ltree_exp, l_exp), l_exp);
+
+			// Objects came and went without notice
+			ls.connectivityChangedAll();
+
 			// Replace all links
 			for (final Map.Entry<Displayable,Set<Displayable>> e : this.links.entrySet()) {
 				final Set<Displayable> hs = e.getKey().hs_linked;
@@ -2747,6 +2950,42 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		return al;
 	}
 
+	/** Receives the measurements of each object as soon as they are ready; see {@link LayerSet#measure(Class, MeasurementListener)}. */
+	static public interface MeasurementListener {
+		/** Called from any of the measuring threads, hence must be thread-safe.
+		 *  @param m The values returned by {@link AreaList#measure()} or {@link Tree#measure()}. */
+		public void measured(ZDisplayable d, double[] m);
+	}
+
+	/** Measure, in parallel, every {@link AreaList} and {@link Tree} of this LayerSet that is an instance of @param c,
+	 *  handing the measurements of each to the @param listener as soon as they are ready, in no particular order.
+	 *  Objects not edited since last measured are not measured again. Returns when all have been measured. */
+	public void measure(final Class<?> c, final MeasurementListener listener) {
+		measure(getZDisplayables(c, true), listener);
+	}
+
+	/** Measure, in parallel, every {@link AreaList} and {@link Tree} in @param ds; other objects are ignored.
+	 *  @param listener May be null, to only fill in the memoized measurements of each object. */
+	static public void measure(final Collection<? extends Displayable> ds, final MeasurementListener listener) {
+		final ArrayList<ZDisplayable> measurable = new ArrayList<ZDisplayable>();
+		for (final Displayable d : ds) {
+			if (d instanceof AreaList || d instanceof Tree<?>) measurable.add((ZDisplayable)d);
+		}
+		SharedExecutor.forEach(measurable.size(), new SharedExecutor.Body() {
+			@Override
+			public void run(final int i) {
+				final ZDisplayable d = measurable.get(i);
+				try {
+					final double[] m = d instanceof AreaList ? ((AreaList)d).measure() : ((Tree<?>)d).measure();
+					if (null != listener) listener.measured(d, m);
+				} catch (final Exception e) {
+					Utils.log("Could not measure " + d);
+					IJError.print(e);
+				}
+			}
+		});
+	}
+
 	// FILTER operations but also by an Area in a given Layer:
 
 	/** Use method findZDisplayables(...) instead. */
@@ -44,6 +44,8 @@ import ini.trakem2.imaging.filters.FilterEditor;
 import ini.trakem2.imaging.filters.IFilter;
 import ini.trakem2.io.CoordinateTransformXML;
 import ini.trakem2.io.ImageSaver;
+import ini.trakem2.parallel.PaintingOrder;
+import ini.trakem2.parallel.Process;
 import ini.trakem2.persistence.FSLoader;
 import ini.trakem2.persistence.Loader;
 import ini.trakem2.persistence.XMLOptions;
@@ -77,6 +79,8 @@ import java.awt.image.MemoryImageSource;
 import java.awt.image.PixelGrabber;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileReader;
@@ -105,8 +109,10 @@ import mpicbg.trakem2.transform.AffineModel2D;
 import mpicbg.trakem2.transform.CoordinateTransform;
 import mpicbg.trakem2.transform.CoordinateTransformList;
 import mpicbg.trakem2.transform.TransformMesh;
+import mpicbg.trakem2.transform.TransformMeshCache;
 import mpicbg.trakem2.transform.TransformMeshMapping;
 import mpicbg.trakem2.transform.TransformMeshMappingWithMasks.ImageProcessorWithMasks;
+import mpicbg.trakem2.util.SharedExecutor;
 
 public final class Patch extends Displayable implements ImageData {
 
@@ -133,6 +139,11 @@ public final class Patch extends Displayable implements ImageData {
 	/** A unique ID for the {@link CoordinateTransform}; 0 means there isn't one. */
 	private long ct_id = 0;
 
+	/** The {@link TransformMeshCache#fingerprint(CoordinateTransform) fingerprint} of the {@link CoordinateTransform}
+	 * written with id {@link #ct_key_id}, to serialize the transform only once per edit when looking up its mesh. */
+	private String ct_key = null;
+	private long ct_key_id = 0;
+
 	/** A unique ID for the alpha mask; 0 means there isn't one.
 	 * The alpha mask is not the outside mask as potentially generated by a {@link CoordinateTransform}.
 	 * The alpha mask determines transparencies inside the width,height domain of the image. */
@@ -1251,7 +1262,7 @@ public final class Patch extends Displayable implements ImageData {
 
 		if (null != this_ct) {
 			// restore image without the transform
-			final TransformMesh mesh = new TransformMesh(this_ct, meshResolution, o_width, o_height);
+			final TransformMesh mesh = getTransformMesh(this_ct);
 			final Rectangle box = mesh.getBoundingBox();
 			this.at.translate(-box.x, -box.y);
 			updateInDatabase("transform+dimensions");
@@ -1275,7 +1286,7 @@ public final class Patch extends Displayable implements ImageData {
 
 		// Adjust the AffineTransform to correct for bounding box displacement
 
-		final TransformMesh mesh = new TransformMesh(this_ct, meshResolution, o_width, o_height);
+		final TransformMesh mesh = getTransformMesh(this_ct);
 		final Rectangle box = mesh.getBoundingBox();
 		this.at.translate(box.x, box.y);
 		width = box.width;
@@ -1363,8 +1374,8 @@ public final class Patch extends Displayable implements ImageData {
 	protected static final Rectangle getCoordinateTransformBoundingBox(final Patch p, final CoordinateTransform ct) {
 		if (!p.hasCoordinateTransform())
 			return new Rectangle(0,0,p.o_width,p.o_height);
-		final TransformMesh mesh = new TransformMesh(ct, p.meshResolution, p.o_width, p.o_height);
-		return mesh.getBoundingBox();
+		final TransformMesh mesh = p.getTransformMesh(ct);
+		return new Rectangle(mesh.getBoundingBox());
 	}
 
 	/** Obtain a copy of the {@link CoordinateTransform} that transfers image data to mipmap image data.
@@ -1421,7 +1432,7 @@ public final class Patch extends Displayable implements ImageData {
 
 		//Utils.log2("source image dimensions: " + source.getWidth() + ", " + source.getHeight());
 
-		final TransformMesh mesh = new TransformMesh(ct, meshResolution, o_width, o_height);
+		final TransformMesh mesh = getTransformMesh(ct);
 		final Rectangle box = mesh.getBoundingBox();
 
 		/* We can calculate the exact size of the image to be rendered, so let's do it */
@@ -1448,7 +1459,7 @@ public final class Patch extends Displayable implements ImageData {
 		//Utils.log2("New image dimensions: " + target.getWidth() + ", " + target.getHeight());
 		//Utils.log2("box: " + box);
 
-		return new PatchImage( target.ip, ( ByteProcessor )target.mask, target.outside, box, true );
+		return new PatchImage( target.ip, ( ByteProcessor )target.mask, target.outside, new Rectangle( box ), true );
 	}
 
 	static final public class PatchImage {
@@ -1736,6 +1747,11 @@ public final class Patch extends Displayable implements ImageData {
 		return new DPPatch(this);
 	}
 
+	@Override
+	DataPackage readDataPackage(final DataInputStream in, final UndoJournal.Refs refs) throws IOException {
+		return new DPPatch(in, refs);
+	}
+
 	static private final class DPPatch extends Displayable.DataPackage {
 		final double min, max;
 		final long ct_id, alpha_mask_id;
@@ -1756,6 +1772,37 @@ public final class Patch extends Displayable implements ImageData {
 			// type is dependent on path, so absolute
 			// o_width, o_height idem
 		}
+		DPPatch(final DataInputStream in, final UndoJournal.Refs refs) throws IOException {
+			super(in, refs);
+			this.min = in.readDouble();
+			this.max = in.readDouble();
+			this.ct_id = in.readLong();
+			this.alpha_mask_id = in.readLong();
+			this.filters = null;
+			this.false_color = in.readBoolean();
+		}
+		/** Filters have no serialized form. */
+		@Override
+		boolean isSpillable() {
+			return null == filters;
+		}
+		@Override
+		void write(final DataOutputStream out, final UndoJournal.Refs refs) throws IOException {
+			super.write(out, refs);
+			out.writeDouble(min);
+			out.writeDouble(max);
+			out.writeLong(ct_id);
+			out.writeLong(alpha_mask_id);
+			out.writeBoolean(false_color);
+		}
+		@Override
+		boolean sameData(final DataPackage p) {
+			final DPPatch o = (DPPatch) p;
+			return min == o.min && max == o.max
+			    && ct_id == o.ct_id && alpha_mask_id == o.alpha_mask_id
+			    && false_color == o.false_color
+			    && null == filters && null == o.filters;
+		}
 		@Override
 		final boolean to2(final Displayable d) {
 			super.to1(d);
@@ -1898,7 +1945,7 @@ public final class Patch extends Displayable implements ImageData {
 
 		if (hasCoordinateTransform()) {
 			// inverse the coordinate transform
-			final TransformMesh mesh = new TransformMesh(ct, meshResolution, o_width, o_height);
+			final TransformMesh mesh = getTransformMesh(ct);
 			final TransformMeshMapping mapping = new TransformMeshMapping( mesh );
 			rmask = (ByteProcessor) mapping.createInverseMappedImageInterpolated(rmask);
 		}
@@ -1939,7 +1986,7 @@ public final class Patch extends Displayable implements ImageData {
 				if (hasCoordinateTransform()) {
 					// must transform it
 					ct = getCoordinateTransform();
-					final TransformMesh mesh = new TransformMesh(ct, meshResolution, o_width, o_height);
+					final TransformMesh mesh = getTransformMesh(ct);
 					final TransformMeshMapping mapping = new TransformMeshMapping( mesh );
 					alpha_mask = mapping.createMappedImage( alpha_mask ); // Without interpolation
 					// Keep in mind the affine of the Patch already contains the translation specified by the mesh bounds.
@@ -1987,7 +2034,7 @@ public final class Patch extends Displayable implements ImageData {
 		if (null != ct) {
 			final CoordinateTransformList<CoordinateTransform> t = new CoordinateTransformList<CoordinateTransform>();
 			t.add(ct);
-			final TransformMesh mesh = new TransformMesh(ct, meshResolution, o_width, o_height);
+			final TransformMesh mesh = getTransformMesh(ct);
 			final Rectangle box = mesh.getBoundingBox();
 			final AffineTransform aff = new AffineTransform(this.at);
 			// Must correct for the inverse of the mesh translation, because the affine also includes the translation.
@@ -2084,68 +2131,106 @@ public final class Patch extends Displayable implements ImageData {
 			sc = new AffineModel2D();
 			sc.set( scale, 0, 0, scale, 0, 0 );
 		}
-		for ( final Patch p : patches )
-		{
-			// TODO patches seem to come in in inverse order---find out why
-
-			// A list to represent all the transformations that the Patch image has to go through to reach the scaled srcRect image
-			final CoordinateTransformList< CoordinateTransform > list = new CoordinateTransformList< CoordinateTransform >();
-
-			final AffineTransform at = new AffineTransform();
-			at.translate( -srcRect.x, -srcRect.y );
-			at.concatenate( p.getAffineTransform() );
-
-			// 1. The coordinate tranform of the Patch, if any
-			if (p.hasCoordinateTransform()) {
-				final CoordinateTransform ct = p.getCoordinateTransform();
-				list.add(ct);
-				// Remove the translation in the patch_affine that the ct added to it
-				final Rectangle box = Patch.getCoordinateTransformBoundingBox(p, ct);
-				at.translate( -box.x, -box.y );
-			}
-
-			// 2. The affine transform of the Patch
-			final AffineModel2D patch_affine = new AffineModel2D();
-			patch_affine.set( at );
-			list.add( patch_affine );
 
-			// 3. The desired scaling
-			if (null != sc) patch_affine.preConcatenate( sc );
+		// Patches that do not overlap are mapped concurrently; overlapping ones in stack order.
+		// TODO patches seem to come in in inverse order---find out why
+		final double s = scale < 1.0 ? scale : 1.0;
+		final ArrayList<Patch> ps = new ArrayList<Patch>(patches.size());
+		final ArrayList<Rectangle> bounds = new ArrayList<Rectangle>(patches.size());
+		final Rectangle target = new Rectangle(0, 0, W, H);
+		for (final Patch p : patches) {
+			// Bounds in the target image, enlarged to include any pixel that interpolation may touch
+			final Rectangle b = p.getBoundingBox();
+			final int x0 = (int)Math.floor((b.x - srcRect.x) * s) - 2,
+			          y0 = (int)Math.floor((b.y - srcRect.y) * s) - 2,
+			          x1 = (int)Math.ceil((b.x + b.width - srcRect.x) * s) + 2,
+			          y1 = (int)Math.ceil((b.y + b.height - srcRect.y) * s) + 2;
+			final Rectangle r = new Rectangle(x0, y0, x1 - x0, y1 - y0);
+			if (!r.intersects(target)) continue;
+			ps.add(p);
+			bounds.add(r);
+		}
+
+		// Each patch being mapped holds its original pixels (at most 32-bit), their copy with min and max if requested, and their conversion to the target type
+		final long bytesPerPixel = (setMinAndMax ? 8 : 4) + (ImagePlus.GRAY8 == type ? 1 : (ImagePlus.GRAY16 == type ? 2 : 4));
+
+		final AffineModel2D scaling = sc;
+		for (final List<Patch> group : PaintingOrder.groups(ps, bounds)) {
+			// As many patches at a time as fit in the free memory
+			long maxPixels = 0;
+			for (final Patch p : group) maxPixels = Math.max(maxPixels, (long)p.getOWidth() * p.getOHeight());
+			final long free = Runtime.getRuntime().maxMemory() - Loader.getCurrentMemory() - Loader.MIN_FREE_BYTES;
+			final int nConcurrent = (int) Math.max(1, Math.min(group.size(), free / Math.max(1, bytesPerPixel * maxPixels)));
+			// Threads left over when few patches run at a time are used by the mapping of each patch
+			final int nThreads = Math.max(1, Process.NUM_PROCESSORS / nConcurrent);
+			SharedExecutor.forEach(group.size(), nConcurrent, new SharedExecutor.Body() {
+				@Override
+				public void run(final int i) {
+					mapIntoFlatImage(group.get(i), type, srcRect, scaling, setMinAndMax, ip, nThreads);
+				}
+			});
+		}
 
-			final CoordinateTransformMesh mesh = new CoordinateTransformMesh( list, p.meshResolution, p.getOWidth(), p.getOHeight() );
+		return ip;
+	}
 
-			final mpicbg.ij.TransformMeshMapping<CoordinateTransformMesh> mapping = new mpicbg.ij.TransformMeshMapping<CoordinateTransformMesh>( mesh );
+	/** Map the image of Patch {@code p} into {@code ip}, of the given type, which shows {@code srcRect} scaled by {@code sc}, if not null. */
+	static private final void mapIntoFlatImage(final Patch p, final int type, final Rectangle srcRect, final AffineModel2D sc, final boolean setMinAndMax, final ImageProcessor ip, final int nThreads) {
+		// A list to represent all the transformations that the Patch image has to go through to reach the scaled srcRect image
+		final CoordinateTransformList< CoordinateTransform > list = new CoordinateTransformList< CoordinateTransform >();
 
-			// 4. Convert the patch to the required type
-			ImageProcessor pi = p.getImageProcessor();
-			if (setMinAndMax) {
-				pi = pi.duplicate();
-				pi.setMinAndMax(p.min, p.max);
-			}
-			switch ( type )
-			{
-			case ImagePlus.GRAY8:
-				pi = pi.convertToByte( true );
-				break;
-			case ImagePlus.GRAY16:
-				pi = pi.convertToShort( true );
-				break;
-			case ImagePlus.GRAY32:
-				pi = pi.convertToFloat();
-				break;
-			default: // ImagePlus.COLOR_RGB and COLOR_256
-				pi = pi.convertToRGB();
-				break;
-			}
+		final AffineTransform at = new AffineTransform();
+		at.translate( -srcRect.x, -srcRect.y );
+		at.concatenate( p.getAffineTransform() );
 
-			/* TODO for taking into account independent min/max setting for each patch,
-			 * we will need a mapping with an `intensity transfer function' to be implemented.
-			 * --> EXISTS already as mpicbg/trakem2/transform/ExportUnsignedShort.java
-			 */
-			mapping.mapInterpolated( pi, ip );
+		// 1. The coordinate tranform of the Patch, if any
+		if (p.hasCoordinateTransform()) {
+			final CoordinateTransform ct = p.getCoordinateTransform();
+			list.add(ct);
+			// Remove the translation in the patch_affine that the ct added to it
+			final Rectangle box = Patch.getCoordinateTransformBoundingBox(p, ct);
+			at.translate( -box.x, -box.y );
 		}
 
-		return ip;
+		// 2. The affine transform of the Patch
+		final AffineModel2D patch_affine = new AffineModel2D();
+		patch_affine.set( at );
+		list.add( patch_affine );
+
+		// 3. The desired scaling
+		if (null != sc) patch_affine.preConcatenate( sc );
+
+		final CoordinateTransformMesh mesh = new CoordinateTransformMesh( list, p.meshResolution, p.getOWidth(), p.getOHeight() );
+
+		final mpicbg.ij.TransformMeshMapping<CoordinateTransformMesh> mapping = new mpicbg.ij.TransformMeshMapping<CoordinateTransformMesh>( mesh );
+
+		// 4. Convert the patch to the required type
+		ImageProcessor pi = p.getImageProcessor();
+		if (setMinAndMax) {
+			pi = pi.duplicate();
+			pi.setMinAndMax(p.min, p.max);
+		}
+		switch ( type )
+		{
+		case ImagePlus.GRAY8:
+			pi = pi.convertToByte( true );
+			break;
+		case ImagePlus.GRAY16:
+			pi = pi.convertToShort( true );
+			break;
+		case ImagePlus.GRAY32:
+			pi = pi.convertToFloat();
+			break;
+		default: // ImagePlus.COLOR_RGB and COLOR_256
+			pi = pi.convertToRGB();
+			break;
+		}
+
+		/* TODO for taking into account independent min/max setting for each patch,
+		 * we will need a mapping with an `intensity transfer function' to be implemented.
+		 * --> EXISTS already as mpicbg/trakem2/transform/ExportUnsignedShort.java
+		 */
+		mapping.mapInterpolated( pi, ip, nThreads );
 	}
 
 	/** Make the border have an alpha of zero. */
@@ -2346,6 +2431,7 @@ public final class Patch extends Displayable implements ImageData {
 	 *  @param ctID The id
 	 *  @see #setNewCoordinateTransform(CoordinateTransform) */
 	synchronized private boolean writeNewCoordinateTransform(final CoordinateTransform ct, final long ctID) throws Exception {
+		ct_key = null; // the same ctID may be rewritten with another transform
 		RandomAccessFile ra = null;
 		try {
 			final File f = new File(createCTFilePath(ctID));
@@ -2358,6 +2444,20 @@ public final class Patch extends Displayable implements ImageData {
 		}
 	}
 
+	/** The shared {@link TransformMesh} of @param ct, which must be the current {@link CoordinateTransform} of this Patch.
+	 * @see Loader#getTransformMeshCache() */
+	public final TransformMesh getTransformMesh(final CoordinateTransform ct) {
+		final String key;
+		synchronized (this) {
+			if (null == ct_key || ct_key_id != ct_id) {
+				ct_key = TransformMeshCache.fingerprint(ct);
+				ct_key_id = ct_id;
+			}
+			key = ct_key;
+		}
+		return project.getLoader().getTransformMeshCache().get(key, ct, meshResolution, o_width, o_height);
+	}
+
 	/**
 	 *
 	 * @return True if {@link #ct_id} {@code == 0} or if the file is found, or false if not found.
@@ -2438,7 +2538,7 @@ public final class Patch extends Displayable implements ImageData {
 				at.inverseTransform( w, 0, w, 0, 1 );
 			}
 			catch ( final NoninvertibleTransformException e ) {}
-			final TransformMesh mesh = new TransformMesh( ct, meshResolution, o_width, o_height );
+			final TransformMesh mesh = getTransformMesh( ct );
 			final mpicbg.models.AffineModel2D triangle = mesh.closestTargetAffine( new double[]{ w[ 0 ], w[ 1 ] } );
 			affine.concatenate( triangle.createAffine() );
 		}
@@ -27,6 +27,7 @@ import ij.measure.ResultsTable;
 import ini.trakem2.Project;
 import ini.trakem2.persistence.XMLOptions;
 import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.IndexedTriangleMesh;
 import ini.trakem2.utils.M;
 import ini.trakem2.utils.ProjectToolbar;
 import ini.trakem2.utils.Utils;
@@ -1674,25 +1675,50 @@ public class Pipe extends ZDisplayable implements Line3D, VectorData {
 		return Pipe.generateTriangles(all_points, scale);
 	}
 
+	/** Like {@link #generateTriangles(double, int, int)}, but as an indexed mesh. */
+	synchronized public IndexedTriangleMesh generateMesh(final double scale, int parallels, final int resample) {
+		if (n_points < 2) return null;
+		// check minimum requirements.
+		if (parallels < 3) parallels = 3;
+		//
+		final double[][][] all_points = generateJoints(parallels, resample, layer_set.getCalibrationCopy());
+		return Pipe.generateMesh(all_points, scale);
+	}
+
 	/** Accepts an arrays as that returned from methods generateJoints and makeTube: first dimension is the list of points, second dimension is the number of vertices defining the circular cross section of the tube, and third dimension is the x,y,z of each vertex. */
 	static public List<Point3f> generateTriangles(final double[][][] all_points, final double scale) {
+		return generateMesh(all_points, scale).toList();
+	}
+
+	/** Like {@link #generateTriangles(double[][][], double)}, but as an indexed mesh: each vertex of the tube is stored once. */
+	static public IndexedTriangleMesh generateMesh(final double[][][] all_points, final double scale) {
 		final int n = all_points.length;
 		final int parallels = all_points[0].length -1;
-		final List<Point3f> list = new ArrayList<Point3f>();
-		for (int i=0; i<n-1; i++) { //minus one since last is made with previous
-			for (int j=0; j<parallels; j++) { //there are 12+12 triangles for each joint //it's up to 12+1 because first point is repeated at the end
-				// first triangle in the quad
-				list.add(new Point3f((float)(all_points[i][j][0] * scale), (float)(all_points[i][j][1] * scale), (float)(all_points[i][j][2] * scale)));
-				list.add(new Point3f((float)(all_points[i][j+1][0] * scale), (float)(all_points[i][j+1][1] * scale), (float)(all_points[i][j+1][2] * scale)));
-				list.add(new Point3f((float)(all_points[i+1][j][0] * scale), (float)(all_points[i+1][j][1] * scale), (float)(all_points[i+1][j][2] * scale)));
-
-				// second triangle in the quad
-				list.add(new Point3f((float)(all_points[i+1][j][0] * scale), (float)(all_points[i+1][j][1] * scale), (float)(all_points[i+1][j][2] * scale)));
-				list.add(new Point3f((float)(all_points[i][j+1][0] * scale), (float)(all_points[i][j+1][1] * scale), (float)(all_points[i][j+1][2] * scale)));
-				list.add(new Point3f((float)(all_points[i+1][j+1][0] * scale), (float)(all_points[i+1][j+1][1] * scale), (float)(all_points[i+1][j+1][2] * scale)));
+		final IndexedTriangleMesh mesh = new IndexedTriangleMesh(n * (parallels + 1));
+		// indices of the vertices of the previous and current cross sections
+		int[] prev = null;
+		int[] next = new int[parallels + 1];
+		for (int i=0; i<n; i++) {
+			for (int j=0; j<=parallels; j++) { //it's up to 12+1 because first point is repeated at the end
+				next[j] = mesh.addVertex((float)(all_points[i][j][0] * scale), (float)(all_points[i][j][1] * scale), (float)(all_points[i][j][2] * scale));
+			}
+			if (null != prev) {
+				for (int j=0; j<parallels; j++) { //there are 12+12 triangles for each joint
+					// first triangle in the quad
+					mesh.addTriangle(prev[j], prev[j+1], next[j]);
+					// second triangle in the quad
+					mesh.addTriangle(next[j], prev[j+1], next[j+1]);
+				}
+				final int[] tmp = prev;
+				prev = next;
+				next = tmp;
+			} else {
+				prev = next;
+				next = new int[parallels + 1];
 			}
 		}
-		return list;
+		mesh.trim();
+		return mesh;
 	}
 
 	/** From my former program, A_3D_Editing.java and Pipe.java  */
@@ -869,7 +869,10 @@ public class Selection {
 	public void measure() {
 		Utils.log2("Selection.measure");
 		final HashMap<Class<?>,ResultsTable> rts = new HashMap<Class<?>,ResultsTable>();
-		for (final Displayable d : getSelected()) {
+		final Collection<Displayable> selected = getSelected();
+		// measure the costly ones in parallel, to be read from their memoized measurements below
+		LayerSet.measure(selected, null);
+		for (final Displayable d : selected) {
 			Utils.log2("measured " + d);
 			ResultsTable rt1 = rts.get(d.getClass());
 			ResultsTable rt2 = d.measure(rt1);
@@ -37,6 +37,7 @@ import ini.trakem2.parallel.Process;
 import ini.trakem2.parallel.TaskFactory;
 import ini.trakem2.persistence.XMLOptions;
 import ini.trakem2.utils.Bureaucrat;
+import ini.trakem2.utils.CompactIdentitySet;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.M;
 import ini.trakem2.utils.ProjectToolbar;
@@ -117,7 +118,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 
 	protected final Map<Layer,Set<Node<T>>> node_layer_map = new HashMap<Layer,Set<Node<T>>>();
 
-	protected final Set<Node<T>> end_nodes = new HashSet<Node<T>>();
+	protected final Set<Node<T>> end_nodes = new CompactIdentitySet<Node<T>>();
 
 	protected Node<T> root = null;
 
@@ -143,7 +144,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 	public Set<Node<T>> getNodesAt(final Layer layer) {
 		synchronized (node_layer_map) {
 			final Set<Node<T>> s = node_layer_map.get(layer);
-			return null == s ? new HashSet<Node<T>>() : new HashSet<Node<T>>(s);
+			return null == s ? new CompactIdentitySet<Node<T>>() : new CompactIdentitySet<Node<T>>(s);
 		}
 	}
 
@@ -158,13 +159,13 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 				Set<Node<T>> nodes = null;
 				if (-1 == layer_set.n_layers_color_cue) {
 					// All layers
-					nodes = new HashSet<Node<T>>();
+					nodes = new CompactIdentitySet<Node<T>>();
 					for (final Set<Node<T>> ns : node_layer_map.values()) nodes.addAll(ns);
 				} else {
 					for (final Layer la : color_cue_layers) {
 						Set<Node<T>> ns = node_layer_map.get(la);
 						if (null != ns) {
-							if (null == nodes) nodes = new HashSet<Node<T>>();
+							if (null == nodes) nodes = new CompactIdentitySet<Node<T>>();
 							nodes.addAll(ns);
 						}
 					}
@@ -173,7 +174,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 			}
 			// Else, just the active layer, if any
 			final Set<Node<T>> nodeSet = node_layer_map.get(active_layer);
-			return null == nodeSet? null : new HashSet<Node<T>>(nodeSet);
+			return null == nodeSet? null : new CompactIdentitySet<Node<T>>(nodeSet);
 		}
 	}
 
@@ -322,6 +323,8 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 	}
 
 	public boolean calculateBoundingBox(final Layer la) {
+		// Called after every edit of the nodes
+		geometryChanged();
 		try {
 			if (null == root) {
 				this.at.setToIdentity();
@@ -689,6 +692,11 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 			this.root = null == t.root ? null : t.root.clone(t.project);
 		}
 		@Override
+		final long estimateBytes() {
+			// A Node and its array of children
+			return super.estimateBytes() + (null == root ? 0 : 80L * root.getSubtreeNodes().size());
+		}
+		@Override
 		final boolean to2(final Displayable d) {
 			super.to1(d);
 			final Tree<T> t = (Tree<T>)d;
@@ -837,7 +845,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 			if (null == child.children) end_nodes.add(child);
 			Set<Node<T>> nds = node_layer_map.get(child.la);
 			if (null == nds) {
-				nds = new HashSet<Node<T>>();
+				nds = new CompactIdentitySet<Node<T>>();
 				node_layer_map.put(child.la, nds);
 			}
 			nds.add(child);
@@ -1169,7 +1177,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		synchronized (node_layer_map) {
 			Set<Node<T>> nodes = node_layer_map.get(child.la);
 			if (null == nodes) {
-				nodes = new HashSet<Node<T>>();
+				nodes = new CompactIdentitySet<Node<T>>();
 				node_layer_map.put(child.la, nodes);
 			}
 			if (nodes.add(child)) {
@@ -2021,7 +2029,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 	}
 
 	public Set<Node<T>> getEndNodes() {
-		return new HashSet<Node<T>>(end_nodes);
+		return new CompactIdentitySet<Node<T>>(end_nodes);
 	}
 
 	/** Fly-through image stack from source node to mark node.
@@ -2063,59 +2071,95 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 	@Override
 	public ResultsTable measure(ResultsTable rt) {
 		if (null == root) return rt;
-		double cable = 0,
-		       lb_cable = 0;
-		int branch_points = 0;
+		final double[] m = measure();
+
+		if (null == rt) rt = Utils.createResultsTable("Tree results", new String[]{"id", "N branch points", "N end points", "Cable length", "LB Cable length"});
+		rt.incrementCounter();
+		rt.addLabel("units", layer_set.getCalibration().getUnit());
+		rt.addValue(0, this.id);
+		rt.addValue(1, m[0]);
+		rt.addValue(2, m[1]);
+		rt.addValue(3, m[2]);
+		rt.addValue(4, m[3]);
+
+		return rt;
+	}
+
+	/** Returns a double array with 0=number of branch points, 1=number of end points, 2=cable length, 3=lower-bound cable length;
+	 *  see {@link #measure(ResultsTable)}. Memoized until the next edit.
+	 *  The tree is walked once from the root, carrying along the previous branch or root point of each node. */
+	public double[] measure() {
+		if (null == root) return new double[4];
+
 		final Calibration cal = layer_set.getCalibration();
 		final double pixelWidth = cal.pixelWidth;
 		final double pixelHeight = cal.pixelHeight;
 
+		final long edit_count = getEditCount();
+		final ArrayList<Object> key = new ArrayList<Object>();
+		key.add(new AffineTransform(this.at));
+		key.add(pixelWidth);
+		key.add(pixelHeight);
+		synchronized (node_layer_map) {
+			for (final Layer la : node_layer_map.keySet()) {
+				key.add(la.getId());
+				key.add(la.getZ());
+			}
+		}
+		final double[] cached = getCachedMeasurements(key);
+		if (null != cached) return cached;
+
+		double cable = 0,
+		       lb_cable = 0;
+		int branch_points = 0;
+
 		final float[] fps = new float[4];
 		final float[] fpp = new float[2];
 
 		synchronized (node_layer_map) {
-			for (final Collection<Node<T>> nodes : node_layer_map.values()) {
-				for (final Node<T> nd : nodes) {
-					if (nd.getChildrenCount() > 1) branch_points++;
-					// Skip the root node
-					if (null == nd.parent) continue;
-					//
-					fps[0] = nd.x;   fps[2] = nd.parent.x;
-					fps[1] = nd.y;   fps[3] = nd.parent.y;
-					this.at.transform(fps, 0, fps, 0, 2);
-					cable += Math.sqrt(Math.pow( (fps[0] - fps[2]) * pixelWidth, 2)
-							 + Math.pow( (fps[1] - fps[3]) * pixelHeight, 2)
-							 + Math.pow( (nd.la.getZ() - nd.parent.la.getZ()) * pixelWidth, 2));
-
-					// Lower bound cable length:
-					if (1 == nd.getChildrenCount()) continue; // include only end nodes and branch nodes
-					else {
-						Node<T> prev = nd.findPreviousBranchOrRootPoint();
-						if (null == prev) {
-							Utils.log("ERROR: Can't find the previous branch or root point for node " + nd);
-							continue;
-						}
-						fpp[0] = prev.x;
-						fpp[1] = prev.y;
-						this.at.transform(fpp, 0, fpp, 0, 1);
-						lb_cable += Math.sqrt(Math.pow( (fpp[0] - fps[0]) * pixelWidth, 2)
-								    + Math.pow( (fpp[1] - fps[1]) * pixelHeight, 2)
-								    + Math.pow( (nd.la.getZ() - nd.parent.la.getZ()) * pixelWidth, 2));
+			// Breadth-first, with the previous branch or root point of each queued node alongside
+			final ArrayList<Node<T>> queue = new ArrayList<Node<T>>();
+			final ArrayList<Node<T>> prevs = new ArrayList<Node<T>>();
+			queue.add(root);
+			prevs.add(null);
+			for (int i=0; i<queue.size(); ++i) {
+				final Node<T> nd = queue.get(i);
+				final Node<T> prev = prevs.get(i);
+				final int n_children = nd.getChildrenCount();
+				if (n_children > 0) {
+					// For its children, this node is the previous branch or root point if it is either
+					final Node<T> next_prev = null == prev || n_children > 1 ? nd : prev;
+					for (final Node<T> child : nd.children) {
+						queue.add(child);
+						prevs.add(next_prev);
 					}
 				}
-			}
-		}
-
-		if (null == rt) rt = Utils.createResultsTable("Tree results", new String[]{"id", "N branch points", "N end points", "Cable length", "LB Cable length"});
-		rt.incrementCounter();
-		rt.addLabel("units", cal.getUnit());
-		rt.addValue(0, this.id);
-		rt.addValue(1, branch_points);
-		rt.addValue(2, end_nodes.size());
-		rt.addValue(3, cable);
-		rt.addValue(4, lb_cable);
-
-		return rt;
+				if (n_children > 1) branch_points++;
+				// Skip the root node
+				if (null == nd.parent) continue;
+				//
+				fps[0] = nd.x;   fps[2] = nd.parent.x;
+				fps[1] = nd.y;   fps[3] = nd.parent.y;
+				this.at.transform(fps, 0, fps, 0, 2);
+				final double dz = (nd.la.getZ() - nd.parent.la.getZ()) * pixelWidth;
+				cable += Math.sqrt(Math.pow( (fps[0] - fps[2]) * pixelWidth, 2)
+						 + Math.pow( (fps[1] - fps[3]) * pixelHeight, 2)
+						 + dz * dz);
+
+				// Lower bound cable length:
+				if (1 == n_children) continue; // include only end nodes and branch nodes
+				fpp[0] = prev.x;
+				fpp[1] = prev.y;
+				this.at.transform(fpp, 0, fpp, 0, 1);
+				lb_cable += Math.sqrt(Math.pow( (fpp[0] - fps[0]) * pixelWidth, 2)
+						    + Math.pow( (fpp[1] - fps[1]) * pixelHeight, 2)
+						    + dz * dz);
+			}
+		}
+
+		final double[] m = new double[]{branch_points, end_nodes.size(), cable, lb_cable};
+		setCachedMeasurements(edit_count, key, m);
+		return m;
 	}
 
 	/** Expects Rectangle in world coords. */
@@ -3170,35 +3214,16 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		return m;
 	}
 
-	/** Returns an array of two Collection of connectors: the first one has the outgoing connectors, and the second one has the incoming connectors. */
+	/** Returns an array of two Collection of connectors: the first one has the outgoing connectors, and the second one has the incoming connectors.
+	 *  Read from the {@link ConnectivityIndex} of the LayerSet. */
 	@SuppressWarnings("unchecked")
 	public List<Connector>[] findConnectors() throws Exception {
 		final ArrayList<Connector> outgoing = new ArrayList<Connector>();
 		final ArrayList<Connector> incoming = new ArrayList<Connector>();
 		if (null != root) {
-			Process.progressive(root.getSubtreeNodes(),
-				     new TaskFactory<Node<T>,Object>() {
-						@Override
-					 	public Object process(final Node<T> nd) {
-							final Area a = nd.getArea();
-							a.transform(Tree.this.at);
-							final Collection<Displayable> col = layer_set.findZDisplayables(Connector.class, nd.la, a, false, false);
-							if (col.isEmpty()) return null;
-							// Outgoing or incoming?
-							for (final Connector c : (Collection<Connector>)(Collection)col) {
-								if (c.intersectsOrigin(a, nd.la)) {
-									synchronized (outgoing) {
-										outgoing.add(c);
-									}
-								} else {
-									synchronized (incoming) {
-										incoming.add(c);
-									}
-								}
-							}
-							return null;
-						}
-					 });
+			final ConnectivityIndex ci = layer_set.getConnectivityIndex();
+			outgoing.addAll(ci.getOutgoing(this));
+			incoming.addAll(ci.getIncoming(this));
 		}
 		return (List<Connector>[]) new List[]{outgoing, incoming};
 	}
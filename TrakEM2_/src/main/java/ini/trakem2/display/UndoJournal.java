@@ -0,0 +1,207 @@
+package ini.trakem2.display;
+
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/** A file to which a {@link LayerSet} writes old undo steps when the undo history exceeds its memory budget.
+ *
+ * A spilled step is replaced in the history by a small step that keeps only the references to the objects
+ * it restores, and reads its data back from the file when applied. Only the steps made entirely of transforms
+ * and of data packages that can be written are spilled: see {@link #isSpillable(DoStep)}. Records are
+ * compressed and appended; the file is emptied when no spilled step remains, and deleted on {@link #close()}.
+ *
+ * Thread-safe. */
+final class UndoJournal {
+
+	/** The objects referenced by a spilled step, which stay in memory: written as their index. */
+	static final class Refs {
+		private final ArrayList<Object> list = new ArrayList<Object>();
+		private final IdentityHashMap<Object,Integer> indices = new IdentityHashMap<Object,Integer>();
+
+		private Refs() {}
+
+		private Refs(final Object[] obs) {
+			for (final Object ob : obs) list.add(ob);
+		}
+
+		int index(final Object ob) {
+			Integer i = indices.get(ob);
+			if (null == i) {
+				i = list.size();
+				list.add(ob);
+				indices.put(ob, i);
+			}
+			return i;
+		}
+
+		Object get(final int i) {
+			return list.get(i);
+		}
+	}
+
+	static private final byte TRANSFORMS = 1,
+	                          EDIT = 2,
+	                          EDITS = 3;
+
+	private final File file;
+	private RandomAccessFile raf = null;
+	private int n_spilled = 0;
+
+	UndoJournal(final File file) {
+		this.file = file;
+	}
+
+	/** Whether @param step and all its dependents can be written to the journal. */
+	static boolean isSpillable(final DoStep step) {
+		if (step instanceof Displayable.DoTransforms) return true;
+		if (step instanceof Displayable.DoEdit) return ((Displayable.DoEdit)step).isSpillable();
+		if (step instanceof Displayable.DoEdits) return ((Displayable.DoEdits)step).isSpillable();
+		return false;
+	}
+
+	static void write(final DoStep step, final DataOutputStream out, final Refs refs) throws IOException {
+		if (step instanceof Displayable.DoTransforms) {
+			out.writeByte(TRANSFORMS);
+			((Displayable.DoTransforms)step).write(out, refs);
+		} else if (step instanceof Displayable.DoEdit) {
+			out.writeByte(EDIT);
+			((Displayable.DoEdit)step).write(out, refs);
+		} else if (step instanceof Displayable.DoEdits) {
+			out.writeByte(EDITS);
+			((Displayable.DoEdits)step).write(out, refs);
+		} else {
+			throw new IOException("Can't write undo step " + step);
+		}
+	}
+
+	static DoStep read(final DataInputStream in, final Refs refs) throws IOException {
+		final byte kind = in.readByte();
+		switch (kind) {
+			case TRANSFORMS: return Displayable.DoTransforms.read(in, refs);
+			case EDIT: return Displayable.DoEdit.read(in, refs);
+			case EDITS: return Displayable.DoEdits.read(in, refs);
+			default: throw new IOException("Unknown undo step kind " + kind);
+		}
+	}
+
+	/** @return a step that reads @param step back from the journal when applied, or null if it can't be written. */
+	synchronized DoStep spill(final DoStep step) {
+		if (!isSpillable(step)) return null;
+		try {
+			final Refs refs = new Refs();
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes));
+			write(step, out, refs);
+			out.close();
+			if (null == raf) {
+				file.getParentFile().mkdirs();
+				raf = new RandomAccessFile(file, "rw");
+				raf.setLength(0);
+			}
+			final long offset = raf.length();
+			raf.seek(offset);
+			raf.write(bytes.toByteArray());
+			++n_spilled;
+			return new SpilledStep(offset, bytes.size(), refs.list.toArray());
+		} catch (final IOException ioe) {
+			Utils.log2("Could not write undo step to " + file + ": " + ioe);
+			return null;
+		}
+	}
+
+	/** Notify that @param step, if spilled, is no longer in the undo history. */
+	synchronized void release(final DoStep step) {
+		if (!(step instanceof SpilledStep) || ((SpilledStep)step).journal() != this) return;
+		if (--n_spilled > 0 || null == raf) return;
+		try {
+			raf.setLength(0);
+		} catch (final IOException ioe) {
+			IJError.print(ioe);
+		}
+	}
+
+	/** Forget all spilled steps and delete the file. */
+	synchronized void close() {
+		n_spilled = 0;
+		if (null == raf) return;
+		try {
+			raf.close();
+		} catch (final IOException ioe) {
+			IJError.print(ioe);
+		}
+		raf = null;
+		if (!file.delete()) Utils.log2("Could not delete undo journal " + file);
+	}
+
+	private synchronized DoStep load(final long offset, final int length, final Object[] refs) throws IOException {
+		if (null == raf) throw new IOException("Undo journal was closed: " + file);
+		final byte[] b = new byte[length];
+		raf.seek(offset);
+		raf.readFully(b);
+		final DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(b)));
+		try {
+			return read(in, new Refs(refs));
+		} finally {
+			in.close();
+		}
+	}
+
+	/** An undo step whose data is in the journal. */
+	final class SpilledStep implements DoStep {
+		private final long offset;
+		private final int length;
+		private final Object[] refs;
+
+		private SpilledStep(final long offset, final int length, final Object[] refs) {
+			this.offset = offset;
+			this.length = length;
+			this.refs = refs;
+		}
+
+		private UndoJournal journal() {
+			return UndoJournal.this;
+		}
+
+		long estimateBytes() {
+			return 64 + 8L * refs.length;
+		}
+
+		@Override
+		public boolean apply(final int action) {
+			try {
+				return load(offset, length, refs).apply(action);
+			} catch (final IOException ioe) {
+				Utils.log("Could not read undo step from " + file + ": " + ioe);
+				return false;
+			}
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return false;
+		}
+
+		/** Spilled steps are not kept in the per-object index of the history. */
+		@Override
+		public Displayable getD() {
+			return null;
+		}
+
+		@Override
+		public boolean isIdenticalTo(final Object ob) {
+			return false;
+		}
+	}
+}
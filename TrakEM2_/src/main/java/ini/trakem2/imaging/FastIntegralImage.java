@@ -107,6 +107,51 @@ public final class FastIntegralImage
 		return f;
 	}
 
+	/** Returns an image of @{param w}+1, @{param y}+1, where the first row and the first column are zeros,
+	 * and the rest contain the sum of the area from 0,0 to that pixel in {@param f},
+	 * or of the squares of its values if {@param squares}.
+	 * 
+	 * @param f
+	 * @param w
+	 * @param h
+	 * @param squares
+	 * @return a double[] representing the integral image, with the first row and the first column with zeros.
+	 */
+	static public final double[] doubleIntegralImage(final float[] f, final int w, final int h, final boolean squares) {
+		final int w2 = w+1;
+		final int h2 = h+1;
+		final double[] ii = new double[w2 * h2];
+		// Sum rows
+		for (int y=0, offset1=0, offset2=w2+1; y<h; ++y) {
+			double s = 0;
+			for (int x=0; x<w; ++x) {
+				final double v = f[offset1 + x];
+				s += squares ? v * v : v;
+				ii[offset2 + x] = s;
+			}
+			offset1 += w;
+			offset2 += w2;
+		}
+		// Sum columns over the summed rows
+		for (int x=1; x<w2; ++x) {
+			 double s = 0;
+			 for (int y=1, i=w2+x; y<h2; ++y) {
+				 s += ii[i];
+				 ii[i] = s;
+				 i += w2;
+			 }
+		}
+
+		return ii;
+	}
+
+	/** Returns the sum over the rectangle [x0, x1) x [y0, y1) of the image whose integral image,
+	 * as returned by {@link #doubleIntegralImage(float[], int, int, boolean)}, is {@param ii}
+	 * with width {@param w2}, that is, the width of the image plus one. */
+	static public final double sum(final double[] ii, final int w2, final int x0, final int y0, final int x1, final int y1) {
+		return ii[y1 * w2 + x1] - ii[y0 * w2 + x1] - ii[y1 * w2 + x0] + ii[y0 * w2 + x0];
+	}
+
 	/** For testing. */
 	static public final void main(String[] args) {
 		{
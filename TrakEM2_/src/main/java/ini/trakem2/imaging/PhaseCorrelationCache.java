@@ -0,0 +1,353 @@
+package ini.trakem2.imaging;
+
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+import ini.trakem2.display.Patch;
+
+import java.awt.Rectangle;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import mpi.fruitfly.math.datastructures.FloatArray2D;
+import mpi.fruitfly.registration.ImageFilter;
+
+/** Phase correlation of stripes of overlapping {@link Patch} images, with the image of each Patch,
+ * each stripe of it and the Fourier spectrum of each stripe computed only once and shared by all
+ * the neighbours that it is correlated with.
+ *
+ * Each Patch is first {@link #retain(Patch, Roi[]) retained} once per pair it takes part in, with the
+ * stripes that the pair may need, including those of larger overlaps to retry with, and {@link #release(Patch) released} when the pair is done, at which
+ * point its stripes and spectra are freed if no other pair needs them. The image of the whole Patch
+ * is made when the first of its stripes is requested, all its retained stripes are cut from it at
+ * once, and then it is discarded: only the stripes and their spectra are kept.
+ *
+ * Stripes are cut from the image of the whole Patch at the given scale, as made by
+ * {@link StitchingTEM#makeStripe(Patch, Roi, double)}, and smoothed with a gaussian of sigma 1 as
+ * in {@link StitchingTEM#correlate(Patch, Patch, float, double, int, double, double, double)}.
+ * Spectra are of the stripe minus its mean, tapered towards its borders and padded with zeros
+ * to the next power of two in each dimension. The highest peaks of the phase correlation are
+ * tested by the cross-correlation coefficient R of the overlapping pixels, for each of the
+ * shifts that a peak of the periodic phase correlation stands for.
+ *
+ * Thread-safe. */
+public final class PhaseCorrelationCache {
+
+	/** Number of peaks of the phase correlation to test. */
+	static private final int NUM_PEAKS = 5;
+	/** Smallest fraction of the smaller stripe that has to overlap for a shift to be considered. */
+	static private final double MIN_OVERLAP = 0.1;
+	/** Fraction of each side of a stripe over which it is faded out before its transform. */
+	static private final double TAPER = 0.125;
+
+	static private final class Stripe {
+		final float[] pixels;
+		final int width, height;
+		/** Origin of the stripe in the scaled image of its Patch. */
+		final int x, y;
+		/** Spectra, real and imaginary parts, by padded width and height. */
+		final Map<Long,double[][]> spectra = new HashMap<Long,double[][]>();
+		Stripe(final float[] pixels, final int width, final int height, final int x, final int y) {
+			this.pixels = pixels;
+			this.width = width;
+			this.height = height;
+			this.x = x;
+			this.y = y;
+		}
+	}
+
+	static private final class Entry {
+		int pending = 0;
+		/** The stripes that retained pairs will ask for, to cut from a single image of the Patch. */
+		final Set<Rectangle> wanted = new HashSet<Rectangle>();
+		final Map<Rectangle,Stripe> stripes = new HashMap<Rectangle,Stripe>();
+	}
+
+	private final double scale;
+	private final Map<Patch,Entry> entries = new HashMap<Patch,Entry>();
+
+	/** @param scale The scale at which to correlate, at most 1. */
+	public PhaseCorrelationCache(final double scale) {
+		this.scale = Math.min(1, scale);
+	}
+
+	public double getScale() {
+		return scale;
+	}
+
+	/** Keep the stripes and spectra of @param p until a matching call to {@link #release(Patch)}.
+	 * @param rois The stripes that may be requested, in the coordinates of the Patch image: all are cut
+	 * from the same image of the Patch, made when the first of them is requested. */
+	public void retain(final Patch p, final Roi[] rois) {
+		synchronized (entries) {
+			Entry e = entries.get(p);
+			if (null == e) {
+				e = new Entry();
+				entries.put(p, e);
+			}
+			++e.pending;
+			synchronized (e) {
+				for (final Roi roi : rois) {
+					if (!e.stripes.containsKey(roi.getBounds())) e.wanted.add(roi.getBounds());
+				}
+			}
+		}
+	}
+
+	public void release(final Patch p) {
+		synchronized (entries) {
+			final Entry e = entries.get(p);
+			if (null != e && --e.pending <= 0) entries.remove(p);
+		}
+	}
+
+	private Entry entry(final Patch p) {
+		synchronized (entries) {
+			Entry e = entries.get(p);
+			if (null == e) {
+				// Not retained: use it once
+				e = new Entry();
+			}
+			return e;
+		}
+	}
+
+	/** The stripe of @param p under @param roi, which is in the coordinates of the Patch image. */
+	private Stripe stripe(final Patch p, final Roi roi) {
+		final Entry e = entry(p);
+		synchronized (e) {
+			final Rectangle rb = roi.getBounds();
+			Stripe s = e.stripes.get(rb);
+			if (null != s) return s;
+			// Cut this and all other stripes still wanted from one image, which is then discarded
+			final ImageProcessor ip = StitchingTEM.makeStripe(p, null, scale);
+			e.wanted.add(rb);
+			for (final Rectangle r : e.wanted) e.stripes.put(r, cut(ip, r));
+			e.wanted.clear();
+			return e.stripes.get(rb);
+		}
+	}
+
+	/** The pixels of @param ip under @param rb, which is unscaled, smoothed. */
+	private Stripe cut(final ImageProcessor ip, final Rectangle rb) {
+		final int x0 = Math.min(ip.getWidth() - 1, Math.max(0, (int)(rb.x * scale))),
+		          y0 = Math.min(ip.getHeight() - 1, Math.max(0, (int)(rb.y * scale))),
+		          w = Math.max(1, Math.min(ip.getWidth() - x0, (int)(rb.width * scale))),
+		          h = Math.max(1, Math.min(ip.getHeight() - y0, (int)(rb.height * scale)));
+		final float[] src = (float[])ip.getPixels();
+		final float[] pixels = new float[w * h];
+		for (int y=0; y<h; ++y) {
+			System.arraycopy(src, (y0 + y) * ip.getWidth() + x0, pixels, y * w, w);
+		}
+		return new Stripe(ImageFilter.computeGaussianFastMirror(new FloatArray2D(pixels, w, h), 1.0).data, w, h, x0, y0);
+	}
+
+	/** The spectrum of @param s padded to @param pw, @param ph. */
+	static private double[][] spectrum(final Stripe s, final int pw, final int ph) {
+		synchronized (s) {
+			final Long key = ((long)pw << 32) | ph;
+			double[][] f = s.spectra.get(key);
+			if (null != f) return f;
+			final double[] re = new double[pw * ph],
+			               im = new double[pw * ph];
+			double mean = 0;
+			for (final float v : s.pixels) mean += v;
+			mean /= s.pixels.length;
+			final int tx = Math.max(1, (int)(s.width * TAPER)),
+			          ty = Math.max(1, (int)(s.height * TAPER));
+			for (int y=0; y<s.height; ++y) {
+				final double wy = taper(y, s.height, ty);
+				for (int x=0; x<s.width; ++x) {
+					re[y * pw + x] = (s.pixels[y * s.width + x] - mean) * wy * taper(x, s.width, tx);
+				}
+			}
+			fft2(re, im, pw, ph, false);
+			f = new double[][]{re, im};
+			s.spectra.put(key, f);
+			return f;
+		}
+	}
+
+	/** Weight that fades out the first and last @param t of @param n samples. */
+	static private final double taper(final int i, final int n, final int t) {
+		final int d = Math.min(i, n - 1 - i);
+		if (d >= t) return 1;
+		return 0.5 - 0.5 * Math.cos(Math.PI * (d + 0.5) / t);
+	}
+
+	/** Correlate the stripe of @param base under @param roi1 with that of @param moving under @param roi2,
+	 * with both ROIs in the coordinates of their Patch images.
+	 * @return {dx, dy, R} where dx, dy is the position of the origin of @param moving relative to that of
+	 * @param base, in unscaled pixels, and R the cross-correlation coefficient of the overlap; or null when
+	 * no peak overlaps enough. */
+	public double[] correlate(final Patch base, final Roi roi1, final Patch moving, final Roi roi2) {
+		final Stripe s1 = stripe(base, roi1),
+		             s2 = stripe(moving, roi2);
+		final int pw = nextPowerOfTwo(Math.max(s1.width, s2.width)),
+		          ph = nextPowerOfTwo(Math.max(s1.height, s2.height));
+		final double[][] f1 = spectrum(s1, pw, ph),
+		                 f2 = spectrum(s2, pw, ph);
+
+		// Normalized cross power spectrum
+		final int n = pw * ph;
+		final double[] re = new double[n],
+		               im = new double[n];
+		for (int i=0; i<n; ++i) {
+			final double r = f1[0][i] * f2[0][i] + f1[1][i] * f2[1][i],
+			             m = f1[1][i] * f2[0][i] - f1[0][i] * f2[1][i],
+			             a = Math.sqrt(r * r + m * m);
+			if (a > 0) {
+				re[i] = r / a;
+				im[i] = m / a;
+			}
+		}
+		fft2(re, im, pw, ph, true);
+
+		// Highest local maxima
+		final int[] peaks = new int[NUM_PEAKS];
+		final double[] heights = new double[NUM_PEAKS];
+		int num_peaks = 0;
+		for (int y=0; y<ph; ++y) {
+			for (int x=0; x<pw; ++x) {
+				final double v = re[y * pw + x];
+				if (num_peaks == NUM_PEAKS && v <= heights[NUM_PEAKS - 1]) continue;
+				if (!isLocalMaximum(re, pw, ph, x, y, v)) continue;
+				int k = Math.min(num_peaks, NUM_PEAKS - 1);
+				while (k > 0 && heights[k - 1] < v) {
+					peaks[k] = peaks[k - 1];
+					heights[k] = heights[k - 1];
+					--k;
+				}
+				peaks[k] = y * pw + x;
+				heights[k] = v;
+				if (num_peaks < NUM_PEAKS) ++num_peaks;
+			}
+		}
+
+		// Test the shifts of each peak by the cross-correlation of the overlap
+		final int min_overlap = (int)(MIN_OVERLAP * Math.min(s1.width * s1.height, s2.width * s2.height));
+		double best_R = -2;
+		int best_dx = 0, best_dy = 0;
+		for (int k=0; k<num_peaks; ++k) {
+			final int px = peaks[k] % pw,
+			          py = peaks[k] / pw;
+			for (int i=0; i<4; ++i) {
+				final int dx = 0 == (i & 1) ? px : px - pw,
+				          dy = 0 == (i & 2) ? py : py - ph;
+				final double R = crossCorrelation(s1, s2, dx, dy, min_overlap);
+				if (R > best_R) {
+					best_R = R;
+					best_dx = dx;
+					best_dy = dy;
+				}
+			}
+		}
+		if (best_R < -1) return null;
+
+		return new double[]{(s1.x + best_dx - s2.x) / scale,
+		                    (s1.y + best_dy - s2.y) / scale,
+		                    best_R};
+	}
+
+	static private final boolean isLocalMaximum(final double[] a, final int w, final int h, final int x, final int y, final double v) {
+		for (int j=-1; j<2; ++j) {
+			final int yj = (y + j + h) % h;
+			for (int i=-1; i<2; ++i) {
+				if (0 == i && 0 == j) continue;
+				if (a[yj * w + (x + i + w) % w] > v) return false;
+			}
+		}
+		return true;
+	}
+
+	/** Pearson's correlation coefficient of the pixels of @param s2 at x, y and those of @param s1 at x + dx, y + dy,
+	 * or -2 if fewer than @param min_overlap pixels overlap. */
+	static private final double crossCorrelation(final Stripe s1, final Stripe s2, final int dx, final int dy, final int min_overlap) {
+		final int x0 = Math.max(0, -dx),
+		          x1 = Math.min(s2.width, s1.width - dx),
+		          y0 = Math.max(0, -dy),
+		          y1 = Math.min(s2.height, s1.height - dy);
+		if (x1 <= x0 || y1 <= y0 || (x1 - x0) * (y1 - y0) < Math.max(1, min_overlap)) return -2;
+		double s_a = 0, s_b = 0, s_aa = 0, s_bb = 0, s_ab = 0;
+		for (int y=y0; y<y1; ++y) {
+			final int o1 = (y + dy) * s1.width + dx,
+			          o2 = y * s2.width;
+			for (int x=x0; x<x1; ++x) {
+				final double a = s1.pixels[o1 + x],
+				             b = s2.pixels[o2 + x];
+				s_a += a;
+				s_b += b;
+				s_aa += a * a;
+				s_bb += b * b;
+				s_ab += a * b;
+			}
+		}
+		final int n = (x1 - x0) * (y1 - y0);
+		final double cov = s_ab - s_a * s_b / n,
+		             var_a = s_aa - s_a * s_a / n,
+		             var_b = s_bb - s_b * s_b / n;
+		if (var_a <= 0 || var_b <= 0) return 0;
+		return cov / Math.sqrt(var_a * var_b);
+	}
+
+	static private final int nextPowerOfTwo(final int n) {
+		int p = 1;
+		while (p < n) p <<= 1;
+		return p;
+	}
+
+	/** In-place 2D FFT of a @param w by @param h array, both powers of two; the inverse is scaled by 1/(w*h). */
+	static private final void fft2(final double[] re, final double[] im, final int w, final int h, final boolean inverse) {
+		for (int y=0; y<h; ++y) {
+			fft(re, im, y * w, 1, w, inverse);
+		}
+		for (int x=0; x<w; ++x) {
+			fft(re, im, x, w, h, inverse);
+		}
+		if (inverse) {
+			final double f = 1.0 / (w * h);
+			for (int i=0; i<re.length; ++i) {
+				re[i] *= f;
+				im[i] *= f;
+			}
+		}
+	}
+
+	/** In-place radix-2 FFT of the @param n samples starting at @param offset, @param stride apart. */
+	static private final void fft(final double[] re, final double[] im, final int offset, final int stride, final int n, final boolean inverse) {
+		// Bit-reversal permutation
+		for (int i=1, j=0; i<n; ++i) {
+			int bit = n >> 1;
+			for (; 0 != (j & bit); bit >>= 1) j ^= bit;
+			j |= bit;
+			if (i < j) {
+				final int a = offset + i * stride,
+				          b = offset + j * stride;
+				double t = re[a]; re[a] = re[b]; re[b] = t;
+				t = im[a]; im[a] = im[b]; im[b] = t;
+			}
+		}
+		for (int len=2; len<=n; len<<=1) {
+			final double angle = (inverse ? 2 : -2) * Math.PI / len,
+			             wr = Math.cos(angle),
+			             wi = Math.sin(angle);
+			for (int i=0; i<n; i+=len) {
+				double cr = 1, ci = 0;
+				for (int k=0; k<len/2; ++k) {
+					final int a = offset + (i + k) * stride,
+					          b = offset + (i + k + len/2) * stride;
+					final double tr = re[b] * cr - im[b] * ci,
+					             ti = re[b] * ci + im[b] * cr;
+					re[b] = re[a] - tr;
+					im[b] = im[a] - ti;
+					re[a] += tr;
+					im[a] += ti;
+					final double ncr = cr * wr - ci * wi;
+					ci = cr * wi + ci * wr;
+					cr = ncr;
+				}
+			}
+		}
+	}
+}
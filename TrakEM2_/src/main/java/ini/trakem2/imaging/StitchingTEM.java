@@ -41,9 +41,15 @@ import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import mpi.fruitfly.math.datastructures.FloatArray2D;
 import mpi.fruitfly.registration.CrossCorrelation2D;
@@ -581,7 +587,86 @@ public class StitchingTEM {
 		} while (R < min_R && Math.abs(overlap - 1.0f) < 0.001f);
 
 		// Phase-correlation failed, fall back to cross-correlation with a safe overlap
-		overlap = percent_overlap * 2;
+		return crossCorrelate(base, moving, percent_overlap, scale, direction, default_dx, default_dy, min_R);
+	}
+
+	/** Same as {@link #correlate(Patch, Patch, float, double, int, double, double, double)} at the scale of @param cache,
+	 * but the stripes and their Fourier spectra are taken from @param cache, and so computed only once for all
+	 * the neighbours of a Patch. */
+	static public double[] correlate(final PhaseCorrelationCache cache, final Patch base, final Patch moving, final float percent_overlap, final int direction, final double default_dx, final double default_dy, final double min_R) {
+		for (final float overlap : overlaps(percent_overlap)) {
+			final Roi[] rois = overlapRois(base, moving, overlap, direction);
+			final double[] c = cache.correlate(base, rois[0], moving, rois[1]);
+			if (null != c && c[2] >= min_R) {
+				return new double[]{c[0], c[1], SUCCESS, c[2]};
+			}
+		}
+
+		return crossCorrelate(base, moving, percent_overlap, cache.getScale(), direction, default_dx, default_dy, min_R);
+	}
+
+	/** The overlaps that {@link #correlate(Patch, Patch, float, double, int, double, double, double)} tries in turn,
+	 * starting at @param percent_overlap and growing in increments of 10% for as long as that reaches the whole tile. */
+	static private float[] overlaps(final float percent_overlap) {
+		final ArrayList<Float> os = new ArrayList<Float>();
+		float overlap = percent_overlap;
+		do {
+			os.add(overlap);
+			overlap += 0.10; // increments of 10%
+		} while (Math.abs(overlap - 1.0f) < 0.001f);
+		final float[] a = new float[os.size()];
+		for (int i=0; i<a.length; i++) a[i] = os.get(i);
+		return a;
+	}
+
+	/** The stripes of @param base and of @param moving, as in {@link #overlapRois(Patch, Patch, float, int)},
+	 * for each of the {@link #overlaps(float)} that correlating them may try. */
+	static private Roi[][] retryRois(final Patch base, final Patch moving, final float percent_overlap, final int direction) {
+		final float[] os = overlaps(percent_overlap);
+		final Roi[][] rois = new Roi[2][os.length];
+		for (int i=0; i<os.length; i++) {
+			final Roi[] r = overlapRois(base, moving, os[i], direction);
+			rois[0][i] = r[0];
+			rois[1][i] = r[1];
+		}
+		return rois;
+	}
+
+	/** The stripes of @param base and of @param moving, in this order, that overlap by a fraction @param overlap
+	 * when @param moving lies next to @param base in @param direction; each in the coordinates of its Patch image. */
+	static private Roi[] overlapRois(final Patch base, final Patch moving, final float overlap, final int direction) {
+		final Rectangle b1 = base.getBoundingBox(null);
+		final Rectangle b2 = moving.getBoundingBox(null);
+		final int w1 = b1.width,
+			  h1 = b1.height,
+			  w2 = b2.width,
+			  h2 = b2.height;
+		switch(direction) {
+			case TOP_BOTTOM:
+				return new Roi[]{new Roi(0, h1 - (int)(h1 * overlap), w1, (int)(h1 * overlap)), // bottom
+				                 new Roi(0, 0, w2, (int)(h2 * overlap))}; // top
+			case LEFT_RIGHT:
+				return new Roi[]{new Roi(w1 - (int)(w1 * overlap), 0, (int)(w1 * overlap), h1), // right
+				                 new Roi(0, 0, (int)(w2 * overlap), h2)}; // left
+		}
+		return new Roi[2];
+	}
+
+	/** The cross-correlation fallback of {@link #correlate(Patch, Patch, float, double, int, double, double, double)},
+	 * on stripes of twice @param percent_overlap at a third of @param scale. */
+	static private double[] crossCorrelate(final Patch base, final Patch moving, final float percent_overlap, final double scale, final int direction, final double default_dx, final double default_dy, final double min_R) {
+		final Rectangle b1 = base.getBoundingBox(null);
+		final Rectangle b2 = moving.getBoundingBox(null);
+		final int w1 = b1.width,
+			  h1 = b1.height,
+			  w2 = b2.width,
+			  h2 = b2.height;
+		Roi roi1=null,
+		    roi2=null;
+		ImageProcessor ip1, ip2;
+		double dx = default_dx,
+		       dy = default_dy;
+		float overlap = percent_overlap * 2;
 		if (overlap > 1.0f) overlap = 1.0f;
 		switch(direction) {
 			case TOP_BOTTOM:
@@ -731,6 +816,9 @@ public class StitchingTEM {
 		public boolean remove_disconnected = false;
 		public double mean_factor = 2.5;
 		public double min_R = 0.3;
+		/** Whether to compute the stripes and spectra of each Patch once for all its neighbours with a
+		 * {@link PhaseCorrelationCache}, instead of once per pair with imglib's phase correlation. */
+		public boolean share_spectra = false;
 
 		public PhaseCorrelationParam(
 				final double cc_scale,
@@ -786,6 +874,7 @@ public class StitchingTEM {
 			gd.addNumericField("regression threshold (R):", min_R, 2);
 			gd.addCheckbox("hide disconnected", false);
 			gd.addCheckbox("remove disconnected", false);
+			gd.addCheckbox("share stripe spectra among neighbours", share_spectra);
 			gd.showDialog();
 			if (gd.wasCanceled()) return false;
 
@@ -795,6 +884,7 @@ public class StitchingTEM {
 			min_R = gd.getNextNumber();
 			hide_disconnected = gd.getNextBoolean();
 			remove_disconnected = gd.getNextBoolean();
+			share_spectra = gd.getNextBoolean();
 
 			return true;
 		}
@@ -846,65 +936,102 @@ public class StitchingTEM {
 
 
 
+		// Find overlapping pairs through the bucket index of each layer
+		final HashMap<Patch,Integer> indices = new HashMap<Patch,Integer>();
+		for (int i=0; i<al.size(); i++) indices.put(al.get(i), i);
+		final ArrayList<int[]> pairs = new ArrayList<int[]>();
 		for (int i=0; i<al.size(); i++) {
+			if (Thread.currentThread().isInterrupted()) return;
 			final Patch p1 = al.get(i);
 			final Rectangle r1 = p1.getBoundingBox();
-			// find overlapping, add as connections
-			for (int j=i+1; j<al.size(); j++) {
-				if (Thread.currentThread().isInterrupted()) return;
+			final ArrayList<Integer> js = new ArrayList<Integer>();
+			for (final Displayable d : p1.getLayer().find(Patch.class, r1, false)) {
+				final Integer j = indices.get(d);
+				if (null != j && j > i) js.add(j);
+			}
+			Collections.sort(js);
+			for (final int j : js) {
 				final Patch p2 = al.get(j);
 				final Rectangle r2 = p2.getBoundingBox();
-				if (r1.intersects(r2)) {
-					// Skip if it's a diagonal overlap
-					final int dx = Math.abs(r1.x - r2.x);
-					final int dy = Math.abs(r1.y - r2.y);
-					if (dx > r1.width/2 && dy > r1.height/2) {
-						// skip diagonal match
-						Utils.log2("Skipping diagonal overlap between " + p1 + " and " + p2);
-						continue;
+				// Skip if it's a diagonal overlap
+				final int dx = Math.abs(r1.x - r2.x);
+				final int dy = Math.abs(r1.y - r2.y);
+				if (dx > r1.width/2 && dy > r1.height/2) {
+					// skip diagonal match
+					Utils.log2("Skipping diagonal overlap between " + p1 + " and " + p2);
+					continue;
+				}
+				// base and moving tile, and direction
+				if (1 == overlap) {
+					pairs.add(new int[]{i, j, TOP_BOTTOM});
+				} else {
+					switch (getClosestOverlapLocation(p1, p2)) {
+						case 0: // p1 overlaps p2 from the left
+							pairs.add(new int[]{i, j, LEFT_RIGHT});
+							break;
+						case 1: // p1 overlaps p2 from the top
+							pairs.add(new int[]{i, j, TOP_BOTTOM});
+							break;
+						case 2: // p1 overlaps p2 from the right
+							pairs.add(new int[]{j, i, LEFT_RIGHT});
+							break;
+						case 3: // p1 overlaps p2 from the bottom
+							pairs.add(new int[]{j, i, TOP_BOTTOM});
+							break;
+						default:
+							Utils.log("Unknown overlap direction!");
+							continue;
 					}
+				}
+			}
+		}
 
-					p1.getProject().getLoader().releaseToFit((long)(p1.getWidth() * p1.getHeight() * 25));
-
-					final double[] R;
-					if (1 == overlap) {
-						R = correlate(p1, p2, overlap, cc_scale, TOP_BOTTOM, 0, 0, param.min_R );
-						if (SUCCESS == R[2]) {
-							addMatches(tiles.get(i), tiles.get(j), R[0], R[1]);
+		// Correlate all pairs in parallel, optionally sharing the stripes and spectra of each Patch among its neighbours
+		final PhaseCorrelationCache cache = param.share_spectra ? new PhaseCorrelationCache(cc_scale) : null;
+		if (null != cache) {
+			for (final int[] pair : pairs) {
+				final Roi[][] rois = retryRois(al.get(pair[0]), al.get(pair[1]), overlap, pair[2]);
+				cache.retain(al.get(pair[0]), rois[0]);
+				cache.retain(al.get(pair[1]), rois[1]);
+			}
+		}
+		final float fOverlap = overlap;
+		final double fScale = cc_scale;
+		final ExecutorService exec = Utils.newFixedThreadPool("montage-phase-correlation");
+		try {
+			final ArrayList<Future<double[]>> fus = new ArrayList<Future<double[]>>(pairs.size());
+			for (final int[] pair : pairs) {
+				final Patch base = al.get(pair[0]),
+				            moving = al.get(pair[1]);
+				fus.add(exec.submit(new Callable<double[]>() {
+					@Override
+					public double[] call() {
+						if (null == cache) {
+							return correlate(base, moving, fOverlap, fScale, pair[2], 0, 0, param.min_R);
 						}
-					} else {
-						switch (getClosestOverlapLocation(p1, p2)) {
-							case 0: // p1 overlaps p2 from the left
-								R = correlate(p1, p2, overlap, cc_scale, LEFT_RIGHT, 0, 0, param.min_R);
-								if (SUCCESS == R[2]) {
-									addMatches(tiles.get(i), tiles.get(j), R[0], R[1]);
-								}
-								break;
-							case 1: // p1 overlaps p2 from the top
-								R = correlate(p1, p2, overlap, cc_scale, TOP_BOTTOM, 0, 0, param.min_R);
-								if (SUCCESS == R[2]) {
-									addMatches(tiles.get(i), tiles.get(j), R[0], R[1]);
-								}
-								break;
-							case 2: // p1 overlaps p2 from the right
-								R = correlate(p2, p1, overlap, cc_scale, LEFT_RIGHT, 0, 0, param.min_R);
-								if (SUCCESS == R[2]) {
-									addMatches(tiles.get(j), tiles.get(i), R[0], R[1]);
-								}
-								break;
-							case 3: // p1 overlaps p2 from the bottom
-								R = correlate(p2, p1, overlap, cc_scale, TOP_BOTTOM, 0, 0, param.min_R);
-								if (SUCCESS == R[2]) {
-									addMatches(tiles.get(j), tiles.get(i), R[0], R[1]);
-								}
-								break;
-							default:
-								Utils.log("Unknown overlap direction!");
-								continue;
+						try {
+							base.getProject().getLoader().releaseToFit((long)(base.getWidth() * base.getHeight() * 25));
+							return correlate(cache, base, moving, fOverlap, pair[2], 0, 0, param.min_R);
+						} finally {
+							cache.release(base);
+							cache.release(moving);
 						}
 					}
+				}));
+			}
+			for (int k=0; k<pairs.size(); k++) {
+				final double[] R = fus.get(k).get();
+				if (SUCCESS == R[2]) {
+					addMatches(tiles.get(pairs.get(k)[0]), tiles.get(pairs.get(k)[1]), R[0], R[1]);
 				}
 			}
+		} catch (final InterruptedException ie) {
+			return;
+		} catch (final ExecutionException ee) {
+			IJError.print(ee);
+			return;
+		} finally {
+			exec.shutdownNow();
 		}
 
 		if (param.remove_disconnected || param.hide_disconnected) {
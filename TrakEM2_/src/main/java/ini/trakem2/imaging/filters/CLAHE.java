@@ -1,6 +1,7 @@
 package ini.trakem2.imaging.filters;
 
 import ij.ImagePlus;
+import ij.process.ColorProcessor;
 import ij.process.ImageProcessor;
 
 import java.util.Map;
@@ -35,13 +36,24 @@ public class CLAHE implements IFilter
 	}
 	
 	@Override
-	public ImageProcessor process(ImageProcessor ip) {
+	public ImageProcessor process(final ImageProcessor ip) {
 		if (fast) {
-			Flat.getFastInstance().run(new ImagePlus("", ip), blockRadius, bins, slope, null, false);
-		} else {
-			Flat.getInstance().run(new ImagePlus("", ip), blockRadius, bins, slope, null, false);
+			if (ip instanceof ColorProcessor) {
+				Flat.getFastInstance().run(new ImagePlus("", ip), blockRadius, bins, slope, null, false);
+			} else {
+				// The tile grid is laid out relative to the image dimensions, so it is parallelized by tiles, not bands
+				FastCLAHE.run(ip, blockRadius, bins, slope);
+			}
+			return ip;
 		}
-		return ip;
+		// Each pixel depends only on the pixels within blockRadius of it
+		return ParallelTiles.process(ip, blockRadius, 1, new ParallelTiles.TileFilter() {
+			@Override
+			public ImageProcessor process(final ImageProcessor tile) {
+				Flat.getInstance().run(new ImagePlus("", tile), blockRadius, bins, slope, null, false);
+				return tile;
+			}
+		});
 	}
 
 	@Override
@@ -0,0 +1,179 @@
+package ini.trakem2.imaging.filters;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ini.trakem2.parallel.Process;
+import mpicbg.trakem2.util.SharedExecutor;
+
+/** Contrast-limited adaptive histogram equalization computing the transfer function
+ * only at the centers of a grid of tiles and interpolating bilinearly in between,
+ * like the fast variant of {@link mpicbg.ij.clahe.Flat}.
+ *
+ * The image is split into as many tiles of about 2 * blockRadius + 1 pixels as fit
+ * in each dimension. The histogram of each tile center is accumulated over the block
+ * of radius blockRadius around it, clipped at the image bounds. Pixels left or above
+ * the first tile centers, or right or below the last ones, take the nearest transfer
+ * function along that dimension.
+ *
+ * Transfer functions are computed in parallel by rows of tiles, and pixels are mapped
+ * in parallel by rows of tiles too. Each output pixel depends only on the transfer
+ * functions and on its own value, so the result does not depend on the number of threads.
+ *
+ * 16-bit and 32-bit images are equalized relative to their display range, interpolating
+ * the transfer function between 8-bit levels to preserve their precision.
+ */
+final class FastCLAHE
+{
+	private FastCLAHE() {}
+
+	static final void run(final ImageProcessor ip, final int blockRadius, final int bins, final float slope) {
+		run(ip, blockRadius, bins, slope, Process.NUM_PROCESSORS);
+	}
+
+	static final void run(final ImageProcessor ip, final int blockRadius, final int bins, final float slope, final int nThreads) {
+		final int width = ip.getWidth(),
+		          height = ip.getHeight();
+		final byte[] src = (byte[]) (ip instanceof ByteProcessor ? ip : ip.convertToByte(true)).getPixels();
+
+		// Same binning as mpicbg's CLAHE: bins + 1 histogram entries
+		final int nBins = bins + 1;
+		final int[] binOf = new int[256];
+		for (int v=0; v<256; ++v) binOf[v] = (int)(v / 255.0f * bins + 0.5f);
+
+		final int r = Math.max(0, blockRadius);
+		final int[] cx = centers(width, 2 * r + 1),
+		            cy = centers(height, 2 * r + 1);
+		final int nx = cx.length,
+		          ny = cy.length;
+
+		// One transfer function per tile center, mapping 8-bit values to [0, 1]
+		final float[][] luts = new float[nx * ny][];
+		SharedExecutor.forEach(ny, nThreads, new SharedExecutor.Body() {
+			@Override
+			public void run(final int j) {
+				final int[] counts = new int[nBins];
+				final int[] clipped = new int[nBins];
+				final int y0 = Math.max(0, cy[j] - r),
+				          y1 = Math.min(height, cy[j] + r + 1);
+				for (int i=0; i<nx; ++i) {
+					final int x0 = Math.max(0, cx[i] - r),
+					          x1 = Math.min(width, cx[i] + r + 1);
+					for (int b=0; b<nBins; ++b) counts[b] = 0;
+					for (int y=y0; y<y1; ++y) {
+						for (int x=x0, k=y*width+x0; x<x1; ++x, ++k) {
+							++counts[binOf[src[k] & 0xff]];
+						}
+					}
+					luts[j * nx + i] = transferFunction(counts, clipped, (x1 - x0) * (y1 - y0), nBins, binOf, slope);
+				}
+			}
+		});
+
+		// Map each pixel through the bilinear interpolation of the four surrounding transfer functions.
+		// Band j covers the rows from tile center j-1 to tile center j; the first and last bands extend to the image edges.
+		final double min = ip.getMin(),
+		             range = ip.getMax() - min;
+		SharedExecutor.forEach(ny + 1, nThreads, new SharedExecutor.Body() {
+			@Override
+			public void run(final int j) {
+				final int j0 = Math.max(0, j - 1),
+				          j1 = Math.min(ny - 1, j);
+				final int yStart = 0 == j ? 0 : cy[j - 1],
+				          yEnd = ny == j ? height : cy[j];
+				for (int y=yStart; y<yEnd; ++y) {
+					final float fy = j0 == j1 ? 0 : (y - cy[j0]) / (float)(cy[j1] - cy[j0]);
+					for (int i=0, x=0; i<=nx; ++i) {
+						final int i0 = Math.max(0, i - 1),
+						          i1 = Math.min(nx - 1, i);
+						final int xEnd = nx == i ? width : cx[i];
+						final float[] l00 = luts[j0 * nx + i0],
+						              l10 = luts[j0 * nx + i1],
+						              l01 = luts[j1 * nx + i0],
+						              l11 = luts[j1 * nx + i1];
+						for (int k=y*width+x; x<xEnd; ++x, ++k) {
+							final float fx = i0 == i1 ? 0 : (x - cx[i0]) / (float)(cx[i1] - cx[i0]);
+							if (ip instanceof ByteProcessor) {
+								final int v = src[k] & 0xff;
+								final float o = interpolate(l00[v], l10[v], l01[v], l11[v], fx, fy);
+								src[k] = (byte)(int)(o * 255 + 0.5f);
+							} else {
+								// Fractional 8-bit level, for sub-level precision
+								final double vf = Math.max(0, Math.min(255, 0 == range ? 0 : (ip.getf(k) - min) / range * 255));
+								final int v0 = Math.min(254, (int)vf);
+								final float t = (float)(vf - v0);
+								final float o0 = interpolate(l00[v0], l10[v0], l01[v0], l11[v0], fx, fy),
+								            o1 = interpolate(l00[v0+1], l10[v0+1], l01[v0+1], l11[v0+1], fx, fy);
+								ip.setf(k, (float)(min + (o0 + (o1 - o0) * t) * range));
+							}
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/** The centers of as many tiles of about {@code tileSize} as fit in {@code size}, at least one. */
+	static private final int[] centers(final int size, final int tileSize) {
+		final int n = Math.max(1, size / tileSize);
+		final int[] c = new int[n];
+		for (int i=0; i<n; ++i) {
+			c[i] = (int)((2L * i + 1) * size / (2 * n));
+		}
+		return c;
+	}
+
+	static private final float interpolate(final float v00, final float v10, final float v01, final float v11, final float fx, final float fy) {
+		final float a = v00 + (v10 - v00) * fx,
+		            b = v01 + (v11 - v01) * fx;
+		return a + (b - a) * fy;
+	}
+
+	/** Clip the histogram at {@code slope} times the mean bin count, redistributing the clipped
+	 * entries evenly as mpicbg's CLAHE does, and return its normalized cumulative distribution
+	 * for each 8-bit value. */
+	static private final float[] transferFunction(final int[] counts, final int[] clipped, final int n, final int nBins, final int[] binOf, final float slope) {
+		final float[] lut = new float[256];
+		if (0 == n) {
+			for (int v=0; v<256; ++v) lut[v] = v / 255.0f;
+			return lut;
+		}
+		final int limit = (int)(slope * n / nBins + 0.5f);
+		System.arraycopy(counts, 0, clipped, 0, nBins);
+		int clippedEntries = 0, clippedEntriesBefore;
+		do {
+			clippedEntriesBefore = clippedEntries;
+			clippedEntries = 0;
+			for (int b=0; b<nBins; ++b) {
+				final int d = clipped[b] - limit;
+				if (d > 0) {
+					clippedEntries += d;
+					clipped[b] = limit;
+				}
+			}
+			final int d = clippedEntries / nBins;
+			final int m = clippedEntries % nBins;
+			for (int b=0; b<nBins; ++b) clipped[b] += d;
+			if (0 != m) {
+				final int step = Math.max(1, (nBins - 1) / m);
+				for (int b=0; b<nBins; b += step) ++clipped[b];
+			}
+		} while (clippedEntries != clippedEntriesBefore);
+
+		// Cumulative distribution, starting at the first non-empty bin
+		int hMin = 0;
+		while (hMin < nBins - 1 && 0 == clipped[hMin]) ++hMin;
+		final int[] cdf = counts; // reuse
+		int sum = 0;
+		for (int b=0; b<nBins; ++b) {
+			if (b >= hMin) sum += clipped[b];
+			cdf[b] = sum;
+		}
+		final int cdfMin = clipped[hMin];
+		final float cdfRange = sum - cdfMin;
+		for (int v=0; v<256; ++v) {
+			final int b = binOf[v];
+			lut[v] = 0 == cdfRange ? v / 255.0f : Math.max(0, (cdf[b] - cdfMin) / cdfRange);
+		}
+		return lut;
+	}
+}
@@ -49,7 +49,14 @@ public class NormalizeLocalContrast implements IFilter
 	@Override
 	public ImageProcessor process(final ImageProcessor ip) {
 		try {
-			mpicbg.ij.plugin.NormalizeLocalContrast.run(ip, brx, bry, stds, cent, stret);
+			// Block statistics reach bry rows above and below each pixel
+			return ParallelTiles.process(ip, bry, 1, new ParallelTiles.TileFilter() {
+				@Override
+				public ImageProcessor process(final ImageProcessor tile) {
+					mpicbg.ij.plugin.NormalizeLocalContrast.run(tile, brx, bry, stds, cent, stret);
+					return tile;
+				}
+			});
 		} catch (final Exception e) {
 			e.printStackTrace();
 		}
@@ -0,0 +1,89 @@
+package ini.trakem2.imaging.filters;
+
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+import ini.trakem2.parallel.Process;
+import mpicbg.trakem2.util.SharedExecutor;
+
+/** Runs a neighbourhood filter over horizontal bands of an image, in parallel.
+ *
+ * Each band is copied out of the image together with {@code overlap} extra rows above and below,
+ * so that every pixel of the band core sees exactly the same neighbourhood as it would when
+ * filtering the whole image at once; only the rows of the core are copied back.
+ * Bands are laid out starting at row zero in multiples of {@code align} rows, so that filters
+ * operating on a downsampled grid see the same grid in every band.
+ *
+ * The display range of the image is copied to each band, given that most filters map
+ * pixel values relative to it.
+ */
+public final class ParallelTiles
+{
+	/** A filter applied to one band; may return the same or a new {@link ImageProcessor}
+	 * of the same type and dimensions. */
+	static public interface TileFilter {
+		public ImageProcessor process(ImageProcessor tile);
+	}
+
+	/** Bands whose core would be smaller than this are not worth the copying. */
+	static public final int MIN_CORE_HEIGHT = 64;
+
+	private ParallelTiles() {}
+
+	/** Same as {@link #process(ImageProcessor, int, int, int, TileFilter)} with as many bands as CPU cores. */
+	static public final ImageProcessor process(final ImageProcessor ip, final int overlap, final int align, final TileFilter filter) {
+		return process(ip, overlap, align, Process.NUM_PROCESSORS, filter);
+	}
+
+	/**
+	 * @param ip The image to filter in place.
+	 * @param overlap The number of rows that the filter reads beyond each output row, in either direction.
+	 * @param align Band boundaries fall on multiples of this number of rows.
+	 * @param nThreads The maximum number of bands to process concurrently.
+	 * @param filter The filter to apply to each band.
+	 * @return {@code ip} with its pixels filtered, or whatever {@code filter} returned when the image is too small to split.
+	 */
+	static public final ImageProcessor process(final ImageProcessor ip, final int overlap, final int align, final int nThreads, final TileFilter filter) {
+		final int height = ip.getHeight();
+		final int a = Math.max(1, align);
+		final int o = Math.max(0, ((overlap + a - 1) / a) * a);
+		// Core height: a multiple of the alignment, at least as large as the overlap
+		final int minCore = Math.max(MIN_CORE_HEIGHT, o);
+		int core = ((height / Math.max(1, nThreads) + a - 1) / a) * a;
+		if (core < minCore) core = ((minCore + a - 1) / a) * a;
+		final int nBands = (height + core - 1) / core;
+		if (nBands < 2) {
+			return filter.process(ip);
+		}
+
+		// Filtered cores are collected apart, so that no band reads rows already filtered by another
+		final int bandHeight = core;
+		final Object filtered = ip.createProcessor(ip.getWidth(), height).getPixels();
+		SharedExecutor.forEach(nBands, nThreads, new SharedExecutor.Body() {
+			@Override
+			public void run(final int band) {
+				final int y0 = band * bandHeight;
+				final int y1 = Math.min(height, y0 + bandHeight);
+				processBand(ip, filtered, y0, y1, o, filter);
+			}
+		});
+		System.arraycopy(filtered, 0, ip.getPixels(), 0, ip.getWidth() * height);
+		return ip;
+	}
+
+	/** Filter the rows [y0, y1) of {@code ip} into the same rows of {@code filtered}, reading {@code overlap} rows beyond them when available. */
+	static private final void processBand(final ImageProcessor ip, final Object filtered, final int y0, final int y1, final int overlap, final TileFilter filter) {
+		final int width = ip.getWidth();
+		final int ty0 = Math.max(0, y0 - overlap);
+		final int ty1 = Math.min(ip.getHeight(), y1 + overlap);
+		final ImageProcessor tile = ip.createProcessor(width, ty1 - ty0);
+		System.arraycopy(ip.getPixels(), ty0 * width, tile.getPixels(), 0, (ty1 - ty0) * width);
+		if (!(ip instanceof ColorProcessor)) {
+			tile.setMinAndMax(ip.getMin(), ip.getMax());
+		}
+		final ImageProcessor result = filter.process(tile);
+		if (result.getClass() != ip.getClass() || result.getWidth() != width || result.getHeight() != tile.getHeight()) {
+			throw new IllegalStateException("Filter returned an image of a different type or dimensions: " + result);
+		}
+		System.arraycopy(result.getPixels(), (y0 - ty0) * width, filtered, y0 * width, (y1 - y0) * width);
+	}
+}
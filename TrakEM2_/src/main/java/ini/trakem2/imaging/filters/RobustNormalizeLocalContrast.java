@@ -58,8 +58,19 @@ public class RobustNormalizeLocalContrast implements IFilter
 	@Override
 	public ImageProcessor process(final ImageProcessor ip) {
 		try {
-			mpicbg.trakem2.util.RobustNormalizeLocalContrast.run(
-					ip, scaleLevel, brx1, bry1, stds1, brx2, bry2, stds2);
+			// Bands must start on the downsampled grid, and reach beyond both block radii
+			return ParallelTiles.process(ip,
+					mpicbg.trakem2.util.RobustNormalizeLocalContrast.overlap(scaleLevel, bry1, bry2),
+					1 << scaleLevel,
+					new ParallelTiles.TileFilter() {
+						@Override
+						public ImageProcessor process(final ImageProcessor tile) {
+							mpicbg.trakem2.util.RobustNormalizeLocalContrast.run(
+									tile, scaleLevel, brx1, bry1, stds1, brx2, bry2, stds2,
+									tile == ip ? Runtime.getRuntime().availableProcessors() : 1);
+							return tile;
+						}
+					});
 		} catch (final Exception e) {
 			e.printStackTrace();
 		}
@@ -0,0 +1,398 @@
+package ini.trakem2.io;
+
+import ij.measure.Calibration;
+import ini.trakem2.Project;
+import ini.trakem2.display.AreaList;
+import ini.trakem2.display.AreaTree;
+import ini.trakem2.display.Ball;
+import ini.trakem2.display.Displayable;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.LayerSet;
+import ini.trakem2.display.Pipe;
+import ini.trakem2.display.Tree;
+import ini.trakem2.display.Treeline;
+import ini.trakem2.display.ZDisplayable;
+import ini.trakem2.persistence.FSLoader;
+import ini.trakem2.persistence.Loader;
+import ini.trakem2.persistence.XMLOptions;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.IndexedTriangleMesh;
+import ini.trakem2.utils.Utils;
+import mpicbg.trakem2.util.SharedExecutor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Headless export of the meshes of AreaList, AreaTree, Treeline, Ball and Pipe instances
+ * into one file per object, in Wavefront OBJ, binary PLY or binary STL format.
+ *
+ * Meshes are computed in parallel, and for projects stored in the file system also cached
+ * in the "meshes.cache" folder, keyed by the object's id and by a hash of its XML, of the
+ * Z and thickness of the layers and of the calibration. On the next export, objects that
+ * haven't changed are read from the cache instead of meshed anew, and their files are not
+ * written again if they are up to date. */
+public final class MeshExporter {
+
+	private MeshExporter() {}
+
+	static public final int OBJ = 0;
+	static public final int PLY = 1;
+	static public final int STL = 2;
+
+	static public final String[] FORMATS = new String[]{"Wavefront OBJ", "PLY (binary)", "STL (binary)"};
+	static public final String[] EXTENSIONS = new String[]{".obj", ".ply", ".stl"};
+
+	/** Changes whenever the meshes generated for the same data would change. */
+	static private final int CACHE_VERSION = 1;
+	static private final int CACHE_MAGIC = 0x54324d53; // "T2MS"
+
+	/** Whether a mesh can be generated for @param d. */
+	static public final boolean isMeshable(final Displayable d) {
+		return d instanceof AreaList || d instanceof AreaTree || d instanceof Treeline
+		    || d instanceof Ball || d instanceof Pipe;
+	}
+
+	/** Export the meshes of all meshable objects of @param ls.
+	 * @see #exportMeshes(Collection, File, int, int) */
+	static public final int exportMeshes(final LayerSet ls, final File dir, final int format, final int resample) {
+		final ArrayList<ZDisplayable> ds = new ArrayList<ZDisplayable>();
+		for (final ZDisplayable zd : ls.getZDisplayables()) {
+			if (isMeshable(zd)) ds.add(zd);
+		}
+		return exportMeshes(ds, dir, format, resample);
+	}
+
+	/** Write one file named after the id of each meshable object of @param ds into @param dir,
+	 * meshing objects in parallel. Objects that cannot be meshed are ignored.
+	 * @param format One of {@link #OBJ}, {@link #PLY} or {@link #STL}.
+	 * @param resample The resampling of AreaList and AreaTree for marching cubes.
+	 * @return The number of files written. */
+	static public final int exportMeshes(final Collection<? extends Displayable> ds, final File dir, final int format, final int resample) {
+		if (format < OBJ || format > STL) throw new IllegalArgumentException("Unknown mesh format: " + format);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			Utils.log("Cannot create directory " + dir);
+			return 0;
+		}
+		final List<Displayable> list = new ArrayList<Displayable>();
+		for (final Displayable d : ds) {
+			if (isMeshable(d)) list.add(d);
+		}
+		// Layers and calibration are shared by all objects of a LayerSet
+		final Map<LayerSet,byte[]> layer_keys = new HashMap<LayerSet,byte[]>();
+		for (final Displayable d : list) {
+			if (!layer_keys.containsKey(d.getLayerSet())) layer_keys.put(d.getLayerSet(), computeLayersKey(d.getLayerSet()));
+		}
+		final AtomicInteger written = new AtomicInteger(0),
+		                    skipped = new AtomicInteger(0);
+		SharedExecutor.forEach(list.size(), new SharedExecutor.Body() {
+			@Override
+			public void run(final int i) {
+				final Displayable d = list.get(i);
+				try {
+					final File f = new File(dir, d.getId() + EXTENSIONS[format]);
+					final File cached = getCacheFile(d);
+					final byte[] key = computeKey(d, resample, layer_keys.get(d.getLayerSet()));
+					IndexedTriangleMesh mesh = null;
+					if (null != cached && cached.exists()) {
+						if (f.exists() && f.lastModified() >= cached.lastModified() && Arrays.equals(key, readKey(cached))) {
+							skipped.incrementAndGet();
+							return;
+						}
+						mesh = readCached(cached, key);
+					}
+					if (null == mesh) {
+						mesh = generateMesh(d, resample);
+						if (null == mesh || mesh.isEmpty()) {
+							Utils.log("Nothing to mesh for " + d);
+							return;
+						}
+						if (null != cached) writeCached(cached, key, mesh);
+					}
+					write(mesh, format, f, d.getProject().getShortMeaningfulTitle(d));
+					written.incrementAndGet();
+				} catch (final Throwable t) {
+					Utils.log("Failed to export the mesh of " + d);
+					IJError.print(t);
+				}
+			}
+		});
+		Utils.log("Exported " + written.get() + " meshes to " + dir + (0 == skipped.get() ? "" : ", skipped " + skipped.get() + " unchanged"));
+		return written.get();
+	}
+
+	/** Generate the mesh of @param d, calibrated and without any scaling, or null if it cannot be meshed. */
+	static public final IndexedTriangleMesh generateMesh(final Displayable d, final int resample) {
+		final double scale = 1.0;
+		if (d instanceof AreaList) return ((AreaList)d).generateMesh(scale, resample);
+		if (d instanceof Ball) return ((Ball)d).generateMesh(scale, Ball.generateGlobe(12, 12));
+		if (d instanceof Pipe) return ((Pipe)d).generateMesh(scale, 12, 1);
+		final Tree.MeshData md;
+		if (d instanceof Treeline) md = ((Treeline)d).generateMesh(scale, 12);
+		else if (d instanceof AreaTree) md = ((AreaTree)d).generateMesh(scale, resample);
+		else return null;
+		return null == md ? null : IndexedTriangleMesh.fromTriangles(md.verts);
+	}
+
+	/** Write @param mesh into @param f in the given format, with @param name as its title. */
+	static public final void write(final IndexedTriangleMesh mesh, final int format, final File f, final String name) throws IOException {
+		final OutputStream os = new BufferedOutputStream(new FileOutputStream(f), 65536);
+		try {
+			switch (format) {
+				case OBJ: writeOBJ(mesh, name, os); break;
+				case PLY: writePLY(mesh, name, os); break;
+				case STL: writeSTL(mesh, name, os); break;
+				default: throw new IllegalArgumentException("Unknown mesh format: " + format);
+			}
+			os.flush();
+		} finally {
+			os.close();
+		}
+	}
+
+	static public final void writeOBJ(final IndexedTriangleMesh mesh, final String name, final OutputStream os) throws IOException {
+		final Writer w = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"), 65536);
+		w.write("# TrakEM2 mesh\n");
+		w.write("o ");
+		w.write(oneLine(name));
+		w.write('\n');
+		final StringBuilder sb = new StringBuilder(64);
+		for (int i=0, n=mesh.getVertexCount(); i<n; ++i) {
+			sb.setLength(0);
+			sb.append("v ").append(mesh.getX(i)).append(' ').append(mesh.getY(i)).append(' ').append(mesh.getZ(i)).append('\n');
+			w.write(sb.toString());
+		}
+		// OBJ indices start at 1
+		for (int t=0, n=mesh.getTriangleCount(); t<n; ++t) {
+			sb.setLength(0);
+			sb.append("f ").append(mesh.getIndex(t, 0) + 1).append(' ').append(mesh.getIndex(t, 1) + 1).append(' ').append(mesh.getIndex(t, 2) + 1).append('\n');
+			w.write(sb.toString());
+		}
+		w.flush();
+	}
+
+	static public final void writePLY(final IndexedTriangleMesh mesh, final String name, final OutputStream os) throws IOException {
+		final int n_verts = mesh.getVertexCount(),
+		          n_tris = mesh.getTriangleCount();
+		os.write(new StringBuilder()
+			.append("ply\nformat binary_little_endian 1.0\ncomment TrakEM2 mesh of ").append(oneLine(name))
+			.append("\nelement vertex ").append(n_verts)
+			.append("\nproperty float x\nproperty float y\nproperty float z\nelement face ").append(n_tris)
+			.append("\nproperty list uchar int vertex_indices\nend_header\n").toString().getBytes("US-ASCII"));
+		final LittleEndianOutput out = new LittleEndianOutput(os);
+		for (int i=0; i<n_verts; ++i) {
+			out.putFloat(mesh.getX(i));
+			out.putFloat(mesh.getY(i));
+			out.putFloat(mesh.getZ(i));
+		}
+		for (int t=0; t<n_tris; ++t) {
+			out.put((byte)3);
+			out.putInt(mesh.getIndex(t, 0));
+			out.putInt(mesh.getIndex(t, 1));
+			out.putInt(mesh.getIndex(t, 2));
+		}
+		out.flush();
+	}
+
+	static public final void writeSTL(final IndexedTriangleMesh mesh, final String name, final OutputStream os) throws IOException {
+		// 80 bytes of header, which must not start with "solid"
+		final byte[] header = new byte[80];
+		final byte[] title = ("TrakEM2 mesh of " + oneLine(name)).getBytes("US-ASCII");
+		System.arraycopy(title, 0, header, 0, Math.min(title.length, header.length));
+		os.write(header);
+		final int n_tris = mesh.getTriangleCount();
+		final LittleEndianOutput out = new LittleEndianOutput(os);
+		out.putInt(n_tris);
+		for (int t=0; t<n_tris; ++t) {
+			final int a = mesh.getIndex(t, 0),
+			          b = mesh.getIndex(t, 1),
+			          c = mesh.getIndex(t, 2);
+			// The normal: cross product of two edges
+			final float ux = mesh.getX(b) - mesh.getX(a), uy = mesh.getY(b) - mesh.getY(a), uz = mesh.getZ(b) - mesh.getZ(a),
+			            vx = mesh.getX(c) - mesh.getX(a), vy = mesh.getY(c) - mesh.getY(a), vz = mesh.getZ(c) - mesh.getZ(a);
+			float nx = uy * vz - uz * vy,
+			      ny = uz * vx - ux * vz,
+			      nz = ux * vy - uy * vx;
+			final float len = (float)Math.sqrt(nx * nx + ny * ny + nz * nz);
+			if (len > 0) {
+				nx /= len;
+				ny /= len;
+				nz /= len;
+			}
+			out.putFloat(nx);
+			out.putFloat(ny);
+			out.putFloat(nz);
+			for (final int k : new int[]{a, b, c}) {
+				out.putFloat(mesh.getX(k));
+				out.putFloat(mesh.getY(k));
+				out.putFloat(mesh.getZ(k));
+			}
+			out.putShort((short)0);
+		}
+		out.flush();
+	}
+
+	static private final String oneLine(final String s) {
+		return null == s ? "" : s.replace('\n', ' ').replace('\r', ' ');
+	}
+
+	/** Buffers little-endian primitives into an OutputStream. */
+	static private final class LittleEndianOutput {
+		private final OutputStream os;
+		private final ByteBuffer buf = ByteBuffer.allocate(65536).order(ByteOrder.LITTLE_ENDIAN);
+
+		LittleEndianOutput(final OutputStream os) {
+			this.os = os;
+		}
+		private final void ensure(final int n) throws IOException {
+			if (buf.remaining() < n) flush();
+		}
+		final void put(final byte b) throws IOException {
+			ensure(1);
+			buf.put(b);
+		}
+		final void putShort(final short s) throws IOException {
+			ensure(2);
+			buf.putShort(s);
+		}
+		final void putInt(final int i) throws IOException {
+			ensure(4);
+			buf.putInt(i);
+		}
+		final void putFloat(final float f) throws IOException {
+			ensure(4);
+			buf.putFloat(f);
+		}
+		final void flush() throws IOException {
+			os.write(buf.array(), 0, buf.position());
+			buf.clear();
+		}
+	}
+
+	/** The file in which to cache the mesh of @param d, or null if the project is not stored in the file system. */
+	static private final File getCacheFile(final Displayable d) {
+		final String folder = getCacheFolder(d.getProject());
+		return null == folder ? null : new File(folder + FSLoader.createIdPath(Long.toString(d.getId()), "mesh", ".bin"));
+	}
+
+	/** A hash of everything that affects the mesh of any object of @param ls besides its own data. */
+	static private final byte[] computeLayersKey(final LayerSet ls) {
+		try {
+			final MessageDigest md = MessageDigest.getInstance("SHA-1");
+			final Calibration cal = ls.getCalibration();
+			final ByteBuffer b = ByteBuffer.allocate(24);
+			b.putDouble(cal.pixelWidth).putDouble(cal.pixelHeight).putDouble(cal.pixelDepth);
+			md.update(b.array());
+			for (final Layer la : ls.getLayers()) {
+				b.clear();
+				b.putLong(la.getId()).putDouble(la.getZ()).putDouble(la.getThickness());
+				md.update(b.array());
+			}
+			return md.digest();
+		} catch (final Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** A hash of the XML of @param d, the parameters for meshing it, and the key of its layers. */
+	static private final byte[] computeKey(final Displayable d, final int resample, final byte[] layers_key) throws Exception {
+		final StringBuilder sb = new StringBuilder();
+		sb.append(d.getClass().getName()).append(' ').append(resample).append(' ').append(CACHE_VERSION).append('\n');
+		d.exportXML(sb, "", new XMLOptions());
+		final MessageDigest md = MessageDigest.getInstance("SHA-1");
+		md.update(sb.toString().getBytes("UTF-8"));
+		md.update(layers_key);
+		return md.digest();
+	}
+
+	/** The key stored in @param f, or null if it's not a mesh cache file. */
+	static private final byte[] readKey(final File f) {
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 64));
+			if (CACHE_MAGIC != dis.readInt()) return null;
+			final byte[] key = new byte[dis.readInt()];
+			dis.readFully(key);
+			return key;
+		} catch (final IOException ioe) {
+			return null;
+		} finally {
+			if (null != dis) try { dis.close(); } catch (final IOException ioe) {}
+		}
+	}
+
+	/** The mesh stored in @param f, or null if it was stored under a different key or can't be read. */
+	static private final IndexedTriangleMesh readCached(final File f, final byte[] key) {
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 65536));
+			if (CACHE_MAGIC != dis.readInt()) return null;
+			final byte[] k = new byte[dis.readInt()];
+			dis.readFully(k);
+			if (!Arrays.equals(k, key)) return null;
+			final float[] verts = new float[dis.readInt()];
+			for (int i=0; i<verts.length; ++i) verts[i] = dis.readFloat();
+			final int[] indices = new int[dis.readInt()];
+			for (int i=0; i<indices.length; ++i) indices[i] = dis.readInt();
+			return new IndexedTriangleMesh(verts, indices);
+		} catch (final IOException ioe) {
+			Utils.log2("Could not read cached mesh " + f + ": " + ioe);
+			return null;
+		} finally {
+			if (null != dis) try { dis.close(); } catch (final IOException ioe) {}
+		}
+	}
+
+	/** Store @param mesh under @param key in @param f, via a temporary file so that readers never see a partial mesh. */
+	static private final void writeCached(final File f, final byte[] key, final IndexedTriangleMesh mesh) {
+		final File tmp = new File(f.getPath() + ".tmp");
+		DataOutputStream dos = null;
+		try {
+			f.getParentFile().mkdirs();
+			dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+			dos.writeInt(CACHE_MAGIC);
+			dos.writeInt(key.length);
+			dos.write(key);
+			final float[] verts = mesh.getVertices();
+			dos.writeInt(verts.length);
+			for (final float v : verts) dos.writeFloat(v);
+			final int[] indices = mesh.getIndices();
+			dos.writeInt(indices.length);
+			for (final int i : indices) dos.writeInt(i);
+			dos.close();
+			dos = null;
+			if (f.exists()) f.delete();
+			if (!tmp.renameTo(f)) Utils.log2("Could not cache mesh at " + f);
+		} catch (final IOException ioe) {
+			Utils.log2("Could not cache mesh at " + f + ": " + ioe);
+			tmp.delete();
+		} finally {
+			if (null != dos) try { dos.close(); } catch (final IOException ioe) {}
+		}
+	}
+
+	/** @return the project's folder for cached meshes, or null if the project is not stored in the file system. */
+	static public final String getCacheFolder(final Project project) {
+		final Loader loader = project.getLoader();
+		return loader instanceof FSLoader ? ((FSLoader)loader).getUNUIdFolder() + "meshes.cache/" : null;
+	}
+}
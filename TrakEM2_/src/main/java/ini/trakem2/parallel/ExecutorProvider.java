@@ -1,14 +1,31 @@
 package ini.trakem2.parallel;
 
+import ini.trakem2.utils.Utils;
+
+import java.io.File;
 import java.util.concurrent.ExecutorService;
 
 /**
  * Allow the source ExecutorServices in TrakEM2 to be configured.
+ * If the system property trakem2.jobs.dir is set, jobs are distributed through
+ * that directory by a {@link FileSystemExecutorProvider}.
  */
 public abstract class ExecutorProvider
 {
 
-    private static ExecutorProvider provider = new DefaultExecutorProvider();
+    private static ExecutorProvider provider = createProvider();
+
+    private static ExecutorProvider createProvider()
+    {
+        final String dir = System.getProperty("trakem2.jobs.dir");
+        if (null == dir) return new DefaultExecutorProvider();
+        try {
+            return new FileSystemExecutorProvider(new File(dir));
+        } catch (final IllegalArgumentException e) {
+            Utils.log("WARNING: cannot distribute jobs through trakem2.jobs.dir, running them locally: " + e.getMessage());
+            return new DefaultExecutorProvider();
+        }
+    }
 
     /**
      * Returns an ExecutorService for Callables that use nThreads number of threads.
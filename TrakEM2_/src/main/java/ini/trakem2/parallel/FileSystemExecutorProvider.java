@@ -0,0 +1,43 @@
+package ini.trakem2.parallel;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Provides {@link FileSystemExecutorService FileSystemExecutorServices}, which hand
+ * the serializable jobs of feature extraction, feature matching and block matching
+ * to {@link FileSystemWorker} processes through a shared directory.
+ *
+ * Set it up with {@link ExecutorProvider#setProvider(ExecutorProvider)}, or start
+ * ImageJ with -Dtrakem2.jobs.dir=/path/to/shared/directory
+ */
+public class FileSystemExecutorProvider extends ExecutorProvider
+{
+	final private File directory;
+	final private ExecutorProvider local = new DefaultExecutorProvider();
+
+	public FileSystemExecutorProvider(final File directory)
+	{
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IllegalArgumentException("Not a directory: " + directory);
+		}
+		this.directory = directory;
+	}
+
+	public File getDirectory()
+	{
+		return directory;
+	}
+
+	@Override
+	public ExecutorService getService(final int nThreads)
+	{
+		return new FileSystemExecutorService(directory, local.getService(nThreads));
+	}
+
+	@Override
+	public ExecutorService getService(final float fractionThreads)
+	{
+		return new FileSystemExecutorService(directory, local.getService(fractionThreads));
+	}
+}
@@ -0,0 +1,334 @@
+package ini.trakem2.parallel;
+
+import ini.trakem2.Project;
+import ini.trakem2.persistence.FSLoader;
+import ini.trakem2.utils.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An ExecutorService that writes submitted {@link Callable Callables} as job files
+ * into a directory shared with any number of {@link FileSystemWorker} processes,
+ * which claim, run and answer them.
+ *
+ * A job is named &lt;id&gt;.job; the worker that claims it moves it into a directory
+ * of its own and writes its outcome into &lt;id&gt;.result, which is read and removed
+ * by the {@link Future} of the job.
+ *
+ * Callables that cannot be serialized, that refer to objects of a project not
+ * saved to an XML file, and all plain Runnables are run by a local
+ * ExecutorService instead.  Workers see the project as it was last saved.
+ *
+ * Jobs wait for as long as any worker of the directory has a live heartbeat (see
+ * {@link FileSystemWorker#STALE_WORKER}), however busy.  The jobs of workers that
+ * died are put back into the directory, and unclaimed jobs are taken back and run
+ * by the local ExecutorService once no worker is alive, so that a directory
+ * without workers does not stall the jobs submitted to it.
+ */
+public class FileSystemExecutorService extends AbstractExecutorService
+{
+	/** Interval at which futures look for their result. */
+	static public final long POLL_INTERVAL = 200;
+
+	final private File directory;
+	final private ExecutorService local;
+	final private String prefix;
+	final private AtomicInteger counter = new AtomicInteger(0);
+	final private Set<JobFuture<?>> pending = new HashSet<JobFuture<?>>();
+	final private Set<Project> warned = new HashSet<Project>();
+	private boolean shutdown = false;
+	final private Object liveness = new Object();
+	/** Whether a worker was alive at {@link #lastCheck}. */
+	private boolean alive = true;
+	private long lastCheck = 0, lastRequeue = 0;
+	private boolean warnedLocal = false;
+
+	public FileSystemExecutorService(final File directory, final ExecutorService local)
+	{
+		this.directory = directory;
+		this.local = local;
+		// jobs sort in order of submission
+		this.prefix = String.format("%013d-%08x-", System.currentTimeMillis(), new Random().nextInt());
+	}
+
+	public File getDirectory()
+	{
+		return directory;
+	}
+
+	@Override
+	public <T> Future<T> submit(final Callable<T> task)
+	{
+		if (null == task) throw new NullPointerException();
+		if (isShutdown()) return local.submit(task); // rejected by local, as expected
+
+		final JobStreams.Serialized job;
+		try {
+			job = new JobStreams.Serialized(task);
+		} catch (final NotSerializableException e) {
+			Utils.log2("Running job locally, not serializable: " + e.getMessage());
+			return local.submit(task);
+		} catch (final IOException e) {
+			Utils.log2("Running job locally, could not serialize: " + e);
+			return local.submit(task);
+		}
+
+		String path = "";
+		if (null != job.project) {
+			if (!(job.project.getLoader() instanceof FSLoader)
+			 || null == (path = ((FSLoader)job.project.getLoader()).getProjectXMLPath())) {
+				Utils.log2("Running job locally, the project has not been saved: " + job.project);
+				return local.submit(task);
+			}
+			synchronized (warned) {
+				if (job.project.getLoader().hasChanges() && warned.add(job.project)) {
+					Utils.log("Distributed jobs see project " + job.project + " as it was last saved, not its unsaved changes.");
+				}
+			}
+		}
+
+		final String id = prefix + String.format("%08d", counter.getAndIncrement());
+		try {
+			JobStreams.write(new File(directory, id + JobStreams.JOB), path, job.bytes);
+		} catch (final IOException e) {
+			Utils.log2("Running job locally, could not write job file: " + e);
+			return local.submit(task);
+		}
+
+		final JobFuture<T> future = new JobFuture<T>(id, job.project, task);
+		synchronized (pending) {
+			pending.add(future);
+		}
+		return future;
+	}
+
+	/** Plain runnables are run locally. */
+	@Override
+	public void execute(final Runnable command)
+	{
+		local.execute(command);
+	}
+
+	@Override
+	public void shutdown()
+	{
+		synchronized (pending) {
+			shutdown = true;
+		}
+		local.shutdown();
+	}
+
+	@Override
+	public List<Runnable> shutdownNow()
+	{
+		final ArrayList<JobFuture<?>> jobs;
+		synchronized (pending) {
+			shutdown = true;
+			jobs = new ArrayList<JobFuture<?>>(pending);
+		}
+		for (final JobFuture<?> job : jobs) job.cancel(true);
+		return local.shutdownNow();
+	}
+
+	@Override
+	public boolean isShutdown()
+	{
+		synchronized (pending) {
+			return shutdown;
+		}
+	}
+
+	@Override
+	public boolean isTerminated()
+	{
+		synchronized (pending) {
+			return shutdown && pending.isEmpty() && local.isTerminated();
+		}
+	}
+
+	@Override
+	public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException
+	{
+		final long end = System.currentTimeMillis() + unit.toMillis(timeout);
+		while (true) {
+			final ArrayList<JobFuture<?>> jobs;
+			synchronized (pending) {
+				jobs = new ArrayList<JobFuture<?>>(pending);
+			}
+			for (final JobFuture<?> job : jobs) job.isDone(); // collects results
+			synchronized (pending) {
+				if (pending.isEmpty()) break;
+			}
+			if (System.currentTimeMillis() >= end) return false;
+			Thread.sleep(POLL_INTERVAL);
+		}
+		return local.awaitTermination(Math.max(0, end - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Whether any worker serves the directory, checked at most every
+	 * {@link #POLL_INTERVAL} ms for all jobs; jobs of dead workers are put
+	 * back into the directory at most every {@link FileSystemWorker#HEARTBEAT} ms.
+	 */
+	private boolean workersAlive()
+	{
+		synchronized (liveness) {
+			final long now = System.currentTimeMillis();
+			if (now - lastCheck < POLL_INTERVAL) return alive;
+			lastCheck = now;
+			if (now - lastRequeue > FileSystemWorker.HEARTBEAT) {
+				lastRequeue = now;
+				FileSystemWorker.requeueStale(directory);
+			}
+			alive = FileSystemWorker.anyAlive(directory);
+			if (!alive && !warnedLocal) {
+				warnedLocal = true;
+				Utils.log("WARNING: no worker serves " + directory + ", running its unclaimed jobs locally.");
+			}
+			if (alive) warnedLocal = false;
+			return alive;
+		}
+	}
+
+	final private class JobFuture<T> implements Future<T>
+	{
+		final private String id;
+		final private Project project;
+		final private Callable<T> task;
+		/** The local execution of a job that no worker claimed. */
+		private Future<T> fallback = null;
+		private boolean done = false;
+		private boolean cancelled = false;
+		private T value = null;
+		private Throwable error = null;
+
+		JobFuture(final String id, final Project project, final Callable<T> task)
+		{
+			this.id = id;
+			this.project = project;
+			this.task = task;
+		}
+
+		/** Take the job back from the directory and run it locally, if it is unclaimed and no worker is alive. */
+		private void runLocallyIfUnclaimed()
+		{
+			if (workersAlive()) return;
+			// claim it by moving it, as a worker would, so that none runs it too
+			final File taken = new File(directory, id + JobStreams.LOCAL);
+			if (!new File(directory, id + JobStreams.JOB).renameTo(taken)) return;
+			taken.delete();
+			remove();
+			try {
+				fallback = local.submit(task);
+			} catch (final RuntimeException e) {
+				error = e;
+				done = true;
+			}
+		}
+
+		private void remove()
+		{
+			new File(directory, id + JobStreams.JOB).delete();
+			new File(directory, id + JobStreams.RESULT).delete();
+			synchronized (pending) {
+				pending.remove(this);
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		synchronized public boolean isDone()
+		{
+			if (done) return true;
+			if (null != fallback) return fallback.isDone();
+			final File result = new File(directory, id + JobStreams.RESULT);
+			if (!result.exists()) {
+				runLocallyIfUnclaimed();
+				return done || (null != fallback && fallback.isDone());
+			}
+			try {
+				final boolean success = FileSystemWorker.SUCCESS.equals(JobStreams.readHeader(result));
+				final Object o = JobStreams.read(result, project);
+				if (success) value = (T)o;
+				else error = (Throwable)o;
+			} catch (final Exception e) {
+				error = e;
+			}
+			done = true;
+			remove();
+			return true;
+		}
+
+		@Override
+		synchronized public boolean cancel(final boolean mayInterruptIfRunning)
+		{
+			if (null != fallback) {
+				cancelled = fallback.cancel(mayInterruptIfRunning);
+				return cancelled;
+			}
+			if (isDone()) return false;
+			if (!new File(directory, id + JobStreams.JOB).delete()) {
+				// a worker is running it already: tell it to drop the result
+				try {
+					new File(directory, id + JobStreams.CANCEL).createNewFile();
+				} catch (final IOException e) {
+					Utils.log2("Could not mark job " + id + " cancelled: " + e);
+				}
+			}
+			cancelled = done = true;
+			remove();
+			return true;
+		}
+
+		@Override
+		synchronized public boolean isCancelled()
+		{
+			return cancelled;
+		}
+
+		@Override
+		public T get() throws InterruptedException, ExecutionException
+		{
+			try {
+				return get(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (final TimeoutException e) {
+				throw new ExecutionException(e); // after 292 million years
+			}
+		}
+
+		@Override
+		public T get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+		{
+			final long millis = unit.toMillis(timeout);
+			final long start = System.currentTimeMillis();
+			while (!isDone()) {
+				if (System.currentTimeMillis() - start >= millis) throw new TimeoutException();
+				Thread.sleep(POLL_INTERVAL);
+			}
+			final Future<T> f;
+			synchronized (this) {
+				if (cancelled) throw new CancellationException();
+				if (null != error) throw new ExecutionException(error);
+				if (null == fallback) return value;
+				f = fallback;
+			}
+			return f.get();
+		}
+	}
+}
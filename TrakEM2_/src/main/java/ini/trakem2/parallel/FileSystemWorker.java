@@ -0,0 +1,331 @@
+package ini.trakem2.parallel;
+
+import ini.trakem2.ControlWindow;
+import ini.trakem2.Project;
+import ini.trakem2.utils.Utils;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * A headless process that runs the jobs a {@link FileSystemExecutorService}
+ * writes into a shared directory.  Any number of workers, on any number of
+ * machines that see the same directory and project files, may serve one
+ * directory:
+ *
+ * <pre>
+ * java -Djava.awt.headless=true -cp ... ini.trakem2.parallel.FileSystemWorker /shared/jobs [threads]
+ * </pre>
+ *
+ * Each worker has a directory of its own in the job directory.  A worker thread
+ * claims a job by moving its file into that directory, which only one worker can
+ * do, opens (once) the project the job refers to, runs the job, writes its result
+ * into the job directory and removes the job.
+ *
+ * While serving, a worker touches a heartbeat file in its directory every
+ * {@link #HEARTBEAT} ms.  The jobs of a worker whose heartbeat is older than
+ * {@link #STALE_WORKER} ms are considered left behind by a dead worker, and are
+ * moved back into the job directory to be claimed again.
+ * Workers exit once a file named "stop" appears in the directory.
+ */
+public class FileSystemWorker implements Runnable
+{
+	static final String SUCCESS = "success";
+	static final String FAILURE = "failure";
+
+	static public final long HEARTBEAT = 10000;
+	static public final long STALE_WORKER = 6 * HEARTBEAT;
+
+	final static private class OpenProject
+	{
+		final String path;
+		final long lastModified;
+		final Project project;
+		int numUsers = 0;
+
+		OpenProject(final String path, final long lastModified, final Project project)
+		{
+			this.path = path;
+			this.lastModified = lastModified;
+			this.project = project;
+		}
+	}
+
+	final private File directory;
+	final private File stop;
+	/** The directory of this worker, where the jobs it claimed are. */
+	final private File home;
+	final private File heartbeat;
+	final private HashMap<String, OpenProject> projects = new HashMap<String, OpenProject>();
+	/** Time at which jobs of dead workers were last looked for. */
+	private volatile long lastRequeue = 0;
+
+	public FileSystemWorker(final File directory)
+	{
+		this.directory = directory;
+		this.stop = new File(directory, "stop");
+		this.home = new File(directory, String.format("%s%013d-%08x", JobStreams.WORKER, System.currentTimeMillis(), new Random().nextInt()));
+		this.heartbeat = new File(home, JobStreams.HEARTBEAT);
+	}
+
+	public File getHome()
+	{
+		return home;
+	}
+
+	static private File[] listWorkers(final File directory)
+	{
+		final File[] workers = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(final File f) {
+				return f.getName().startsWith(JobStreams.WORKER) && f.isDirectory();
+			}
+		});
+		return null == workers ? new File[0] : workers;
+	}
+
+	/** Milliseconds since the worker with directory home last showed signs of life. */
+	static private long silence(final File home)
+	{
+		return System.currentTimeMillis() - Math.max(home.lastModified(), new File(home, JobStreams.HEARTBEAT).lastModified());
+	}
+
+	/** Whether any worker serving directory has a heartbeat younger than {@link #STALE_WORKER}. */
+	static boolean anyAlive(final File directory)
+	{
+		for (final File home : listWorkers(directory)) {
+			if (silence(home) <= STALE_WORKER) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Moves the jobs claimed by the workers of directory whose heartbeat is older
+	 * than {@link #STALE_WORKER} back into it, and removes their directories.
+	 */
+	static void requeueStale(final File directory)
+	{
+		for (final File home : listWorkers(directory)) {
+			if (silence(home) <= STALE_WORKER) continue;
+			final File[] jobs = home.listFiles();
+			if (null != jobs) {
+				for (final File job : jobs) {
+					if (!job.getName().endsWith(JobStreams.JOB)) continue;
+					// only one of the workers and executors doing this at once succeeds
+					if (job.renameTo(new File(directory, job.getName()))) {
+						Utils.log2("Requeued job " + job.getName() + " of stale worker " + home.getName());
+					}
+				}
+			}
+			new File(home, JobStreams.HEARTBEAT).delete();
+			home.delete(); // fails if not empty, as when the worker wakes up meanwhile
+		}
+	}
+
+	/**
+	 * Opens the project saved at path, again if it has been saved since it was
+	 * last opened; projects no longer in use by any job are closed.
+	 */
+	synchronized private OpenProject acquire(final String path)
+	{
+		final long lastModified = new File(path).lastModified();
+		OpenProject op = projects.get(path);
+		if (null == op || op.lastModified != lastModified) {
+			if (null != op && 0 == op.numUsers) op.project.destroy();
+			final Project project = Project.openFSProject(path, false);
+			if (null == project) throw new RuntimeException("Could not open project " + path);
+			op = new OpenProject(path, lastModified, project);
+			projects.put(path, op);
+		}
+		++op.numUsers;
+		return op;
+	}
+
+	synchronized private void release(final OpenProject op)
+	{
+		--op.numUsers;
+		if (0 == op.numUsers && projects.get(op.path) != op) op.project.destroy();
+	}
+
+	synchronized private void closeAll()
+	{
+		for (final OpenProject op : projects.values()) op.project.destroy();
+		projects.clear();
+	}
+
+	/** Claims the oldest unclaimed job, if any, by moving it into the directory of this worker. */
+	private String claim()
+	{
+		final String[] jobs = directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(final File dir, final String name) {
+				return name.endsWith(JobStreams.JOB);
+			}
+		});
+		if (null == jobs) return null;
+		Arrays.sort(jobs);
+		for (final String job : jobs) {
+			if (new File(directory, job).renameTo(new File(home, job))) {
+				return job.substring(0, job.length() - JobStreams.JOB.length());
+			}
+		}
+		return null;
+	}
+
+	private void process(final String id)
+	{
+		final File job = new File(home, id + JobStreams.JOB);
+		OpenProject op = null;
+		String header = SUCCESS;
+		Object result;
+		try {
+			final String path = JobStreams.readHeader(job);
+			if (path.length() > 0) op = acquire(path);
+			final Callable<?> callable = (Callable<?>)JobStreams.read(job, null == op ? null : op.project);
+			result = callable.call();
+		} catch (final Throwable t) {
+			header = FAILURE;
+			result = t;
+		} finally {
+			if (null != op) release(op);
+		}
+
+		final File cancel = new File(directory, id + JobStreams.CANCEL);
+		if (cancel.exists() || !job.exists()) {
+			// cancelled, or taken back while this worker looked dead
+			cancel.delete();
+			job.delete();
+			return;
+		}
+		try {
+			JobStreams.Serialized serialized;
+			try {
+				serialized = new JobStreams.Serialized(result);
+			} catch (final Exception e) {
+				header = FAILURE;
+				serialized = new JobStreams.Serialized(e);
+			}
+			JobStreams.write(new File(directory, id + JobStreams.RESULT), header, serialized.bytes);
+		} catch (final Exception e) {
+			Utils.log("Could not write result of job " + id + ": " + e);
+			job.renameTo(new File(directory, id + JobStreams.JOB)); // let another worker try
+			return;
+		}
+		job.delete();
+	}
+
+	@Override
+	public void run()
+	{
+		while (!stop.exists()) {
+			final String id = claim();
+			if (null == id) {
+				final long now = System.currentTimeMillis();
+				if (now - lastRequeue > HEARTBEAT) {
+					lastRequeue = now;
+					requeueStale(directory);
+				}
+				try {
+					Thread.sleep(FileSystemExecutorService.POLL_INTERVAL);
+				} catch (final InterruptedException e) {
+					return;
+				}
+			} else {
+				Utils.log2("Running job " + id);
+				process(id);
+			}
+		}
+	}
+
+	/** Touches the heartbeat file of this worker, so that its jobs are not taken back. */
+	private void beat()
+	{
+		if (heartbeat.setLastModified(System.currentTimeMillis())) return;
+		try {
+			home.mkdirs();
+			heartbeat.createNewFile();
+		} catch (final IOException e) {
+			Utils.log("Could not touch " + heartbeat + ": " + e);
+		}
+	}
+
+	private Thread startHeartbeat()
+	{
+		final Thread heartbeat = new Thread("FileSystemWorker heartbeat") {
+			@Override
+			public void run() {
+				while (!isInterrupted()) {
+					try {
+						Thread.sleep(HEARTBEAT);
+					} catch (final InterruptedException e) {
+						return;
+					}
+					beat();
+				}
+			}
+		};
+		heartbeat.setDaemon(true);
+		heartbeat.start();
+		return heartbeat;
+	}
+
+	/**
+	 * Serve the jobs in a directory with a number of threads until a file named
+	 * "stop" appears in it.
+	 */
+	public void serve(final int numThreads) throws InterruptedException
+	{
+		beat();
+		final Thread heartbeat = startHeartbeat();
+		final ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < numThreads; ++i) {
+			final Thread t = new Thread(this, "FileSystemWorker " + i);
+			threads.add(t);
+			t.start();
+		}
+		try {
+			for (final Thread t : threads) t.join();
+		} finally {
+			heartbeat.interrupt();
+			closeAll();
+			// hand back any job left claimed, then leave
+			final File[] jobs = home.listFiles();
+			if (null != jobs) {
+				for (final File job : jobs) {
+					if (job.getName().endsWith(JobStreams.JOB)) job.renameTo(new File(directory, job.getName()));
+				}
+			}
+			this.heartbeat.delete();
+			home.delete();
+		}
+	}
+
+	/**
+	 * @param args the job directory and, optionally, the number of jobs to run
+	 *             at a time, by default the number of processors.
+	 */
+	static public void main(final String[] args) throws InterruptedException
+	{
+		if (args.length < 1) {
+			System.out.println("Usage: FileSystemWorker <job directory> [number of threads]");
+			System.exit(1);
+		}
+		final File directory = new File(args[0]);
+		if (!directory.isDirectory()) {
+			System.out.println("Not a directory: " + directory);
+			System.exit(1);
+		}
+		final int numThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+		ControlWindow.setGUIEnabled(false);
+		new FileSystemWorker(directory).serve(numThreads);
+		System.exit(0);
+	}
+}
@@ -0,0 +1,178 @@
+package ini.trakem2.parallel;
+
+import ini.trakem2.Project;
+import ini.trakem2.persistence.DBObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+/**
+ * Serialization of jobs and their results for {@link FileSystemExecutorService}
+ * and {@link FileSystemWorker}.
+ *
+ * Jobs and results refer to {@link DBObject DBObjects} such as
+ * {@link ini.trakem2.display.Layer Layers} and {@link ini.trakem2.display.Patch Patches}
+ * by id only: the worker resolves them in its own copy
+ * of the project, opened from the same XML file.
+ */
+final class JobStreams
+{
+	final static String JOB = ".job";
+	final static String RESULT = ".result";
+	final static String PARTIAL = ".partial";
+	/** Marks a job cancelled while a worker runs it. */
+	final static String CANCEL = ".cancel";
+	/** A job taken back to be run locally. */
+	final static String LOCAL = ".local";
+	/** Prefix of the directory of each worker, into which it moves the jobs it claims. */
+	final static String WORKER = "worker-";
+	/** File in the directory of a worker that it touches while alive. */
+	final static String HEARTBEAT = "heartbeat";
+
+	private JobStreams() {}
+
+	final static private class Reference implements Serializable
+	{
+		private static final long serialVersionUID = -1846260312843622416L;
+
+		final long id;
+
+		Reference(final long id)
+		{
+			this.id = id;
+		}
+	}
+
+	/** Writes {@link DBObject DBObjects} as references and remembers their project. */
+	final static class Output extends ObjectOutputStream
+	{
+		Project project = null;
+
+		Output(final OutputStream out) throws IOException
+		{
+			super(out);
+			enableReplaceObject(true);
+		}
+
+		@Override
+		protected Object replaceObject(final Object o) throws IOException
+		{
+			if (o instanceof DBObject) {
+				final DBObject dbo = (DBObject)o;
+				if (null == project) project = dbo.getProject();
+				else if (dbo.getProject() != project) throw new InvalidObjectException("Objects of more than one project");
+				return new Reference(dbo.getId());
+			}
+			return o;
+		}
+	}
+
+	/** Resolves references to {@link DBObject DBObjects} in the given project. */
+	final static class Input extends ObjectInputStream
+	{
+		final Project project;
+
+		Input(final InputStream in, final Project project) throws IOException
+		{
+			super(in);
+			this.project = project;
+			enableResolveObject(true);
+		}
+
+		@Override
+		protected Object resolveObject(final Object o) throws IOException
+		{
+			if (o instanceof Reference) {
+				final long id = ((Reference)o).id;
+				final DBObject dbo = null == project ? null : project.findById(id);
+				if (null == dbo) throw new InvalidObjectException("No object with id " + id + " in project " + project);
+				return dbo;
+			}
+			return o;
+		}
+
+		/** Plugin classes are not visible to the system class loader. */
+		@Override
+		protected Class<?> resolveClass(final ObjectStreamClass desc) throws IOException, ClassNotFoundException
+		{
+			try {
+				return Class.forName(desc.getName(), false, JobStreams.class.getClassLoader());
+			} catch (final ClassNotFoundException e) {
+				return super.resolveClass(desc);
+			}
+		}
+	}
+
+	/** Serialized form of an object of a single project, or of none. */
+	final static class Serialized
+	{
+		final byte[] bytes;
+		final Project project;
+
+		Serialized(final Object o) throws IOException
+		{
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final Output out = new Output(bytes);
+			out.writeObject(o);
+			out.close();
+			this.bytes = bytes.toByteArray();
+			this.project = out.project;
+		}
+	}
+
+	/**
+	 * Writes a header string and an object into file, which appears only once
+	 * complete, so that readers never see partial files.
+	 */
+	final static void write(final File file, final String header, final byte[] bytes) throws IOException
+	{
+		final File partial = new File(file.getPath() + PARTIAL);
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partial)));
+		try {
+			out.writeUTF(header);
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+		if (!partial.renameTo(file)) {
+			partial.delete();
+			throw new IOException("Could not rename " + partial + " to " + file);
+		}
+	}
+
+	final static String readHeader(final File file) throws IOException
+	{
+		final DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			return in.readUTF();
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Reads the object following the header of file. */
+	final static Object read(final File file, final Project project) throws IOException, ClassNotFoundException
+	{
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			in.readUTF();
+			return new Input(in, project).readObject();
+		} finally {
+			in.close();
+		}
+	}
+}
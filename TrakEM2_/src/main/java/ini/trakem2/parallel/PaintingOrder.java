@@ -0,0 +1,58 @@
+package ini.trakem2.parallel;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Splits a list of items to paint, such as the patches of a layer in stack order,
+ * into groups that can each be painted concurrently.
+ *
+ * No two items of a group overlap, and each item falls in a later group than every item
+ * before it in the list that it overlaps. Hence painting the groups one after another, and
+ * the items of each group in any order, gives the same result as painting all items in
+ * the order of the list.
+ *
+ * For a montage of tiles in row-major order the groups are the diagonals of the grid.
+ */
+public final class PaintingOrder
+{
+	private PaintingOrder() {}
+
+	/**
+	 * @param items The items, in painting order.
+	 * @param bounds The bounds of each item, in target coordinates, including any pixels
+	 *               that painting the item may touch; same length as {@code items}.
+	 * @return The groups, in painting order; each keeps the relative order of its items.
+	 */
+	static public final <T> List<List<T>> groups(final List<T> items, final List<Rectangle> bounds) {
+		final int n = items.size();
+		if (bounds.size() != n) throw new IllegalArgumentException("Need one bounding box per item.");
+		// Primitive copies of the bounds, for the quadratic loop below
+		final int[] x0 = new int[n], y0 = new int[n], x1 = new int[n], y1 = new int[n];
+		for (int i=0; i<n; ++i) {
+			final Rectangle r = bounds.get(i);
+			x0[i] = r.x;
+			y0[i] = r.y;
+			x1[i] = r.x + r.width;
+			y1[i] = r.y + r.height;
+		}
+		final int[] group = new int[n];
+		int nGroups = 0;
+		for (int j=0; j<n; ++j) {
+			int g = 0;
+			for (int i=0; i<j; ++i) {
+				if (group[i] >= g
+				 && x0[i] < x1[j] && x0[j] < x1[i]
+				 && y0[i] < y1[j] && y0[j] < y1[i]) {
+					g = group[i] + 1;
+				}
+			}
+			group[j] = g;
+			if (g + 1 > nGroups) nGroups = g + 1;
+		}
+		final List<List<T>> groups = new ArrayList<List<T>>(nGroups);
+		for (int g=0; g<nGroups; ++g) groups.add(new ArrayList<T>());
+		for (int i=0; i<n; ++i) groups.get(group[i]).add(items.get(i));
+		return groups;
+	}
+}
@@ -436,6 +436,7 @@ public final class FSLoader extends Loader {
 			if (null != dir_masks) Utils.removePrefixedFiles(f, "trakem2.masks", null);
 			Utils.removePrefixedFiles(f, "features.ser", null);
 			Utils.removePrefixedFiles(f, "pointmatches.ser", null);
+			Utils.removePrefixedFiles(f, "trakem2.undo", null);
 			// Only if empty:
 			if (f.isDirectory()) {
 				try {
@@ -139,6 +139,7 @@ import mpi.fruitfly.general.MultiThreading;
 import mpi.fruitfly.math.datastructures.FloatArray2D;
 import mpi.fruitfly.registration.ImageFilter;
 import mpicbg.trakem2.transform.ExportUnsignedShort;
+import mpicbg.trakem2.transform.TransformMeshCache;
 import mpicbg.trakem2.util.Triple;
 import amira.AmiraMeshDecoder;
 
@@ -233,6 +234,9 @@ abstract public class Loader {
 
 	transient protected final Cache mawts = new Cache((long)(MAX_MEMORY * heap_fraction));
 
+	/** The transform meshes of the {@link Patch} instances of this project, shared among equal transforms. */
+	transient protected final TransformMeshCache transform_meshes = new TransformMeshCache();
+
 	static transient protected Vector<Loader> v_loaders = new Vector<Loader>(); // Vector: synchronized
 
 	/** A collection of stale files that will be removed after the XML file is saved successfully. */
@@ -727,8 +731,13 @@ abstract public class Loader {
 		CachingThread.releaseAll();
 	}
 
+	public TransformMeshCache getTransformMeshCache() {
+		return transform_meshes;
+	}
+
 	/** Empties the caches. */
 	public void releaseAll() {
+		transform_meshes.clear();
 		synchronized (db_lock) {
 			try {
 				mawts.removeAndFlushAll();
@@ -748,6 +757,7 @@ abstract public class Loader {
 				if (null != mawts) {
 					mawts.removeAndFlushAll();
 				}
+				transform_meshes.clear();
 			} catch (final Throwable t) {
 				IJError.print(t);
 			}
@@ -530,6 +530,8 @@ public class TMLHandler extends DefaultHandler {
 			}
 			last_displayable = null;
 		} else if (orig_qualified_name.equals("t2_area_list")) {
+			// Nothing holds on to its areas yet
+			if (null != last_area_list) last_area_list.compactAreas();
 			last_area_list = null;
 			last_displayable = null;
 		} else if (orig_qualified_name.equals("t2_area")) {
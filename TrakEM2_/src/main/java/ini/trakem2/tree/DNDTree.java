@@ -24,6 +24,7 @@ package ini.trakem2.tree;
 
 
 import ini.trakem2.Project;
+import ini.trakem2.persistence.DBObject;
 import ini.trakem2.utils.Dispatcher;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Utils;
@@ -616,6 +617,57 @@ public abstract class DNDTree extends JTree implements TreeExpansionListener, Ke
 		return copy;
 	}
 
+	/** Whether this tree still has the same nodes, in the same order, holding the same objects with the same
+	 *  expanded state, as when {@link #duplicate(HashMap)} returned @param copy and filled in @param expanded_state.
+	 *  Lets undo steps share a copy of the tree rather than storing an identical one. */
+	public boolean isDuplicate(final Thing copy, final HashMap<Thing,Boolean> expanded_state) {
+		return isDuplicate((DefaultMutableTreeNode) this.getModel().getRoot(), copy, expanded_state);
+	}
+
+	private boolean isDuplicate(final DefaultMutableTreeNode node, final Thing copy, final HashMap<Thing,Boolean> expanded_state) {
+		final Thing thing = (Thing) node.getUserObject();
+		if (thing.getClass() != copy.getClass()
+		 || thing.getObject() != copy.getObject()
+		 || ((DBObject)thing).getId() != ((DBObject)copy).getId()
+		 || !equal(thing.getType(), copy.getType())
+		 || !equal(thing.getTitle(), copy.getTitle())) {
+			return false;
+		}
+		if (null != expanded_state) {
+			final Boolean b = expanded_state.get(copy);
+			if (null == b || b.booleanValue() != isExpanded(node)) return false;
+		}
+		final ArrayList<? extends Thing> children = copy.getChildren();
+		final int n = null == children ? 0 : children.size();
+		if (node.getChildCount() != n) return false;
+		for (int i=0; i<n; i++) {
+			if (!isDuplicate((DefaultMutableTreeNode) node.getChildAt(i), children.get(i), expanded_state)) return false;
+		}
+		return true;
+	}
+
+	static private final boolean equal(final Object a, final Object b) {
+		return null == a ? null == b : a.equals(b);
+	}
+
+	/** Copy the tree of Thing that starts at @param thing like {@link #duplicate(HashMap)} does, with the expanded state
+	 *  of each copy in @param copy_state taken from @param expanded_state. For undo steps to restore a copy of the copy
+	 *  they store, which may be shared with other steps and therefore must not become the live tree. */
+	static public Thing duplicate(final Thing thing, final HashMap<Thing,Boolean> expanded_state, final HashMap<Thing,Boolean> copy_state) {
+		final Thing copy = thing.shallowCopy();
+		if (null != expanded_state) {
+			final Boolean b = expanded_state.get(thing);
+			if (null != b) copy_state.put(copy, b);
+		}
+		final ArrayList<? extends Thing> children = thing.getChildren();
+		if (null != children) {
+			for (final Thing child : children) {
+				copy.addChild(duplicate(child, expanded_state, copy_state));
+			}
+		}
+		return copy;
+	}
+
 	/** Set the root Thing, and the expanded state of all nodes if @param expanded_state is not null.
 	 *  Used for restoring purposes from an undo step. */
 	public void reset(final HashMap<Thing,Boolean> expanded_state) {
@@ -30,6 +30,7 @@ import ini.trakem2.display.Display3D;
 import ini.trakem2.display.Displayable;
 import ini.trakem2.display.DisplayablePanel;
 import ini.trakem2.display.Layer;
+import ini.trakem2.display.LayerSet;
 import ini.trakem2.display.Profile;
 import ini.trakem2.display.Tree;
 import ini.trakem2.display.ZDisplayable;
@@ -769,6 +770,12 @@ public final class ProjectThing extends DBObject implements TitledThing {
 
 	/** Measure each node, recursively into children, and at the end display all the result tables, one for each data type. */
 	public void measure() {
+		// Measure the costly objects in parallel first; the tables are then filled in from their memoized measurements
+		final ArrayList<Displayable> ds = new ArrayList<Displayable>();
+		for (final Displayable d : findObjects(Displayable.class)) {
+			if (d.isVisible()) ds.add(d);
+		}
+		LayerSet.measure(ds, null);
 		final HashMap<Class<?>,ResultsTable> ht = new HashMap<Class<?>,ResultsTable>();
 		measure(ht);
 		// Show all tables. Need to be done at the end -- otherwise, at each call to "show"
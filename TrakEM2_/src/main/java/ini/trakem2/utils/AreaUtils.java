@@ -4,11 +4,13 @@ import ij.ImagePlus;
 import ij.gui.Roi;
 import ij.measure.Calibration;
 import ij.plugin.filter.ThresholdToSelection;
+import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.LayerSet;
 import ini.trakem2.imaging.BinaryInterpolation2D;
+import ini.trakem2.parallel.Process;
 import ini.trakem2.vector.Editions;
 import ini.trakem2.vector.SkinMaker;
 import ini.trakem2.vector.VectorString2D;
@@ -22,7 +24,6 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -37,7 +38,7 @@ import mpicbg.imglib.container.shapelist.ShapeListCached;
 import mpicbg.imglib.image.Image;
 import mpicbg.imglib.image.display.imagej.ImageJFunctions;
 import mpicbg.imglib.type.logic.BitType;
-import mpicbg.imglib.type.numeric.integer.ByteType;
+import mpicbg.trakem2.util.SharedExecutor;
 
 
 public final class AreaUtils {
@@ -52,6 +53,13 @@ public final class AreaUtils {
 	 *  @param resample The optimization parameter for marching cubes (i.e. a value of 2 will scale down to half, then apply marching cubes, then scale up by 2 the vertices coordinates).
 	 *  @return The List of triangles involved, specified as three consecutive vertices. A list of Point3f vertices. */
 	static public List<Point3f> generateTriangles(final Displayable d, final double scale, final int resample_, final Map<Layer,Area> areas) {
+		final IndexedTriangleMesh mesh = generateMesh(d, scale, resample_, areas);
+		return null == mesh ? null : mesh.toList();
+	}
+
+	/** Like {@link #generateTriangles(Displayable, double, int, Map)}, but returns the triangles
+	 *  as an indexed mesh, in which the vertices shared by adjacent triangles are stored only once. */
+	static public IndexedTriangleMesh generateMesh(final Displayable d, final double scale, final int resample_, final Map<Layer,Area> areas) {
 		// in the LayerSet, layers are ordered by Z already.
 		try {
 
@@ -120,31 +128,44 @@ public final class AreaUtils {
 				Utils.log("WARNING could not find all areas for " + d);
 			}
 
-			// No zero-padding: Marching Cubes now can handle edges
-			final ShapeList<ByteType> shapeList = new ShapeListCached<ByteType>(new int[]{w, h, depth}, new ByteType(), 32);
-			final Image<ByteType> shapeListImage = new Image<ByteType>(shapeList, shapeList.getBackground(), "ShapeListContainer");
-			final ByteType intensity = new ByteType((byte)127); // 255 or -1 don't work !? So, giving the highest value (127) that is both a byte and an int.
-
-			for (final Map.Entry<Integer,Area> e : ma.entrySet()) {
-				Area a = e.getValue();
-				if (!aff.isIdentity()) {
-					a = M.areaInIntsByRounding(a.createTransformedArea(aff));
+			// Keep each section run-length encoded, to be rasterized a few at a time while meshing
+			final RunLengthArea[] rlas = new RunLengthArea[depth];
+			final Integer[] keys = ma.keySet().toArray(new Integer[ma.size()]);
+			final Rectangle box = new Rectangle(0, 0, w, h);
+			SharedExecutor.forEach(keys.length, new SharedExecutor.Body() {
+				@Override
+				public void run(final int i) {
+					Area a = ma.get(keys[i]);
+					if (!aff.isIdentity()) {
+						a = M.areaInIntsByRounding(a.createTransformedArea(aff));
+					}
+					final RunLengthArea rla = new RunLengthArea(a);
+					rla.intersect(new RunLengthArea(box));
+					rlas[keys[i]] = rla;
 				}
-				shapeList.addShape(a, intensity, new int[]{e.getKey()});
-			}
-
-			//debug:
-			//ImagePlus imp = ImageJFunctions.displayAsVirtualStack(shapeListImage);
-			//imp.getProcessor().setMinAndMax( 0, 255 );
-			//imp.show();
+			});
 
-			//Utils.log2("Using imglib Shape List Image Container");
+			// No zero-padding: Marching Cubes now can handle edges
+			final MCCube.Sections sections = new MCCube.Sections() {
+				@Override
+				public int getDepth() {
+					return rlas.length;
+				}
+				@Override
+				public Rectangle getBounds(final int z) {
+					return null == rlas[z] || rlas[z].isEmpty() ? null : rlas[z].getBounds();
+				}
+				@Override
+				public void fill(final int z, final Rectangle bounds, final byte[] mask) {
+					rlas[z].fill(new ByteProcessor(bounds.width, bounds.height, mask, null), -bounds.x, -bounds.y, 127);
+				}
+			};
 
-			// Now marching cubes
-			final List<Point3f> list = new MCTriangulator().getTriangles(shapeListImage, 1, new float[3]); // origins at 0,0,0: uncalibrated
+			// Now marching cubes, in parallel over slabs of sections
+			final IndexedTriangleMesh mesh = MCCube.getMesh(sections, Process.NUM_PROCESSORS); // origins at 0,0,0: uncalibrated
 
 
-			// The list of triangles has coordinates:
+			// The mesh vertices have coordinates:
 			// - in x,y: in pixels, scaled by K = (1 / resample) * scale, 
 			//			translated by r.x, r.y (the top-left coordinate of this AreaList bounding box)
 			// - in z: in stack slice indices
@@ -152,7 +173,6 @@ public final class AreaUtils {
 			// So all x,y,z must be corrected in x,y and z of the proper layer
 
 
-			//final double offset = first_layer.getZ();
 			final int i_first_layer = layer_set.indexOf(first_layer);
 
 			// The x,y translation to correct each point by:
@@ -164,136 +184,68 @@ public final class AreaUtils {
 			final float rsh = (float)(resample * cal.pixelHeight);
 			final double sz = scale * cal.pixelWidth; // no resampling in Z. and Uses pixelWidth, not pixelDepth.
 
-
-			// debug:
-			/*
-			// which p.z types exist?
-			final TreeSet<Float> ts = new TreeSet<Float>();
-			for (final Iterator it = list.iterator(); it.hasNext(); ) {
-				ts.add(((Point3f)it.next()).z);
-			}
-			for (final Float pz : ts) Utils.log2("A z: " + pz);
-			*/
-
-
-			// debug: How many different Z?
-			/*
-			HashSet<Float> zs = new HashSet<Float>();
-			for (Point3f p : list) {
-				zs.add(p.z);
-			}
-			ArrayList<Float> a = new ArrayList<Float>(zs);
-			java.util.Collections.sort(a);
-			for (Float f : a) {
-				Utils.log("f: " + f);
-			}
-			*/
-
-			//Utils.log2("Number of slices: " + imp.getNSlices());
-
-			// Fix all points:
-			// Read from list, modify and put into verts
-			// and don't modify it if the verts already has it (it's just coincident)
-
-			final Point3f[] verts = new Point3f[list.size()];
-
-			//Utils.log("number of verts: " + verts.length + " mod 3: " + (verts.length % 3));
-
-			final TreeMap<Integer,Point3f> output = new TreeMap<Integer,Point3f>();
-
-
+			// For each slice index from -1 to depth +1, inclusive: the Z of its layer,
+			// the thickness by which to scale the fractional part of the slice index,
+			// and the slice index at which the layer starts.
 			// The first section generates vertices at -1 and 0
 			// The last section generates them at last_section_index and last_section_index +1
-
+			final double[] slice_z = new double[depth + 3],
+			               slice_thickness = new double[depth + 3];
+			final int[] slice_start = new int[depth + 3];
 			// Capture from -1 to 0
-			fix3DPoints(list, output, verts, first_layer.getZ(), 0, -1, dx, dy, rsw, rsh, sz, 1);
-
+			slice_z[0] = first_layer.getZ();
+			slice_start[0] = -1;
 			int slice_index = 0;
-
 			for (final Layer la : layer_set.getLayers().subList(i_first_layer, i_first_layer + depth)) {
-
-				// If layer is empty, continue
-				/* // YEAH don't! At least the immediate next layer would have points, like the extra Z level after last layer, to account for the thickness of the layer!
-				if (empty_layers.contains(la)) {
-					slice_index++;
-					continue;
-				}
-				*/
-
-				fix3DPoints(list, output, verts, la.getZ(), la.getThickness(), slice_index, dx, dy, rsw, rsh, sz, 1);
-
+				// Empty layers are not skipped: at least the immediate next layer would have points, like the extra Z level after last layer, to account for the thickness of the layer!
+				slice_z[slice_index + 1] = la.getZ();
+				slice_thickness[slice_index + 1] = la.getThickness();
+				slice_start[slice_index + 1] = slice_index;
 				slice_index++;
 			}
-
-			// The last set of vertices to process:
-			// Do the last layer again. The last layer has two Z planes in which it has pixels:
-			try {
-				// Capture from last_section_index to last_section_index+1, inclusive
-				fix3DPoints(list, output, verts, last_layer.getZ() + last_layer.getThickness(), 0, slice_index, dx, dy, rsw, rsh, sz, 2);
-			} catch (Exception ee) {
-				IJError.print(ee);
+			// The last layer has two Z planes in which it has pixels:
+			// capture from last_section_index to last_section_index+1, inclusive
+			final Layer last = null != last_layer ? last_layer : layer_set.getLayers().get(i_first_layer + depth - 1);
+			for (int i=depth+1; i<depth+3; ++i) {
+				slice_z[i] = last.getZ() + last.getThickness();
+				slice_start[i] = depth;
 			}
 
-			//Utils.log("number of verts in output: " + output.size() + " mod 3: " + (output.size() % 3));
-
-
-			// debug:
-			//Utils.log2("Remaining p.z to process: ");
-			//for (final Float pz : ts) Utils.log2("remains:   z: " + pz);
-
-
-			// Handle potential errors:
-			if (0 != list.size() - output.size()) {
-				Utils.log2("Unprocessed/unused points: " + (list.size() - output.size()));
-				for (int i=0; i<verts.length; i++) {
-					if (null == verts[i]) {
-						Point3f p = (Point3f) list.get(i);
-						Utils.log2("verts[" + i + "] = " + p.x + ", " + p.y + ", " + p.z + "  p.z as int: " + ((int)(p.z + 0.05f)));
-					}
+			// Fix all vertices
+			final int n_verts = mesh.getVertexCount();
+			final boolean[] fixed = new boolean[n_verts];
+			int n_unfixed = 0;
+			for (int i=0; i<n_verts; i++) {
+				final float pz = mesh.getZ(i);
+				final int k = (int)(pz + 0.05f) + 1;
+				if (k < 0 || k >= slice_z.length) {
+					if (n_unfixed++ < 10) Utils.log2("vertex " + i + " = " + mesh.getX(i) + ", " + mesh.getY(i) + ", " + pz + "  p.z as int: " + (k - 1));
+					continue;
 				}
-				return new ArrayList<Point3f>(output.values());
-			} else {
-				return java.util.Arrays.asList(verts);
-			}
-
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		return null;
-	}
-
-	/**
-	 * @param list The original points
-	 * @param output The accumulated list of modified points to construct a mesh from
-	 * @param verts The array of vertices, each index is filled if the point has been processed already.
-	 * @param la_Z The Layer to process points for.
-	 * @param la_thickness the thickness of that layer
-	 * @param layer_index The stack slice index corresponding to the Layer @param la.
-	 */
-	static private final void fix3DPoints(final List<Point3f> list, final TreeMap<Integer,Point3f> output, final Point3f[] verts, final double la_z, final double la_thickness, final int layer_index, final float dx, final float dy, final float rsw, final float rsh, final double sz, final int n_slices) {
-		int fixed = 0;
-		// Find all pixels that belong to the layer, and transform them back:
-		for (int i=0; i<verts.length; i++) {
-			if (null != verts[i]) continue; // already processed! The unprocessed Z is merely coincident with a processed Z.
-			final Point3f p = list.get(i);
-			final int pz = (int)(p.z + 0.05f);
-			//final int pz = (int)(p.z + (0.5f * Math.signum(p.z)));
-			if ( pz >= layer_index && pz < layer_index + n_slices) {
 				// correct pixel position:
 				// -- The 'rsw','rsh' scales back to LayerSet coords
 				// -- The 'dx','dy' translates back to this AreaList bounding box
-				p.x = p.x * rsw + dx;
-				p.y = p.y * rsh + dy;
-
 				// The Z is more complicated: the Z of the layer, scaled relative to the layer thickness
-				p.z = (float)((la_z + la_thickness * (p.z - layer_index)) * sz); // using pixelWidth, not pixelDepth!
+				mesh.setVertex(i,
+						mesh.getX(i) * rsw + dx,
+						mesh.getY(i) * rsh + dy,
+						(float)((slice_z[k] + slice_thickness[k] * (pz - slice_start[k])) * sz)); // using pixelWidth, not pixelDepth!
+				fixed[i] = true;
+			}
 
-				verts[i] = p;
-				output.put(i, p);
-				fixed++;
+			// Handle potential errors:
+			if (0 != n_unfixed) {
+				Utils.log2("Unprocessed/unused points: " + n_unfixed);
+				mesh.retainTriangles(fixed);
 			}
+
+			mesh.trim();
+			return mesh;
+
+		} catch (Exception e) {
+			e.printStackTrace();
 		}
-		//Utils.log("fix between " + layer_index + " and " + (layer_index + n_slices) + " (" + fixed + ")");
+		return null;
 	}
 
 	/** Extracts all non-background areas. */
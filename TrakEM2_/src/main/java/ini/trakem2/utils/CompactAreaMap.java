@@ -0,0 +1,368 @@
+package ini.trakem2.utils;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** A map of {@link Area} by key that can hold some of its values as the packed runs
+ * of a {@link RunLengthArea} instead, which for the pixel-aligned areas painted with
+ * a brush take a fraction of the memory of the {@link Area} and its segments.
+ *
+ * {@link #compact()} packs every value that converts without loss and is smaller packed.
+ * A packed value is unpacked into an {@link Area} again the first time it is requested
+ * with {@link #get(Object)} or with the value of an entry, and stays unpacked: callers
+ * may modify that {@link Area} in place, so only call {@link #compact()} when nobody
+ * holds on to the values, such as right after loading or when storing a copy for undo.
+ *
+ * Read-only access that doesn't need to keep the {@link Area} can use {@link #peek(Object)},
+ * {@link #getBounds()} and {@link #translate(int, int)}, which leave packed values packed.
+ *
+ * Not thread-safe, like {@link HashMap}.
+ */
+public class CompactAreaMap extends AbstractMap<Long,Area> implements Cloneable {
+
+	/** Approximate bytes taken by each segment of an {@link Area}. */
+	static private final int BYTES_PER_SEGMENT = 64;
+
+	/** Values are either an {@link Area} or the int[] of {@link RunLengthArea#pack()}. */
+	private HashMap<Long,Object> map;
+
+	public CompactAreaMap() {
+		this.map = new HashMap<Long,Object>();
+	}
+
+	public CompactAreaMap(final int initialCapacity) {
+		this.map = new HashMap<Long,Object>(initialCapacity);
+	}
+
+	/** A deep copy: values are copied as they are, packed or not. */
+	@Override
+	public CompactAreaMap clone() {
+		final CompactAreaMap copy = new CompactAreaMap(map.size());
+		for (final Map.Entry<Long,Object> e : map.entrySet()) {
+			final Object v = e.getValue();
+			copy.map.put(e.getKey(), v instanceof Area ? ((Area)v).clone() : null == v ? null : ((int[])v).clone());
+		}
+		return copy;
+	}
+
+	@Override
+	public int size() {
+		return map.size();
+	}
+
+	@Override
+	public boolean containsKey(final Object key) {
+		return map.containsKey(key);
+	}
+
+	/** Unpacks the value if packed, and keeps it unpacked. */
+	@Override
+	public Area get(final Object key) {
+		final Object v = map.get(key);
+		if (null == v || v instanceof Area) return (Area)v;
+		final Area a = RunLengthArea.unpack((int[])v).toArea();
+		map.put((Long)key, a);
+		return a;
+	}
+
+	/** The value for @param key without unpacking it into the map: modifying the returned
+	 * {@link Area} of a packed value has no effect. */
+	public Area peek(final Object key) {
+		final Object v = map.get(key);
+		if (null == v || v instanceof Area) return (Area)v;
+		return RunLengthArea.unpack((int[])v).toArea();
+	}
+
+	@Override
+	public Area put(final Long key, final Area area) {
+		return toArea(map.put(key, area));
+	}
+
+	@Override
+	public Area remove(final Object key) {
+		return toArea(map.remove(key));
+	}
+
+	@Override
+	public void clear() {
+		map.clear();
+	}
+
+	@Override
+	public Set<Long> keySet() {
+		return map.keySet();
+	}
+
+	@Override
+	public Set<Map.Entry<Long,Area>> entrySet() {
+		return new AbstractSet<Map.Entry<Long,Area>>() {
+			@Override
+			public int size() {
+				return map.size();
+			}
+			@Override
+			public Iterator<Map.Entry<Long,Area>> iterator() {
+				final Iterator<Map.Entry<Long,Object>> it = map.entrySet().iterator();
+				return new Iterator<Map.Entry<Long,Area>>() {
+					@Override
+					public boolean hasNext() {
+						return it.hasNext();
+					}
+					@Override
+					public Map.Entry<Long,Area> next() {
+						final Map.Entry<Long,Object> e = it.next();
+						return new Map.Entry<Long,Area>() {
+							@Override
+							public Long getKey() {
+								return e.getKey();
+							}
+							@Override
+							public Area getValue() {
+								final Object v = e.getValue();
+								if (null == v || v instanceof Area) return (Area)v;
+								final Area a = RunLengthArea.unpack((int[])v).toArea();
+								e.setValue(a);
+								return a;
+							}
+							@Override
+							public Area setValue(final Area area) {
+								return toArea(e.setValue(area));
+							}
+						};
+					}
+					@Override
+					public void remove() {
+						it.remove();
+					}
+				};
+			}
+		};
+	}
+
+	static private final Area toArea(final Object v) {
+		if (null == v || v instanceof Area) return (Area)v;
+		return RunLengthArea.unpack((int[])v).toArea();
+	}
+
+	/** The union of the bounds of all non-empty values, or null if there are none. */
+	public Rectangle getBounds() {
+		Rectangle box = null;
+		for (final Object v : map.values()) {
+			final Rectangle b;
+			if (v instanceof Area) {
+				final Area a = (Area)v;
+				if (a.isEmpty()) continue;
+				b = a.getBounds();
+			} else if (null != v) {
+				b = RunLengthArea.getBounds((int[])v);
+				if (b.isEmpty()) continue;
+			} else continue;
+			if (null == box) box = b;
+			else box.add(b);
+		}
+		return box;
+	}
+
+	/** Translate packed values in place and return the unpacked ones, which the caller is expected to translate as well. */
+	public List<Area> translatePacked(final int dx, final int dy) {
+		final ArrayList<Area> areas = new ArrayList<Area>();
+		for (final Object v : map.values()) {
+			if (v instanceof Area) areas.add((Area)v);
+			else if (null != v) RunLengthArea.translate((int[])v, dx, dy);
+		}
+		return areas;
+	}
+
+	/** Translate all values by an integer amount, leaving packed values packed. */
+	public void translate(final int dx, final int dy) {
+		final AffineTransform at = new AffineTransform(1, 0, 0, 1, dx, dy);
+		for (final Area a : translatePacked(dx, dy)) a.transform(at);
+	}
+
+	/** Pack every non-empty {@link Area} made only of horizontal and vertical edges on integer
+	 * coordinates that takes fewer bytes as runs. See the class documentation for when it is safe to call.
+	 * @return the number of values packed. */
+	public int compact() {
+		int n = 0;
+		for (final Map.Entry<Long,Object> e : map.entrySet()) {
+			if (!(e.getValue() instanceof Area)) continue;
+			final Area a = (Area)e.getValue();
+			if (a.isEmpty()) continue; // empty areas may be sentinels compared by identity
+			final int n_segments = countPixelAlignedSegments(a);
+			if (n_segments < 0) continue;
+			final int[] packed = new RunLengthArea(a).pack();
+			if (4L * packed.length < (long)BYTES_PER_SEGMENT * n_segments) {
+				e.setValue(packed);
+				++n;
+			}
+		}
+		return n;
+	}
+
+	/** Whether @param other has the same keys with the same values, comparing packed values as runs and
+	 * unpacked values as regions; a packed and an unpacked value are considered different. */
+	public boolean sameAs(final CompactAreaMap other) {
+		if (map.size() != other.map.size()) return false;
+		for (final Map.Entry<Long,Object> e : map.entrySet()) {
+			final Object v = e.getValue(),
+			             o = other.map.get(e.getKey());
+			if (v == o) {
+				if (null == v && !other.map.containsKey(e.getKey())) return false;
+				continue;
+			}
+			if (null == v || null == o) return false;
+			if (v instanceof int[]) {
+				if (!(o instanceof int[]) || !Arrays.equals((int[])v, (int[])o)) return false;
+			} else {
+				if (!(o instanceof Area)) return false;
+				final Area a = (Area)v,
+				           b = (Area)o;
+				if (!a.getBounds2D().equals(b.getBounds2D()) || !a.equals(b)) return false;
+			}
+		}
+		return true;
+	}
+
+	/** Write all keys and values, packed values as runs and others as the segments of their path. */
+	public void write(final DataOutput out) throws IOException {
+		final double[] c = new double[6];
+		out.writeInt(map.size());
+		for (final Map.Entry<Long,Object> e : map.entrySet()) {
+			out.writeLong(e.getKey());
+			final Object v = e.getValue();
+			if (null == v) {
+				out.writeByte(0);
+			} else if (v instanceof int[]) {
+				final int[] packed = (int[])v;
+				out.writeByte(1);
+				out.writeInt(packed.length);
+				for (final int k : packed) out.writeInt(k);
+			} else {
+				out.writeByte(2);
+				final PathIterator pit = ((Area)v).getPathIterator(null);
+				out.writeByte(pit.getWindingRule());
+				out.writeInt(countSegments((Area)v));
+				for (; !pit.isDone(); pit.next()) {
+					final int type = pit.currentSegment(c);
+					out.writeByte(type);
+					for (int k=0, n=coordinates(type); k<n; ++k) out.writeDouble(c[k]);
+				}
+			}
+		}
+	}
+
+	/** Read a map written by {@link #write(DataOutput)}. */
+	static public CompactAreaMap read(final DataInput in) throws IOException {
+		final int n = in.readInt();
+		final CompactAreaMap m = new CompactAreaMap(n);
+		final double[] c = new double[6];
+		for (int i=0; i<n; ++i) {
+			final long key = in.readLong();
+			switch (in.readByte()) {
+				case 0:
+					m.map.put(key, null);
+					break;
+				case 1:
+					final int[] packed = new int[in.readInt()];
+					for (int k=0; k<packed.length; ++k) packed[k] = in.readInt();
+					m.map.put(key, packed);
+					break;
+				default:
+					final Path2D.Double path = new Path2D.Double(in.readByte());
+					for (int s=in.readInt(); s>0; --s) {
+						final int type = in.readByte();
+						for (int k=0, nc=coordinates(type); k<nc; ++k) c[k] = in.readDouble();
+						switch (type) {
+							case PathIterator.SEG_MOVETO: path.moveTo(c[0], c[1]); break;
+							case PathIterator.SEG_LINETO: path.lineTo(c[0], c[1]); break;
+							case PathIterator.SEG_QUADTO: path.quadTo(c[0], c[1], c[2], c[3]); break;
+							case PathIterator.SEG_CUBICTO: path.curveTo(c[0], c[1], c[2], c[3], c[4], c[5]); break;
+							default: path.closePath(); break;
+						}
+					}
+					m.map.put(key, new Area(path));
+					break;
+			}
+		}
+		return m;
+	}
+
+	/** The number of coordinates of a segment of @param type of a {@link PathIterator}. */
+	static private final int coordinates(final int type) {
+		switch (type) {
+			case PathIterator.SEG_MOVETO:
+			case PathIterator.SEG_LINETO: return 2;
+			case PathIterator.SEG_QUADTO: return 4;
+			case PathIterator.SEG_CUBICTO: return 6;
+			default: return 0;
+		}
+	}
+
+	/** An estimate of the bytes taken by all values. */
+	public long estimateBytes() {
+		long bytes = 0;
+		for (final Object v : map.values()) {
+			if (v instanceof Area) {
+				final int n = countSegments((Area)v);
+				bytes += (long)BYTES_PER_SEGMENT * n;
+			} else if (null != v) {
+				bytes += 16 + 4L * ((int[])v).length;
+			}
+		}
+		return bytes;
+	}
+
+	static private final int countSegments(final Area a) {
+		int n = 0;
+		for (final PathIterator pit = a.getPathIterator(null); !pit.isDone(); pit.next()) ++n;
+		return n;
+	}
+
+	/** The number of segments of @param a if it only has straight, horizontal or vertical
+	 * edges on integer coordinates, and therefore converts to a {@link RunLengthArea} and back
+	 * without loss; otherwise -1. */
+	static private final int countPixelAlignedSegments(final Area a) {
+		final double[] c = new double[6];
+		double px = 0, py = 0,
+		       sx = 0, sy = 0;
+		int n = 0;
+		for (final PathIterator pit = a.getPathIterator(null); !pit.isDone(); pit.next()) {
+			++n;
+			switch (pit.currentSegment(c)) {
+				case PathIterator.SEG_MOVETO:
+					sx = c[0];
+					sy = c[1];
+					break;
+				case PathIterator.SEG_LINETO:
+					if (c[0] != px && c[1] != py) return -1;
+					break;
+				case PathIterator.SEG_CLOSE:
+					if (sx != px && sy != py) return -1;
+					px = sx;
+					py = sy;
+					continue;
+				default:
+					return -1;
+			}
+			if (c[0] != Math.floor(c[0]) || c[1] != Math.floor(c[1])) return -1;
+			px = c[0];
+			py = c[1];
+		}
+		return n;
+	}
+}
@@ -0,0 +1,163 @@
+package ini.trakem2.utils;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/** A {@link java.util.Set} that compares elements by identity, stored in a single open-addressing array.
+ *
+ * Unlike a {@link java.util.HashSet}, there is no entry object per element: each element costs one
+ * or two array slots, which matters for sets of millions of small objects such as the nodes of a
+ * {@link ini.trakem2.display.Tree}, both for memory and for the garbage collector.
+ *
+ * Null elements are not permitted. Not thread-safe. */
+public class CompactIdentitySet<E> extends AbstractSet<E> {
+
+	/** Marks the slot of a removed element, so that probing continues past it. */
+	static private final Object REMOVED = new Object();
+
+	private Object[] table;
+	private int size = 0;
+	/** Slots taken by elements or by {@link #REMOVED}. */
+	private int used = 0;
+	private int mod_count = 0;
+
+	public CompactIdentitySet() {
+		this.table = new Object[8];
+	}
+
+	public CompactIdentitySet(final int expected_size) {
+		this.table = new Object[capacityFor(expected_size)];
+	}
+
+	public CompactIdentitySet(final Collection<? extends E> c) {
+		this(c.size());
+		addAll(c);
+	}
+
+	/** A power of two with room for @param n elements at a load of at most 2/3. */
+	static private final int capacityFor(final int n) {
+		int capacity = 8;
+		while (capacity * 2 < n * 3) capacity <<= 1;
+		return capacity;
+	}
+
+	static private final int hash(final Object o, final int mask) {
+		// identity hashes can be sequential: spread the bits
+		final int h = System.identityHashCode(o) * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	/** The slot of @param o, or -1 if not present. */
+	private int indexOf(final Object o) {
+		final Object[] t = table;
+		final int mask = t.length - 1;
+		for (int i = hash(o, mask); ; i = (i + 1) & mask) {
+			final Object e = t[i];
+			if (null == e) return -1;
+			if (o == e) return i;
+		}
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean contains(final Object o) {
+		return null != o && -1 != indexOf(o);
+	}
+
+	@Override
+	public boolean add(final E o) {
+		if (null == o) throw new NullPointerException("Null elements are not permitted.");
+		if (contains(o)) return false;
+		if ((used + 1) * 3 > table.length * 2) rehash(capacityFor(size + 1));
+		final int mask = table.length - 1;
+		int i = hash(o, mask);
+		while (null != table[i] && REMOVED != table[i]) i = (i + 1) & mask;
+		if (null == table[i]) ++used;
+		table[i] = o;
+		++size;
+		++mod_count;
+		return true;
+	}
+
+	@Override
+	public boolean remove(final Object o) {
+		if (null == o) return false;
+		final int i = indexOf(o);
+		if (-1 == i) return false;
+		removeAt(i);
+		return true;
+	}
+
+	private void removeAt(final int i) {
+		table[i] = REMOVED;
+		--size;
+		++mod_count;
+	}
+
+	@Override
+	public void clear() {
+		if (0 == used) return;
+		table = new Object[8];
+		size = 0;
+		used = 0;
+		++mod_count;
+	}
+
+	private void rehash(final int capacity) {
+		final Object[] old = table;
+		table = new Object[capacity];
+		final int mask = capacity - 1;
+		for (final Object o : old) {
+			if (null == o || REMOVED == o) continue;
+			int i = hash(o, mask);
+			while (null != table[i]) i = (i + 1) & mask;
+			table[i] = o;
+		}
+		used = size;
+	}
+
+	@Override
+	public Iterator<E> iterator() {
+		return new Iterator<E>() {
+			private int next = advance(0);
+			private int last = -1;
+			private int expected_mod_count = mod_count;
+
+			private int advance(int i) {
+				while (i < table.length && (null == table[i] || REMOVED == table[i])) ++i;
+				return i;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next < table.length;
+			}
+
+			@Override
+			@SuppressWarnings("unchecked")
+			public E next() {
+				if (expected_mod_count != mod_count) throw new ConcurrentModificationException();
+				if (next >= table.length) throw new NoSuchElementException();
+				last = next;
+				next = advance(next + 1);
+				return (E)table[last];
+			}
+
+			@Override
+			public void remove() {
+				if (-1 == last) throw new IllegalStateException();
+				if (expected_mod_count != mod_count) throw new ConcurrentModificationException();
+				removeAt(last);
+				last = -1;
+				expected_mod_count = mod_count;
+			}
+		};
+	}
+}
@@ -0,0 +1,246 @@
+package ini.trakem2.utils;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.vecmath.Point3f;
+
+/** A triangle mesh stored as a primitive array of x,y,z vertex coordinates and a primitive array
+ * of vertex indices, three per triangle.
+ *
+ * Vertices added with {@link #addVertex(float, float, float)} are deduplicated: adding a vertex
+ * with exactly the same coordinates as an existing one returns the index of the latter. A closed
+ * marching cubes surface has about half as many vertices as triangles, so compared to a list of
+ * three {@link Point3f} per triangle this takes several times less heap.
+ *
+ * Use {@link #toList()} to feed consumers that expect the triangles as three consecutive
+ * {@link Point3f} per triangle, such as the meshes of the 3D Viewer.
+ *
+ * Not thread-safe. */
+public class IndexedTriangleMesh {
+
+	/** x,y,z of each vertex. */
+	private float[] verts;
+	private int n_verts = 0;
+	/** Three vertex indices per triangle. */
+	private int[] indices;
+	private int n_indices = 0;
+	/** Open-addressing hash table of vertex index + 1, zero for an empty slot;
+	 * null when it has to be rebuilt because vertices were modified. */
+	private int[] table;
+
+	public IndexedTriangleMesh() {
+		this(64);
+	}
+
+	/** @param expected_vertices A hint for the initial capacity. */
+	public IndexedTriangleMesh(final int expected_vertices) {
+		final int n = Math.max(4, expected_vertices);
+		this.verts = new float[n * 3];
+		this.indices = new int[n * 6];
+		this.table = new int[tableSizeFor(n)];
+	}
+
+	/** Wrap the given arrays, without copying nor merging vertices.
+	 * @param verts The x,y,z of each vertex.
+	 * @param indices Three vertex indices per triangle. */
+	public IndexedTriangleMesh(final float[] verts, final int[] indices) {
+		this.verts = verts;
+		this.n_verts = verts.length / 3;
+		this.indices = indices;
+		this.n_indices = indices.length - indices.length % 3;
+		this.table = null;
+	}
+
+	/** Build an indexed mesh from a list of triangles as three consecutive vertices each, merging identical vertices. */
+	static public IndexedTriangleMesh fromTriangles(final List<Point3f> triangles) {
+		final IndexedTriangleMesh mesh = new IndexedTriangleMesh(triangles.size() / 3);
+		for (int i=0, n=triangles.size() - 2; i<n; i+=3) {
+			mesh.addTriangle(triangles.get(i), triangles.get(i+1), triangles.get(i+2));
+		}
+		return mesh;
+	}
+
+	/** A power of two with room for @param n vertices at a load of at most 1/2. */
+	static private final int tableSizeFor(final int n) {
+		int size = 16;
+		while (size < n * 2) size <<= 1;
+		return size;
+	}
+
+	static private final int hash(final float x, final float y, final float z) {
+		// Adding 0 turns -0 into +0, so that both hash and compare alike
+		int h = Float.floatToIntBits(x + 0.0f);
+		h = h * 31 + Float.floatToIntBits(y + 0.0f);
+		h = h * 31 + Float.floatToIntBits(z + 0.0f);
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private final boolean equalsVertex(final int i, final float x, final float y, final float z) {
+		final int k = i * 3;
+		return verts[k] == x && verts[k+1] == y && verts[k+2] == z;
+	}
+
+	private void rehash(final int size) {
+		table = new int[size];
+		final int mask = size - 1;
+		for (int i=0; i<n_verts; ++i) {
+			final int k = i * 3;
+			int slot = hash(verts[k], verts[k+1], verts[k+2]) & mask;
+			while (0 != table[slot]) slot = (slot + 1) & mask;
+			table[slot] = i + 1;
+		}
+	}
+
+	/** @return the index of the vertex at x,y,z, adding it if no vertex has exactly these coordinates. */
+	public int addVertex(final float x, final float y, final float z) {
+		if (null == table || n_verts * 2 >= table.length) rehash(tableSizeFor(n_verts + 1));
+		final int mask = table.length - 1;
+		int slot = hash(x, y, z) & mask;
+		for (;;) {
+			final int e = table[slot];
+			if (0 == e) break;
+			if (equalsVertex(e - 1, x, y, z)) return e - 1;
+			slot = (slot + 1) & mask;
+		}
+		if (n_verts * 3 + 3 > verts.length) verts = Arrays.copyOf(verts, Math.max(12, verts.length * 2));
+		final int k = n_verts * 3;
+		verts[k] = x;
+		verts[k+1] = y;
+		verts[k+2] = z;
+		table[slot] = n_verts + 1;
+		return n_verts++;
+	}
+
+	public int addVertex(final Point3f p) {
+		return addVertex(p.x, p.y, p.z);
+	}
+
+	/** Add a triangle from the indices of three vertices already in this mesh. */
+	public void addTriangle(final int a, final int b, final int c) {
+		if (n_indices + 3 > indices.length) indices = Arrays.copyOf(indices, Math.max(12, indices.length * 2));
+		indices[n_indices++] = a;
+		indices[n_indices++] = b;
+		indices[n_indices++] = c;
+	}
+
+	public void addTriangle(final Point3f a, final Point3f b, final Point3f c) {
+		addTriangle(addVertex(a), addVertex(b), addVertex(c));
+	}
+
+	/** Append all triangles of @param other, merging its vertices with identical ones of this mesh. */
+	public void add(final IndexedTriangleMesh other) {
+		final int[] map = new int[other.n_verts];
+		for (int i=0; i<other.n_verts; ++i) {
+			final int k = i * 3;
+			map[i] = addVertex(other.verts[k], other.verts[k+1], other.verts[k+2]);
+		}
+		for (int i=0; i<other.n_indices; i+=3) {
+			addTriangle(map[other.indices[i]], map[other.indices[i+1]], map[other.indices[i+2]]);
+		}
+	}
+
+	public int getVertexCount() {
+		return n_verts;
+	}
+
+	public int getTriangleCount() {
+		return n_indices / 3;
+	}
+
+	public boolean isEmpty() {
+		return 0 == n_indices;
+	}
+
+	public float getX(final int i) { return verts[i * 3]; }
+	public float getY(final int i) { return verts[i * 3 + 1]; }
+	public float getZ(final int i) { return verts[i * 3 + 2]; }
+
+	/** Copy the coordinates of vertex @param i into @param p, and return it. */
+	public Point3f getVertex(final int i, final Point3f p) {
+		final int k = i * 3;
+		p.set(verts[k], verts[k+1], verts[k+2]);
+		return p;
+	}
+
+	/** Move vertex @param i, for example to transform it. Vertices are not merged again
+	 * if they end up at the same coordinates as another. */
+	public void setVertex(final int i, final float x, final float y, final float z) {
+		if (i < 0 || i >= n_verts) throw new IndexOutOfBoundsException("No vertex " + i);
+		final int k = i * 3;
+		verts[k] = x;
+		verts[k+1] = y;
+		verts[k+2] = z;
+		table = null; // rebuilt when next adding a vertex
+	}
+
+	/** The index of the vertex at corner @param corner (0, 1 or 2) of triangle @param t. */
+	public int getIndex(final int t, final int corner) {
+		return indices[t * 3 + corner];
+	}
+
+	/** @return a copy of the x,y,z coordinates of all vertices. */
+	public float[] getVertices() {
+		return Arrays.copyOf(verts, n_verts * 3);
+	}
+
+	/** @return a copy of the vertex indices, three per triangle. */
+	public int[] getIndices() {
+		return Arrays.copyOf(indices, n_indices);
+	}
+
+	/** Remove all triangles that have any corner whose entry in @param keep is false.
+	 * Vertices are kept, even if no triangle uses them anymore. */
+	public void retainTriangles(final boolean[] keep) {
+		int next = 0;
+		for (int i=0; i<n_indices; i+=3) {
+			final int a = indices[i],
+			          b = indices[i+1],
+			          c = indices[i+2];
+			if (keep[a] && keep[b] && keep[c]) {
+				indices[next++] = a;
+				indices[next++] = b;
+				indices[next++] = c;
+			}
+		}
+		n_indices = next;
+	}
+
+	/** Release the unused capacity and the vertex lookup table. */
+	public void trim() {
+		verts = getVertices();
+		indices = getIndices();
+		table = null;
+	}
+
+	/** @return a new list with the triangles as three consecutive points each, with a distinct
+	 * {@link Point3f} for every corner, so that callers may modify any point in place without
+	 * affecting the triangles that share its vertex. */
+	public List<Point3f> toList() {
+		final ArrayList<Point3f> list = new ArrayList<Point3f>(n_indices);
+		for (int i=0; i<n_indices; ++i) {
+			final int k = indices[i] * 3;
+			list.add(new Point3f(verts[k], verts[k+1], verts[k+2]));
+		}
+		return list;
+	}
+
+	/** @return a read-only view of the triangles as three consecutive points each,
+	 * creating a new {@link Point3f} on every call to {@link List#get(int)}. */
+	public List<Point3f> asList() {
+		return new AbstractList<Point3f>() {
+			@Override
+			public Point3f get(final int i) {
+				if (i < 0 || i >= n_indices) throw new IndexOutOfBoundsException("Index: " + i + ", size: " + n_indices);
+				return getVertex(indices[i], new Point3f());
+			}
+			@Override
+			public int size() {
+				return n_indices;
+			}
+		};
+	}
+}
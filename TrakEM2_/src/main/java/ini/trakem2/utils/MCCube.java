@@ -11,10 +11,12 @@ import java.awt.geom.PathIterator;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.vecmath.Point3f;
 
 import mpicbg.imglib.container.shapelist.ShapeList;
+import mpicbg.trakem2.util.SharedExecutor;
 
 public final class MCCube {
 	// vertexes
@@ -128,7 +130,7 @@ public final class MCCube {
 		return result;
 	}
 	
-	private void getTriangles(List<Point3f> list, final Carrier car){
+	private void getTriangles(final IndexedTriangleMesh mesh, final Carrier car){
 		int cn = caseNumber(car);
 		boolean directTable = !(isAmbigous(cn));
 		directTable = true;
@@ -139,9 +141,9 @@ public final class MCCube {
 			// if there's a triangle
 			if (faces[offset] != -1) {
 				// pick up vertexes of the current triangle
-				list.add(new Point3f(this.e[faces[offset+0]]));
-				list.add(new Point3f(this.e[faces[offset+1]]));
-				list.add(new Point3f(this.e[faces[offset+2]]));
+				mesh.addTriangle(this.e[faces[offset+0]],
+				                 this.e[faces[offset+1]],
+				                 this.e[faces[offset+2]]);
 			} 
 			offset += 3;
 		}
@@ -165,12 +167,12 @@ public final class MCCube {
 	/** 
 	 * An encapsulating class to avoid thread collisions on static fields.
 	 */
-	private static final class Carrier {
+	private static class Carrier {
 		int w, h, d;
 		Volume volume;
 		float threshold;
 
-		final int intensity(final Point3f p) {
+		int intensity(final Point3f p) {
 			if(p.x < 0 || p.y < 0 || p.z < 0
 				|| p.x >= w || p.y >= h || p.z >= d)
 				return 0;
@@ -178,6 +180,146 @@ public final class MCCube {
 		}
 	}
 
+	/** The intensity of the voxels inside {@link Sections}. */
+	private static final int INSIDE = 127;
+
+	/**
+	 * Reads the binary masks of a few consecutive sections,
+	 * all cropped to the same box.
+	 */
+	private static final class SlabCarrier extends Carrier {
+		/** The index of the section of the first mask. */
+		int z0;
+		Rectangle box;
+		/** One mask per section, or null for empty sections. */
+		byte[][] masks;
+
+		@Override
+		final int intensity(final Point3f p) {
+			final int x = (int)p.x - box.x,
+			          y = (int)p.y - box.y,
+			          z = (int)p.z - z0;
+			// The box contains all inside voxels: anything out of it is background
+			if(x < 0 || y < 0 || z < 0
+				|| x >= box.width || y >= box.height || z >= masks.length)
+				return 0;
+			final byte[] mask = masks[z];
+			return null == mask || 0 == mask[y * box.width + x] ? 0 : INSIDE;
+		}
+	}
+
+	/**
+	 * A binary volume made of sections, such as a stack of areas,
+	 * which marching cubes reads only a few sections at a time.
+	 * Methods are called concurrently from multiple threads.
+	 */
+	public interface Sections {
+		/** The number of sections. */
+		public int getDepth();
+		/** @return the bounds of the pixels inside section z, or null if there aren't any. */
+		public Rectangle getBounds(int z);
+		/** Set to non-zero the pixels of mask that are inside section z.
+		 * The mask is all zeros, and covers the given bounds in row-major order. */
+		public void fill(int z, Rectangle bounds, byte[] mask);
+	}
+
+	/** The most bytes of section masks held by each thread. */
+	private static final long MAX_SLAB_BYTES = 64 * 1024 * 1024;
+
+	/**
+	 * Create an indexed mesh of the surface of the given sections, without
+	 * rasterizing them all at once: the volume is split into slabs of
+	 * consecutive sections, which are rasterized and meshed in parallel.
+	 * Vertices on the planes shared by two slabs are computed alike from
+	 * both, and are merged when stitching the slabs together.
+	 * @param sections
+	 * @param n_threads
+	 * @return The mesh, in voxel coordinates.
+	 */
+	public static final IndexedTriangleMesh getMesh(final Sections sections, final int n_threads){
+		final int d = sections.getDepth();
+		final Rectangle[] bounds = new Rectangle[d];
+		Rectangle all = null;
+		for(int z = 0; z < d; z++) {
+			bounds[z] = sections.getBounds(z);
+			if(null == bounds[z]) continue;
+			if(null == all) all = new Rectangle(bounds[z]);
+			else all.add(bounds[z]);
+		}
+		if(null == all)
+			return new IndexedTriangleMesh();
+
+		// The cubes at z read sections z and z+1, for z from -1 to d-1.
+		// Use enough slabs to keep all threads busy, but none too large.
+		final int n_cubes = d + 1;
+		final long section_bytes = Math.max(1, (long)all.width * all.height);
+		int depth = Math.max(1, (n_cubes + 4 * n_threads - 1) / (4 * n_threads));
+		depth = (int)Math.max(1, Math.min(depth, MAX_SLAB_BYTES / section_bytes - 1));
+		final int slab_depth = depth;
+		final int n_slabs = (n_cubes + slab_depth - 1) / slab_depth;
+
+		final IndexedTriangleMesh[] slabs = new IndexedTriangleMesh[n_slabs];
+		final AtomicInteger done = new AtomicInteger(0);
+		SharedExecutor.forEach(n_slabs, n_threads, new SharedExecutor.Body() {
+			@Override
+			public void run(final int i) {
+				final int first = -1 + i * slab_depth;
+				slabs[i] = getSlabMesh(sections, bounds, first, Math.min(d, first + slab_depth));
+				IJ.showProgress(done.incrementAndGet(), n_slabs);
+			}
+		});
+
+		final IndexedTriangleMesh mesh = new IndexedTriangleMesh();
+		for(final IndexedTriangleMesh slab : slabs) {
+			if(null != slab) mesh.add(slab);
+		}
+		return mesh;
+	}
+
+	/** Mesh the cubes at z from first (inclusive) to last (exclusive),
+	 * which read the sections from first to last, inclusive. */
+	private static final IndexedTriangleMesh getSlabMesh(final Sections sections, final Rectangle[] bounds, final int first, final int last) {
+		final SlabCarrier car = new SlabCarrier();
+		car.threshold = 1.5f; // isovalue of 1, like for a volume
+		car.z0 = first;
+		car.masks = new byte[last - first + 1][];
+		// The box of the inside pixels of all sections of the slab
+		for(int z = Math.max(0, first); z <= last && z < bounds.length; z++) {
+			if(null == bounds[z]) continue;
+			if(null == car.box) car.box = new Rectangle(bounds[z]);
+			else car.box.add(bounds[z]);
+		}
+		if(null == car.box)
+			return null;
+		for(int z = Math.max(0, first); z <= last && z < bounds.length; z++) {
+			if(null == bounds[z]) continue;
+			final byte[] mask = new byte[car.box.width * car.box.height];
+			sections.fill(z, car.box, mask);
+			car.masks[z - first] = mask;
+		}
+
+		final IndexedTriangleMesh mesh = new IndexedTriangleMesh();
+		final MCCube cube = new MCCube();
+		for(int z = first; z < last; z++) {
+			// Only the cubes that touch the inside pixels of either section
+			final Rectangle b0 = z < 0 ? null : bounds[z],
+			                b1 = z + 1 >= bounds.length ? null : bounds[z + 1];
+			final Rectangle b;
+			if(null == b0) b = b1;
+			else if(null == b1) b = b0;
+			else b = b0.union(b1);
+			if(null == b) continue;
+			for(int x = b.x - 1; x < b.x + b.width; x++) {
+				for(int y = b.y - 1; y < b.y + b.height; y++) {
+					cube.init(x, y, z);
+					cube.computeEdges(car);
+					cube.getTriangles(mesh, car);
+				}
+			}
+		}
+		return mesh;
+	}
+
 	/**
 	 * Create a list of triangles from the specified image data and the
 	 * given isovalue.
@@ -186,7 +328,16 @@ public final class MCCube {
 	 * @return
 	 */
 	public static final List<Point3f> getTriangles(Volume volume, int thresh){
-		List<Point3f> tri = new ArrayList<Point3f>();
+		return getMesh(volume, thresh).toList();
+	}
+
+	/**
+	 * Like {@link #getTriangles(Volume, int)}, but returns the triangles
+	 * as an indexed mesh, in which vertices shared by adjacent triangles
+	 * are stored only once.
+	 */
+	public static final IndexedTriangleMesh getMesh(final Volume volume, final int thresh){
+		final IndexedTriangleMesh tri = new IndexedTriangleMesh();
 		final Carrier car = new Carrier();
 		car.w = volume.xDim;
 		car.h = volume.yDim;
@@ -211,17 +362,17 @@ public final class MCCube {
 		}
 
 		// convert pixel coordinates
-		for(int i = 0; i < tri.size(); i++) {
-			Point3f p = (Point3f)tri.get(i);
-			p.x = (float) (p.x * volume.pw + volume.minCoord.x);
-			p.y = (float) (p.y * volume.ph + volume.minCoord.y);
-			p.z = (float) (p.z * volume.pd + volume.minCoord.z);
-		}	
+		for(int i = 0; i < tri.getVertexCount(); i++) {
+			tri.setVertex(i,
+				(float) (tri.getX(i) * volume.pw + volume.minCoord.x),
+				(float) (tri.getY(i) * volume.ph + volume.minCoord.y),
+				(float) (tri.getZ(i) * volume.pd + volume.minCoord.z));
+		}
 		return tri;
 	}
 
 	/** Identical to getTriangles, but iterates only the minimal necessary bounding box, by asking the shapes objects. */
-	private static final void getShapeListImageTriangles(final ImgLibVolume volume, final Carrier car, final List<Point3f> tri) {
+	private static final void getShapeListImageTriangles(final ImgLibVolume volume, final Carrier car, final IndexedTriangleMesh tri) {
 		final ShapeList sli = (ShapeList) volume.getImage().getContainer();
 		final ArrayList<ArrayList<Shape>> shapeLists = sli.getShapeLists();
 		final Area[] sectionAreas = new Area[shapeLists.size()];
@@ -46,6 +46,11 @@ public class MCTriangulator implements Triangulator {
 		return MCCube.getTriangles(new ImgLibVolume(img, origin), threshold);
 	}
 
+	/** Like {@link #getTriangles(Image, int, float[])}, but returns an indexed mesh. */
+	public<T extends RealType<T>> IndexedTriangleMesh getMesh(Image<T> img, int threshold, float[] origin) throws Exception {
+		return MCCube.getMesh(new ImgLibVolume(img, origin), threshold);
+	}
+
 	static public void zeroPad(final ImagePlus imp) {
 		ImageStack stack = imp.getStack();
 		int w = stack.getWidth();
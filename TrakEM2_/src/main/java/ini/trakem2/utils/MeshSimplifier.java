@@ -0,0 +1,461 @@
+package ini.trakem2.utils;
+
+import java.util.Arrays;
+
+/** Reduces the number of triangles of an {@link IndexedTriangleMesh} by quadric error edge collapse
+ * (Garland and Heckbert, 1997): each vertex accumulates the planes of its triangles, and the edge
+ * whose vertices can be merged into a single point with the least sum of squared distances to
+ * those planes is collapsed first, until reaching the desired number of triangles.
+ *
+ * Collapses that would fold a triangle over, or make the surface non-manifold, are skipped,
+ * and the borders of open surfaces are kept in place. */
+public final class MeshSimplifier {
+
+	private MeshSimplifier() {}
+
+	/** Weight of the planes that hold open borders in place, relative to the planes of triangles. */
+	static private final double BORDER_WEIGHT = 1000;
+
+	/** @return a simplified copy of @param mesh with about @param target_triangles,
+	 * or the mesh itself if it has that many or fewer already. */
+	static public final IndexedTriangleMesh simplify(final IndexedTriangleMesh mesh, final int target_triangles) {
+		if (mesh.getTriangleCount() <= target_triangles) return mesh;
+		return new Collapser(mesh).run(Math.max(1, target_triangles));
+	}
+
+	/** The state of one simplification. */
+	static private final class Collapser {
+		final int n_verts;
+		/** x,y,z of each vertex. */
+		final double[] pos;
+		/** Symmetric 4x4 quadric of each vertex, as its 10 distinct coefficients. */
+		final double[] q;
+		/** Three vertex indices per triangle. */
+		final int[] faces;
+		final boolean[] face_dead;
+		int n_alive;
+		final boolean[] vert_dead;
+		/** Incremented every time a vertex moves, to invalidate the heap entries of its edges. */
+		final int[] version;
+		/** The triangles of each vertex, possibly including dead ones. */
+		final int[][] vfaces;
+		final int[] vfaces_n;
+		/** Vertex marks for finding neighbors, valid when equal to mark_stamp. */
+		final int[] mark;
+		int mark_stamp = 0;
+
+		// A binary min-heap of candidate edges
+		double[] h_cost;
+		int[] h_a, h_b, h_va, h_vb;
+		int h_n = 0;
+
+		Collapser(final IndexedTriangleMesh mesh) {
+			this.n_verts = mesh.getVertexCount();
+			final float[] v = mesh.getVertices();
+			this.pos = new double[v.length];
+			for (int i=0; i<v.length; ++i) pos[i] = v[i];
+			this.faces = mesh.getIndices();
+			final int n_faces = faces.length / 3;
+			this.face_dead = new boolean[n_faces];
+			this.vert_dead = new boolean[n_verts];
+			this.version = new int[n_verts];
+			this.mark = new int[n_verts];
+			this.q = new double[n_verts * 10];
+			// Triangles per vertex
+			this.vfaces_n = new int[n_verts];
+			for (int f=0; f<n_faces; ++f) {
+				final int a = faces[f*3], b = faces[f*3+1], c = faces[f*3+2];
+				if (a == b || b == c || a == c) {
+					face_dead[f] = true;
+					continue;
+				}
+				++n_alive;
+				++vfaces_n[a];
+				++vfaces_n[b];
+				++vfaces_n[c];
+			}
+			this.vfaces = new int[n_verts][];
+			for (int i=0; i<n_verts; ++i) {
+				vfaces[i] = new int[vfaces_n[i]];
+				vfaces_n[i] = 0;
+			}
+			final double[] n = new double[4];
+			for (int f=0; f<n_faces; ++f) {
+				if (face_dead[f]) continue;
+				for (int k=0; k<3; ++k) {
+					final int i = faces[f*3+k];
+					vfaces[i][vfaces_n[i]++] = f;
+				}
+				// The plane of the triangle, weighted by its area
+				final double area = plane(f, n);
+				if (area > 0) {
+					for (int k=0; k<3; ++k) addPlane(faces[f*3+k], n[0], n[1], n[2], n[3], area);
+				}
+			}
+			// Edges, as sorted pairs of vertex indices
+			long[] edges = new long[n_alive * 3];
+			int n_edges = 0;
+			for (int f=0; f<n_faces; ++f) {
+				if (face_dead[f]) continue;
+				for (int k=0; k<3; ++k) {
+					final int a = faces[f*3+k], b = faces[f*3+(k+1)%3];
+					edges[n_edges++] = edgeKey(a, b);
+				}
+			}
+			Arrays.sort(edges, 0, n_edges);
+			final int capacity = Math.max(16, n_edges / 2 + 1);
+			this.h_cost = new double[capacity];
+			this.h_a = new int[capacity];
+			this.h_b = new int[capacity];
+			this.h_va = new int[capacity];
+			this.h_vb = new int[capacity];
+			// Hold open borders in place: edges of a single triangle get a plane perpendicular to it
+			for (int i=0; i<n_edges; ) {
+				int j = i + 1;
+				while (j < n_edges && edges[j] == edges[i]) ++j;
+				if (1 == j - i) {
+					final int a = (int)(edges[i] >>> 32), b = (int)(edges[i] & 0xffffffffL);
+					addBorderPlane(a, b, n);
+				}
+				i = j;
+			}
+			// Initial candidates
+			long last = -1;
+			for (int i=0; i<n_edges; ++i) {
+				if (edges[i] == last) continue;
+				last = edges[i];
+				push((int)(edges[i] >>> 32), (int)(edges[i] & 0xffffffffL));
+			}
+			edges = null;
+		}
+
+		static private final long edgeKey(final int a, final int b) {
+			return a < b ? ((long)a << 32) | b : ((long)b << 32) | a;
+		}
+
+		/** Store in @param n the unit normal and offset of the plane of face @param f, and return twice its area. */
+		private final double plane(final int f, final double[] n) {
+			final int a = faces[f*3] * 3, b = faces[f*3+1] * 3, c = faces[f*3+2] * 3;
+			return plane(pos[a], pos[a+1], pos[a+2], pos[b], pos[b+1], pos[b+2], pos[c], pos[c+1], pos[c+2], n);
+		}
+
+		static private final double plane(final double ax, final double ay, final double az,
+		                                  final double bx, final double by, final double bz,
+		                                  final double cx, final double cy, final double cz, final double[] n) {
+			final double ux = bx - ax, uy = by - ay, uz = bz - az,
+			             vx = cx - ax, vy = cy - ay, vz = cz - az;
+			double nx = uy * vz - uz * vy,
+			       ny = uz * vx - ux * vz,
+			       nz = ux * vy - uy * vx;
+			final double len = Math.sqrt(nx * nx + ny * ny + nz * nz);
+			if (0 == len) return 0;
+			nx /= len;
+			ny /= len;
+			nz /= len;
+			n[0] = nx;
+			n[1] = ny;
+			n[2] = nz;
+			n[3] = -(nx * ax + ny * ay + nz * az);
+			return len;
+		}
+
+		private final void addPlane(final int v, final double a, final double b, final double c, final double d, final double w) {
+			final int k = v * 10;
+			q[k]   += w * a * a;
+			q[k+1] += w * a * b;
+			q[k+2] += w * a * c;
+			q[k+3] += w * a * d;
+			q[k+4] += w * b * b;
+			q[k+5] += w * b * c;
+			q[k+6] += w * b * d;
+			q[k+7] += w * c * c;
+			q[k+8] += w * c * d;
+			q[k+9] += w * d * d;
+		}
+
+		private final void addBorderPlane(final int a, final int b, final double[] n) {
+			// Find the one triangle with this edge
+			for (int i=0; i<vfaces_n[a]; ++i) {
+				final int f = vfaces[a][i];
+				final int k = f * 3;
+				if (faces[k] != b && faces[k+1] != b && faces[k+2] != b) continue;
+				if (0 == plane(f, n)) return;
+				final double ex = pos[b*3] - pos[a*3], ey = pos[b*3+1] - pos[a*3+1], ez = pos[b*3+2] - pos[a*3+2];
+				// Perpendicular to the triangle, containing the edge
+				double mx = ey * n[2] - ez * n[1],
+				       my = ez * n[0] - ex * n[2],
+				       mz = ex * n[1] - ey * n[0];
+				final double len = Math.sqrt(mx * mx + my * my + mz * mz);
+				if (0 == len) return;
+				mx /= len;
+				my /= len;
+				mz /= len;
+				final double d = -(mx * pos[a*3] + my * pos[a*3+1] + mz * pos[a*3+2]);
+				final double w = BORDER_WEIGHT * (ex * ex + ey * ey + ez * ez);
+				addPlane(a, mx, my, mz, d, w);
+				addPlane(b, mx, my, mz, d, w);
+				return;
+			}
+		}
+
+		/** The error of point x,y,z for the sum of the quadrics of @param a and @param b. */
+		private final double error(final int a, final int b, final double x, final double y, final double z) {
+			final int i = a * 10, j = b * 10;
+			final double q0 = q[i] + q[j], q1 = q[i+1] + q[j+1], q2 = q[i+2] + q[j+2], q3 = q[i+3] + q[j+3],
+			             q4 = q[i+4] + q[j+4], q5 = q[i+5] + q[j+5], q6 = q[i+6] + q[j+6],
+			             q7 = q[i+7] + q[j+7], q8 = q[i+8] + q[j+8], q9 = q[i+9] + q[j+9];
+			return q0 * x * x + 2 * q1 * x * y + 2 * q2 * x * z + 2 * q3 * x
+			     + q4 * y * y + 2 * q5 * y * z + 2 * q6 * y
+			     + q7 * z * z + 2 * q8 * z
+			     + q9;
+		}
+
+		/** Store in @param p the best point to collapse edge a,b into, and return its error. */
+		private final double optimal(final int a, final int b, final double[] p) {
+			final int i = a * 10, j = b * 10;
+			final double q0 = q[i] + q[j], q1 = q[i+1] + q[j+1], q2 = q[i+2] + q[j+2], q3 = q[i+3] + q[j+3],
+			             q4 = q[i+4] + q[j+4], q5 = q[i+5] + q[j+5], q6 = q[i+6] + q[j+6],
+			             q7 = q[i+7] + q[j+7], q8 = q[i+8] + q[j+8];
+			final double ax = pos[a*3], ay = pos[a*3+1], az = pos[a*3+2],
+			             bx = pos[b*3], by = pos[b*3+1], bz = pos[b*3+2];
+			// Solve A x = -b by Cramer's rule, unless A is near singular
+			final double c00 = q4 * q7 - q5 * q5,
+			             c01 = q2 * q5 - q1 * q7,
+			             c02 = q1 * q5 - q2 * q4;
+			final double det = q0 * c00 + q1 * c01 + q2 * c02;
+			final double trace = q0 + q4 + q7;
+			if (Math.abs(det) > 1e-9 * trace * trace * trace) {
+				final double c11 = q0 * q7 - q2 * q2,
+				             c12 = q1 * q2 - q0 * q5,
+				             c22 = q0 * q4 - q1 * q1;
+				final double x = -(c00 * q3 + c01 * q6 + c02 * q8) / det,
+				             y = -(c01 * q3 + c11 * q6 + c12 * q8) / det,
+				             z = -(c02 * q3 + c12 * q6 + c22 * q8) / det;
+				// Reject points far away from the edge, from nearly flat regions
+				final double mx = x - (ax + bx) / 2, my = y - (ay + by) / 2, mz = z - (az + bz) / 2;
+				final double ex = bx - ax, ey = by - ay, ez = bz - az;
+				if (mx * mx + my * my + mz * mz <= 4 * (ex * ex + ey * ey + ez * ez)) {
+					p[0] = x;
+					p[1] = y;
+					p[2] = z;
+					return error(a, b, x, y, z);
+				}
+			}
+			// Otherwise the best of the two ends and the middle
+			final double ea = error(a, b, ax, ay, az),
+			             eb = error(a, b, bx, by, bz),
+			             mx = (ax + bx) / 2, my = (ay + by) / 2, mz = (az + bz) / 2,
+			             em = error(a, b, mx, my, mz);
+			if (ea <= eb && ea <= em) {
+				p[0] = ax; p[1] = ay; p[2] = az;
+				return ea;
+			}
+			if (eb <= em) {
+				p[0] = bx; p[1] = by; p[2] = bz;
+				return eb;
+			}
+			p[0] = mx; p[1] = my; p[2] = mz;
+			return em;
+		}
+
+		private final double[] tmp_p = new double[3];
+
+		private final void push(final int a, final int b) {
+			final double cost = optimal(a, b, tmp_p);
+			if (h_n == h_cost.length) {
+				final int capacity = h_n * 2;
+				h_cost = Arrays.copyOf(h_cost, capacity);
+				h_a = Arrays.copyOf(h_a, capacity);
+				h_b = Arrays.copyOf(h_b, capacity);
+				h_va = Arrays.copyOf(h_va, capacity);
+				h_vb = Arrays.copyOf(h_vb, capacity);
+			}
+			int i = h_n++;
+			// Sift up
+			while (i > 0) {
+				final int parent = (i - 1) >> 1;
+				if (h_cost[parent] <= cost) break;
+				move(parent, i);
+				i = parent;
+			}
+			h_cost[i] = cost;
+			h_a[i] = a;
+			h_b[i] = b;
+			h_va[i] = version[a];
+			h_vb[i] = version[b];
+		}
+
+		private final void move(final int from, final int to) {
+			h_cost[to] = h_cost[from];
+			h_a[to] = h_a[from];
+			h_b[to] = h_b[from];
+			h_va[to] = h_va[from];
+			h_vb[to] = h_vb[from];
+		}
+
+		/** Remove the root of the heap. */
+		private final void pop() {
+			--h_n;
+			if (0 == h_n) return;
+			// Sift down the last entry from the root
+			final double cost = h_cost[h_n];
+			final int a = h_a[h_n], b = h_b[h_n], va = h_va[h_n], vb = h_vb[h_n];
+			int i = 0;
+			for (;;) {
+				int child = 2 * i + 1;
+				if (child >= h_n) break;
+				if (child + 1 < h_n && h_cost[child + 1] < h_cost[child]) ++child;
+				if (cost <= h_cost[child]) break;
+				move(child, i);
+				i = child;
+			}
+			h_cost[i] = cost;
+			h_a[i] = a;
+			h_b[i] = b;
+			h_va[i] = va;
+			h_vb[i] = vb;
+		}
+
+		final IndexedTriangleMesh run(final int target) {
+			final double[] p = new double[3];
+			while (n_alive > target && h_n > 0) {
+				final int a = h_a[0], b = h_b[0];
+				final boolean valid = !vert_dead[a] && !vert_dead[b] && h_va[0] == version[a] && h_vb[0] == version[b];
+				pop();
+				if (!valid) continue;
+				optimal(a, b, p);
+				if (!canCollapse(a, b, p)) continue;
+				collapse(a, b, p);
+			}
+			return toMesh();
+		}
+
+		/** Check that the neighbors shared by a and b are only the opposite corners of their shared triangles,
+		 * and that no other triangle of either flips over when moving them to @param p. */
+		private final boolean canCollapse(final int a, final int b, final double[] p) {
+			++mark_stamp;
+			int shared_faces = 0;
+			for (int i=0; i<vfaces_n[a]; ++i) {
+				final int f = vfaces[a][i];
+				if (face_dead[f]) continue;
+				for (int k=0; k<3; ++k) mark[faces[f*3+k]] = mark_stamp;
+				if (faces[f*3] == b || faces[f*3+1] == b || faces[f*3+2] == b) ++shared_faces;
+			}
+			// Count the neighbors of b that are also neighbors of a, each once
+			final int stamp_a = mark_stamp;
+			final int stamp_common = ++mark_stamp;
+			int common = 0;
+			for (int i=0; i<vfaces_n[b]; ++i) {
+				final int f = vfaces[b][i];
+				if (face_dead[f]) continue;
+				for (int k=0; k<3; ++k) {
+					final int v = faces[f*3+k];
+					if (v == a || v == b) continue;
+					if (stamp_a == mark[v]) {
+						mark[v] = stamp_common;
+						++common;
+					}
+				}
+			}
+			if (common != shared_faces) return false;
+			return !flips(a, b, p) && !flips(b, a, p);
+		}
+
+		/** Whether any triangle of @param v that doesn't contain @param other turns over when moving v to @param p. */
+		private final boolean flips(final int v, final int other, final double[] p) {
+			final double[] n0 = new double[4], n1 = new double[4];
+			for (int i=0; i<vfaces_n[v]; ++i) {
+				final int f = vfaces[v][i];
+				if (face_dead[f]) continue;
+				final int k = f * 3;
+				if (faces[k] == other || faces[k+1] == other || faces[k+2] == other) continue;
+				if (0 == plane(f, n0)) continue;
+				final double[] c = new double[9];
+				for (int j=0; j<3; ++j) {
+					final int u = faces[k+j];
+					if (u == v) {
+						c[j*3] = p[0]; c[j*3+1] = p[1]; c[j*3+2] = p[2];
+					} else {
+						c[j*3] = pos[u*3]; c[j*3+1] = pos[u*3+1]; c[j*3+2] = pos[u*3+2];
+					}
+				}
+				if (0 == plane(c[0], c[1], c[2], c[3], c[4], c[5], c[6], c[7], c[8], n1)) return true;
+				if (n0[0] * n1[0] + n0[1] * n1[1] + n0[2] * n1[2] < 0.2) return true;
+			}
+			return false;
+		}
+
+		/** Merge b into a, placing a at @param p. */
+		private final void collapse(final int a, final int b, final double[] p) {
+			pos[a*3] = p[0];
+			pos[a*3+1] = p[1];
+			pos[a*3+2] = p[2];
+			for (int k=0; k<10; ++k) q[a*10+k] += q[b*10+k];
+			for (int i=0; i<vfaces_n[b]; ++i) {
+				final int f = vfaces[b][i];
+				if (face_dead[f]) continue;
+				final int k = f * 3;
+				if (faces[k] == a || faces[k+1] == a || faces[k+2] == a) {
+					face_dead[f] = true;
+					--n_alive;
+					continue;
+				}
+				for (int j=0; j<3; ++j) if (faces[k+j] == b) faces[k+j] = a;
+				addFace(a, f);
+			}
+			vert_dead[b] = true;
+			vfaces[b] = null;
+			vfaces_n[b] = 0;
+			++version[a];
+			++version[b];
+			// Drop dead triangles from a
+			int n = 0;
+			final int[] fs = vfaces[a];
+			for (int i=0; i<vfaces_n[a]; ++i) {
+				if (!face_dead[fs[i]]) fs[n++] = fs[i];
+			}
+			vfaces_n[a] = n;
+			// New candidates for all edges of a
+			final int stamp = ++mark_stamp;
+			for (int i=0; i<n; ++i) {
+				final int k = fs[i] * 3;
+				for (int j=0; j<3; ++j) {
+					final int v = faces[k+j];
+					if (v == a || stamp == mark[v]) continue;
+					mark[v] = stamp;
+					push(a, v);
+				}
+			}
+		}
+
+		private final void addFace(final int v, final int f) {
+			if (vfaces_n[v] == vfaces[v].length) vfaces[v] = Arrays.copyOf(vfaces[v], Math.max(8, vfaces[v].length * 2));
+			vfaces[v][vfaces_n[v]++] = f;
+		}
+
+		private final IndexedTriangleMesh toMesh() {
+			final int[] map = new int[n_verts];
+			Arrays.fill(map, -1);
+			final int[] indices = new int[n_alive * 3];
+			int n_indices = 0,
+			    n = 0;
+			for (int f=0; f<face_dead.length; ++f) {
+				if (face_dead[f]) continue;
+				for (int k=0; k<3; ++k) {
+					final int v = faces[f*3+k];
+					if (-1 == map[v]) map[v] = n++;
+					indices[n_indices++] = map[v];
+				}
+			}
+			final float[] verts = new float[n * 3];
+			for (int v=0; v<n_verts; ++v) {
+				if (-1 == map[v]) continue;
+				final int k = map[v] * 3;
+				verts[k] = (float)pos[v*3];
+				verts[k+1] = (float)pos[v*3+1];
+				verts[k+2] = (float)pos[v*3+2];
+			}
+			return new IndexedTriangleMesh(verts, indices);
+		}
+	}
+}
@@ -0,0 +1,567 @@
+package ini.trakem2.utils;
+
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/** A set of pixels stored as one sorted list of runs per row, as an alternative
+ * to {@link Area} for regions that live on the pixel grid, such as those painted
+ * with the brush of an {@link ini.trakem2.display.AreaList}.
+ *
+ * Union, difference and intersection are linear merges of the runs of each row,
+ * whereas the same operation on an {@link Area} is a geometric boolean operation
+ * whose cost grows with the complexity of both outlines.
+ *
+ * A pixel (x,y) is in the set when its center (x+0.5,y+0.5) is inside the shape it
+ * was rasterized from, like when filling a shape with java.awt. Hence an {@link Area}
+ * made only of horizontal and vertical edges on integer coordinates, such as those of
+ * {@link #toArea()}, converts to and from a {@link RunLengthArea} without loss; other
+ * shapes are replaced by the pixels that java.awt would fill for them.
+ *
+ * Not thread-safe.
+ */
+public final class RunLengthArea implements Cloneable {
+
+	static private final int[] EMPTY = new int[0];
+
+	/** The y coordinate of rows[0]. */
+	private int top = 0;
+	/** Each row holds pairs of start (inclusive) and end (exclusive) x coordinates,
+	 * sorted, non-overlapping and non-adjacent. Rows past n_rows are unused. */
+	private int[][] rows = new int[0][];
+	private int n_rows = 0;
+
+	public RunLengthArea() {}
+
+	/** Rasterize @param shape, which may be an {@link Area}. */
+	public RunLengthArea(final Shape shape) {
+		this(shape, null);
+	}
+
+	/** Rasterize @param shape after transforming it with @param aff, which may be null. */
+	public RunLengthArea(final Shape shape, final AffineTransform aff) {
+		rasterize(shape.getPathIterator(aff, 0.25));
+	}
+
+	/** The given rectangle of pixels. */
+	public RunLengthArea(final Rectangle r) {
+		if (r.width <= 0 || r.height <= 0) return;
+		this.top = r.y;
+		this.n_rows = r.height;
+		this.rows = new int[r.height][];
+		final int[] row = new int[]{r.x, r.x + r.width};
+		for (int i=0; i<r.height; ++i) rows[i] = row.clone();
+	}
+
+	@Override
+	public RunLengthArea clone() {
+		final RunLengthArea copy = new RunLengthArea();
+		copy.top = top;
+		copy.n_rows = n_rows;
+		copy.rows = new int[n_rows][];
+		// rows are never modified in place, so they can be shared
+		System.arraycopy(rows, 0, copy.rows, 0, n_rows);
+		return copy;
+	}
+
+	public boolean isEmpty() {
+		return 0 == n_rows;
+	}
+
+	/** Remove all pixels. */
+	public void reset() {
+		top = 0;
+		rows = new int[0][];
+		n_rows = 0;
+	}
+
+	/** The smallest rectangle containing all pixels; empty if there aren't any. */
+	public Rectangle getBounds() {
+		if (0 == n_rows) return new Rectangle();
+		int x0 = Integer.MAX_VALUE,
+		    x1 = Integer.MIN_VALUE;
+		for (int i=0; i<n_rows; ++i) {
+			final int[] row = rows[i];
+			if (0 == row.length) continue;
+			if (row[0] < x0) x0 = row[0];
+			if (row[row.length -1] > x1) x1 = row[row.length -1];
+		}
+		return new Rectangle(x0, top, x1 - x0, n_rows);
+	}
+
+	/** The number of pixels. */
+	public long getPixelCount() {
+		long count = 0;
+		for (int i=0; i<n_rows; ++i) {
+			final int[] row = rows[i];
+			for (int k=0; k<row.length; k+=2) count += row[k+1] - row[k];
+		}
+		return count;
+	}
+
+	public boolean contains(final int x, final int y) {
+		final int i = y - top;
+		if (i < 0 || i >= n_rows) return false;
+		final int[] row = rows[i];
+		for (int k=0; k<row.length; k+=2) {
+			if (x < row[k]) return false;
+			if (x < row[k+1]) return true;
+		}
+		return false;
+	}
+
+	public void translate(final int dx, final int dy) {
+		top += dy;
+		if (0 == dx) return;
+		for (int i=0; i<n_rows; ++i) {
+			final int[] row = rows[i].clone();
+			for (int k=0; k<row.length; ++k) row[k] += dx;
+			rows[i] = row;
+		}
+	}
+
+	/** Add all pixels of @param other to this. */
+	public void add(final RunLengthArea other) {
+		if (0 == other.n_rows) return;
+		if (0 == n_rows) {
+			final RunLengthArea copy = other.clone();
+			this.top = copy.top;
+			this.rows = copy.rows;
+			this.n_rows = copy.n_rows;
+			return;
+		}
+		ensureRows(other.top, other.top + other.n_rows);
+		for (int j=0; j<other.n_rows; ++j) {
+			final int i = other.top + j - top;
+			rows[i] = union(rows[i], other.rows[j]);
+		}
+	}
+
+	/** Remove all pixels of @param other from this. */
+	public void subtract(final RunLengthArea other) {
+		final int first = Math.max(top, other.top),
+		          last = Math.min(top + n_rows, other.top + other.n_rows);
+		for (int y=first; y<last; ++y) {
+			rows[y - top] = difference(rows[y - top], other.rows[y - other.top]);
+		}
+		trim();
+	}
+
+	/** Keep only the pixels that are also in @param other. */
+	public void intersect(final RunLengthArea other) {
+		final int first = Math.max(top, other.top),
+		          last = Math.min(top + n_rows, other.top + other.n_rows);
+		for (int i=0; i<n_rows; ++i) {
+			final int y = top + i;
+			rows[i] = y < first || y >= last ? EMPTY : intersection(rows[i], other.rows[y - other.top]);
+		}
+		trim();
+	}
+
+	/** Set to @param value all pixels of @param ip that are in this area once translated by dx,dy. */
+	public void fill(final ImageProcessor ip, final int dx, final int dy, final int value) {
+		final int width = ip.getWidth(),
+		          height = ip.getHeight();
+		final int first = Math.max(0, top + dy),
+		          last = Math.min(height, top + dy + n_rows);
+		for (int y=first; y<last; ++y) {
+			final int[] row = rows[y - dy - top];
+			final int offset = y * width;
+			for (int k=0; k<row.length; k+=2) {
+				final int x0 = Math.max(0, row[k] + dx),
+				          x1 = Math.min(width, row[k+1] + dx);
+				for (int x=x0; x<x1; ++x) ip.set(offset + x, value);
+			}
+		}
+	}
+
+	/** A cheap outline made of one rectangle per block of consecutive identical rows,
+	 * good for filling with {@link java.awt.Graphics2D#fill(Shape)} but not for drawing;
+	 * see {@link #toOutline()}. */
+	public Path2D.Float toShape() {
+		final Path2D.Float path = new Path2D.Float(Path2D.WIND_NON_ZERO);
+		int i = 0;
+		while (i < n_rows) {
+			final int[] row = rows[i];
+			int k = i + 1;
+			while (k < n_rows && Arrays.equals(row, rows[k])) ++k;
+			final int y0 = top + i,
+			          y1 = top + k;
+			for (int r=0; r<row.length; r+=2) {
+				path.moveTo(row[r], y0);
+				path.lineTo(row[r+1], y0);
+				path.lineTo(row[r+1], y1);
+				path.lineTo(row[r], y1);
+				path.closePath();
+			}
+			i = k;
+		}
+		return path;
+	}
+
+	/** The boundary of the pixels, as one closed polygon per outer boundary or hole,
+	 * with the inside on the right-hand side (in screen coordinates) and without
+	 * collinear vertices. Good for both drawing and filling. */
+	public Path2D.Float toOutline() {
+		// Directed boundary edges: vertical ones at the ends of each run,
+		// horizontal ones where a run starts or stops covering a row boundary
+		int[] edges = new int[64]; // x0,y0,x1,y1
+		int n_edges = 0;
+		for (int i=0; i<=n_rows; ++i) {
+			final int y = top + i;
+			final int[] above = i > 0 ? rows[i-1] : EMPTY,
+			            below = i < n_rows ? rows[i] : EMPTY;
+			final int[] opening = difference(below, above),
+			            closing = difference(above, below);
+			final int n = n_edges + (opening.length + closing.length) / 2 + below.length;
+			if (edges.length < n * 4) edges = Arrays.copyOf(edges, Math.max(n * 4, edges.length * 2));
+			for (int k=0; k<opening.length; k+=2) {
+				n_edges = edge(edges, n_edges, opening[k], y, opening[k+1], y);
+			}
+			for (int k=0; k<closing.length; k+=2) {
+				n_edges = edge(edges, n_edges, closing[k+1], y, closing[k], y);
+			}
+			for (int k=0; k<below.length; k+=2) {
+				n_edges = edge(edges, n_edges, below[k+1], y, below[k+1], y+1);
+				n_edges = edge(edges, n_edges, below[k], y+1, below[k], y);
+			}
+		}
+
+		// Chain the edges leaving each vertex; at most two, where pixels touch diagonally
+		final HashMap<Long,Integer> first = new HashMap<Long,Integer>(n_edges * 2);
+		final int[] next = new int[n_edges];
+		for (int e=0; e<n_edges; ++e) {
+			final Integer f = first.put(key(edges[e*4], edges[e*4 + 1]), e);
+			next[e] = null == f ? -1 : f;
+		}
+
+		// Walk each loop, emitting a vertex only where the direction changes
+		final Path2D.Float path = new Path2D.Float(Path2D.WIND_NON_ZERO);
+		final boolean[] used = new boolean[n_edges];
+		for (int start=0; start<n_edges; ++start) {
+			if (used[start]) continue;
+			path.moveTo(edges[start*4], edges[start*4 + 1]);
+			int e = start;
+			while (true) {
+				used[e] = true;
+				final int x = edges[e*4 + 2],
+				          y = edges[e*4 + 3];
+				int f = first.get(key(x, y));
+				while (-1 != f && used[f]) f = next[f];
+				if (-1 == f) break; // back at the start
+				if (direction(edges, f) != direction(edges, e)) path.lineTo(x, y);
+				e = f;
+			}
+			path.closePath();
+		}
+		return path;
+	}
+
+	/** An {@link Area} with horizontal and vertical edges on integer coordinates,
+	 * containing exactly the pixels of this; built from {@link #toOutline()}. */
+	public Area toArea() {
+		return new Area(toOutline());
+	}
+
+	/** All runs in a single array, for storage: the top row, the number of rows,
+	 * the index of the first run of each row plus one past the last, then the runs
+	 * of all rows. Restore with {@link #unpack(int[])}. */
+	public int[] pack() {
+		int n_values = 0;
+		for (int i=0; i<n_rows; ++i) n_values += rows[i].length;
+		final int[] packed = new int[3 + n_rows + n_values];
+		packed[0] = top;
+		packed[1] = n_rows;
+		int k = 3 + n_rows;
+		for (int i=0; i<n_rows; ++i) {
+			packed[2 + i] = k;
+			System.arraycopy(rows[i], 0, packed, k, rows[i].length);
+			k += rows[i].length;
+		}
+		packed[2 + n_rows] = k;
+		return packed;
+	}
+
+	/** The inverse of {@link #pack()}. */
+	static public RunLengthArea unpack(final int[] packed) {
+		final RunLengthArea r = new RunLengthArea();
+		r.top = packed[0];
+		r.n_rows = packed[1];
+		r.rows = new int[r.n_rows][];
+		for (int i=0; i<r.n_rows; ++i) {
+			final int k0 = packed[2 + i],
+			          k1 = packed[3 + i];
+			r.rows[i] = k0 == k1 ? EMPTY : Arrays.copyOfRange(packed, k0, k1);
+		}
+		return r;
+	}
+
+	/** Same as {@link #getBounds()}, for the packed runs of {@link #pack()}. */
+	static public Rectangle getBounds(final int[] packed) {
+		final int n_rows = packed[1];
+		if (0 == n_rows) return new Rectangle();
+		int x0 = Integer.MAX_VALUE,
+		    x1 = Integer.MIN_VALUE;
+		for (int i=0; i<n_rows; ++i) {
+			final int k0 = packed[2 + i],
+			          k1 = packed[3 + i];
+			if (k0 == k1) continue;
+			if (packed[k0] < x0) x0 = packed[k0];
+			if (packed[k1 -1] > x1) x1 = packed[k1 -1];
+		}
+		return new Rectangle(x0, packed[0], x1 - x0, n_rows);
+	}
+
+	/** Same as {@link #translate(int, int)}, in place on the packed runs of {@link #pack()}. */
+	static public void translate(final int[] packed, final int dx, final int dy) {
+		packed[0] += dy;
+		for (int k=packed[2], end=packed[2 + packed[1]]; k<end; ++k) packed[k] += dx;
+	}
+
+	static private final int edge(final int[] edges, final int n_edges, final int x0, final int y0, final int x1, final int y1) {
+		edges[n_edges * 4    ] = x0;
+		edges[n_edges * 4 + 1] = y0;
+		edges[n_edges * 4 + 2] = x1;
+		edges[n_edges * 4 + 3] = y1;
+		return n_edges + 1;
+	}
+
+	static private final Long key(final int x, final int y) {
+		return (((long)x) << 32) | (y & 0xffffffffL);
+	}
+
+	/** 0: right, 1: down, 2: left, 3: up. */
+	static private final int direction(final int[] edges, final int e) {
+		final int dx = edges[e*4 + 2] - edges[e*4],
+		          dy = edges[e*4 + 3] - edges[e*4 + 1];
+		if (0 == dy) return dx > 0 ? 0 : 2;
+		return dy > 0 ? 1 : 3;
+	}
+
+	/** Scanline fill of a flattened path, sampling pixel centers. */
+	private void rasterize(final PathIterator pit) {
+		// Collect edges
+		float[] edges = new float[64]; // x0,y0,x1,y1
+		int n_edges = 0;
+		float ymin = Float.MAX_VALUE,
+		      ymax = -Float.MAX_VALUE;
+		final float[] coords = new float[6];
+		float mx = 0, my = 0, px = 0, py = 0;
+		for (; !pit.isDone(); pit.next()) {
+			float x, y;
+			switch (pit.currentSegment(coords)) {
+				case PathIterator.SEG_MOVETO:
+					mx = px = coords[0];
+					my = py = coords[1];
+					continue;
+				case PathIterator.SEG_LINETO:
+					x = coords[0];
+					y = coords[1];
+					break;
+				case PathIterator.SEG_CLOSE:
+					x = mx;
+					y = my;
+					break;
+				default:
+					// cannot happen with a flattening iterator
+					continue;
+			}
+			if (py != y) {
+				if (edges.length == n_edges * 4) edges = Arrays.copyOf(edges, edges.length * 2);
+				edges[n_edges * 4    ] = px;
+				edges[n_edges * 4 + 1] = py;
+				edges[n_edges * 4 + 2] = x;
+				edges[n_edges * 4 + 3] = y;
+				++n_edges;
+				if (y < ymin) ymin = y;
+				if (y > ymax) ymax = y;
+				if (py < ymin) ymin = py;
+				if (py > ymax) ymax = py;
+			}
+			px = x;
+			py = y;
+		}
+		if (0 == n_edges) return;
+
+		final boolean even_odd = PathIterator.WIND_EVEN_ODD == pit.getWindingRule();
+		final int first = (int)Math.ceil(ymin - 0.5),
+		          last = (int)Math.ceil(ymax - 0.5); // exclusive
+		if (first >= last) return;
+		final int height = last - first;
+
+		// Count the crossings of each row, then store them all in one array
+		final int[] offsets = new int[height + 1];
+		for (int e=0; e<n_edges; ++e) {
+			final float y0 = Math.min(edges[e*4 + 1], edges[e*4 + 3]),
+			            y1 = Math.max(edges[e*4 + 1], edges[e*4 + 3]);
+			for (int y=(int)Math.ceil(y0 - 0.5), end=(int)Math.ceil(y1 - 0.5); y<end; ++y) {
+				++offsets[y - first + 1];
+			}
+		}
+		for (int i=0; i<height; ++i) offsets[i+1] += offsets[i];
+
+		// Each crossing is a sortable long: the float bits of x, then the direction in the lowest bit
+		final long[] crossings = new long[offsets[height]];
+		final int[] next = Arrays.copyOf(offsets, height);
+		for (int e=0; e<n_edges; ++e) {
+			final float x0 = edges[e*4], y0 = edges[e*4 + 1],
+			            x1 = edges[e*4 + 2], y1 = edges[e*4 + 3];
+			final long down = y1 > y0 ? 1 : 0;
+			final double slope = (x1 - x0) / (double)(y1 - y0);
+			for (int y=(int)Math.ceil(Math.min(y0, y1) - 0.5), end=(int)Math.ceil(Math.max(y0, y1) - 0.5); y<end; ++y) {
+				final float x = (float)(x0 + (y + 0.5 - y0) * slope);
+				int bits = Float.floatToIntBits(x);
+				bits ^= (bits >> 31) & 0x7fffffff;
+				crossings[next[y - first]++] = (((long)bits) << 1) | down;
+			}
+		}
+
+		this.top = first;
+		this.n_rows = height;
+		this.rows = new int[height][];
+		int[] runs = new int[16];
+		for (int i=0; i<height; ++i) {
+			final int start = offsets[i],
+			          end = offsets[i+1];
+			Arrays.sort(crossings, start, end);
+			int n = 0;
+			int winding = 0;
+			float xin = 0;
+			for (int c=start; c<end; ++c) {
+				final boolean was_inside = even_odd ? 0 != (winding & 1) : 0 != winding;
+				winding += 0 != (crossings[c] & 1) ? 1 : -1;
+				final boolean inside = even_odd ? 0 != (winding & 1) : 0 != winding;
+				if (was_inside == inside) continue;
+				int bits = (int)(crossings[c] >> 1);
+				bits ^= (bits >> 31) & 0x7fffffff;
+				final float x = Float.intBitsToFloat(bits);
+				if (inside) {
+					xin = x;
+					continue;
+				}
+				final int x0 = (int)Math.ceil(xin - 0.5),
+				          x1 = (int)Math.ceil(x - 0.5);
+				if (x0 >= x1) continue;
+				if (n > 0 && x0 <= runs[n-1]) {
+					runs[n-1] = Math.max(runs[n-1], x1);
+				} else {
+					if (runs.length == n) runs = Arrays.copyOf(runs, n * 2);
+					runs[n++] = x0;
+					runs[n++] = x1;
+				}
+			}
+			rows[i] = 0 == n ? EMPTY : Arrays.copyOf(runs, n);
+		}
+		trim();
+	}
+
+	/** Grow the rows to span at least the y range [y0, y1). */
+	private void ensureRows(final int y0, final int y1) {
+		final int new_top = Math.min(top, y0),
+		          new_bottom = Math.max(top + n_rows, y1);
+		if (new_top == top && new_bottom - new_top <= rows.length) {
+			for (int i=n_rows; i<new_bottom - top; ++i) rows[i] = EMPTY;
+			n_rows = new_bottom - top;
+			return;
+		}
+		final int n = new_bottom - new_top;
+		final int[][] r = new int[Math.max(n, n_rows + (n_rows >> 1))][];
+		Arrays.fill(r, 0, n, EMPTY);
+		System.arraycopy(rows, 0, r, top - new_top, n_rows);
+		this.rows = r;
+		this.top = new_top;
+		this.n_rows = n;
+	}
+
+	/** Remove empty rows at either end. */
+	private void trim() {
+		int first = 0;
+		while (first < n_rows && 0 == rows[first].length) ++first;
+		if (first == n_rows) {
+			reset();
+			return;
+		}
+		int last = n_rows;
+		while (0 == rows[last -1].length) --last;
+		if (0 == first && n_rows == last) return;
+		final int[][] r = new int[last - first][];
+		System.arraycopy(rows, first, r, 0, r.length);
+		this.rows = r;
+		this.top += first;
+		this.n_rows = r.length;
+	}
+
+	static private final int[] union(final int[] a, final int[] b) {
+		if (0 == a.length) return b;
+		if (0 == b.length) return a;
+		final int[] out = new int[a.length + b.length];
+		int n = 0, i = 0, j = 0;
+		while (i < a.length || j < b.length) {
+			final int s, e;
+			if (j == b.length || (i < a.length && a[i] <= b[j])) {
+				s = a[i];
+				e = a[i+1];
+				i += 2;
+			} else {
+				s = b[j];
+				e = b[j+1];
+				j += 2;
+			}
+			if (n > 0 && s <= out[n-1]) {
+				if (e > out[n-1]) out[n-1] = e;
+			} else {
+				out[n++] = s;
+				out[n++] = e;
+			}
+		}
+		return n == out.length ? out : Arrays.copyOf(out, n);
+	}
+
+	static private final int[] difference(final int[] a, final int[] b) {
+		if (0 == a.length || 0 == b.length) return a;
+		final int[] out = new int[a.length + b.length];
+		int n = 0, j = 0;
+		for (int i=0; i<a.length; i+=2) {
+			final int s = a[i],
+			          e = a[i+1];
+			while (j < b.length && b[j+1] <= s) j += 2;
+			int cur = s;
+			for (int k=j; k < b.length && b[k] < e; k+=2) {
+				if (b[k] > cur) {
+					out[n++] = cur;
+					out[n++] = b[k];
+				}
+				cur = Math.max(cur, b[k+1]);
+			}
+			if (cur < e) {
+				out[n++] = cur;
+				out[n++] = e;
+			}
+		}
+		return 0 == n ? EMPTY : Arrays.copyOf(out, n);
+	}
+
+	static private final int[] intersection(final int[] a, final int[] b) {
+		if (0 == a.length || 0 == b.length) return EMPTY;
+		final int[] out = new int[a.length + b.length];
+		int n = 0, i = 0, j = 0;
+		while (i < a.length && j < b.length) {
+			final int s = Math.max(a[i], b[j]),
+			          e = Math.min(a[i+1], b[j+1]);
+			if (s < e) {
+				out[n++] = s;
+				out[n++] = e;
+			}
+			if (a[i+1] < b[j+1]) i += 2;
+			else j += 2;
+		}
+		return 0 == n ? EMPTY : Arrays.copyOf(out, n);
+	}
+}
@@ -72,6 +72,7 @@ public class AbstractLayerAlignmentParam implements Serializable
 
 		gdSIFT.addMessage( "Local Descriptor Matching:" );
 		gdSIFT.addNumericField( "closest/next_closest_ratio :", ppm.rod, 2 );
+		gdSIFT.addCheckbox( "approximate_nearest_neighbors", ppm.useFeatureIndex );
 
 		gdSIFT.addMessage( "Miscellaneous:" );
 		gdSIFT.addCheckbox( "clear_cache", ppm.clearCache );
@@ -85,6 +86,7 @@ public class AbstractLayerAlignmentParam implements Serializable
 		SIFT.readFields( gdSIFT, ppm.sift );
 
 		ppm.rod = ( float )gdSIFT.getNextNumber();
+		ppm.useFeatureIndex = gdSIFT.getNextBoolean();
 		ppm.clearCache = gdSIFT.getNextBoolean();
 		ppm.maxNumThreadsSift = ( int )gdSIFT.getNextNumber();
 
@@ -150,7 +152,7 @@ public class AbstractLayerAlignmentParam implements Serializable
 	@Override
 	public AbstractLayerAlignmentParam clone()
 	{
-		return new AbstractLayerAlignmentParam(
+		final AbstractLayerAlignmentParam clone = new AbstractLayerAlignmentParam(
 				ppm.sift.fdBins,
 				ppm.sift.fdSize,
 				ppm.sift.initialSigma,
@@ -176,5 +178,7 @@ public class AbstractLayerAlignmentParam implements Serializable
 				multipleHypotheses,
 				rejectIdentity,
 				visualize );
+		clone.ppm.useFeatureIndex = ppm.useFeatureIndex;
+		return clone;
 	}
 }
\ No newline at end of file
@@ -6,9 +6,12 @@ package mpicbg.trakem2.align;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.GenericDialog;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
 import ini.trakem2.display.Display;
 import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Layer;
+import ini.trakem2.display.MipMapImage;
 import ini.trakem2.display.Patch;
 import ini.trakem2.display.Selection;
 import ini.trakem2.persistence.FSLoader;
@@ -17,6 +20,7 @@ import ini.trakem2.utils.Filter;
 import ini.trakem2.utils.Utils;
 
 import java.awt.Color;
+import java.awt.Image;
 import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.io.Serializable;
@@ -44,6 +48,7 @@ import mpicbg.models.Transforms;
 import mpicbg.trakem2.transform.MovingLeastSquaresTransform2;
 import mpicbg.trakem2.transform.RigidModel2D;
 import mpicbg.trakem2.transform.TranslationModel2D;
+import mpicbg.trakem2.util.Downsampler;
 
 /**
  * A collection of methods regarding SIFT-based alignment
@@ -107,6 +112,14 @@ public class Align
 		public boolean rejectIdentity = false;
 		public float identityTolerance = 0.5f;
 
+		/**
+		 * Extract the features of patches larger than twice maxOctaveSize
+		 * from a mipmap instead of the full resolution image, see
+		 * {@link Align#siftSourceLevel(Param, Patch)}.  Faster, but the
+		 * features agree with those at full resolution only approximately.
+		 */
+		public boolean siftFromMipMaps = false;
+
 		public Param()
 		{
 			sift.maxOctaveSize = 600;
@@ -117,6 +130,7 @@ public class Align
 		{
 			SIFT.addFields( gd, sift );
 			gd.addNumericField( "closest/next_closest_ratio :", rod, 2 );
+			gd.addCheckbox( "extract_features_from_mipmaps", siftFromMipMaps );
 		}
 
 		public void addGeometricConsensusFilterFields( final GenericDialog gd )
@@ -161,6 +175,7 @@ public class Align
 		{
 			SIFT.readFields( gd, sift );
 			rod = ( float )gd.getNextNumber();
+			siftFromMipMaps = gd.getNextBoolean();
 
 			return !gd.invalidNumber();
 		}
@@ -265,6 +280,7 @@ public class Align
 			p.sift.fdBins = this.sift.fdBins;
 
 			p.rod = rod;
+			p.siftFromMipMaps = siftFromMipMaps;
 			p.maxEpsilon = maxEpsilon;
 			p.minInlierRatio = minInlierRatio;
 			p.minNumInliers = minNumInliers;
@@ -297,6 +313,7 @@ public class Align
 		{
 			return
 				sift.equals( p.sift ) &&
+				( siftFromMipMaps == p.siftFromMipMaps ) &&
 				( rod == p.rod ) &&
 				( maxEpsilon == p.maxEpsilon ) &&
 				( minInlierRatio == p.minInlierRatio ) &&
@@ -331,6 +348,11 @@ public class Align
 		public boolean filterOutliers = false;
 		public float meanFactor = 3.0f;
 
+		/**
+		 * Solver, one of {@link TileConfiguration#solverStrings}
+		 */
+		public int solverIndex = TileConfiguration.ITERATIVE;
+
 		@Override
 		public void addAlignmentFields( final GenericDialog gd )
 		{
@@ -342,6 +364,7 @@ public class Align
 			gd.addNumericField( "maximal_plateauwidth :", maxPlateauwidth, 0 );
 			gd.addCheckbox( "filter outliers", filterOutliers );
 			gd.addNumericField( "mean_factor :", meanFactor, 2 );
+			gd.addChoice( "solver :", TileConfiguration.solverStrings, TileConfiguration.solverStrings[ solverIndex ] );
 		}
 
 		@Override
@@ -353,6 +376,7 @@ public class Align
 			maxPlateauwidth = ( int )gd.getNextNumber();
 			filterOutliers = gd.getNextBoolean();
 			meanFactor = ( float )gd.getNextNumber();
+			solverIndex = gd.getNextChoiceIndex();
 
 			return !gd.invalidNumber();
 		}
@@ -366,6 +390,7 @@ public class Align
 			gd.addNumericField( "maximal_plateauwidth :", maxPlateauwidth, 0 );
 			gd.addCheckbox( "filter outliers", filterOutliers );
 			gd.addNumericField( "mean_factor :", meanFactor, 2 );
+			gd.addChoice( "solver :", TileConfiguration.solverStrings, TileConfiguration.solverStrings[ solverIndex ] );
 		}
 
 		@Override
@@ -377,6 +402,7 @@ public class Align
 			maxPlateauwidth = ( int )gd.getNextNumber();
 			filterOutliers = gd.getNextBoolean();
 			meanFactor = ( float )gd.getNextNumber();
+			solverIndex = gd.getNextChoiceIndex();
 
 			return !gd.invalidNumber();
 		}
@@ -396,6 +422,7 @@ public class Align
 			p.sift.fdBins = this.sift.fdBins;
 
 			p.rod = rod;
+			p.siftFromMipMaps = siftFromMipMaps;
 			p.maxEpsilon = maxEpsilon;
 			p.minInlierRatio = minInlierRatio;
 			p.minNumInliers = minNumInliers;
@@ -411,6 +438,7 @@ public class Align
 			p.maxPlateauwidth = maxPlateauwidth;
 			p.filterOutliers = filterOutliers;
 			p.meanFactor = meanFactor;
+			p.solverIndex = solverIndex;
 
 			return p;
 		}
@@ -422,7 +450,8 @@ public class Align
 				( maxIterations == p.maxIterations ) &&
 				( maxPlateauwidth == p.maxPlateauwidth ) &&
 				( filterOutliers == p.filterOutliers ) &&
-				( meanFactor == p.meanFactor );
+				( meanFactor == p.meanFactor ) &&
+				( solverIndex == p.solverIndex );
 		}
 	}
 
@@ -434,10 +463,13 @@ public class Align
 
 		FloatArray2DSIFT.Param p;
 		ArrayList< Feature > features;
-		Features( final FloatArray2DSIFT.Param p, final ArrayList< Feature > features )
+		/** The mipmap level the features were extracted from, 0 for full resolution. */
+		int level;
+		Features( final FloatArray2DSIFT.Param p, final ArrayList< Feature > features, final int level )
 		{
 			this.p = p;
 			this.features = features;
+			this.level = level;
 		}
 	}
 
@@ -503,9 +535,9 @@ public class Align
 						{
 							features = new ArrayList< Feature >();
 							final long s = System.currentTimeMillis();
-							ijSIFT.extractFeatures( tile.createMaskedByteImage(), features );
+							final int level = extractFeatures( p, ijSIFT, tile, features );
 							Utils.log( features.size() + " features extracted in tile " + i + " \"" + tile.getPatch().getTitle() + "\" (took " + ( System.currentTimeMillis() - s ) + " ms)." );
-							if ( !serializeFeatures( p, tile, features ) )
+							if ( !serializeFeatures( p, tile, features, level ) )
 								Utils.log( "Saving features failed for tile \"" + tile.getPatch() + "\"" );
 							memoryFlushed = false;
 						}
@@ -690,19 +722,24 @@ public class Align
 	}
 
 
-	final static protected boolean serializeFeatures( final Param p, final AbstractAffineTile2D< ? > t, final Collection< Feature > f )
+	/**
+	 * @param level the mipmap level the features were extracted from, see
+	 * {@link #extractFeatures(Param, SIFT, AbstractAffineTile2D, Collection)}.
+	 */
+	final static protected boolean serializeFeatures( final Param p, final AbstractAffineTile2D< ? > t, final Collection< Feature > f, final int level )
 	{
 		final ArrayList< Feature > list = new ArrayList< Feature >();
 		list.addAll( f );
 		final Patch patch = t.getPatch();
 		final Loader loader = patch.getProject().getLoader();
-		final Features fe = new Features( p.sift, list );
+		final Features fe = new Features( p.sift, list, level );
 		return loader.serialize( fe, new StringBuilder( loader.getUNUIdFolder() ).append( "features.ser/" )
 			.append( FSLoader.createIdPath( Long.toString( patch.getId() ), "features", ".ser" ) ).toString() );
 	}
 
 	/**
-	 * Retrieve the features only if saved with the exact same relevant SIFT parameters.
+	 * Retrieve the features only if saved with the exact same relevant SIFT parameters,
+	 * and from the mipmap level that {@link #siftSourceLevel(Param, Patch)} asks for now.
 	 */
 	final static protected Collection< Feature > deserializeFeatures( final Param p, final AbstractAffineTile2D< ? > t )
 	{
@@ -716,7 +753,7 @@ public class Align
 			try
 			{
 				final Features fe = ( Features )ob;
-				if ( p.sift.equals( fe.p ) && null != fe.p )
+				if ( p.sift.equals( fe.p ) && null != fe.p && fe.level == siftSourceLevel( p, patch ) )
 				{
 					return fe.features;
 				}
@@ -730,6 +767,117 @@ public class Align
 	}
 
 
+	/**
+	 * The mipmap level from which
+	 * {@link #extractFeatures(Param, SIFT, AbstractAffineTile2D, Collection)}
+	 * takes the image of a patch: the level closest above the magnification
+	 * at which SIFT extracts features from its full resolution image.  That
+	 * is 0, full resolution, unless {@link Param#siftFromMipMaps} is set,
+	 * the patch is larger than twice maxOctaveSize, and mipmaps are stored
+	 * lossless and render the patch as
+	 * {@link AbstractAffineTile2D#createMaskedByteImage()} does, which
+	 * excludes jpeg mipmaps and patches painted with false colors.
+	 */
+	final static public int siftSourceLevel( final Param p, final Patch patch )
+	{
+		if ( !p.siftFromMipMaps )
+			return 0;
+		final Loader loader = patch.getProject().getLoader();
+		if ( !( loader instanceof FSLoader ) ||
+				!loader.isMipMapsRegenerationEnabled() ||
+				loader.getMipMapFormat() == FSLoader.MIPMAP_JPEG ||
+				patch.paintsWithFalseColor() )
+			return 0;
+
+		final Rectangle box = patch.getCoordinateTransformBoundingBox();
+		final double mag = ( double )p.sift.maxOctaveSize / Math.max( box.width, box.height );
+		if ( mag >= 0.5 )
+			return 0;
+		return Math.min( Loader.getMipMapLevel( mag, Loader.maxDim( patch ) ), Loader.getHighestMipMapLevel( patch ) );
+	}
+
+	/**
+	 * The image of a patch at a mipmap level, as
+	 * {@link AbstractAffineTile2D#createMaskedByteImage()} creates it at
+	 * full resolution.  The loader may hand out a larger level that it holds
+	 * already, which is then downsampled to the requested level.  Null if no
+	 * mipmap is available.
+	 */
+	final static protected ByteProcessor fetchMipMapForSIFT( final Patch patch, final int level )
+	{
+		final MipMapImage mipMap = patch.getProject().getLoader().fetchDataImage( patch, 1.0 / ( 1 << level ) );
+		if ( mipMap == null || Loader.isSignalImage( mipMap.image ) )
+			return null;
+		final int fetched = ( int )Math.round( Math.log( mipMap.scaleX ) / Math.log( 2 ) );
+		if ( fetched > level || mipMap.scaleX != ( 1 << fetched ) || mipMap.scaleY != mipMap.scaleX )
+			return null;
+		return Downsampler.downsampleByteProcessor( maskedByteImage( mipMap.image ), level - fetched );
+	}
+
+	/**
+	 * Convert a mipmap to the image that {@link AbstractAffineTile2D#createMaskedByteImage()}
+	 * creates at full resolution: grey values with transparent pixels blended
+	 * towards 127.
+	 */
+	final static protected ByteProcessor maskedByteImage( final Image image )
+	{
+		final ColorProcessor cp = new ColorProcessor( image );
+		final int[] argbs = ( int[] )cp.getPixels();
+		final byte[] bytes = new byte[ argbs.length ];
+		for ( int i = 0; i < argbs.length; ++i )
+		{
+			final int argb = argbs[ i ];
+			final float a = ( float )( ( argb >> 24 ) & 0xff ) / 255f;
+			final int t = ( ( ( argb >> 16 ) & 0xff ) + ( ( argb >> 8 ) & 0xff ) + ( argb & 0xff ) ) / 3;
+			bytes[ i ] = ( byte )( t * a + 127 * ( 1 - a ) );
+		}
+		return new ByteProcessor( cp.getWidth(), cp.getHeight(), bytes, null );
+	}
+
+	/**
+	 * Map features extracted from a mipmap level to full resolution
+	 * coordinates: a mipmap pixel averages 2^level full resolution pixels,
+	 * its center is at ( x + 0.5 ) * 2^level - 0.5.
+	 */
+	final static protected void toFullResolution( final Collection< Feature > features, final int level )
+	{
+		final double scale = 1 << level;
+		for ( final Feature f : features )
+		{
+			f.location[ 0 ] = ( f.location[ 0 ] + 0.5 ) * scale - 0.5;
+			f.location[ 1 ] = ( f.location[ 1 ] + 0.5 ) * scale - 0.5;
+			f.scale *= scale;
+		}
+	}
+
+	/**
+	 * Extract features of a tile at full resolution coordinates, from the
+	 * mipmap level given by {@link #siftSourceLevel(Param, Patch)}, or from
+	 * the full resolution image if that is 0 or the mipmap is not available.
+	 *
+	 * @return the mipmap level the features were extracted from.
+	 */
+	final static public int extractFeatures(
+			final Param p,
+			final SIFT ijSIFT,
+			final AbstractAffineTile2D< ? > tile,
+			final Collection< Feature > features )
+	{
+		final int level = siftSourceLevel( p, tile.getPatch() );
+		final ByteProcessor mipMap = level == 0 ? null : fetchMipMapForSIFT( tile.getPatch(), level );
+		if ( mipMap == null )
+		{
+			ijSIFT.extractFeatures( tile.createMaskedByteImage(), features );
+			return 0;
+		}
+
+		final ArrayList< Feature > fs = new ArrayList< Feature >();
+		ijSIFT.extractFeatures( mipMap, fs );
+		toFullResolution( fs, level );
+		features.addAll( fs );
+		return level;
+	}
+
 	final static protected Collection< Feature > fetchFeatures(
 			final Param p,
 			final AbstractAffineTile2D< ? > t )
@@ -741,9 +889,9 @@ public class Align
 			final SIFT ijSIFT = new SIFT( sift );
 			features = new ArrayList< Feature >();
 			final long s = System.currentTimeMillis();
-			ijSIFT.extractFeatures( t.createMaskedByteImage(), features );
+			final int level = extractFeatures( p, ijSIFT, t, features );
 			Utils.log( features.size() + " features extracted in tile \"" + t.getPatch().getTitle() + "\" (took " + ( System.currentTimeMillis() - s ) + " ms)." );
-			if ( !serializeFeatures( p, t, features ) )
+			if ( !serializeFeatures( p, t, features, level ) )
 				Utils.log( "Saving features failed for tile: " + t.getPatch() );
 		}
 		return features;
@@ -930,7 +1078,7 @@ public class Align
 		else
 			AbstractAffineTile2D.pairTiles( tiles, tilePairs );
 		connectTilePairs( p, tiles, tilePairs, numThreads );
-		optimizeTileConfiguration( p, tiles, fixedTiles );
+		optimizeTileConfiguration( p, tiles, fixedTiles, numThreads );
 	}
 
 
@@ -970,12 +1118,30 @@ public class Align
 
 	/**
 	 * Align a set of {@link AbstractAffineTile2D tiles} that are
-	 * interconnected by {@link PointMatch point-correspondences}.
+	 * interconnected by {@link PointMatch point-correspondences},
+	 * using all cores for the {@link TileConfiguration#CONJUGATE_GRADIENTS
+	 * conjugate gradients} solver.
 	 */
 	final static public void optimizeTileConfiguration(
 			final ParamOptimize p,
 			final List< AbstractAffineTile2D< ? > > tiles,
 			final List< AbstractAffineTile2D< ? > > fixedTiles )
+	{
+		optimizeTileConfiguration( p, tiles, fixedTiles, Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * Align a set of {@link AbstractAffineTile2D tiles} that are
+	 * interconnected by {@link PointMatch point-correspondences}.
+	 *
+	 * @param numThreads for the {@link TileConfiguration#CONJUGATE_GRADIENTS
+	 * conjugate gradients} solver
+	 */
+	final static public void optimizeTileConfiguration(
+			final ParamOptimize p,
+			final List< AbstractAffineTile2D< ? > > tiles,
+			final List< AbstractAffineTile2D< ? > > fixedTiles,
+			final int numThreads )
 	{
 		final TileConfiguration tc = new TileConfiguration();
 		for ( final AbstractAffineTile2D< ? > t : tiles )
@@ -1001,7 +1167,14 @@ public class Align
 
 		try
 		{
-			if ( p.filterOutliers )
+			if ( p.solverIndex == TileConfiguration.CONJUGATE_GRADIENTS )
+			{
+				if ( p.filterOutliers )
+					tc.solveAndFilter( p.maxEpsilon, p.maxIterations, p.maxPlateauwidth, p.meanFactor, numThreads );
+				else
+					tc.solve( p.maxEpsilon, p.maxIterations, p.maxPlateauwidth, numThreads );
+			}
+			else if ( p.filterOutliers )
 				tc.optimizeAndFilter( p.maxEpsilon, p.maxIterations, p.maxPlateauwidth, p.meanFactor );
 			else
 				tc.optimize( p.maxEpsilon, p.maxIterations, p.maxPlateauwidth );
@@ -309,22 +309,25 @@ final public class AlignTask
 			final boolean largestGraphOnlyIn,
 			final boolean hideDisconnectedTilesIn,
 			final boolean deleteDisconnectedTilesIn ) {
-		int i = 0;
-		for (final Layer layer : layers) {
-			if (Thread.currentThread().isInterrupted()) return;
+		final List<Layer> montaged = new ArrayList<Layer>();
+		final List<List<Patch>> patchLists = new ArrayList<List<Patch>>();
+		A: for (final Layer layer : layers) {
 			final Collection<Displayable> patches = layer.getDisplayables(Patch.class, true);
 			if (patches.isEmpty()) continue;
 			for (final Displayable patch : patches) {
 				if (patch.isLinked() && !patch.isOnlyLinkedTo(Patch.class)) {
 					Utils.log("Cannot montage layer " + layer + "\nReason: at least one Patch is linked to non-image data: " + patch);
-					continue;
+					continue A;
 				}
 			}
-			Utils.log("====\nMontaging layer " + layer);
-			Utils.showProgress(((double)i)/layers.size());
-			i++;
-			alignPatches(p, new ArrayList<Patch>((Collection<Patch>)(Collection)patches), new ArrayList<Patch>(), tilesAreInPlaceIn, largestGraphOnlyIn, hideDisconnectedTilesIn, deleteDisconnectedTilesIn );
-			Display.repaint(layer);
+			montaged.add(layer);
+			patchLists.add(new ArrayList<Patch>((Collection<Patch>)(Collection)patches));
+		}
+		try {
+			new LayerMontageScheduler(p, tilesAreInPlaceIn, largestGraphOnlyIn, hideDisconnectedTilesIn, deleteDisconnectedTilesIn).montage(montaged, patchLists);
+		} catch (final InterruptedException e) {
+			Utils.log("Montaging layers interrupted.");
+			Thread.currentThread().interrupt();
 		}
 	}
 
@@ -723,7 +726,7 @@ A:		for ( final Layer layer : layers )
 							if (null != props.ct) {
 								// The props.ct is a CoordinateTransform, not necessarily an InvertibleCoordinateTransform
 								// So the mesh is necessary to ensure the invertibility
-								final mpicbg.trakem2.transform.TransformMesh mesh = new mpicbg.trakem2.transform.TransformMesh(props.ct, props.meshResolution, props.o_width, props.o_height);
+								final mpicbg.trakem2.transform.TransformMesh mesh = patch.getProject().getLoader().getTransformMeshCache().get(props.ct, props.meshResolution, props.o_width, props.o_height);
 								/* // Apparently not needed; the inverse affine in step 1 took care of it.
 								 * // (the affine of step 1 includes the mesh translation)
 							Rectangle box = mesh.getBoundingBox();
@@ -738,7 +741,7 @@ A:		for ( final Layer layer : layers )
 							final mpicbg.trakem2.transform.CoordinateTransform ct = patch.getCoordinateTransform();
 							if (null != ct) {
 								tlist.add(ct);
-								final mpicbg.trakem2.transform.TransformMesh mesh = new mpicbg.trakem2.transform.TransformMesh(ct, patch.getMeshResolution(), patch.getOWidth(), patch.getOHeight());
+								final mpicbg.trakem2.transform.TransformMesh mesh = patch.getTransformMesh(ct);
 								// correct for mesh bounds -- Necessary because it comes from the other side, and the removal of the translation here is re-added by the affine in step 4!
 								final Rectangle box = mesh.getBoundingBox();
 								final AffineModel2D aff = new AffineModel2D();
@@ -827,6 +830,27 @@ A:		for ( final Layer layer : layers )
 			final boolean largestGraphOnlyIn,
 			final boolean hideDisconnectedTilesIn,
 			final boolean deleteDisconnectedTilesIn )
+	{
+		final List< AbstractAffineTile2D< ? > > interestingTiles =
+				optimizeTiles( p, tiles, fixedTiles, tilesAreInPlaceIn, largestGraphOnlyIn, Runtime.getRuntime().availableProcessors() );
+		if ( null == interestingTiles ) return;
+
+		applyTiles( tiles, interestingTiles, hideDisconnectedTilesIn, deleteDisconnectedTilesIn );
+	}
+
+	/**
+	 * Connect and optimize tiles without modifying their patches.
+	 *
+	 * @return the tiles whose patches are to be transformed, that is all
+	 *   tiles or those of the largest graph only, or null if interrupted.
+	 */
+	final static protected List< AbstractAffineTile2D< ? > > optimizeTiles(
+			final Align.ParamOptimize p,
+			final List< AbstractAffineTile2D< ? > > tiles,
+			final List< AbstractAffineTile2D< ? > > fixedTiles,
+			final boolean tilesAreInPlaceIn,
+			final boolean largestGraphOnlyIn,
+			final int numThreads )
 	{
 		final List< AbstractAffineTile2D< ? >[] > tilePairs = new ArrayList< AbstractAffineTile2D< ? >[] >();
 		if ( tilesAreInPlaceIn )
@@ -834,9 +858,9 @@ A:		for ( final Layer layer : layers )
 		else
 			AbstractAffineTile2D.pairTiles( tiles, tilePairs );
 
-		Align.connectTilePairs( p, tiles, tilePairs, Runtime.getRuntime().availableProcessors() );
+		Align.connectTilePairs( p, tiles, tilePairs, numThreads );
 
-		if ( Thread.currentThread().isInterrupted() ) return;
+		if ( Thread.currentThread().isInterrupted() ) return null;
 
 		final List< Set< Tile< ? > > > graphs = AbstractAffineTile2D.identifyConnectedGraphs( tiles );
 
@@ -853,7 +877,29 @@ A:		for ( final Layer layer : layers )
 			interestingTiles = new ArrayList< AbstractAffineTile2D< ? > >();
 			for ( final Tile< ? > t : largestGraph )
 				interestingTiles.add( ( AbstractAffineTile2D< ? > )t );
+		}
+		else
+			interestingTiles = tiles;
+
+		if ( Thread.currentThread().isInterrupted() ) return null;
 
+		Align.optimizeTileConfiguration( p, interestingTiles, fixedTiles, numThreads );
+
+		return interestingTiles;
+	}
+
+	/**
+	 * Hide or delete the patches of tiles not among interestingTiles, and
+	 * transform the patches of interestingTiles by their models.
+	 */
+	final static protected void applyTiles(
+			final List< AbstractAffineTile2D< ? > > tiles,
+			final List< AbstractAffineTile2D< ? > > interestingTiles,
+			final boolean hideDisconnectedTilesIn,
+			final boolean deleteDisconnectedTilesIn )
+	{
+		if ( interestingTiles != tiles )
+		{
 			if ( hideDisconnectedTilesIn )
 				for ( final AbstractAffineTile2D< ? > t : tiles )
 					if ( !interestingTiles.contains( t ) )
@@ -863,12 +909,6 @@ A:		for ( final Layer layer : layers )
 					if ( !interestingTiles.contains( t ) )
 						t.getPatch().remove( false );
 		}
-		else
-			interestingTiles = tiles;
-
-		if ( Thread.currentThread().isInterrupted() ) return;
-
-		Align.optimizeTileConfiguration( p, interestingTiles, fixedTiles );
 
 		for ( final AbstractAffineTile2D< ? > t : interestingTiles )
 			t.getPatch().getAffineTransform().setTransform( t.getModel().createAffine() );
@@ -20,6 +20,7 @@ package mpicbg.trakem2.align;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.process.ImageProcessor;
+import ini.trakem2.Project;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.Patch;
 import ini.trakem2.parallel.ExecutorProvider;
@@ -27,6 +28,7 @@ import ini.trakem2.utils.Filter;
 import ini.trakem2.utils.Utils;
 
 import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -40,6 +42,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import mpicbg.ij.SIFT;
 import mpicbg.imagefeatures.Feature;
 import mpicbg.imagefeatures.FloatArray2DSIFT;
+import mpicbg.models.PointMatch;
 
 /**
  * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
@@ -57,6 +60,12 @@ final public class AlignmentUtils
 		 */
 		public float rod = 0.92f;
 
+		/**
+		 * Search closest and next closest neighbors approximately in a
+		 * {@link FeatureIndex} instead of exhaustively
+		 */
+		public boolean useFeatureIndex = false;
+
 		@Override
 		public boolean equals( final Object o )
 		{
@@ -65,7 +74,8 @@ final public class AlignmentUtils
 				final ParamPointMatch oppm = ( ParamPointMatch )o;
 				return
 					oppm.sift.equals( sift ) &
-					oppm.rod == rod;
+					oppm.rod == rod &
+					oppm.useFeatureIndex == useFeatureIndex;
 			}
 			else
 				return false;
@@ -103,6 +113,77 @@ final public class AlignmentUtils
 		return patches;
 	}
 
+	/**
+	 * The {@link LayerState} of the features saved for layer, in the local
+	 * frame of point matches scaled by pointMatchScale relative to them.
+	 */
+	final static private LayerState pointMatchState( final Layer layer, final double pointMatchScale )
+	{
+		final LayerState state = Util.deserializeLayerState( layer.getProject(), "layer", layer.getId() );
+		return state == null ? null : state.withFrameScale( state.frameScale * pointMatchScale );
+	}
+
+	/**
+	 * Retrieve the point match candidates saved for layerB &rarr; layerA.
+	 * Candidates are returned only if both layers have the same content as
+	 * when they were matched.  Candidates of layers that have been moved as
+	 * a whole since are mapped into the frames of their current features.
+	 *
+	 * @param pointMatchScale scale of point match coordinates relative to
+	 *   feature coordinates
+	 */
+	final static protected ArrayList< PointMatch > deserializeLayerPointMatches(
+			final ParamPointMatch ppm,
+			final Layer layerB,
+			final Layer layerA,
+			final double pointMatchScale )
+	{
+		final Project project = layerB.getProject();
+		final ArrayList< PointMatch > candidates = Util.deserializePointMatches( project, ppm, "layer", layerB.getId(), layerA.getId() );
+		if ( candidates == null )
+			return null;
+
+		final LayerState[] cachedStates = Util.deserializePointMatchStates( project, "layer", layerB.getId(), layerA.getId() );
+		final LayerState stateB = pointMatchState( layerB, pointMatchScale );
+		final LayerState stateA = pointMatchState( layerA, pointMatchScale );
+		if ( cachedStates == null || stateB == null || stateA == null )
+			return null;
+
+		final AffineTransform changeB = stateB.localChangeFrom( cachedStates[ 0 ] );
+		final AffineTransform changeA = stateA.localChangeFrom( cachedStates[ 1 ] );
+		if ( changeB == null || changeA == null )
+			return null;
+
+		if ( !( LayerState.isIdentity( changeB ) && LayerState.isIdentity( changeA ) ) )
+		{
+			LayerState.applyToPointMatches( changeB, changeA, candidates );
+			if ( !serializeLayerPointMatches( ppm, layerB, layerA, pointMatchScale, candidates ) )
+				Utils.log( "Could not store point match candidates for layers " + layerName( layerB ) + " and " + layerName( layerA ) + "." );
+		}
+		return candidates;
+	}
+
+	/**
+	 * Save the point match candidates for layerB &rarr; layerA along with the
+	 * {@link LayerState LayerStates} of both layers' current features.
+	 */
+	final static protected boolean serializeLayerPointMatches(
+			final ParamPointMatch ppm,
+			final Layer layerB,
+			final Layer layerA,
+			final double pointMatchScale,
+			final ArrayList< PointMatch > candidates )
+	{
+		final Project project = layerB.getProject();
+		final LayerState stateB = pointMatchState( layerB, pointMatchScale );
+		final LayerState stateA = pointMatchState( layerA, pointMatchScale );
+		return
+				Util.serializePointMatches( project, ppm, "layer", layerB.getId(), layerA.getId(), candidates ) &&
+				stateB != null &&
+				stateA != null &&
+				Util.serializePointMatchStates( project, "layer", layerB.getId(), layerA.getId(), stateB, stateA );
+	}
+
 	/**
 	 * Extract SIFT features and save them into the project folder.
 	 *
@@ -199,15 +280,39 @@ final public class AlignmentUtils
             //IJ.showProgress( counter.getAndIncrement(), layerRange.size() - 1 );
 
             final List< Patch > patches = filterPatches( layer, filter );
+            final LayerState state = LayerState.create( patches, finalBox, scale );
 
             ArrayList< Feature > fs = null;
             if ( !clearCache )
+            {
                 fs = mpicbg.trakem2.align.Util.deserializeFeatures( layer.getProject(), siftParam, "layer", layer.getId() );
+                if ( null != fs )
+                {
+                    /* features of a layer that has only been moved as a whole are still valid */
+                    final LayerState cachedState = mpicbg.trakem2.align.Util.deserializeLayerState( layer.getProject(), "layer", layer.getId() );
+                    final AffineTransform change = null == cachedState ? null : state.localChangeFrom( cachedState );
+                    if ( null == change )
+                    {
+                        Utils.log( "Cached features outdated for " + layerName );
+                        fs = null;
+                    }
+                    else if ( !LayerState.isIdentity( change ) )
+                    {
+                        LayerState.applyToFeatures( change, fs );
+                        if ( !mpicbg.trakem2.align.Util.serializeFeatures( layer.getProject(), siftParam, "layer", layer.getId(), fs ) ||
+                             !mpicbg.trakem2.align.Util.serializeLayerState( layer.getProject(), "layer", layer.getId(), state ) )
+                            Utils.log( "FAILED to store serialized features for " + layerName );
+                    }
+                }
+            }
 
             if ( null == fs )
             {
-                /* free memory */
-                layer.getProject().getLoader().releaseAll();
+                /* free memory for the flat image, rendered at up to twice the scale from
+                 * mipmaps, and for the scale space of SIFT, keeping the cached mipmaps */
+                final long pixels = ( long )Math.ceil( finalBox.width * scale ) * ( long )Math.ceil( finalBox.height * scale );
+                final long siftPixels = Math.min( pixels, ( long )siftParam.maxOctaveSize * siftParam.maxOctaveSize );
+                layer.getProject().getLoader().releaseToFit( pixels * ( 1 + 4 * 4 ) + siftPixels * 4 * 2 * ( siftParam.steps + 3 ) * 4 / 3 );
 
                 final FloatArray2DSIFT sift = new FloatArray2DSIFT( siftParam );
                 final SIFT ijSIFT = new SIFT( sift );
@@ -216,7 +321,8 @@ final public class AlignmentUtils
                 ijSIFT.extractFeatures( ip, fs );
                 Utils.log( fs.size() + " features extracted for " + layerName );
 
-                if ( !mpicbg.trakem2.align.Util.serializeFeatures( layer.getProject(), siftParam, "layer", layer.getId(), fs ) )
+                if ( !mpicbg.trakem2.align.Util.serializeFeatures( layer.getProject(), siftParam, "layer", layer.getId(), fs ) ||
+                     !mpicbg.trakem2.align.Util.serializeLayerState( layer.getProject(), "layer", layer.getId(), state ) )
                     Utils.log( "FAILED to store serialized features for " + layerName );
             }
             else
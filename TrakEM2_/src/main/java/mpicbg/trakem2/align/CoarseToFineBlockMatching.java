@@ -0,0 +1,566 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.trakem2.align;
+
+import ij.process.FloatProcessor;
+import ini.trakem2.imaging.FastIntegralImage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import mpicbg.models.CoordinateTransform;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.trakem2.util.SharedExecutor;
+
+/**
+ * Block matching by maximal PMCC, searched coarse to fine.
+ *
+ * The full search radius is searched only at the coarsest level of a
+ * pyramid of images halved by area averaging, the displacements found
+ * there are refined at each finer level within {@link #REFINE_RADIUS}.
+ * Mean and variance of target blocks come from integral images, so that
+ * fully valid blocks cost one multiply-add per pixel and offset.
+ *
+ * Results follow
+ * {@link mpicbg.ij.blockmatching.BlockMatching BlockMatching.matchByMaximalPMCC}
+ * at scale 1: the second best to best r ratio is tested over the whole
+ * search range at the coarsest level, minimal r, maximal curvature ratio
+ * and sub-pixel localization at the finest.
+ */
+public class CoarseToFineBlockMatching
+{
+	/** Search radius at all but the coarsest level, in pixels of that level. */
+	final static public int REFINE_RADIUS = 2;
+
+	/* levels are added while the search and block radius stay at least that large */
+	final static private int MIN_COARSE_SEARCH_RADIUS = 3;
+	final static private int MIN_COARSE_BLOCK_RADIUS = 4;
+
+	/* minimal fraction of valid pixels in partially masked blocks */
+	final static private double MIN_VALID_FRACTION = 0.75;
+
+	/* vertices per parallel loop index */
+	final static private int CHUNK = 16;
+
+	private CoarseToFineBlockMatching() {}
+
+	/**
+	 * One pyramid level: source and target mapped into the source frame,
+	 * validity masks (0 or 1) and integral images of the target.
+	 */
+	final static protected class Level
+	{
+		final int width, height, w2;
+		final float[] source, target, sourceValid, targetValid;
+		final double[] targetSums, targetSquareSums, targetValidSums;
+
+		Level( final int width, final int height, final float[] source, final float[] target, final float[] sourceValid, final float[] targetValid )
+		{
+			this.width = width;
+			this.height = height;
+			this.w2 = width + 1;
+			this.source = source;
+			this.target = target;
+			this.sourceValid = sourceValid;
+			this.targetValid = targetValid;
+			targetSums = FastIntegralImage.doubleIntegralImage( target, width, height, false );
+			targetSquareSums = FastIntegralImage.doubleIntegralImage( target, width, height, true );
+			targetValidSums = FastIntegralImage.doubleIntegralImage( targetValid, width, height, false );
+		}
+
+		/**
+		 * Average 2x2 pixels, a pixel is valid if at least half of its
+		 * pixels are.
+		 */
+		final static private void halve(
+				final float[] values,
+				final float[] valid,
+				final int width,
+				final int w,
+				final int h,
+				final float[] halvedValues,
+				final float[] halvedValid )
+		{
+			for ( int y = 0; y < h; ++y )
+			{
+				for ( int x = 0; x < w; ++x )
+				{
+					final int i = 2 * y * width + 2 * x;
+					final float v0 = valid[ i ], v1 = valid[ i + 1 ], v2 = valid[ i + width ], v3 = valid[ i + width + 1 ];
+					final float n = v0 + v1 + v2 + v3;
+					final int j = y * w + x;
+					halvedValid[ j ] = n >= 2 ? 1 : 0;
+					halvedValues[ j ] = n > 0 ?
+							( values[ i ] * v0 + values[ i + 1 ] * v1 + values[ i + width ] * v2 + values[ i + width + 1 ] * v3 ) / n : 0;
+				}
+			}
+		}
+
+		final Level halve()
+		{
+			final int w = width / 2, h = height / 2;
+			final float[] s = new float[ w * h ], t = new float[ w * h ], sv = new float[ w * h ], tv = new float[ w * h ];
+			halve( source, sourceValid, width, w, h, s, sv );
+			halve( target, targetValid, width, w, h, t, tv );
+			return new Level( w, h, s, t, sv, tv );
+		}
+
+		/**
+		 * PMCC of the block of radius r around (x, y) in source and the
+		 * block around (x + dx, y + dy) in target, NaN if undefined.
+		 */
+		final double r( final Block block, final int dx, final int dy )
+		{
+			final int r = block.radius;
+			final int tx0 = block.x - r + dx, ty0 = block.y - r + dy;
+			final int tx1 = tx0 + 2 * r + 1, ty1 = ty0 + 2 * r + 1;
+			final int size = 2 * r + 1;
+			final int n = size * size;
+
+			if ( block.fullyValid &&
+					tx0 >= 0 && ty0 >= 0 && tx1 <= width && ty1 <= height &&
+					FastIntegralImage.sum( targetValidSums, w2, tx0, ty0, tx1, ty1 ) == n )
+			{
+				final double sumT = FastIntegralImage.sum( targetSums, w2, tx0, ty0, tx1, ty1 );
+				final double varT = FastIntegralImage.sum( targetSquareSums, w2, tx0, ty0, tx1, ty1 ) - sumT * sumT / n;
+				if ( varT <= 0 || block.squareSum <= 0 )
+					return Double.NaN;
+				double cross = 0;
+				for ( int y = 0, k = 0; y < size; ++y )
+				{
+					final int o = ( ty0 + y ) * width + tx0;
+					for ( int x = 0; x < size; ++x, ++k )
+						cross += block.centered[ k ] * target[ o + x ];
+				}
+				return cross / Math.sqrt( block.squareSum * varT );
+			}
+
+			/* partially valid */
+			int m = 0;
+			double ss = 0, st = 0, sss = 0, stt = 0, sst = 0;
+			for ( int y = 0, k = 0; y < size; ++y )
+			{
+				final int ty = ty0 + y;
+				for ( int x = 0; x < size; ++x, ++k )
+				{
+					final int tx = tx0 + x;
+					if ( !block.valid[ k ] || tx < 0 || ty < 0 || tx >= width || ty >= height )
+						continue;
+					final int j = ty * width + tx;
+					if ( targetValid[ j ] == 0 )
+						continue;
+					final double s = block.values[ k ];
+					final double t = target[ j ];
+					++m;
+					ss += s;
+					st += t;
+					sss += s * s;
+					stt += t * t;
+					sst += s * t;
+				}
+			}
+			if ( m < MIN_VALID_FRACTION * n )
+				return Double.NaN;
+			final double varS = sss - ss * ss / m;
+			final double varT = stt - st * st / m;
+			if ( varS <= 0 || varT <= 0 )
+				return Double.NaN;
+			return ( sst - ss * st / m ) / Math.sqrt( varS * varT );
+		}
+
+		/**
+		 * PMCC for all offsets in [cx - radius, cx + radius] x [cy - radius, cy + radius].
+		 */
+		final double[] landscape( final Block block, final int cx, final int cy, final int radius )
+		{
+			final int size = 2 * radius + 1;
+			final double[] rs = new double[ size * size ];
+			for ( int y = 0, k = 0; y < size; ++y )
+				for ( int x = 0; x < size; ++x, ++k )
+					rs[ k ] = r( block, cx - radius + x, cy - radius + y );
+			return rs;
+		}
+	}
+
+	/**
+	 * A source block, its values, their validity and, for fully valid
+	 * blocks, its values minus their mean.
+	 */
+	final static protected class Block
+	{
+		final int x, y, radius;
+		final float[] values;
+		final boolean[] valid;
+		final boolean fullyValid;
+		final double[] centered;
+		final double squareSum;
+
+		Block( final Level level, final int x, final int y, final int radius )
+		{
+			this.x = x;
+			this.y = y;
+			this.radius = radius;
+			final int size = 2 * radius + 1;
+			values = new float[ size * size ];
+			valid = new boolean[ size * size ];
+			boolean all = true;
+			double sum = 0;
+			for ( int v = 0, k = 0; v < size; ++v )
+			{
+				final int yy = y - radius + v;
+				for ( int u = 0; u < size; ++u, ++k )
+				{
+					final int xx = x - radius + u;
+					if ( xx >= 0 && yy >= 0 && xx < level.width && yy < level.height && level.sourceValid[ yy * level.width + xx ] != 0 )
+					{
+						valid[ k ] = true;
+						values[ k ] = level.source[ yy * level.width + xx ];
+						sum += values[ k ];
+					}
+					else
+						all = false;
+				}
+			}
+			fullyValid = all;
+			if ( all )
+			{
+				final double mean = sum / values.length;
+				centered = new double[ values.length ];
+				double ss = 0;
+				for ( int k = 0; k < values.length; ++k )
+				{
+					centered[ k ] = values[ k ] - mean;
+					ss += centered[ k ] * centered[ k ];
+				}
+				squareSum = ss;
+			}
+			else
+			{
+				centered = null;
+				squareSum = 0;
+			}
+		}
+	}
+
+	/**
+	 * Index of the maximum of a square landscape, or -1.
+	 */
+	final static private int argMax( final double[] rs )
+	{
+		int best = -1;
+		for ( int k = 0; k < rs.length; ++k )
+			if ( !Double.isNaN( rs[ k ] ) && ( best < 0 || rs[ k ] > rs[ best ] ) )
+				best = k;
+		return best;
+	}
+
+	/**
+	 * Second highest local maximum of a square landscape, excluding best.
+	 */
+	final static private double secondBest( final double[] rs, final int size, final int best )
+	{
+		double second = -1;
+		for ( int y = 1; y < size - 1; ++y )
+		{
+			for ( int x = 1; x < size - 1; ++x )
+			{
+				final int k = y * size + x;
+				if ( k == best || Double.isNaN( rs[ k ] ) || rs[ k ] <= second )
+					continue;
+				boolean isMax = true;
+				for ( int v = -1; v <= 1 && isMax; ++v )
+					for ( int u = -1; u <= 1; ++u )
+					{
+						final double n = rs[ k + v * size + u ];
+						if ( ( u != 0 || v != 0 ) && !Double.isNaN( n ) && n > rs[ k ] )
+						{
+							isMax = false;
+							break;
+						}
+					}
+				if ( isMax )
+					second = rs[ k ];
+			}
+		}
+		return second;
+	}
+
+	/**
+	 * Map target into the frame of source, padded by pad pixels on each
+	 * side, by interpolating target at the transferred coordinates of each
+	 * pixel.
+	 */
+	final static private void mapTarget(
+			final FloatProcessor target,
+			final FloatProcessor targetMask,
+			final CoordinateTransform transform,
+			final int width,
+			final int height,
+			final int pad,
+			final float[] mapped,
+			final float[] mappedValid )
+	{
+		final int tw = target.getWidth(), th = target.getHeight();
+		final float[] t = ( float[] )target.getPixels();
+		final float[] tm = targetMask == null ? null : ( float[] )targetMask.getPixels();
+		final int numBands = Math.max( 1, height / 32 );
+		SharedExecutor.forEach( numBands, new SharedExecutor.Body()
+		{
+			@Override
+			public void run( final int band )
+			{
+				final double[] l = new double[ 2 ];
+				for ( int y = band * height / numBands; y < ( band + 1 ) * height / numBands; ++y )
+				{
+					for ( int x = 0; x < width; ++x )
+					{
+						l[ 0 ] = x - pad;
+						l[ 1 ] = y - pad;
+						transform.applyInPlace( l );
+						final int i = y * width + x;
+						final int x0 = ( int )Math.floor( l[ 0 ] ), y0 = ( int )Math.floor( l[ 1 ] );
+						if ( x0 < 0 || y0 < 0 || x0 + 1 >= tw || y0 + 1 >= th )
+						{
+							mapped[ i ] = 0;
+							mappedValid[ i ] = 0;
+							continue;
+						}
+						final double fx = l[ 0 ] - x0, fy = l[ 1 ] - y0;
+						final int j = y0 * tw + x0;
+						mapped[ i ] = ( float )(
+								( t[ j ] * ( 1 - fx ) + t[ j + 1 ] * fx ) * ( 1 - fy ) +
+								( t[ j + tw ] * ( 1 - fx ) + t[ j + tw + 1 ] * fx ) * fy );
+						final double valid = tm == null ? 1 :
+								( tm[ j ] * ( 1 - fx ) + tm[ j + 1 ] * fx ) * ( 1 - fy ) +
+								( tm[ j + tw ] * ( 1 - fx ) + tm[ j + tw + 1 ] * fx ) * fy;
+						mappedValid[ i ] = valid >= 0.5 ? 1 : 0;
+					}
+				}
+			}
+		} );
+	}
+
+	/**
+	 * @param source
+	 * @param target
+	 * @param sourceMask alpha of source in [0,1], or null
+	 * @param targetMask alpha of target in [0,1], or null
+	 * @param transform transfers source coordinates approximately into target
+	 * @param blockRadius
+	 * @param searchRadius
+	 * @param minR minimal PMCC r of accepted matches
+	 * @param rod maximal ratio of second best to best r
+	 * @param maxCurvature maximal ratio of principal curvatures of the r peak
+	 * @param sourcePoints points to match, in source coordinates
+	 * @param sourceMatches receives matches from source points to target
+	 *   coordinates, in the order of sourcePoints
+	 */
+	static public void matchByMaximalPMCC(
+			final FloatProcessor source,
+			final FloatProcessor target,
+			final FloatProcessor sourceMask,
+			final FloatProcessor targetMask,
+			final CoordinateTransform transform,
+			final int blockRadius,
+			final int searchRadius,
+			final double minR,
+			final double rod,
+			final double maxCurvature,
+			final Collection< ? extends Point > sourcePoints,
+			final Collection< PointMatch > sourceMatches ) throws InterruptedException
+	{
+		/* pad by the search radius and the margin of the local maximum test,
+		 * so that blocks at the border are compared to target outside of the
+		 * source frame */
+		final int pad = searchRadius + 1;
+		final int width = source.getWidth() + 2 * pad, height = source.getHeight() + 2 * pad;
+
+		final float[] src = ( float[] )source.getPixels();
+		final float[] sm = sourceMask == null ? null : ( float[] )sourceMask.getPixels();
+		final float[] s = new float[ width * height ];
+		final float[] sv = new float[ width * height ];
+		for ( int y = 0, i = 0; y < source.getHeight(); ++y )
+		{
+			for ( int x = 0, j = ( y + pad ) * width + pad; x < source.getWidth(); ++x, ++i, ++j )
+			{
+				s[ j ] = src[ i ];
+				sv[ j ] = sm == null || sm[ i ] >= 0.5f ? 1 : 0;
+			}
+		}
+
+		final float[] t = new float[ width * height ];
+		final float[] tv = new float[ width * height ];
+		mapTarget( target, targetMask, transform, width, height, pad, t, tv );
+
+		/* pyramid */
+		final ArrayList< Level > levels = new ArrayList< Level >();
+		levels.add( new Level( width, height, s, t, sv, tv ) );
+		while (
+				( searchRadius >> levels.size() ) >= MIN_COARSE_SEARCH_RADIUS &&
+				( blockRadius >> levels.size() ) >= MIN_COARSE_BLOCK_RADIUS &&
+				levels.get( levels.size() - 1 ).width >= 2 * ( blockRadius >> levels.size() ) + 2 &&
+				levels.get( levels.size() - 1 ).height >= 2 * ( blockRadius >> levels.size() ) + 2 )
+			levels.add( levels.get( levels.size() - 1 ).halve() );
+
+		if ( Thread.interrupted() )
+			throw new InterruptedException( "Block matching interrupted." );
+
+		final Point[] points = sourcePoints.toArray( new Point[ sourcePoints.size() ] );
+		final PointMatch[] matches = new PointMatch[ points.length ];
+		final double maxCurvatureRatio = ( maxCurvature + 1 ) * ( maxCurvature + 1 ) / maxCurvature;
+
+		SharedExecutor.forEach( ( points.length + CHUNK - 1 ) / CHUNK, new SharedExecutor.Body()
+		{
+			@Override
+			public void run( final int chunk )
+			{
+				for ( int p = chunk * CHUNK; p < Math.min( points.length, ( chunk + 1 ) * CHUNK ); ++p )
+					matches[ p ] = match( levels, points[ p ], pad, blockRadius, searchRadius, minR, rod, maxCurvatureRatio, transform );
+			}
+		} );
+
+		if ( Thread.interrupted() )
+			throw new InterruptedException( "Block matching interrupted." );
+
+		for ( final PointMatch pm : matches )
+			if ( pm != null )
+				sourceMatches.add( pm );
+	}
+
+	final static private PointMatch match(
+			final ArrayList< Level > levels,
+			final Point point,
+			final int pad,
+			final int blockRadius,
+			final int searchRadius,
+			final double minR,
+			final double rod,
+			final double maxCurvatureRatio,
+			final CoordinateTransform transform )
+	{
+		final double[] l = point.getL();
+		final double lx = l[ 0 ] + pad, ly = l[ 1 ] + pad;
+
+		/* coarsest level: full search range, one pixel margin for the local maximum test */
+		final int coarsest = levels.size() - 1;
+		int dx, dy, size, best;
+		double[] rs;
+		{
+			final Level level = levels.get( coarsest );
+			final double f = 1 << coarsest;
+			final int x = ( int )Math.round( ( lx + 0.5 ) / f - 0.5 );
+			final int y = ( int )Math.round( ( ly + 0.5 ) / f - 0.5 );
+			final int radius = ( searchRadius >> coarsest ) + 1;
+			size = 2 * radius + 1;
+			final Block block = new Block( level, x, y, blockRadius >> coarsest );
+			rs = level.landscape( block, 0, 0, radius );
+			best = argMax( rs );
+			if ( best < 0 || rs[ best ] <= 0 )
+				return null;
+			final int bx = best % size, by = best / size;
+			if ( bx == 0 || by == 0 || bx == size - 1 || by == size - 1 )
+				return null;
+			if ( secondBest( rs, size, best ) / rs[ best ] > rod )
+				return null;
+			dx = bx - radius;
+			dy = by - radius;
+		}
+
+		/* refine */
+		for ( int k = coarsest - 1; k >= 0; --k )
+		{
+			final Level level = levels.get( k );
+			final double f = 1 << k;
+			final int x = ( int )Math.round( ( lx + 0.5 ) / f - 0.5 );
+			final int y = ( int )Math.round( ( ly + 0.5 ) / f - 0.5 );
+			final Block block = new Block( level, x, y, blockRadius >> k );
+			final int radius = REFINE_RADIUS + 1;
+			size = 2 * radius + 1;
+			dx *= 2;
+			dy *= 2;
+
+			/* follow the peak if it sits at the rim */
+			best = -1;
+			for ( int attempt = 0; attempt < 3; ++attempt )
+			{
+				rs = level.landscape( block, dx, dy, radius );
+				best = argMax( rs );
+				if ( best < 0 )
+					return null;
+				final int bx = best % size - radius, by = best / size - radius;
+				if ( Math.abs( bx ) < radius && Math.abs( by ) < radius )
+					break;
+				dx += bx;
+				dy += by;
+				best = -1;
+			}
+			if ( best < 0 )
+				return null;
+
+			dx += best % size - radius;
+			dy += best / size - radius;
+		}
+
+		/* minimal r, curvature and sub-pixel offset at the finest level,
+		 * from the landscape of the last level searched */
+		if ( rs[ best ] < minR )
+			return null;
+		final double[] n = new double[ 9 ];
+		for ( int v = -1, i = 0; v <= 1; ++v )
+			for ( int u = -1; u <= 1; ++u, ++i )
+			{
+				n[ i ] = rs[ best + v * size + u ];
+				if ( Double.isNaN( n[ i ] ) )
+					return null;
+			}
+		return subPixelMatch( point, l, dx, dy, n, maxCurvatureRatio, transform );
+	}
+
+	/**
+	 * Test the curvature of the peak in the 3x3 neighborhood n, localize
+	 * it with sub-pixel accuracy by a quadratic fit and create the match.
+	 */
+	final static private PointMatch subPixelMatch(
+			final Point point,
+			final double[] l,
+			final int dx,
+			final int dy,
+			final double[] n,
+			final double maxCurvatureRatio,
+			final CoordinateTransform transform )
+	{
+		final double dxx = n[ 5 ] - 2 * n[ 4 ] + n[ 3 ];
+		final double dyy = n[ 7 ] - 2 * n[ 4 ] + n[ 1 ];
+		final double dxy = ( n[ 8 ] - n[ 6 ] - n[ 2 ] + n[ 0 ] ) / 4;
+		final double det = dxx * dyy - dxy * dxy;
+		final double trace = dxx + dyy;
+		if ( det <= 0 || trace * trace / det > maxCurvatureRatio )
+			return null;
+
+		final double gx = ( n[ 5 ] - n[ 3 ] ) / 2;
+		final double gy = ( n[ 7 ] - n[ 1 ] ) / 2;
+		final double ox = -( dyy * gx - dxy * gy ) / det;
+		final double oy = -( dxx * gy - dxy * gx ) / det;
+		if ( Math.abs( ox ) > 1 || Math.abs( oy ) > 1 )
+			return null;
+
+		final double[] q = new double[]{ l[ 0 ] + dx + ox, l[ 1 ] + dy + oy };
+		transform.applyInPlace( q );
+		return new PointMatch( point, new Point( q ) );
+	}
+}
@@ -35,6 +35,7 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
@@ -80,6 +81,7 @@ public class ElasticLayerAlignment
 		public float rodR = 0.9f;
 		public int searchRadius = 200;
 		public int blockRadius = -1;
+		public boolean useCoarseToFineBlockMatching = false;
 
 		public boolean useLocalSmoothnessFilter = true;
 		public int localModelIndex = 1;
@@ -94,6 +96,7 @@ public class ElasticLayerAlignment
 		public int maxIterationsSpringMesh = 1000;
 		public int maxPlateauwidthSpringMesh = 200;
 		public boolean useLegacyOptimizer = true;
+		public boolean useParallelOptimizer = false;
 
 		public boolean setup( final Rectangle box )
 		{
@@ -111,6 +114,7 @@ public class ElasticLayerAlignment
 			gdBlockMatching.addNumericField( "block_radius :", blockRadius, 0, 6, "px" );
 			/* TODO suggest a resolution that matches searchRadius */
 			gdBlockMatching.addNumericField( "resolution :", resolutionSpringMesh, 0 );
+			gdBlockMatching.addCheckbox( "coarse-to-fine_search", useCoarseToFineBlockMatching );
 
 			gdBlockMatching.addMessage( "Correlation Filters:" );
 			gdBlockMatching.addNumericField( "minimal_PMCC_r :", minR, 2 );
@@ -137,6 +141,7 @@ public class ElasticLayerAlignment
 			searchRadius = ( int )gdBlockMatching.getNextNumber();
 			blockRadius = ( int )gdBlockMatching.getNextNumber();
 			resolutionSpringMesh = ( int )gdBlockMatching.getNextNumber();
+			useCoarseToFineBlockMatching = gdBlockMatching.getNextBoolean();
 			minR = ( float )gdBlockMatching.getNextNumber();
 			maxCurvatureR = ( float )gdBlockMatching.getNextNumber();
 			rodR = ( float )gdBlockMatching.getNextNumber();
@@ -195,6 +200,7 @@ public class ElasticLayerAlignment
 			gdOptimize.addNumericField( "maximal_iterations :", maxIterationsSpringMesh, 0 );
 			gdOptimize.addNumericField( "maximal_plateauwidth :", maxPlateauwidthSpringMesh, 0 );
 			gdOptimize.addCheckbox("use_legacy_optimizer :", useLegacyOptimizer);
+			gdOptimize.addCheckbox( "use_parallel_optimizer :", useParallelOptimizer );
 
 			gdOptimize.showDialog();
 
@@ -210,6 +216,7 @@ public class ElasticLayerAlignment
 			maxIterationsSpringMesh = ( int )gdOptimize.getNextNumber();
 			maxPlateauwidthSpringMesh = ( int )gdOptimize.getNextNumber();
 			useLegacyOptimizer = gdOptimize.getNextBoolean();
+			useParallelOptimizer = gdOptimize.getNextBoolean();
 
 			return true;
 		}
@@ -312,7 +319,7 @@ public class ElasticLayerAlignment
 		@Override
 		public Param clone()
 		{
-			return new Param(
+			final Param clone = new Param(
 					ppm.sift.fdBins,
 					ppm.sift.fdSize,
 					ppm.sift.initialSigma,
@@ -358,6 +365,10 @@ public class ElasticLayerAlignment
 					searchRadius,
 					stiffnessSpringMesh,
 					useLocalSmoothnessFilter );
+			clone.useParallelOptimizer = useParallelOptimizer;
+			clone.useCoarseToFineBlockMatching = useCoarseToFineBlockMatching;
+			clone.ppm.useFeatureIndex = ppm.useFeatureIndex;
+			return clone;
 		}
 	}
 
@@ -376,6 +387,29 @@ public class ElasticLayerAlignment
 	}
 
 
+	/**
+	 * Block matching may have run in another process, on copies of the mesh
+	 * vertices.  Map such matches back to the vertices themselves.
+	 */
+	final static private Collection< PointMatch > adoptVertices(
+			final Collection< PointMatch > matches,
+			final Collection< ? extends Point > matchedVertices,
+			final List< Vertex > vertices )
+	{
+		if ( matchedVertices == vertices )
+			return matches;
+
+		final IdentityHashMap< Point, Vertex > map = new IdentityHashMap< Point, Vertex >();
+		final Iterator< Vertex > vertexIterator = vertices.iterator();
+		for ( final Point p : matchedVertices )
+			map.put( p, vertexIterator.next() );
+
+		final ArrayList< PointMatch > adopted = new ArrayList< PointMatch >( matches.size() );
+		for ( final PointMatch pm : matches )
+			adopted.add( new PointMatch( map.get( pm.getP1() ), pm.getP2(), pm.getWeights() ) );
+		return adopted;
+	}
+
 	/**
 	 *
 	 * @param param
@@ -516,12 +550,13 @@ public class ElasticLayerAlignment
         for (final Future<BlockMatchPairCallable.BlockMatchResults> future : futures)
         {
             final BlockMatchPairCallable.BlockMatchResults results = future.get();
-            final Collection<PointMatch> pm12 = results.pm12, pm21 = results.pm21;
             final Triple<Integer, Integer, AbstractModel<?>> pair = results.pair;
             final Tile< ? > t1 = tiles.get( pair.a );
             final Tile< ? > t2 = tiles.get( pair.b );
             final SpringMesh m1 = meshes.get( pair.a );
             final SpringMesh m2 = meshes.get( pair.b );
+            final Collection<PointMatch> pm12 = adoptVertices( results.pm12, results.v1, m1.getVertices() );
+            final Collection<PointMatch> pm21 = adoptVertices( results.pm21, results.v2, m2.getVertices() );
             final double springConstant  = 1.0 / ( pair.b - pair.a );
             final boolean layer1Fixed = results.layer1Fixed;
             final boolean layer2Fixed = results.layer2Fixed;
@@ -619,7 +654,15 @@ public class ElasticLayerAlignment
 			final long t0 = System.currentTimeMillis();
 			Utils.log( "Optimizing spring meshes..." );
 
-			if ( param.useLegacyOptimizer )
+			if ( param.useParallelOptimizer )
+			{
+				Utils.log( "  ...using parallel optimizer..." );
+				new SpringMeshOptimizer( meshes, param.dampSpringMesh, param.maxNumThreads ).optimize(
+						param.maxEpsilon * param.layerScale,
+						param.maxIterationsSpringMesh,
+						param.maxPlateauwidthSpringMesh );
+			}
+			else if ( param.useLegacyOptimizer )
 			{
 				Utils.log( "  ...using legacy optimizer...");
 				SpringMesh.optimizeMeshes2(
@@ -925,6 +968,9 @@ public class ElasticLayerAlignment
 
             final String layerNameA = layerName( layerA );
 
+            /* shared by all neighbors of layerA */
+            final FeatureIndex.Lazy indexA = new FeatureIndex.Lazy();
+
             for ( int j = i + 1; j < range; )
 J:            {
                 final int numThreads = Math.min( param.maxNumThreads, range - j );
@@ -953,16 +999,21 @@ J:            {
 
                             ArrayList< PointMatch > candidates = null;
                             if ( !param.ppm.clearCache )
-                                candidates = mpicbg.trakem2.align.Util.deserializePointMatches(
-                                        project, param.ppm, "layer", layerB.getId(), layerA.getId() );
+                                candidates = AlignmentUtils.deserializeLayerPointMatches(
+                                        param.ppm, layerB, layerA, pointMatchScale );
 
                             if ( null == candidates )
                             {
-                                final ArrayList< Feature > fs1 = mpicbg.trakem2.align.Util.deserializeFeatures(
-                                        project, param.ppm.sift, "layer", layerA.getId() );
                                 final ArrayList< Feature > fs2 = mpicbg.trakem2.align.Util.deserializeFeatures(
                                         project, param.ppm.sift, "layer", layerB.getId() );
-                                candidates = new ArrayList< PointMatch >( FloatArray2DSIFT.createMatches( fs2, fs1, param.ppm.rod ) );
+                                if ( param.ppm.useFeatureIndex )
+                                    candidates = indexA.get( project, param.ppm.sift, "layer", layerA.getId() ).createMatches( fs2, param.ppm.rod );
+                                else
+                                {
+                                    final ArrayList< Feature > fs1 = mpicbg.trakem2.align.Util.deserializeFeatures(
+                                            project, param.ppm.sift, "layer", layerA.getId() );
+                                    candidates = new ArrayList< PointMatch >( FloatArray2DSIFT.createMatches( fs2, fs1, param.ppm.rod ) );
+                                }
 
                                 /* scale the candidates */
                                 for ( final PointMatch pm : candidates )
@@ -985,8 +1036,8 @@ J:            {
 
                                 }
 
-                                if ( !mpicbg.trakem2.align.Util.serializePointMatches(
-                                        project, param.ppm, "layer", layerB.getId(), layerA.getId(), candidates ) )
+                                if ( !AlignmentUtils.serializeLayerPointMatches(
+                                        param.ppm, layerB, layerA, pointMatchScale, candidates ) )
                                     Utils.log( "Could not store point match candidates for layers " + layerNameB + " and " + layerNameA + "." );
                             }
 
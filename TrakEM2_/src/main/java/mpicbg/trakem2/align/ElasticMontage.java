@@ -113,6 +113,7 @@ public class ElasticMontage
 		public int maxIterationsSpringMesh = 1000;
 		public int maxPlateauwidthSpringMesh = 200;
 		public boolean useLegacyOptimizer = true;
+		public boolean useParallelOptimizer = false;
 
 		/**
 		 * Visualize spring mesh optimization
@@ -183,6 +184,7 @@ public class ElasticMontage
 			gdSpringMesh.addNumericField( "maximal_iterations :", maxIterationsSpringMesh, 0 );
 			gdSpringMesh.addNumericField( "maximal_plateauwidth :", maxPlateauwidthSpringMesh, 0 );
 			gdSpringMesh.addCheckbox( "use_legacy_optimizer :", useLegacyOptimizer );
+			gdSpringMesh.addCheckbox( "use_parallel_optimizer :", useParallelOptimizer );
 
 
 			gdSpringMesh.showDialog();
@@ -196,6 +198,7 @@ public class ElasticMontage
 			maxIterationsSpringMesh = ( int )gdSpringMesh.getNextNumber();
 			maxPlateauwidthSpringMesh = ( int )gdSpringMesh.getNextNumber();
 			useLegacyOptimizer = gdSpringMesh.getNextBoolean();
+			useParallelOptimizer = gdSpringMesh.getNextBoolean();
 
 			if ( isAligned )
 				po.desiredModelIndex = 3;
@@ -243,6 +246,7 @@ public class ElasticMontage
 			clone.maxIterationsSpringMesh = maxIterationsSpringMesh;
 			clone.maxPlateauwidthSpringMesh = maxPlateauwidthSpringMesh;
 			clone.useLegacyOptimizer = useLegacyOptimizer;
+			clone.useParallelOptimizer = useParallelOptimizer;
 
 			clone.visualize = visualize;
 
@@ -658,9 +662,17 @@ public class ElasticMontage
 		try
 		{
 			final long t0 = System.currentTimeMillis();
-			IJ.log( "Optimizing spring meshes..." );
+			Utils.log( "Optimizing spring meshes..." );
 
-			if ( param.useLegacyOptimizer )
+			if ( param.useParallelOptimizer )
+			{
+				Utils.log( "  ...using parallel optimizer..." );
+				new SpringMeshOptimizer( meshes, param.dampSpringMesh, param.maxNumThreads ).optimize(
+						param.po.maxEpsilon,
+						param.maxIterationsSpringMesh,
+						param.maxPlateauwidthSpringMesh );
+			}
+			else if ( param.useLegacyOptimizer )
 			{
 				Utils.log( "  ...using legacy optimizer...");
 				SpringMesh.optimizeMeshes2(
@@ -679,7 +691,7 @@ public class ElasticMontage
 						param.maxPlateauwidthSpringMesh,
 						param.visualize );
 			}
-			IJ.log( "Done optimizing spring meshes. Took " + ( System.currentTimeMillis() - t0 ) + " ms" );
+			Utils.log( "Done optimizing spring meshes. Took " + ( System.currentTimeMillis() - t0 ) + " ms" );
 
 		}
 		catch ( final NotEnoughDataPointsException e )
@@ -0,0 +1,510 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.trakem2.align;
+
+import ini.trakem2.Project;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.imagefeatures.FloatArray2DSIFT;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+/**
+ * Approximate nearest neighbor index over the descriptors of a set of
+ * {@link Feature Features}, a forest of randomized k-d trees searched best
+ * bin first.  The index is built once and can then be matched against any
+ * number of other feature sets, concurrently.
+ *
+ * {@link #createMatches(List, double)} is a drop-in replacement for
+ * {@link FloatArray2DSIFT#createMatches(List, List, double)} with the indexed
+ * features as second argument: it applies the same closest/next closest
+ * ratio test and removes the same ambiguous matches, but closest and next
+ * closest neighbors are searched only among {@link #maxChecks} candidates.
+ */
+public class FeatureIndex
+{
+	final static public int DEFAULT_NUM_TREES = 4;
+	final static public int DEFAULT_MAX_CHECKS = 512;
+
+	/* leaves hold up to this many features */
+	final static private int LEAF_SIZE = 8;
+
+	/* split dimension is picked among that many of highest variance */
+	final static private int NUM_RANDOM_DIMENSIONS = 5;
+
+	/* variances are estimated from that many features per node */
+	final static private int NUM_VARIANCE_SAMPLES = 100;
+
+	final protected Feature[] features;
+	final protected int n;
+	final protected int d;
+
+	/* all descriptors, one after the other */
+	final protected float[] descriptors;
+
+	/* features at equal locations share their location class */
+	final protected int[] locationClasses;
+
+	final protected int maxChecks;
+
+	/**
+	 * Trees in flat arrays.  A node k is either an inner node splitting at
+	 * descriptor dimension splitDimensions[ k ] &ge; 0 with children
+	 * lowerChildren[ k ] and upperChildren[ k ] or a leaf, splitDimensions[ k ]
+	 * = -1, holding the features permutations[ lowerChildren[ k ] ] to
+	 * permutations[ upperChildren[ k ] - 1 ].  Node 0 is the root.
+	 */
+	final protected int[][] permutations;
+	final protected int[][] splitDimensions;
+	final protected float[][] splitValues;
+	final protected int[][] lowerChildren;
+	final protected int[][] upperChildren;
+
+	public FeatureIndex( final List< Feature > features, final int numTrees, final int maxChecks )
+	{
+		this.features = features.toArray( new Feature[ features.size() ] );
+		this.maxChecks = maxChecks;
+		n = this.features.length;
+		d = n == 0 ? 0 : this.features[ 0 ].descriptor.length;
+
+		descriptors = new float[ n * d ];
+		for ( int i = 0; i < n; ++i )
+			System.arraycopy( this.features[ i ].descriptor, 0, descriptors, i * d, d );
+
+		locationClasses = classifyLocations( this.features );
+
+		permutations = new int[ numTrees ][];
+		splitDimensions = new int[ numTrees ][];
+		splitValues = new float[ numTrees ][];
+		lowerChildren = new int[ numTrees ][];
+		upperChildren = new int[ numTrees ][];
+
+		for ( int t = 0; t < numTrees; ++t )
+			new TreeBuilder( t ).build();
+	}
+
+	public FeatureIndex( final List< Feature > features )
+	{
+		this( features, DEFAULT_NUM_TREES, DEFAULT_MAX_CHECKS );
+	}
+
+	public int size()
+	{
+		return n;
+	}
+
+	final static private int[] classifyLocations( final Feature[] features )
+	{
+		final Integer[] order = new Integer[ features.length ];
+		for ( int i = 0; i < order.length; ++i )
+			order[ i ] = i;
+
+		final Comparator< Integer > byLocation = new Comparator< Integer >()
+		{
+			@Override
+			public int compare( final Integer a, final Integer b )
+			{
+				final double[] la = features[ a ].location;
+				final double[] lb = features[ b ].location;
+				final int c = Double.compare( la[ 0 ], lb[ 0 ] );
+				return c == 0 ? Double.compare( la[ 1 ], lb[ 1 ] ) : c;
+			}
+		};
+		Arrays.sort( order, byLocation );
+
+		final int[] classes = new int[ features.length ];
+		int c = -1;
+		for ( int i = 0; i < order.length; ++i )
+		{
+			if ( i == 0 || byLocation.compare( order[ i - 1 ], order[ i ] ) != 0 )
+				++c;
+			classes[ order[ i ] ] = c;
+		}
+		return classes;
+	}
+
+	/**
+	 * Builds one randomized k-d tree into the flat arrays of tree t.
+	 */
+	final private class TreeBuilder
+	{
+		final int t;
+		final Random rnd;
+		final int[] permutation = new int[ n ];
+
+		int[] dims = new int[ 64 ];
+		float[] values = new float[ 64 ];
+		int[] lower = new int[ 64 ];
+		int[] upper = new int[ 64 ];
+		int numNodes = 0;
+
+		final double[] mean = new double[ d ];
+		final double[] variance = new double[ d ];
+		final int[] topDimensions = new int[ NUM_RANDOM_DIMENSIONS ];
+
+		TreeBuilder( final int t )
+		{
+			this.t = t;
+			rnd = new Random( 31 * t + 17 );
+			for ( int i = 0; i < n; ++i )
+				permutation[ i ] = i;
+			for ( int i = n - 1; i > 0; --i )
+			{
+				final int j = rnd.nextInt( i + 1 );
+				final int a = permutation[ i ];
+				permutation[ i ] = permutation[ j ];
+				permutation[ j ] = a;
+			}
+		}
+
+		final private int addNode()
+		{
+			if ( numNodes == dims.length )
+			{
+				final int size = numNodes * 2;
+				dims = Arrays.copyOf( dims, size );
+				values = Arrays.copyOf( values, size );
+				lower = Arrays.copyOf( lower, size );
+				upper = Arrays.copyOf( upper, size );
+			}
+			return numNodes++;
+		}
+
+		final void build()
+		{
+			buildNode( 0, n );
+			permutations[ t ] = permutation;
+			splitDimensions[ t ] = Arrays.copyOf( dims, numNodes );
+			splitValues[ t ] = Arrays.copyOf( values, numNodes );
+			lowerChildren[ t ] = Arrays.copyOf( lower, numNodes );
+			upperChildren[ t ] = Arrays.copyOf( upper, numNodes );
+		}
+
+		final private int buildNode( final int start, final int end )
+		{
+			final int k = addNode();
+			if ( end - start <= LEAF_SIZE )
+			{
+				dims[ k ] = -1;
+				lower[ k ] = start;
+				upper[ k ] = end;
+				return k;
+			}
+
+			/* mean and variance from a sample, the permutation is random already */
+			final int numSamples = Math.min( NUM_VARIANCE_SAMPLES, end - start );
+			Arrays.fill( mean, 0 );
+			Arrays.fill( variance, 0 );
+			for ( int s = start; s < start + numSamples; ++s )
+			{
+				final int o = permutation[ s ] * d;
+				for ( int i = 0; i < d; ++i )
+					mean[ i ] += descriptors[ o + i ];
+			}
+			for ( int i = 0; i < d; ++i )
+				mean[ i ] /= numSamples;
+			for ( int s = start; s < start + numSamples; ++s )
+			{
+				final int o = permutation[ s ] * d;
+				for ( int i = 0; i < d; ++i )
+				{
+					final double a = descriptors[ o + i ] - mean[ i ];
+					variance[ i ] += a * a;
+				}
+			}
+
+			/* pick a random one of the dimensions with highest variance */
+			int numTop = 0;
+			for ( int i = 0; i < d; ++i )
+			{
+				int j = Math.min( numTop, NUM_RANDOM_DIMENSIONS - 1 );
+				if ( numTop == NUM_RANDOM_DIMENSIONS && variance[ i ] <= variance[ topDimensions[ j ] ] )
+					continue;
+				while ( j > 0 && variance[ i ] > variance[ topDimensions[ j - 1 ] ] )
+				{
+					topDimensions[ j ] = topDimensions[ j - 1 ];
+					--j;
+				}
+				topDimensions[ j ] = i;
+				if ( numTop < NUM_RANDOM_DIMENSIONS )
+					++numTop;
+			}
+			final int dim = topDimensions[ rnd.nextInt( numTop ) ];
+			final float value = ( float )mean[ dim ];
+
+			/* partition */
+			int l = start, u = end - 1;
+			while ( l <= u )
+			{
+				if ( descriptors[ permutation[ l ] * d + dim ] < value )
+					++l;
+				else
+				{
+					final int a = permutation[ l ];
+					permutation[ l ] = permutation[ u ];
+					permutation[ u ] = a;
+					--u;
+				}
+			}
+
+			/* degenerate splits (equal descriptors) are split in halves */
+			final int mid = ( l == start || l == end ) ? ( start + end ) / 2 : l;
+
+			dims[ k ] = dim;
+			values[ k ] = value;
+			final int lowerChild = buildNode( start, mid );
+			final int upperChild = buildNode( mid, end );
+			lower[ k ] = lowerChild;
+			upper[ k ] = upperChild;
+			return k;
+		}
+	}
+
+	/**
+	 * Min-heap of branches not taken, ordered by the squared distance of
+	 * the query to their splitting plane.
+	 */
+	final static private class BranchHeap
+	{
+		float[] distances = new float[ 256 ];
+		int[] trees = new int[ 256 ];
+		int[] nodes = new int[ 256 ];
+		int size = 0;
+
+		final void clear()
+		{
+			size = 0;
+		}
+
+		final void push( final float distance, final int tree, final int node )
+		{
+			if ( size == distances.length )
+			{
+				distances = Arrays.copyOf( distances, size * 2 );
+				trees = Arrays.copyOf( trees, size * 2 );
+				nodes = Arrays.copyOf( nodes, size * 2 );
+			}
+			int i = size++;
+			while ( i > 0 )
+			{
+				final int parent = ( i - 1 ) >> 1;
+				if ( distances[ parent ] <= distance )
+					break;
+				distances[ i ] = distances[ parent ];
+				trees[ i ] = trees[ parent ];
+				nodes[ i ] = nodes[ parent ];
+				i = parent;
+			}
+			distances[ i ] = distance;
+			trees[ i ] = tree;
+			nodes[ i ] = node;
+		}
+
+		/**
+		 * Removes the top element, read its tree and node before.
+		 */
+		final void pop()
+		{
+			--size;
+			final float distance = distances[ size ];
+			final int tree = trees[ size ];
+			final int node = nodes[ size ];
+			int i = 0;
+			for ( int c = 1; c < size; c = 2 * i + 1 )
+			{
+				if ( c + 1 < size && distances[ c + 1 ] < distances[ c ] )
+					++c;
+				if ( distance <= distances[ c ] )
+					break;
+				distances[ i ] = distances[ c ];
+				trees[ i ] = trees[ c ];
+				nodes[ i ] = nodes[ c ];
+				i = c;
+			}
+			distances[ i ] = distance;
+			trees[ i ] = tree;
+			nodes[ i ] = node;
+		}
+	}
+
+	/**
+	 * Search state of one thread.
+	 */
+	final private class Searcher
+	{
+		final BranchHeap heap = new BranchHeap();
+		final int[] checked = new int[ n ];
+		int stamp = 0;
+		int numChecks;
+
+		double best, secondBest;
+		int bestIndex;
+
+		final private void check( final float[] q, final int index )
+		{
+			if ( checked[ index ] == stamp )
+				return;
+			checked[ index ] = stamp;
+			++numChecks;
+
+			final int o = index * d;
+			double distance = 0;
+			for ( int i = 0; i < d; ++i )
+			{
+				final double a = q[ i ] - descriptors[ o + i ];
+				distance += a * a;
+				if ( distance >= secondBest )
+					return;
+			}
+			if ( distance < best )
+			{
+				secondBest = best;
+				best = distance;
+				bestIndex = index;
+			}
+			else
+				secondBest = distance;
+		}
+
+		final private void descend( final float[] q, final int t, int k )
+		{
+			final int[] dims = splitDimensions[ t ];
+			final float[] values = splitValues[ t ];
+			final int[] lower = lowerChildren[ t ];
+			final int[] upper = upperChildren[ t ];
+			while ( dims[ k ] >= 0 )
+			{
+				final float diff = q[ dims[ k ] ] - values[ k ];
+				if ( diff < 0 )
+				{
+					heap.push( diff * diff, t, upper[ k ] );
+					k = lower[ k ];
+				}
+				else
+				{
+					heap.push( diff * diff, t, lower[ k ] );
+					k = upper[ k ];
+				}
+			}
+			final int[] permutation = permutations[ t ];
+			for ( int i = lower[ k ]; i < upper[ k ]; ++i )
+				check( q, permutation[ i ] );
+		}
+
+		/**
+		 * Search closest and next closest neighbor of q, leaves the result
+		 * in {@link #best}, {@link #secondBest} (squared distances) and
+		 * {@link #bestIndex}.
+		 */
+		final void search( final float[] q )
+		{
+			++stamp;
+			heap.clear();
+			numChecks = 0;
+			best = secondBest = Double.MAX_VALUE;
+			bestIndex = -1;
+
+			/* visit one leaf of every tree */
+			for ( int t = 0; t < permutations.length; ++t )
+				descend( q, t, 0 );
+
+			while ( heap.size > 0 && numChecks < maxChecks )
+			{
+				final int t = heap.trees[ 0 ];
+				final int k = heap.nodes[ 0 ];
+				final float distance = heap.distances[ 0 ];
+				heap.pop();
+				if ( distance < secondBest )
+					descend( q, t, k );
+			}
+		}
+	}
+
+	/**
+	 * Identify corresponding features, equivalent to
+	 * {@link FloatArray2DSIFT#createMatches(List, List, double)
+	 * FloatArray2DSIFT.createMatches( fs, indexedFeatures, rod )} but
+	 * approximate.
+	 *
+	 * @param fs query features
+	 * @param rod Ratio of distances (closest/next closest match)
+	 *
+	 * @return matches from a query feature (p1) to an indexed feature (p2)
+	 */
+	public ArrayList< PointMatch > createMatches( final List< Feature > fs, final double rod )
+	{
+		final ArrayList< PointMatch > matches = new ArrayList< PointMatch >();
+		if ( n < 2 )
+			return matches;
+
+		final Searcher searcher = new Searcher();
+		final ArrayList< Integer > matchedClasses = new ArrayList< Integer >();
+		final int[] numMatchesPerClass = new int[ n ];
+
+		for ( final Feature f1 : fs )
+		{
+			searcher.search( f1.descriptor );
+			if ( searcher.bestIndex >= 0 &&
+					searcher.secondBest < Double.MAX_VALUE &&
+					Math.sqrt( searcher.best ) / Math.sqrt( searcher.secondBest ) < rod )
+			{
+				final Feature best = features[ searcher.bestIndex ];
+				matches.add(
+						new PointMatch(
+								new Point( new double[]{ f1.location[ 0 ], f1.location[ 1 ] } ),
+								new Point( new double[]{ best.location[ 0 ], best.location[ 1 ] } ) ) );
+				final int c = locationClasses[ searcher.bestIndex ];
+				matchedClasses.add( c );
+				++numMatchesPerClass[ c ];
+			}
+		}
+
+		/* remove ambiguous matches, i.e. all matches to the same location */
+		final ArrayList< PointMatch > unambiguousMatches = new ArrayList< PointMatch >( matches.size() );
+		for ( int i = 0; i < matches.size(); ++i )
+			if ( numMatchesPerClass[ matchedClasses.get( i ) ] == 1 )
+				unambiguousMatches.add( matches.get( i ) );
+
+		return unambiguousMatches;
+	}
+
+	/**
+	 * A {@link FeatureIndex} of the features of one layer, built by the first
+	 * of all pairs that needs it.
+	 */
+	final static public class Lazy
+	{
+		private FeatureIndex index = null;
+
+		synchronized public FeatureIndex get(
+				final Project project,
+				final FloatArray2DSIFT.Param sift,
+				final String namePrefix,
+				final long layerId )
+		{
+			if ( index == null )
+				index = new FeatureIndex( Util.deserializeFeatures( project, sift, namePrefix, layerId ) );
+			return index;
+		}
+	}
+}
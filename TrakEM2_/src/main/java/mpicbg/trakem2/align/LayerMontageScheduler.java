@@ -0,0 +1,222 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.trakem2.align;
+
+import ini.trakem2.display.Display;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.Patch;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Montages layers independently of each other, several at a time, by
+ * linear SIFT correspondences.
+ *
+ * Feature extraction, matching and optimization of a layer run concurrently
+ * with those of other layers; patches and the vector data over them are
+ * transformed one layer at a time.  The number of feature extraction
+ * threads of all layers together is bounded by the number of threads and
+ * by the memory one extraction thread needs for the largest patch, and it
+ * is shared equally by the layers being montaged.  A layer that fails is
+ * reported and left as it was, the other layers are montaged regardless.
+ */
+public class LayerMontageScheduler
+{
+	/** Fraction of the maximal heap for concurrent feature extraction. */
+	final static public double MEMORY_FRACTION = 0.5;
+
+	final protected Align.ParamOptimize p;
+	final protected boolean tilesAreInPlace;
+	final protected boolean largestGraphOnly;
+	final protected boolean hideDisconnectedTiles;
+	final protected boolean deleteDisconnectedTiles;
+	final protected int numThreads;
+	final protected long memory;
+
+	/* transforming patches and vector data is not safe to run for several layers at a time */
+	final private Object applyLock = new Object();
+
+	public LayerMontageScheduler(
+			final Align.ParamOptimize p,
+			final boolean tilesAreInPlace,
+			final boolean largestGraphOnly,
+			final boolean hideDisconnectedTiles,
+			final boolean deleteDisconnectedTiles,
+			final int numThreads,
+			final long memory )
+	{
+		this.p = p;
+		this.tilesAreInPlace = tilesAreInPlace;
+		this.largestGraphOnly = largestGraphOnly;
+		this.hideDisconnectedTiles = hideDisconnectedTiles;
+		this.deleteDisconnectedTiles = deleteDisconnectedTiles;
+		this.numThreads = Math.max( 1, numThreads );
+		this.memory = memory;
+	}
+
+	/**
+	 * All processors and {@link #MEMORY_FRACTION} of the maximal heap.
+	 */
+	public LayerMontageScheduler(
+			final Align.ParamOptimize p,
+			final boolean tilesAreInPlace,
+			final boolean largestGraphOnly,
+			final boolean hideDisconnectedTiles,
+			final boolean deleteDisconnectedTiles )
+	{
+		this(
+				p,
+				tilesAreInPlace,
+				largestGraphOnly,
+				hideDisconnectedTiles,
+				deleteDisconnectedTiles,
+				Runtime.getRuntime().availableProcessors(),
+				( long )( MEMORY_FRACTION * Runtime.getRuntime().maxMemory() ) );
+	}
+
+	/**
+	 * Estimated memory of one feature extraction thread: the largest patch
+	 * at full resolution as ARGB and bytes, and the Gaussian and difference
+	 * of Gaussian scale space of all octaves.
+	 */
+	static public long extractionBytes( final Align.Param p, final List< Patch > patches )
+	{
+		long maxPixels = 0;
+		for ( final Patch patch : patches )
+			maxPixels = Math.max( maxPixels, ( long )patch.getOWidth() * patch.getOHeight() );
+		final long octavePixels = ( long )p.sift.maxOctaveSize * p.sift.maxOctaveSize;
+		return maxPixels * 5 + octavePixels * 4 * 2 * ( p.sift.steps + 3 ) * 4 / 3;
+	}
+
+	/**
+	 * Montage the patches of each layer.
+	 *
+	 * @param layers
+	 * @param patchLists the patches to montage for each layer
+	 *
+	 * @return the layers that failed
+	 */
+	public List< Layer > montage( final List< Layer > layers, final List< List< Patch > > patchLists ) throws InterruptedException
+	{
+		final int n = layers.size();
+		final List< Layer > failed = Collections.synchronizedList( new ArrayList< Layer >() );
+		if ( n == 0 )
+			return failed;
+
+		long bytesPerThread = 1;
+		for ( final List< Patch > patches : patchLists )
+			bytesPerThread = Math.max( bytesPerThread, extractionBytes( p, patches ) );
+		final int totalThreads = ( int )Math.max( 1, Math.min( numThreads, memory / bytesPerThread ) );
+		final int numLayersAtOnce = Math.min( n, totalThreads );
+		final int threadsPerLayer = Math.max( 1, totalThreads / numLayersAtOnce );
+
+		Utils.log( "Montaging " + n + " layers, " + numLayersAtOnce + " at a time with " + threadsPerLayer + " threads each." );
+
+		final AtomicInteger done = new AtomicInteger( 0 );
+		final ExecutorService exec = Utils.newFixedThreadPool( numLayersAtOnce, "LayerMontageScheduler" );
+		final ArrayList< Future< ? > > futures = new ArrayList< Future< ? > >();
+		try
+		{
+			for ( int i = 0; i < n; ++i )
+			{
+				final Layer layer = layers.get( i );
+				final List< Patch > patches = patchLists.get( i );
+				futures.add( exec.submit( new Callable< Void >()
+				{
+					@Override
+					public Void call()
+					{
+						try
+						{
+							montage( layer, patches, threadsPerLayer );
+						}
+						catch ( final Throwable t )
+						{
+							Utils.log( "Montaging layer " + layer + " failed: " + t );
+							IJError.print( t );
+							failed.add( layer );
+						}
+						final int k = done.incrementAndGet();
+						Utils.showStatus( "Montaged " + k + "/" + n + " layers" );
+						Utils.showProgress( ( double )k / n );
+						return null;
+					}
+				} ) );
+			}
+			for ( final Future< ? > future : futures )
+				future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			for ( final Future< ? > future : futures )
+				future.cancel( true );
+			throw e;
+		}
+		catch ( final ExecutionException e )
+		{
+			/* failures are caught per layer */
+			IJError.print( e );
+		}
+		finally
+		{
+			exec.shutdown();
+		}
+
+		if ( !failed.isEmpty() )
+			Utils.log( "Montage failed for " + failed.size() + " of " + n + " layers: " + failed );
+
+		return failed;
+	}
+
+	protected void montage( final Layer layer, final List< Patch > patches, final int numThreads )
+	{
+		final Align.ParamOptimize lp = p.clone();
+		final List< AbstractAffineTile2D< ? > > tiles = new ArrayList< AbstractAffineTile2D< ? > >();
+		final List< AbstractAffineTile2D< ? > > fixedTiles = new ArrayList< AbstractAffineTile2D< ? > >();
+		Align.tilesFromPatches( lp, patches, new ArrayList< Patch >(), tiles, fixedTiles );
+
+		Utils.log( "====\nMontaging layer " + layer );
+		final List< AbstractAffineTile2D< ? > > interestingTiles =
+				AlignTask.optimizeTiles( lp, tiles, fixedTiles, tilesAreInPlace, largestGraphOnly, Math.min( numThreads, Math.max( 1, tiles.size() ) ) );
+		if ( interestingTiles == null )
+			return;
+
+		synchronized ( applyLock )
+		{
+			if ( Thread.currentThread().isInterrupted() )
+				return;
+			AlignTask.transformPatchesAndVectorData( patches, new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					AlignTask.applyTiles( tiles, interestingTiles, hideDisconnectedTiles, deleteDisconnectedTiles );
+				}
+			} );
+		}
+		Display.repaint( layer );
+	}
+}
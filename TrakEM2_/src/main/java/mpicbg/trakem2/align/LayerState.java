@@ -0,0 +1,297 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.trakem2.align;
+
+import ini.trakem2.display.Patch;
+import ini.trakem2.imaging.filters.IFilter;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.PointMatch;
+import mpicbg.trakem2.transform.CoordinateTransform;
+
+/**
+ * The state of a layer at the time features or point matches were taken
+ * from it: a fingerprint of the image content of its patches (file, type,
+ * mask, size, display range, coordinate transform and filters), the pose
+ * (affine transform) of each patch, and the local frame in which the
+ * features or matches are expressed, that is
+ * <code>local = ( world - box.location ) * frameScale</code>.
+ *
+ * Layers whose content is unchanged and that have been moved as a whole by
+ * an affine transform, as done by affine layer alignment, still have valid
+ * features and matches: their locations are mapped by
+ * {@link #localChangeFrom(LayerState)}.
+ */
+public class LayerState implements Serializable
+{
+	private static final long serialVersionUID = -2297813734547103717L;
+
+	/**
+	 * Maximal distance in world pixels by which a patch corner may deviate
+	 * from a common transform of all patches of a layer.
+	 */
+	final static public double TOLERANCE = 0.01;
+
+	final protected long content;
+	final protected long[] ids;
+	final protected int[] sizes;
+	final protected double[] affines;
+	final protected Rectangle box;
+	final protected double frameScale;
+
+	protected LayerState(
+			final long content,
+			final long[] ids,
+			final int[] sizes,
+			final double[] affines,
+			final Rectangle box,
+			final double frameScale )
+	{
+		this.content = content;
+		this.ids = ids;
+		this.sizes = sizes;
+		this.affines = affines;
+		this.box = box;
+		this.frameScale = frameScale;
+	}
+
+	final static private long fnv( long hash, final String s )
+	{
+		for ( int i = 0; i < s.length(); ++i )
+		{
+			hash ^= s.charAt( i );
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * @param patches the patches of a layer that features are extracted from
+	 * @param box the region of interest that is rendered
+	 * @param frameScale the scale of the local frame relative to world
+	 */
+	static public LayerState create( final List< Patch > patches, final Rectangle box, final double frameScale )
+	{
+		final ArrayList< Patch > sorted = new ArrayList< Patch >( patches );
+		Collections.sort( sorted, new Comparator< Patch >()
+		{
+			@Override
+			public int compare( final Patch a, final Patch b )
+			{
+				return a.getId() < b.getId() ? -1 : a.getId() == b.getId() ? 0 : 1;
+			}
+		} );
+
+		final long[] ids = new long[ sorted.size() ];
+		final int[] sizes = new int[ 2 * sorted.size() ];
+		final double[] affines = new double[ 6 * sorted.size() ];
+		final double[] flat = new double[ 6 ];
+		long content = 0xcbf29ce484222325L;
+		for ( int i = 0; i < sorted.size(); ++i )
+		{
+			final Patch patch = sorted.get( i );
+			ids[ i ] = patch.getId();
+			sizes[ 2 * i ] = patch.getOWidth();
+			sizes[ 2 * i + 1 ] = patch.getOHeight();
+			patch.getAffineTransform().getMatrix( flat );
+			System.arraycopy( flat, 0, affines, 6 * i, 6 );
+
+			final CoordinateTransform ct = patch.getCoordinateTransform();
+			final StringBuilder sb = new StringBuilder()
+					.append( patch.getId() ).append( ' ' )
+					.append( patch.getImageFilePath() ).append( ' ' )
+					.append( patch.getType() ).append( ' ' )
+					.append( patch.getAlphaMaskId() ).append( ' ' )
+					.append( patch.getOWidth() ).append( ' ' ).append( patch.getOHeight() ).append( ' ' )
+					.append( patch.getMin() ).append( ' ' ).append( patch.getMax() ).append( ' ' )
+					.append( ct == null ? "" : ct.toXML( "" ) );
+			final IFilter[] filters = patch.getFilters();
+			if ( null != filters )
+				for ( final IFilter filter : filters )
+					sb.append( ' ' ).append( filter.toXML( "" ) );
+			content = fnv( content, sb.toString() );
+		}
+		return new LayerState( content, ids, sizes, affines, new Rectangle( box ), frameScale );
+	}
+
+	/**
+	 * The same state, expressed in a local frame of another scale.
+	 */
+	public LayerState withFrameScale( final double frameScale )
+	{
+		return new LayerState( content, ids, sizes, affines, box, frameScale );
+	}
+
+	final private AffineTransform affine( final int i )
+	{
+		return new AffineTransform(
+				affines[ 6 * i ],
+				affines[ 6 * i + 1 ],
+				affines[ 6 * i + 2 ],
+				affines[ 6 * i + 3 ],
+				affines[ 6 * i + 4 ],
+				affines[ 6 * i + 5 ] );
+	}
+
+	/**
+	 * Test whether all patch corners transferred by a and b are within
+	 * {@link #TOLERANCE}.
+	 */
+	final private boolean equalCorners( final int i, final AffineTransform a, final AffineTransform b )
+	{
+		final double w = sizes[ 2 * i ];
+		final double h = sizes[ 2 * i + 1 ];
+		final double[] corners = new double[]{ 0, 0, w, 0, 0, h, w, h };
+		final double[] ca = new double[ 8 ];
+		final double[] cb = new double[ 8 ];
+		a.transform( corners, 0, ca, 0, 4 );
+		b.transform( corners, 0, cb, 0, 4 );
+		for ( int k = 0; k < 8; k += 2 )
+		{
+			final double dx = ca[ k ] - cb[ k ];
+			final double dy = ca[ k + 1 ] - cb[ k + 1 ];
+			if ( dx * dx + dy * dy > TOLERANCE * TOLERANCE )
+				return false;
+		}
+		return true;
+	}
+
+	final private boolean sameContent( final LayerState old )
+	{
+		if ( content != old.content || ids.length != old.ids.length )
+			return false;
+		for ( int i = 0; i < ids.length; ++i )
+			if ( ids[ i ] != old.ids[ i ] )
+				return false;
+		return ids.length > 0;
+	}
+
+	/**
+	 * The world transform that moved all patches of old into this state,
+	 * or null if the content differs or the patches were not moved as a
+	 * whole by one affine transform.
+	 */
+	public AffineTransform poseChangeFrom( final LayerState old )
+	{
+		if ( !sameContent( old ) )
+			return null;
+
+		final AffineTransform change = old.affine( 0 );
+		try
+		{
+			change.invert();
+		}
+		catch ( final NoninvertibleTransformException e )
+		{
+			return null;
+		}
+		change.preConcatenate( affine( 0 ) );
+
+		for ( int i = 0; i < ids.length; ++i )
+		{
+			final AffineTransform moved = old.affine( i );
+			moved.preConcatenate( change );
+			if ( !equalCorners( i, moved, affine( i ) ) )
+				return null;
+		}
+		return change;
+	}
+
+	/**
+	 * Test whether old is this state, up to its region of interest and frame.
+	 */
+	public boolean hasPoseOf( final LayerState old )
+	{
+		if ( !sameContent( old ) )
+			return false;
+		for ( int i = 0; i < ids.length; ++i )
+			if ( !equalCorners( i, old.affine( i ), affine( i ) ) )
+				return false;
+		return true;
+	}
+
+	/**
+	 * The transform that maps local coordinates of old into local
+	 * coordinates of this state, or null if old is not this layer, possibly
+	 * moved as a whole.
+	 */
+	public AffineTransform localChangeFrom( final LayerState old )
+	{
+		final AffineTransform change = poseChangeFrom( old );
+		if ( change == null )
+			return null;
+
+		final AffineTransform local = new AffineTransform();
+		local.scale( frameScale, frameScale );
+		local.translate( -box.x, -box.y );
+		local.concatenate( change );
+		local.translate( old.box.x, old.box.y );
+		local.scale( 1.0 / old.frameScale, 1.0 / old.frameScale );
+		return local;
+	}
+
+	/**
+	 * Test whether a local change is negligible.
+	 */
+	static public boolean isIdentity( final AffineTransform change )
+	{
+		final double[] m = new double[ 6 ];
+		change.getMatrix( m );
+		return
+				Math.abs( m[ 0 ] - 1 ) < 1e-9 && Math.abs( m[ 1 ] ) < 1e-9 &&
+				Math.abs( m[ 2 ] ) < 1e-9 && Math.abs( m[ 3 ] - 1 ) < 1e-9 &&
+				Math.abs( m[ 4 ] ) < 1e-6 && Math.abs( m[ 5 ] ) < 1e-6;
+	}
+
+	static public void apply( final AffineTransform change, final double[] location )
+	{
+		change.transform( location, 0, location, 0, 1 );
+	}
+
+	static public void applyToFeatures( final AffineTransform change, final Collection< Feature > features )
+	{
+		for ( final Feature f : features )
+			apply( change, f.location );
+	}
+
+	/**
+	 * Map both points of each match, p1 by change1, p2 by change2.
+	 */
+	static public void applyToPointMatches(
+			final AffineTransform change1,
+			final AffineTransform change2,
+			final Collection< PointMatch > matches )
+	{
+		for ( final PointMatch pm : matches )
+		{
+			apply( change1, pm.getP1().getL() );
+			apply( change1, pm.getP1().getW() );
+			apply( change2, pm.getP2().getL() );
+			apply( change2, pm.getP2().getW() );
+		}
+	}
+}
@@ -214,7 +214,7 @@ public class RegularizedAffineLayerAlignment
 		@Override
 		public Param clone()
 		{
-			return new Param(
+			final Param clone = new Param(
 					ppm.sift.fdBins,
 					ppm.sift.fdSize,
 					ppm.sift.initialSigma,
@@ -243,6 +243,8 @@ public class RegularizedAffineLayerAlignment
 					regularizerIndex,
 					rejectIdentity,
 					visualize );
+			clone.ppm.useFeatureIndex = ppm.useFeatureIndex;
+			return clone;
 		}
 	}
 
@@ -313,6 +315,9 @@ public class RegularizedAffineLayerAlignment
 		{
 			final int range = Math.min( layerRange.size(), i + param.maxNumNeighbors + 1 );
 
+			/* shared by all neighbors of layer i */
+			final FeatureIndex.Lazy indexA = new FeatureIndex.Lazy();
+
 			for ( int j = i + 1; j < range; ++j)
 			{
                     modelFutures.add(exec.submit(
@@ -320,7 +325,8 @@ public class RegularizedAffineLayerAlignment
                                     param,
                                     layerRange.get(i), layerRange.get(j),
                                     pointMatchScale,
-                                    i, j)));
+                                    i, j,
+                                    indexA)));
 
 			}
 		}
@@ -401,7 +407,24 @@ public class RegularizedAffineLayerAlignment
 				tileConfiguration.fixTile( tiles.get( i ) );
 		}
 
-		final List< Tile< ? >  > nonPreAlignedTiles = tileConfiguration.preAlign();
+		final List< Tile< ? >  > nonPreAlignedTiles;
+		final ArrayList< Tile< ? > > registeredTiles =
+				param.ppm.clearCache ? new ArrayList< Tile< ? > >() : registeredTiles( layerRange, tiles, box, filter );
+		registeredTiles.retainAll( tileConfiguration.getTiles() );
+		if ( registeredTiles.isEmpty() )
+			nonPreAlignedTiles = tileConfiguration.preAlign();
+		else
+		{
+			/* warm start, layers unchanged since their last alignment stay where they are */
+			IJ.log( registeredTiles.size() + " layers unchanged since their last alignment" );
+			final TileConfiguration warmStart = new TileConfiguration();
+			warmStart.addTiles( tileConfiguration.getTiles() );
+			for ( final Tile< ? > t : tileConfiguration.getFixedTiles() )
+				warmStart.fixTile( t );
+			for ( final Tile< ? > t : registeredTiles )
+				warmStart.fixTile( t );
+			nonPreAlignedTiles = warmStart.preAlign();
+		}
 
 
 		IJ.log( "pre-aligned all but " + nonPreAlignedTiles.size() + " tiles" );
@@ -442,9 +465,39 @@ public class RegularizedAffineLayerAlignment
 			applyTransformToLayer( layerRange.get( i ), b, filter );
 		}
 
+		/* remember where the layers were registered to for incremental re-alignment */
+		for ( final Layer layer : layerRange )
+			if ( !emptyLayers.contains( layer ) )
+				Util.serializeLayerState(
+						layer.getProject(),
+						"layer.registered",
+						layer.getId(),
+						LayerState.create( AlignmentUtils.filterPatches( layer, filter ), box, 1 ) );
+
 		Utils.log( "Done." );
 	}
 
+	/**
+	 * Tiles of the layers whose patches have neither changed nor moved since
+	 * the layers were last aligned.
+	 */
+	final static protected ArrayList< Tile< ? > > registeredTiles(
+			final List< Layer > layerRange,
+			final List< Tile< ? > > tiles,
+			final Rectangle box,
+			final Filter< Patch > filter )
+	{
+		final ArrayList< Tile< ? > > registeredTiles = new ArrayList< Tile< ? > >();
+		for ( int i = 0; i < layerRange.size(); ++i )
+		{
+			final Layer layer = layerRange.get( i );
+			final LayerState registered = Util.deserializeLayerState( layer.getProject(), "layer.registered", layer.getId() );
+			if ( registered != null && LayerState.create( AlignmentUtils.filterPatches( layer, filter ), box, 1 ).hasPoseOf( registered ) )
+				registeredTiles.add( tiles.get( i ) );
+		}
+		return registeredTiles;
+	}
+
 	final static protected AffineTransform translateAffine( final Rectangle box, final AffineTransform affine )
 	{
 		final AffineTransform b = new AffineTransform();
@@ -644,14 +697,19 @@ public class RegularizedAffineLayerAlignment
         final double pointMatchScale;
         final int sliceA, sliceB;
 
+        /* not sent along, remote callables build their own */
+        final transient FeatureIndex.Lazy indexA;
+
 
         public CorrespondenceCallable(final Param param,
                                       final Layer layerA,
                                       final Layer layerB,
                                       final double pointMatchScale,
                                       final int sliceA,
-                                      final int sliceB)
+                                      final int sliceB,
+                                      final FeatureIndex.Lazy indexA)
         {
+            this.indexA = indexA;
             this.param = param;
             this.layerA = layerA;
             this.layerB = layerB;
@@ -669,16 +727,24 @@ public class RegularizedAffineLayerAlignment
                     new Triple<Integer, Integer, Collection<PointMatch>>(sliceA, sliceB, null);
             ArrayList< PointMatch > candidates = null;
             if ( !param.ppm.clearCache )
-                candidates = mpicbg.trakem2.align.Util.deserializePointMatches(
-                        layerB.getProject(), param.ppm, "layer", layerB.getId(), layerA.getId() );
+                candidates = AlignmentUtils.deserializeLayerPointMatches(
+                        param.ppm, layerB, layerA, pointMatchScale );
 
             if ( null == candidates )
             {
-                final ArrayList< Feature > fs1 = mpicbg.trakem2.align.Util.deserializeFeatures(
-                        layerA.getProject(), param.ppm.sift, "layer", layerA.getId() );
                 final ArrayList< Feature > fs2 = mpicbg.trakem2.align.Util.deserializeFeatures(
                         layerB.getProject(), param.ppm.sift, "layer", layerB.getId() );
-                candidates = new ArrayList< PointMatch >( FloatArray2DSIFT.createMatches( fs2, fs1, param.ppm.rod ) );
+                if ( param.ppm.useFeatureIndex )
+                {
+                    final FeatureIndex.Lazy index = indexA == null ? new FeatureIndex.Lazy() : indexA;
+                    candidates = index.get( layerA.getProject(), param.ppm.sift, "layer", layerA.getId() ).createMatches( fs2, param.ppm.rod );
+                }
+                else
+                {
+                    final ArrayList< Feature > fs1 = mpicbg.trakem2.align.Util.deserializeFeatures(
+                            layerA.getProject(), param.ppm.sift, "layer", layerA.getId() );
+                    candidates = new ArrayList< PointMatch >( FloatArray2DSIFT.createMatches( fs2, fs1, param.ppm.rod ) );
+                }
 
                 /* scale the candidates */
                 for ( final PointMatch pm : candidates )
@@ -701,8 +767,8 @@ public class RegularizedAffineLayerAlignment
 
                 }
 
-                if ( !mpicbg.trakem2.align.Util.serializePointMatches(
-                        layerB.getProject(), param.ppm, "layer", layerB.getId(), layerA.getId(), candidates ) )
+                if ( !AlignmentUtils.serializeLayerPointMatches(
+                        param.ppm, layerB, layerA, pointMatchScale, candidates ) )
                     Utils.log( "Could not store point match candidates for layers " + layerNameB + " and " + layerNameA + "." );
             }
 
@@ -0,0 +1,704 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.trakem2.align;
+
+import ini.trakem2.utils.Utils;
+
+import java.awt.geom.AffineTransform;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import mpicbg.models.Affine2D;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.RigidModel2D;
+import mpicbg.models.SimilarityModel2D;
+import mpicbg.models.Tile;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.trakem2.util.SharedExecutor;
+
+/**
+ * Global least-squares solver for a configuration of {@link Tile Tiles}
+ * with {@link Affine2D affine} models, interconnected by
+ * {@link PointMatch PointMatches}.
+ *
+ * Instead of relaxing one tile at a time until the configuration settles,
+ * the normal equations of all point matches are assembled into one sparse,
+ * symmetric positive definite matrix with one block row per tile, and
+ * solved at once by conjugate gradients, preconditioned with the inverses
+ * of the diagonal blocks.  Assembly, matrix-vector products and dot
+ * products run on all cores.
+ *
+ * The parameterization is linear in the model parameters: translation (one
+ * unknown per tile and dimension), similarity (four unknowns per tile) or
+ * affine (three unknowns per tile and dimension, both dimensions sharing
+ * the same matrix).  Each tile's model is then fit to its solved positions,
+ * which projects the linearized similarity onto the nearest rigid
+ * transformation for {@link RigidModel2D rigid} tiles.
+ *
+ * Connected groups of tiles without any fixed tile get their first tile
+ * fixed.  A small damping towards the current parameters keeps tiles with
+ * too few matches where they are.
+ *
+ * After {@link #disconnect(Tile, Tile) removing a connection}, only the
+ * rows of its two tiles are assembled again, and the next
+ * {@link #solve(int, double) solve} starts from the previous solution.
+ */
+public class SparseTileSolver
+{
+	final static private int TRANSLATION = 0, SIMILARITY = 1, AFFINE = 2;
+
+	/** Tiles per chunk of rows handed to each thread. */
+	final static private int CHUNK = 256;
+
+	/** Damping relative to the diagonal. */
+	final static private double DAMPING = 1e-9;
+
+	final private List< Tile< ? > > tiles = new ArrayList< Tile< ? > >();
+	/** Index of each free tile in the unknowns, or -1 for fixed tiles. */
+	final private int[] free;
+	final private int nFree;
+	final private int mode;
+	/** Unknowns per tile and right-hand-side column. */
+	final private int b;
+	/** Number of right-hand-side columns, each solved independently with the same matrix. */
+	final private int r;
+	/** Current parameters of every tile, r * b per tile. */
+	final private double[] u;
+
+	/* Block rows of the matrix, for free tiles only */
+	final private double[][] diag;
+	final private int[][] neighbors;
+	final private double[][] offDiag;
+	/** Right-hand side, r * b per free tile. */
+	final private double[] rhs;
+	/** Inverses of the diagonal blocks, for preconditioning; null entries are yet to be inverted. */
+	final private double[][] inv;
+	/** The solution of the last {@link #solve(int, double) solve}, r * b per free tile, or null before. */
+	private double[] x = null;
+
+	final private Map< Tile< ? >, Integer > index = new HashMap< Tile< ? >, Integer >();
+	/** Indices of the tiles connected to each tile. */
+	final private int[][] adjacent;
+	/** The tile at the other end of each match. */
+	final private Map< PointMatch, Integer > others = new IdentityHashMap< PointMatch, Integer >();
+	final private boolean[] fixed;
+
+	final private int numThreads;
+
+	/**
+	 * @param tiles all tiles of the configuration
+	 * @param fixedTiles tiles whose models are not to be changed
+	 */
+	public SparseTileSolver(
+			final Collection< ? extends Tile< ? > > tiles,
+			final Collection< ? extends Tile< ? > > fixedTiles,
+			final int numThreads )
+	{
+		this.tiles.addAll( tiles );
+		this.numThreads = Math.max( 1, numThreads );
+		final int n = this.tiles.size();
+
+		int m = TRANSLATION;
+		for ( final Tile< ? > t : this.tiles )
+		{
+			final Object model = t.getModel();
+			if ( TranslationModel2D.class.isInstance( model ) ) continue;
+			if ( RigidModel2D.class.isInstance( model ) || SimilarityModel2D.class.isInstance( model ) )
+				m = Math.max( m, SIMILARITY );
+			else
+				m = AFFINE;
+		}
+		mode = m;
+		switch ( mode )
+		{
+		case TRANSLATION: b = 1; r = 2; break;
+		case SIMILARITY: b = 4; r = 1; break;
+		default: b = 3; r = 2; break;
+		}
+
+		/* which tile owns each point, to find the tile at the other end of each match */
+		final IdentityHashMap< Point, Integer > owner = new IdentityHashMap< Point, Integer >();
+		for ( int i = 0; i < n; ++i )
+		{
+			final Tile< ? > t = this.tiles.get( i );
+			index.put( t, i );
+			for ( final PointMatch pm : t.getMatches() )
+				owner.put( pm.getP1(), i );
+		}
+
+		/* adjacency */
+		adjacent = new int[ n ][];
+		for ( int i = 0; i < n; ++i )
+		{
+			final Set< Integer > s = new HashSet< Integer >();
+			for ( final PointMatch pm : this.tiles.get( i ).getMatches() )
+			{
+				final Integer j = owner.get( pm.getP2() );
+				if ( null == j || i == j ) continue;
+				others.put( pm, j );
+				s.add( j );
+			}
+			adjacent[ i ] = new int[ s.size() ];
+			int k = 0;
+			for ( final Integer j : s )
+				adjacent[ i ][ k++ ] = j;
+		}
+
+		/* fix the given tiles, and the first tile of every connected group without any */
+		fixed = new boolean[ n ];
+		for ( final Tile< ? > t : fixedTiles )
+		{
+			final Integer i = index.get( t );
+			if ( null != i ) fixed[ i ] = true;
+		}
+		final boolean[] visited = new boolean[ n ];
+		final int[] stack = new int[ n ];
+		for ( int i = 0; i < n; ++i )
+		{
+			if ( visited[ i ] ) continue;
+			final List< Integer > group = new ArrayList< Integer >();
+			boolean hasFixed = false;
+			int top = 0;
+			stack[ top++ ] = i;
+			visited[ i ] = true;
+			while ( top > 0 )
+			{
+				final int k = stack[ --top ];
+				group.add( k );
+				hasFixed |= fixed[ k ];
+				for ( final int j : adjacent[ k ] )
+				{
+					if ( visited[ j ] ) continue;
+					visited[ j ] = true;
+					stack[ top++ ] = j;
+				}
+			}
+			if ( !hasFixed ) fixed[ group.get( 0 ) ] = true;
+		}
+
+		free = new int[ n ];
+		int nf = 0;
+		for ( int i = 0; i < n; ++i )
+			free[ i ] = fixed[ i ] ? -1 : nf++;
+		nFree = nf;
+
+		u = new double[ n * r * b ];
+		for ( int i = 0; i < n; ++i )
+			getParameters( this.tiles.get( i ), u, i * r * b );
+
+		diag = new double[ nFree ][];
+		neighbors = new int[ nFree ][];
+		offDiag = new double[ nFree ][];
+		rhs = new double[ nFree * r * b ];
+		inv = new double[ nFree ][];
+
+		/* assemble the block rows in parallel */
+		SharedExecutor.forEach( ( n + CHUNK - 1 ) / CHUNK, this.numThreads, new SharedExecutor.Body()
+		{
+			@Override
+			public void run( final int c )
+			{
+				for ( int i = c * CHUNK, last = Math.min( n, i + CHUNK ); i < last; ++i )
+					if ( -1 != free[ i ] )
+						assembleRow( i );
+			}
+		} );
+	}
+
+	/**
+	 * Update the matrix after all matches between tiles @param t and
+	 * @param o were removed, as with {@link Tile#removeConnectedTile(Tile)}.
+	 *
+	 * @return false if that left a connected group of tiles without any
+	 * fixed tile, in which case this solver can't be used anymore and a new
+	 * one has to be made.
+	 */
+	public boolean disconnect( final Tile< ? > t, final Tile< ? > o )
+	{
+		final Integer i = index.get( t ), j = index.get( o );
+		if ( null == i || null == j ) return true;
+		adjacent[ i ] = without( adjacent[ i ], j );
+		adjacent[ j ] = without( adjacent[ j ], i );
+		if ( !hasFixed( i ) || !hasFixed( j ) ) return false;
+		for ( final int k : new int[]{ i, j } )
+		{
+			if ( -1 == free[ k ] ) continue;
+			assembleRow( k );
+			inv[ free[ k ] ] = null;
+		}
+		return true;
+	}
+
+	final static private int[] without( final int[] a, final int v )
+	{
+		int n = 0;
+		for ( final int k : a )
+			if ( k != v ) ++n;
+		if ( n == a.length ) return a;
+		final int[] c = new int[ n ];
+		n = 0;
+		for ( final int k : a )
+			if ( k != v ) c[ n++ ] = k;
+		return c;
+	}
+
+	/** Whether the connected group of tile @param i has a fixed tile. */
+	final private boolean hasFixed( final int i )
+	{
+		final HashSet< Integer > visited = new HashSet< Integer >();
+		final ArrayList< Integer > stack = new ArrayList< Integer >();
+		stack.add( i );
+		visited.add( i );
+		while ( !stack.isEmpty() )
+		{
+			final int k = stack.remove( stack.size() - 1 );
+			if ( fixed[ k ] ) return true;
+			for ( final int j : adjacent[ k ] )
+				if ( visited.add( j ) ) stack.add( j );
+		}
+		return false;
+	}
+
+	/** Read the parameters of the model of tile @param t into @param p at @param offset. */
+	final private void getParameters( final Tile< ? > t, final double[] p, final int offset )
+	{
+		final AffineTransform a = ( ( Affine2D< ? > )t.getModel() ).createAffine();
+		switch ( mode )
+		{
+		case TRANSLATION:
+			p[ offset ] = a.getTranslateX();
+			p[ offset + 1 ] = a.getTranslateY();
+			break;
+		case SIMILARITY:
+			p[ offset ] = a.getScaleX();
+			p[ offset + 1 ] = a.getShearY();
+			p[ offset + 2 ] = a.getTranslateX();
+			p[ offset + 3 ] = a.getTranslateY();
+			break;
+		default:
+			p[ offset ] = a.getScaleX();
+			p[ offset + 1 ] = a.getShearX();
+			p[ offset + 2 ] = a.getTranslateX();
+			p[ offset + 3 ] = a.getShearY();
+			p[ offset + 4 ] = a.getScaleY();
+			p[ offset + 5 ] = a.getTranslateY();
+		}
+	}
+
+	/**
+	 * Write into @param phi the coefficients of the unknowns for dimension
+	 * @param d of local point @param l, and return the constant term.
+	 */
+	final private double coefficients( final double[] l, final int d, final double[] phi )
+	{
+		switch ( mode )
+		{
+		case TRANSLATION:
+			phi[ 0 ] = 1;
+			return l[ d ];
+		case SIMILARITY:
+			if ( 0 == d )
+			{
+				phi[ 0 ] = l[ 0 ]; phi[ 1 ] = -l[ 1 ]; phi[ 2 ] = 1; phi[ 3 ] = 0;
+			}
+			else
+			{
+				phi[ 0 ] = l[ 1 ]; phi[ 1 ] = l[ 0 ]; phi[ 2 ] = 0; phi[ 3 ] = 1;
+			}
+			return 0;
+		default:
+			phi[ 0 ] = l[ 0 ]; phi[ 1 ] = l[ 1 ]; phi[ 2 ] = 1;
+			return 0;
+		}
+	}
+
+	/** The right-hand-side column that dimension @param d contributes to. */
+	final private int column( final int d )
+	{
+		return 2 == r ? d : 0;
+	}
+
+	final private void assembleRow( final int i )
+	{
+		final int[] adjacent = this.adjacent[ i ];
+		final int bb = b * b;
+		final int fi = free[ i ];
+		final double[] dg = new double[ bb ];
+		final double[] od = new double[ adjacent.length * bb ];
+		final double[] q = new double[ r * b ];
+		final double[] phi1 = new double[ b ], phi2 = new double[ b ];
+		/* only the free neighbors get a block */
+		int nFreeNeighbors = 0;
+		for ( final int j : adjacent )
+			if ( -1 != free[ j ] ) ++nFreeNeighbors;
+		final int[] nb = new int[ nFreeNeighbors ];
+		final int[] slot = new int[ adjacent.length ];
+		for ( int k = 0, s = 0; k < adjacent.length; ++k )
+		{
+			if ( -1 == free[ adjacent[ k ] ] )
+				slot[ k ] = -1;
+			else
+			{
+				nb[ s ] = adjacent[ k ];
+				slot[ k ] = s++;
+			}
+		}
+
+		for ( final PointMatch pm : tiles.get( i ).getMatches() )
+		{
+			final Integer jj = others.get( pm );
+			if ( null == jj ) continue;
+			final int j = jj;
+			int k = 0;
+			while ( k < adjacent.length && adjacent[ k ] != j ) ++k;
+			if ( k == adjacent.length ) continue;
+			final double w = pm.getWeight();
+			final double[] l1 = pm.getP1().getL();
+			final double[] l2 = pm.getP2().getL();
+			for ( int d = 0; d < 2; ++d )
+			{
+				final double c1 = coefficients( l1, d, phi1 );
+				final double c2 = coefficients( l2, d, phi2 );
+				final int col = column( d );
+				/* in translation and affine mode both dimensions share the matrix */
+				final boolean addToMatrix = 1 == r || 0 == d;
+				if ( addToMatrix )
+				{
+					for ( int x = 0; x < b; ++x )
+						for ( int y = 0; y < b; ++y )
+							dg[ x * b + y ] += w * phi1[ x ] * phi1[ y ];
+				}
+				double rest = c2 - c1;
+				if ( -1 == slot[ k ] )
+				{
+					/* fixed neighbor: its contribution is known */
+					final int o = j * r * b + col * b;
+					for ( int y = 0; y < b; ++y )
+						rest += phi2[ y ] * u[ o + y ];
+				}
+				else if ( addToMatrix )
+				{
+					final int o = slot[ k ] * bb;
+					for ( int x = 0; x < b; ++x )
+						for ( int y = 0; y < b; ++y )
+							od[ o + x * b + y ] -= w * phi1[ x ] * phi2[ y ];
+				}
+				for ( int x = 0; x < b; ++x )
+					q[ col * b + x ] += w * phi1[ x ] * rest;
+			}
+		}
+
+		/* damping towards the current parameters, relative to each diagonal entry */
+		for ( int x = 0; x < b; ++x )
+		{
+			final double lambda = Math.max( DAMPING * dg[ x * b + x ], 1e-12 );
+			dg[ x * b + x ] += lambda;
+			for ( int c = 0; c < r; ++c )
+				q[ c * b + x ] += lambda * u[ i * r * b + c * b + x ];
+		}
+
+		final int[] fnb = new int[ nFreeNeighbors ];
+		for ( int s = 0; s < nFreeNeighbors; ++s )
+			fnb[ s ] = free[ nb[ s ] ];
+		diag[ fi ] = dg;
+		neighbors[ fi ] = fnb;
+		offDiag[ fi ] = od.length == nFreeNeighbors * bb ? od : Arrays.copyOf( od, nFreeNeighbors * bb );
+		System.arraycopy( q, 0, rhs, fi * r * b, r * b );
+	}
+
+	/** y = A x, for column @param c of vectors laid out as r * b per free tile. */
+	final private void multiply( final double[] x, final double[] y, final int c )
+	{
+		final int stride = r * b;
+		SharedExecutor.forEach( ( nFree + CHUNK - 1 ) / CHUNK, numThreads, new SharedExecutor.Body()
+		{
+			@Override
+			public void run( final int chunk )
+			{
+				for ( int i = chunk * CHUNK, last = Math.min( nFree, i + CHUNK ); i < last; ++i )
+				{
+					final int oi = i * stride + c * b;
+					final double[] dg = diag[ i ];
+					for ( int row = 0; row < b; ++row )
+					{
+						double s = 0;
+						for ( int col = 0; col < b; ++col )
+							s += dg[ row * b + col ] * x[ oi + col ];
+						y[ oi + row ] = s;
+					}
+					final int[] nb = neighbors[ i ];
+					final double[] od = offDiag[ i ];
+					for ( int k = 0; k < nb.length; ++k )
+					{
+						final int oj = nb[ k ] * stride + c * b;
+						final int ob = k * b * b;
+						for ( int row = 0; row < b; ++row )
+						{
+							double s = 0;
+							for ( int col = 0; col < b; ++col )
+								s += od[ ob + row * b + col ] * x[ oj + col ];
+							y[ oi + row ] += s;
+						}
+					}
+				}
+			}
+		} );
+	}
+
+	/** Dot product of column @param c of @param x and @param y. */
+	final private double dot( final double[] x, final double[] y, final int c )
+	{
+		final int stride = r * b;
+		final int nChunks = ( nFree + CHUNK - 1 ) / CHUNK;
+		final double[] partial = new double[ nChunks ];
+		SharedExecutor.forEach( nChunks, numThreads, new SharedExecutor.Body()
+		{
+			@Override
+			public void run( final int chunk )
+			{
+				double s = 0;
+				for ( int i = chunk * CHUNK, last = Math.min( nFree, i + CHUNK ); i < last; ++i )
+				{
+					final int o = i * stride + c * b;
+					for ( int k = 0; k < b; ++k )
+						s += x[ o + k ] * y[ o + k ];
+				}
+				partial[ chunk ] = s;
+			}
+		} );
+		/* summed in a fixed order, for reproducible results */
+		double s = 0;
+		for ( final double p : partial )
+			s += p;
+		return s;
+	}
+
+	/** Invert the b x b diagonal blocks not yet inverted, by Gauss-Jordan elimination with partial pivoting. */
+	final private void invertDiagonal()
+	{
+		SharedExecutor.forEach( ( nFree + CHUNK - 1 ) / CHUNK, numThreads, new SharedExecutor.Body()
+		{
+			@Override
+			public void run( final int chunk )
+			{
+				for ( int i = chunk * CHUNK, last = Math.min( nFree, i + CHUNK ); i < last; ++i )
+					if ( null == inv[ i ] )
+						inv[ i ] = invert( diag[ i ], b );
+			}
+		} );
+	}
+
+	final static private double[] invert( final double[] m, final int n )
+	{
+		final double[] a = m.clone();
+		final double[] inv = new double[ n * n ];
+		for ( int k = 0; k < n; ++k )
+			inv[ k * n + k ] = 1;
+		for ( int col = 0; col < n; ++col )
+		{
+			int pivot = col;
+			for ( int row = col + 1; row < n; ++row )
+				if ( Math.abs( a[ row * n + col ] ) > Math.abs( a[ pivot * n + col ] ) )
+					pivot = row;
+			final double p = a[ pivot * n + col ];
+			if ( 0 == p )
+			{
+				/* singular: fall back to the inverse of the diagonal */
+				final double[] d = new double[ n * n ];
+				for ( int k = 0; k < n; ++k )
+					d[ k * n + k ] = 0 == m[ k * n + k ] ? 0 : 1 / m[ k * n + k ];
+				return d;
+			}
+			if ( pivot != col )
+				for ( int k = 0; k < n; ++k )
+				{
+					double t = a[ col * n + k ]; a[ col * n + k ] = a[ pivot * n + k ]; a[ pivot * n + k ] = t;
+					t = inv[ col * n + k ]; inv[ col * n + k ] = inv[ pivot * n + k ]; inv[ pivot * n + k ] = t;
+				}
+			for ( int k = 0; k < n; ++k )
+			{
+				a[ col * n + k ] /= p;
+				inv[ col * n + k ] /= p;
+			}
+			for ( int row = 0; row < n; ++row )
+			{
+				if ( row == col ) continue;
+				final double f = a[ row * n + col ];
+				if ( 0 == f ) continue;
+				for ( int k = 0; k < n; ++k )
+				{
+					a[ row * n + k ] -= f * a[ col * n + k ];
+					inv[ row * n + k ] -= f * inv[ col * n + k ];
+				}
+			}
+		}
+		return inv;
+	}
+
+	/** z = M^-1 x for column @param c, with the block-diagonal preconditioner. */
+	final private void precondition( final double[] x, final double[] z, final int c )
+	{
+		final int stride = r * b;
+		SharedExecutor.forEach( ( nFree + CHUNK - 1 ) / CHUNK, numThreads, new SharedExecutor.Body()
+		{
+			@Override
+			public void run( final int chunk )
+			{
+				for ( int i = chunk * CHUNK, last = Math.min( nFree, i + CHUNK ); i < last; ++i )
+				{
+					final int o = i * stride + c * b;
+					final double[] m = inv[ i ];
+					for ( int row = 0; row < b; ++row )
+					{
+						double s = 0;
+						for ( int col = 0; col < b; ++col )
+							s += m[ row * b + col ] * x[ o + col ];
+						z[ o + row ] = s;
+					}
+				}
+			}
+		} );
+	}
+
+	/**
+	 * Solve the normal equations by preconditioned conjugate gradients,
+	 * starting from the previous solution if any or else from the current
+	 * parameters, and fit the model of every free tile to its solution.
+	 *
+	 * @param maxIterations maximal number of iterations per column
+	 * @param tolerance relative residual norm at which to stop
+	 *
+	 * @return the number of iterations of the slowest column
+	 */
+	public int solve( final int maxIterations, final double tolerance )
+	{
+		if ( 0 == nFree ) return 0;
+		final int stride = r * b;
+		if ( null == x )
+		{
+			x = new double[ nFree * stride ];
+			for ( int i = 0; i < tiles.size(); ++i )
+				if ( -1 != free[ i ] )
+					System.arraycopy( u, i * stride, x, free[ i ] * stride, stride );
+		}
+		final double[] x = this.x;
+
+		invertDiagonal();
+		final double[] res = new double[ x.length ];
+		final double[] z = new double[ x.length ];
+		final double[] p = new double[ x.length ];
+		final double[] ap = new double[ x.length ];
+		int maxIter = 0;
+
+		for ( int c = 0; c < r; ++c )
+		{
+			/* r = b - A x */
+			multiply( x, ap, c );
+			for ( int i = 0; i < nFree; ++i )
+				for ( int k = 0; k < b; ++k )
+				{
+					final int o = i * stride + c * b + k;
+					res[ o ] = rhs[ o ] - ap[ o ];
+				}
+			final double bNorm = Math.sqrt( dot( rhs, rhs, c ) );
+			if ( 0 == bNorm ) continue;
+			precondition( res, z, c );
+			for ( int i = 0; i < nFree; ++i )
+				System.arraycopy( z, i * stride + c * b, p, i * stride + c * b, b );
+			double rz = dot( res, z, c );
+			int iter = 0;
+			for ( ; iter < maxIterations; ++iter )
+			{
+				if ( Math.sqrt( dot( res, res, c ) ) <= tolerance * bNorm ) break;
+				if ( Thread.currentThread().isInterrupted() ) return iter;
+				multiply( p, ap, c );
+				final double pAp = dot( p, ap, c );
+				if ( pAp <= 0 ) break;
+				final double alpha = rz / pAp;
+				for ( int i = 0; i < nFree; ++i )
+					for ( int k = 0; k < b; ++k )
+					{
+						final int o = i * stride + c * b + k;
+						x[ o ] += alpha * p[ o ];
+						res[ o ] -= alpha * ap[ o ];
+					}
+				precondition( res, z, c );
+				final double rzNew = dot( res, z, c );
+				final double beta = rzNew / rz;
+				rz = rzNew;
+				for ( int i = 0; i < nFree; ++i )
+					for ( int k = 0; k < b; ++k )
+					{
+						final int o = i * stride + c * b + k;
+						p[ o ] = z[ o ] + beta * p[ o ];
+					}
+			}
+			maxIter = Math.max( maxIter, iter );
+		}
+
+		/* fit each free tile's model to where its points land with the solved parameters */
+		SharedExecutor.forEach( tiles.size(), numThreads, new SharedExecutor.Body()
+		{
+			@Override
+			public void run( final int i )
+			{
+				if ( -1 == free[ i ] ) return;
+				fitModel( tiles.get( i ), x, free[ i ] * stride );
+			}
+		} );
+		return maxIter;
+	}
+
+	final private void fitModel( final Tile< ? > t, final double[] x, final int o )
+	{
+		final ArrayList< PointMatch > matches = new ArrayList< PointMatch >();
+		final double[] phi = new double[ b ];
+		for ( final PointMatch pm : t.getMatches() )
+		{
+			final double[] l = pm.getP1().getL();
+			final double[] w = new double[ 2 ];
+			for ( int d = 0; d < 2; ++d )
+			{
+				double s = coefficients( l, d, phi );
+				final int oc = o + column( d ) * b;
+				for ( int k = 0; k < b; ++k )
+					s += phi[ k ] * x[ oc + k ];
+				w[ d ] = s;
+			}
+			final Point p = new Point( l.clone() );
+			final Point q = new Point( w );
+			matches.add( new PointMatch( p, q, pm.getWeight() ) );
+		}
+		if ( matches.isEmpty() ) return;
+		try
+		{
+			t.getModel().fit( matches );
+		}
+		catch ( final Exception e )
+		{
+			Utils.log2( "SparseTileSolver: could not fit the model of " + t + ": " + e );
+		}
+	}
+}
@@ -0,0 +1,389 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.trakem2.align;
+
+import ij.IJ;
+import ini.trakem2.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.Spring;
+import mpicbg.models.SpringMesh;
+import mpicbg.models.Vertex;
+import mpicbg.trakem2.util.SharedExecutor;
+
+/**
+ * Relaxes a set of {@link SpringMesh SpringMeshes} on all cores.
+ *
+ * The state of all vertices, and of the springs attached to them, is
+ * copied once into primitive arrays.  Each iteration then has two
+ * synchronous phases: first the forces on all vertices are computed from
+ * the current positions and integrated into a second buffer, in chunks of
+ * vertices per thread; then the buffers are swapped and each mesh, on its
+ * own thread, takes over the new positions of its vertices and moves the
+ * passive vertices that connect it to other meshes.  Since no position is
+ * read while it is being written, the result does not depend on the number
+ * of threads or on the order of the meshes.
+ *
+ * Each vertex moves by its force divided by the sum of the weights of its
+ * springs, with momentum damped by the mesh damping, which is stable for
+ * any stiffness.  The stretch of each spring is limited to its maximal
+ * stretch.  The error is that of {@link SpringMesh#optimizeMeshes2}: the
+ * amplitude of the force on each vertex, averaged per mesh and then over
+ * all meshes, so that the same maximal error stops both optimizers at the
+ * same point.  Optimization stops as that of a
+ * {@link mpicbg.models.TileConfiguration}.
+ */
+public class SpringMeshOptimizer
+{
+	/** Vertices per chunk handed to each thread. */
+	final static private int CHUNK = 1024;
+
+	final private List< SpringMesh > meshes;
+	final private int numThreads;
+	final private double damp;
+
+	/* vertices of mesh m are those from meshStart[ m ] to meshStart[ m + 1 ] */
+	final private int[] meshStart;
+	final private Vertex[] vertices;
+	final private Vertex[] passiveVertices;
+
+	/* positions and speeds, x and y interleaved */
+	private double[] position;
+	private double[] next;
+	final private double[] speed;
+	final private double[] passivePosition;
+
+	/* springs of vertex i are those from springStart[ i ] to springStart[ i + 1 ] */
+	final private int[] springStart;
+	/** The other end of each spring: a vertex index, or -1 - the index of a passive vertex. */
+	final private int[] springTarget;
+	final private double[] springLength;
+	final private double[] springWeight;
+	final private double[] springMaxStretch;
+	/** Sum of spring weights per vertex. */
+	final private double[] mass;
+	/** Amplitude of the force on each vertex in the last iteration. */
+	final private double[] force;
+
+	/* per mesh statistics of the last iteration */
+	final private double[] meshError;
+	final private double[] meshMin;
+	final private double[] meshMax;
+
+	/**
+	 * @param meshes initialized meshes, interconnected by passive vertices
+	 * @param damp fraction of its speed that a vertex keeps per iteration
+	 * @param numThreads
+	 */
+	public SpringMeshOptimizer( final List< SpringMesh > meshes, final double damp, final int numThreads )
+	{
+		this.meshes = meshes;
+		this.damp = damp;
+		this.numThreads = Math.max( 1, numThreads );
+
+		final IdentityHashMap< Vertex, Integer > index = new IdentityHashMap< Vertex, Integer >();
+		final ArrayList< Vertex > vs = new ArrayList< Vertex >();
+		meshStart = new int[ meshes.size() + 1 ];
+		for ( int m = 0; m < meshes.size(); ++m )
+		{
+			meshStart[ m ] = vs.size();
+			for ( final Vertex v : meshes.get( m ).getVertices() )
+			{
+				index.put( v, vs.size() );
+				vs.add( v );
+			}
+		}
+		meshStart[ meshes.size() ] = vs.size();
+		vertices = vs.toArray( new Vertex[ vs.size() ] );
+		final int n = vertices.length;
+
+		/* springs, and the passive vertices at their ends */
+		final IdentityHashMap< Vertex, Integer > passiveIndex = new IdentityHashMap< Vertex, Integer >();
+		final ArrayList< Vertex > ps = new ArrayList< Vertex >();
+		springStart = new int[ n + 1 ];
+		int numSprings = 0;
+		for ( int i = 0; i < n; ++i )
+		{
+			springStart[ i ] = numSprings;
+			numSprings += vertices[ i ].getConnectedVertices().size();
+		}
+		springStart[ n ] = numSprings;
+		springTarget = new int[ numSprings ];
+		springLength = new double[ numSprings ];
+		springWeight = new double[ numSprings ];
+		springMaxStretch = new double[ numSprings ];
+		mass = new double[ n ];
+		for ( int i = 0; i < n; ++i )
+		{
+			int s = springStart[ i ];
+			for ( final Vertex v : vertices[ i ].getConnectedVertices() )
+			{
+				final Integer j = index.get( v );
+				if ( null != j )
+					springTarget[ s ] = j;
+				else
+				{
+					Integer p = passiveIndex.get( v );
+					if ( null == p )
+					{
+						p = ps.size();
+						passiveIndex.put( v, p );
+						ps.add( v );
+					}
+					springTarget[ s ] = -1 - p;
+				}
+				final Spring spring = vertices[ i ].getSpring( v );
+				springLength[ s ] = spring.getLength();
+				springWeight[ s ] = spring.getWeight();
+				springMaxStretch[ s ] = spring.getMaxStretch();
+				mass[ i ] += springWeight[ s ];
+				++s;
+			}
+		}
+		passiveVertices = ps.toArray( new Vertex[ ps.size() ] );
+
+		position = new double[ 2 * n ];
+		next = new double[ 2 * n ];
+		speed = new double[ 2 * n ];
+		passivePosition = new double[ 2 * passiveVertices.length ];
+		for ( int i = 0; i < n; ++i )
+		{
+			final double[] w = vertices[ i ].getW();
+			position[ 2 * i ] = w[ 0 ];
+			position[ 2 * i + 1 ] = w[ 1 ];
+		}
+		readPassiveVertices();
+
+		force = new double[ n ];
+		meshError = new double[ meshes.size() ];
+		meshMin = new double[ meshes.size() ];
+		meshMax = new double[ meshes.size() ];
+	}
+
+	public int numVertices() { return vertices.length; }
+
+	public int numPassiveVertices() { return passiveVertices.length; }
+
+	public int numSprings() { return springTarget.length; }
+
+	final private void readPassiveVertices()
+	{
+		SharedExecutor.forEach( ( passiveVertices.length + CHUNK - 1 ) / CHUNK, numThreads, new SharedExecutor.Body()
+		{
+			@Override
+			public void run( final int chunk )
+			{
+				for ( int p = chunk * CHUNK, last = Math.min( passiveVertices.length, p + CHUNK ); p < last; ++p )
+				{
+					final double[] w = passiveVertices[ p ].getW();
+					passivePosition[ 2 * p ] = w[ 0 ];
+					passivePosition[ 2 * p + 1 ] = w[ 1 ];
+				}
+			}
+		} );
+	}
+
+	/**
+	 * Compute the force on every vertex from the current positions and, if
+	 * @param move, write the moved positions into {@link #next}.
+	 */
+	final private void step( final boolean move )
+	{
+		final double[] x = position;
+		final double[] y = next;
+		SharedExecutor.forEach( ( vertices.length + CHUNK - 1 ) / CHUNK, numThreads, new SharedExecutor.Body()
+		{
+			@Override
+			public void run( final int chunk )
+			{
+				for ( int i = chunk * CHUNK, last = Math.min( vertices.length, i + CHUNK ); i < last; ++i )
+				{
+					final double xi = x[ 2 * i ], yi = x[ 2 * i + 1 ];
+					double fx = 0, fy = 0;
+					for ( int s = springStart[ i ]; s < springStart[ i + 1 ]; ++s )
+					{
+						final int j = springTarget[ s ];
+						final double dx, dy;
+						if ( j >= 0 )
+						{
+							dx = x[ 2 * j ] - xi;
+							dy = x[ 2 * j + 1 ] - yi;
+						}
+						else
+						{
+							dx = passivePosition[ -2 - 2 * j ] - xi;
+							dy = passivePosition[ -1 - 2 * j ] - yi;
+						}
+						final double d = Math.sqrt( dx * dx + dy * dy );
+						if ( 0 == d ) continue;
+						final double stretch = Math.max( -springMaxStretch[ s ], Math.min( springMaxStretch[ s ], d - springLength[ s ] ) );
+						final double f = springWeight[ s ] * stretch / d;
+						fx += f * dx;
+						fy += f * dy;
+					}
+					force[ i ] = Math.sqrt( fx * fx + fy * fy );
+					if ( !move ) continue;
+					if ( mass[ i ] > 0 )
+					{
+						fx /= mass[ i ];
+						fy /= mass[ i ];
+					}
+					speed[ 2 * i ] = damp * ( speed[ 2 * i ] + fx );
+					speed[ 2 * i + 1 ] = damp * ( speed[ 2 * i + 1 ] + fy );
+					y[ 2 * i ] = xi + speed[ 2 * i ];
+					y[ 2 * i + 1 ] = yi + speed[ 2 * i + 1 ];
+				}
+			}
+		} );
+	}
+
+	/** The mean, per mesh, of the amplitudes of the forces on its vertices, and their minimum and maximum. */
+	final private void meshStatistics( final int m )
+	{
+		double sum = 0, min = Double.MAX_VALUE, max = 0;
+		for ( int i = meshStart[ m ]; i < meshStart[ m + 1 ]; ++i )
+		{
+			final double e = force[ i ];
+			sum += e;
+			if ( e < min ) min = e;
+			if ( e > max ) max = e;
+		}
+		final int n = meshStart[ m + 1 ] - meshStart[ m ];
+		meshError[ m ] = 0 == n ? 0 : sum / n;
+		meshMin[ m ] = min;
+		meshMax[ m ] = max;
+	}
+
+	/** Hand the current positions over to the meshes and their passive vertices. */
+	final private void commit()
+	{
+		final double[] x = position;
+		SharedExecutor.forEach( meshes.size(), numThreads, new SharedExecutor.Body()
+		{
+			@Override
+			public void run( final int m )
+			{
+				for ( int i = meshStart[ m ]; i < meshStart[ m + 1 ]; ++i )
+				{
+					final double[] w = vertices[ i ].getW();
+					w[ 0 ] = x[ 2 * i ];
+					w[ 1 ] = x[ 2 * i + 1 ];
+				}
+				final SpringMesh mesh = meshes.get( m );
+				mesh.updateAffines();
+				mesh.updatePassiveVertices();
+				meshStatistics( m );
+			}
+		} );
+		readPassiveVertices();
+	}
+
+	/** The mean over all meshes of {@link #meshError}, and the minimum and maximum over all vertices. */
+	final private double[] statistics()
+	{
+		double sum = 0, min = Double.MAX_VALUE, max = 0;
+		for ( int m = 0; m < meshError.length; ++m )
+		{
+			sum += meshError[ m ];
+			min = Math.min( min, meshMin[ m ] );
+			max = Math.max( max, meshMax[ m ] );
+		}
+		return new double[]{ 0 == meshError.length ? 0 : sum / meshError.length, min, max };
+	}
+
+	/**
+	 * The error of the meshes as they are, without optimizing them, as
+	 * measured by {@link SpringMesh#optimizeMeshes2}: for comparing with
+	 * the result of other optimizers.
+	 *
+	 * @return the mean, minimal and maximal error
+	 */
+	public double[] error()
+	{
+		step( false );
+		for ( int m = 0; m < meshes.size(); ++m )
+			meshStatistics( m );
+		return statistics();
+	}
+
+	/**
+	 * Relax all meshes until the mean error is below @param maxError and
+	 * has not changed over @param maxPlateauwidth iterations, or for at
+	 * most @param maxIterations iterations.
+	 *
+	 * @return the mean error of the last iteration
+	 */
+	public double optimize(
+			final double maxError,
+			final int maxIterations,
+			final int maxPlateauwidth ) throws NotEnoughDataPointsException
+	{
+		if ( 0 == springTarget.length )
+			throw new NotEnoughDataPointsException( "No springs to optimize." );
+
+		/* errors of the last maxPlateauwidth + 1 iterations */
+		final double[] errors = new double[ maxPlateauwidth + 1 ];
+		double error = 0, bestError = 0, worstError = 0;
+		int i = 0;
+		boolean proceed = i < maxIterations;
+		while ( proceed )
+		{
+			if ( Thread.currentThread().isInterrupted() ) break;
+
+			step( true );
+			final double[] swap = position;
+			position = next;
+			next = swap;
+			commit();
+
+			final double[] e = statistics();
+			error = e[ 0 ];
+			bestError = e[ 1 ];
+			worstError = e[ 2 ];
+			errors[ i % errors.length ] = error;
+
+			if ( i > maxPlateauwidth )
+			{
+				proceed = error > maxError;
+
+				int d = maxPlateauwidth;
+				while ( !proceed && d >= 1 )
+				{
+					final double slope = ( error - errors[ ( i - d ) % errors.length ] ) / d;
+					proceed |= Math.abs( slope ) > 0.0001;
+					d /= 2;
+				}
+			}
+
+			if ( 0 == i % 100 )
+				Utils.log2( "Spring mesh iteration " + i + ": error = " + error + " (min " + bestError + ", max " + worstError + ")" );
+			IJ.showProgress( i, maxIterations );
+
+			proceed &= ++i < maxIterations;
+		}
+		IJ.showProgress( 1.0 );
+
+		Utils.log( "Relaxed " + meshes.size() + " spring meshes (" + vertices.length + " vertices, " + springTarget.length + " springs) in " + i + " iterations:" );
+		Utils.log( "  average " + error + ", min " + bestError + ", max " + worstError );
+
+		return error;
+	}
+}
@@ -5,9 +5,126 @@ package mpicbg.trakem2.align;
 
 import ij.IJ;
 
+import java.util.HashSet;
+import java.util.Set;
+
+import mpicbg.models.ErrorStatistic;
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.PointMatch;
+import mpicbg.models.RigidModel2D;
+import mpicbg.models.Tile;
+
 public class TileConfiguration extends mpicbg.models.TileConfiguration
 {
+	/**
+	 * Solvers for {@link Align#optimizeTileConfiguration}: the inherited
+	 * relaxation of one tile at a time, or {@link SparseTileSolver}.
+	 */
+	final static public String[] solverStrings = new String[]{ "Iterative relaxation", "Sparse conjugate gradients" };
+	final static public int ITERATIVE = 0, CONJUGATE_GRADIENTS = 1;
+
+	/** Relative residual norm at which conjugate gradients stop. */
+	final static private double TOLERANCE = 1e-8;
+
 	@Override
 	protected void println( String s ){ IJ.log( s ); }
 
+	/**
+	 * Minimize the displacement of all {@link PointMatch PointMatches} by
+	 * solving the normal equations of all tiles at once with a
+	 * {@link SparseTileSolver}.  Rigid tiles, which are solved as linearized
+	 * similarities, are then refined with the iterative
+	 * {@link #optimize(float, int, int) relaxation}, which converges after
+	 * few iterations from there.
+	 *
+	 * @param maxAllowedError
+	 * @param maxIterations maximal number of conjugate gradient iterations, and of relaxation iterations
+	 * @param maxPlateauwidth
+	 * @param numThreads
+	 */
+	public void solve(
+			final float maxAllowedError,
+			final int maxIterations,
+			final int maxPlateauwidth,
+			final int numThreads ) throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		solve( new SparseTileSolver( getTiles(), getFixedTiles(), numThreads ), maxAllowedError, maxIterations, maxPlateauwidth );
+	}
+
+	final private void solve(
+			final SparseTileSolver solver,
+			final float maxAllowedError,
+			final int maxIterations,
+			final int maxPlateauwidth ) throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		final int n = solver.solve( maxIterations, TOLERANCE );
+		boolean rigid = false;
+		for ( final Tile< ? > t : getTiles() )
+		{
+			t.update();
+			rigid |= RigidModel2D.class.isInstance( t.getModel() );
+		}
+		println( "Solved " + getTiles().size() + " tiles in " + n + " conjugate gradient iterations." );
+		if ( rigid )
+			optimize( maxAllowedError, maxIterations, maxPlateauwidth );
+	}
+
+	/**
+	 * {@link #solve(float, int, int, int) Solve}, then remove the connection
+	 * with the largest displacement if it exceeds @param meanFactor times the
+	 * mean displacement, and repeat until none does.  Each repetition only
+	 * updates the equations of the two tiles that were disconnected, and
+	 * starts from the previous solution.
+	 */
+	public void solveAndFilter(
+			final float maxAllowedError,
+			final int maxIterations,
+			final int maxPlateauwidth,
+			final float meanFactor,
+			final int numThreads ) throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		SparseTileSolver solver = null;
+		boolean proceed = true;
+		while ( proceed )
+		{
+			if ( null == solver )
+				solver = new SparseTileSolver( getTiles(), getFixedTiles(), numThreads );
+			solve( solver, maxAllowedError, maxIterations, maxPlateauwidth );
+
+			/* get all transfer errors */
+			final ErrorStatistic e = new ErrorStatistic( getTiles().size() + 1 );
+
+			for ( final Tile< ? > t : getTiles() )
+				for ( final PointMatch p : t.getMatches() )
+					e.add( p.getDistance() );
+
+			/* remove the worst if there is one */
+			proceed = false;
+			if ( e.max > meanFactor * e.mean )
+			{
+				final Set< Tile< ? > > disconnected = new HashSet< Tile< ? > >();
+A:				for ( final Tile< ? > t : getTiles() )
+				{
+					for ( final PointMatch p : t.getMatches() )
+					{
+						if ( p.getDistance() >= e.max )
+						{
+							final Tile< ? > o = t.findConnectedTile( p );
+							t.removeConnectedTile( o );
+							o.removeConnectedTile( t );
+							if ( !solver.disconnect( t, o ) )
+								solver = null;
+							if ( t.getConnectedTiles().isEmpty() ) disconnected.add( t );
+							if ( o.getConnectedTiles().isEmpty() ) disconnected.add( o );
+							proceed = true;
+							break A;
+						}
+					}
+				}
+				if ( !disconnected.isEmpty() )
+					println( "Disconnected " + disconnected.size() + " tiles while removing outlier matches." );
+			}
+		}
+	}
 }
@@ -235,6 +235,85 @@ public class Util
 	}
 	
 	
+	/**
+	 * Save the {@link LayerState} of a layer that its features were extracted
+	 * from next to the features.
+	 */
+	final static public boolean serializeLayerState(
+			final Project project,
+			final String prefix,
+			final long id,
+			final LayerState state )
+	{
+		final String name = prefix == null ? "state" : prefix + ".state";
+		
+		final Loader loader = project.getLoader();
+		return loader.serialize(
+				state,
+				new StringBuilder( loader.getUNUIdFolder() )
+					.append( "features.ser/" )
+					.append( FSLoader.createIdPath( Long.toString( id ), name, ".ser" ) ).toString() );
+	}
+	
+	
+	final static public LayerState deserializeLayerState(
+			final Project project,
+			final String prefix,
+			final long id )
+	{
+		final String name = prefix == null ? "state" : prefix + ".state";
+		
+		final Loader loader = project.getLoader();
+		final Object ob = loader.deserialize(
+				new StringBuilder( loader.getUNUIdFolder() )
+					.append( "features.ser/" )
+					.append( FSLoader.createIdPath( Long.toString( id ), name, ".ser" ) ).toString() );
+		
+		return ob instanceof LayerState ? ( LayerState )ob : null;
+	}
+	
+	
+	/**
+	 * Save the {@link LayerState LayerStates} of two layers that the point
+	 * matches id1 &rarr; id2 were found for next to the point matches.
+	 */
+	final static public boolean serializePointMatchStates(
+			final Project project,
+			final String prefix,
+			final long id1,
+			final long id2,
+			final LayerState state1,
+			final LayerState state2 )
+	{
+		final String name = prefix == null ? "states" : prefix + ".states";
+		
+		final Loader loader = project.getLoader();
+		return loader.serialize(
+				new LayerState[]{ state1, state2 },
+				new StringBuilder( loader.getUNUIdFolder() )
+					.append( "pointmatches.ser/" )
+					.append( FSLoader.createIdPath( Long.toString( id1 ) + "_" + Long.toString( id2 ), name, ".ser" ) ).toString() );
+	}
+	
+	
+	final static public LayerState[] deserializePointMatchStates(
+			final Project project,
+			final String prefix,
+			final long id1,
+			final long id2 )
+	{
+		final String name = prefix == null ? "states" : prefix + ".states";
+		
+		final Loader loader = project.getLoader();
+		final Object ob = loader.deserialize(
+				new StringBuilder( loader.getUNUIdFolder() )
+					.append( "pointmatches.ser/" )
+					.append( FSLoader.createIdPath( Long.toString( id1 ) + "_" + Long.toString( id2 ), name, ".ser" ) ).toString() );
+		
+		return ob instanceof LayerState[] ? ( LayerState[] )ob : null;
+	}
+	
+	
 	/**
 	 * <p>Transfer and ARGB AWT image into a FloatProcessor with its grey values
 	 * and a FloatProcessor with its alpha values as [0...1].</p>
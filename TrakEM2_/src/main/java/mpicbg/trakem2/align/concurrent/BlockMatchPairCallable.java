@@ -23,6 +23,7 @@ import mpicbg.models.InvertibleCoordinateTransform;
 import mpicbg.models.Point;
 import mpicbg.models.PointMatch;
 import mpicbg.trakem2.align.AlignmentUtils;
+import mpicbg.trakem2.align.CoarseToFineBlockMatching;
 import mpicbg.trakem2.align.ElasticLayerAlignment;
 import mpicbg.trakem2.align.Util;
 import mpicbg.trakem2.util.Triple;
@@ -145,25 +146,42 @@ public class BlockMatchPairCallable implements
 
         if (!layer1Fixed)
         {
-
-
-            BlockMatching.matchByMaximalPMCC(
-                    ip1,
-                    ip2,
-                    ip1Mask,
-                    ip2Mask,
-                    1.0,
-                    ((InvertibleCoordinateTransform) pair.c).createInverse(),
-                    blockRadius,
-                    blockRadius,
-                    searchRadius,
-                    searchRadius,
-                    param.minR,
-                    param.rodR,
-                    param.maxCurvatureR,
-                    v1,
-                    pm12,
-                    new ErrorStatistic(1));
+            if ( param.useCoarseToFineBlockMatching )
+            {
+                CoarseToFineBlockMatching.matchByMaximalPMCC(
+                        ip1,
+                        ip2,
+                        ip1Mask,
+                        ip2Mask,
+                        ((InvertibleCoordinateTransform) pair.c).createInverse(),
+                        blockRadius,
+                        searchRadius,
+                        param.minR,
+                        param.rodR,
+                        param.maxCurvatureR,
+                        v1,
+                        pm12);
+            }
+            else
+            {
+                BlockMatching.matchByMaximalPMCC(
+                        ip1,
+                        ip2,
+                        ip1Mask,
+                        ip2Mask,
+                        1.0,
+                        ((InvertibleCoordinateTransform) pair.c).createInverse(),
+                        blockRadius,
+                        blockRadius,
+                        searchRadius,
+                        searchRadius,
+                        param.minR,
+                        param.rodR,
+                        param.maxCurvatureR,
+                        v1,
+                        pm12,
+                        new ErrorStatistic(1));
+            }
 
             if ( Thread.interrupted() )
             {
@@ -179,23 +197,42 @@ public class BlockMatchPairCallable implements
 
         if (!layer2Fixed)
         {
-            BlockMatching.matchByMaximalPMCC(
-                    ip2,
-                    ip1,
-                    ip2Mask,
-                    ip1Mask,
-                    1.0f,
-                    pair.c,
-                    blockRadius,
-                    blockRadius,
-                    searchRadius,
-                    searchRadius,
-                    param.minR,
-                    param.rodR,
-                    param.maxCurvatureR,
-                    v2,
-                    pm21,
-                    new ErrorStatistic( 1 ) );
+            if ( param.useCoarseToFineBlockMatching )
+            {
+                CoarseToFineBlockMatching.matchByMaximalPMCC(
+                        ip2,
+                        ip1,
+                        ip2Mask,
+                        ip1Mask,
+                        pair.c,
+                        blockRadius,
+                        searchRadius,
+                        param.minR,
+                        param.rodR,
+                        param.maxCurvatureR,
+                        v2,
+                        pm21 );
+            }
+            else
+            {
+                BlockMatching.matchByMaximalPMCC(
+                        ip2,
+                        ip1,
+                        ip2Mask,
+                        ip1Mask,
+                        1.0f,
+                        pair.c,
+                        blockRadius,
+                        blockRadius,
+                        searchRadius,
+                        searchRadius,
+                        param.minR,
+                        param.rodR,
+                        param.maxCurvatureR,
+                        v2,
+                        pm21,
+                        new ErrorStatistic( 1 ) );
+            }
 
             if ( Thread.interrupted() )
             {
@@ -8,6 +8,9 @@ import ij.process.ShortProcessor;
 import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.Patch;
+import ini.trakem2.parallel.PaintingOrder;
+import ini.trakem2.parallel.Process;
+import ini.trakem2.persistence.Loader;
 
 import java.awt.Rectangle;
 import java.util.ArrayList;
@@ -20,6 +23,7 @@ import mpicbg.models.CoordinateTransform;
 import mpicbg.models.CoordinateTransformList;
 import mpicbg.models.CoordinateTransformMesh;
 import mpicbg.models.TranslationModel2D;
+import mpicbg.trakem2.util.SharedExecutor;
 import mpicbg.trakem2.util.Triple;
 
 public class ExportUnsignedShort
@@ -67,7 +71,63 @@ public class ExportUnsignedShort
 		return target;
 	}
 
+	/**
+	 * Bytes per pixel of a {@link Patch} being mapped: its original pixels
+	 * (at most 32-bit), their 16-bit copy and its alpha mask.
+	 */
+	final static protected long MAPPING_BYTES_PER_PIXEL = 7;
+
+	/**
+	 * The number of pixels of the largest {@link Patch} in the list.
+	 */
+	final static protected long maxPixels( final List< ? extends Displayable > patches )
+	{
+		long n = 0;
+		for ( final Displayable d : patches )
+		{
+			final Patch p = ( Patch )d;
+			n = Math.max( n, ( long )p.getOWidth() * p.getOHeight() );
+		}
+		return n;
+	}
+
+	/**
+	 * The number of threads, at least one and at most one per processor, that
+	 * may each hold bytesPerThread within the currently free memory.
+	 */
+	final static protected int threadsWithinMemory( final long bytesPerThread )
+	{
+		final long free = Runtime.getRuntime().maxMemory() - Loader.getCurrentMemory() - Loader.MIN_FREE_BYTES;
+		return ( int )Math.max( 1, Math.min( Process.NUM_PROCESSORS, free / Math.max( 1, bytesPerThread ) ) );
+	}
+
+	/**
+	 * Compute the {@link PatchIntensityRange} of each {@link Patch}, loading
+	 * as many of their images concurrently as fit in the free memory.
+	 */
+	final static protected ArrayList< PatchIntensityRange > intensityRanges( final List< ? extends Displayable > patches )
+	{
+		final PatchIntensityRange[] pirs = new PatchIntensityRange[ patches.size() ];
+		SharedExecutor.forEach( pirs.length, threadsWithinMemory( 4 * maxPixels( patches ) ), new SharedExecutor.Body()
+		{
+			@Override
+			public void run( final int i )
+			{
+				pirs[ i ] = new PatchIntensityRange( ( Patch )patches.get( i ) );
+			}
+		} );
+		final ArrayList< PatchIntensityRange > list = new ArrayList< PatchIntensityRange >( pirs.length );
+		for ( final PatchIntensityRange pir : pirs )
+			list.add( pir );
+		return list;
+	}
+
 	final static protected void map( final PatchTransform pt, final double x, final double y, final ShortProcessor mappedIntensities, final ShortProcessor target )
+	{
+		map( pt, x, y, mappedIntensities, target, Runtime.getRuntime().availableProcessors() );
+	}
+
+	final static protected void map( final PatchTransform pt, final double x, final double y, final ShortProcessor mappedIntensities, final ShortProcessor target, final int numThreads )
 	{
 		final TranslationModel2D t = new TranslationModel2D();
 		t.set( -x, -y );
@@ -85,11 +145,11 @@ public class ExportUnsignedShort
 		{
 			final ByteProcessor alpha = pt.pir.patch.getAlphaMask();
 			alpha.setInterpolationMethod( ImageProcessor.BILINEAR );
-			mapping.map( mappedIntensities, alpha, target );
+			mapping.map( mappedIntensities, alpha, target, numThreads );
 		}
 		else
 		{
-			mapping.mapInterpolated( mappedIntensities, target );
+			mapping.mapInterpolated( mappedIntensities, target, numThreads );
 		}
 	}
 
@@ -174,18 +234,15 @@ public class ExportUnsignedShort
 		}
 
 		/* calculate intensity transfer */
-		final ArrayList< PatchIntensityRange > patchIntensityRanges = new ArrayList< PatchIntensityRange >();
+		final ArrayList< PatchIntensityRange > patchIntensityRanges = intensityRanges( patches );
 		double min_ = Double.MAX_VALUE;
 		double max_ = -Double.MAX_VALUE;
-		for ( final Displayable d : patches )
+		for ( final PatchIntensityRange pir : patchIntensityRanges )
 		{
-			final Patch patch = ( Patch )d;
-			final PatchIntensityRange pir = new PatchIntensityRange( patch );
 			if ( pir.min < min_ )
 				min_ = pir.min;
 			if ( pir.max > max_ )
 				max_ = pir.max;
-			patchIntensityRanges.add( pir );
 		}
 
 		final double min = min_;
@@ -311,20 +368,21 @@ public class ExportUnsignedShort
 		return makeFlatImage(patches, roi, 0);
 	}
 
+	/** Patches that do not overlap are mapped concurrently, as many as fit in the free memory;
+	 * overlapping ones in the order of the list. */
 	static public final ShortProcessor makeFlatImage(final List<Patch> patches, final Rectangle roi, final double backgroundValue) {
-		final ArrayList< PatchIntensityRange > patchIntensityRanges = new ArrayList< PatchIntensityRange >();
-		double min = Double.MAX_VALUE;
-		double max = -Double.MAX_VALUE;
-		for ( final Displayable d : patches )
+		final ArrayList< PatchIntensityRange > patchIntensityRanges = intensityRanges( patches );
+		double min_ = Double.MAX_VALUE;
+		double max_ = -Double.MAX_VALUE;
+		for ( final PatchIntensityRange pir : patchIntensityRanges )
 		{
-			final Patch patch = ( Patch )d;
-			final PatchIntensityRange pir = new PatchIntensityRange( patch );
-			if ( pir.min < min )
-				min = pir.min;
-			if ( pir.max > max )
-				max = pir.max;
-			patchIntensityRanges.add( pir );
+			if ( pir.min < min_ )
+				min_ = pir.min;
+			if ( pir.max > max_ )
+				max_ = pir.max;
 		}
+		final double min = min_;
+		final double max = max_;
 
 		final double minI = -min * 65535.0 / ( max - min );
 		final double maxI = ( 1.0 - min ) * 65535.0 / ( max - min );
@@ -337,9 +395,37 @@ public class ExportUnsignedShort
 			sp.fill();
 		}
 
+		/* bounds in sp, with a margin for interpolation */
+		final ArrayList< PatchIntensityRange > pirs = new ArrayList< PatchIntensityRange >();
+		final ArrayList< Rectangle > bounds = new ArrayList< Rectangle >();
+		final Rectangle target = new Rectangle( 0, 0, roi.width, roi.height );
 		for ( final PatchIntensityRange pir : patchIntensityRanges )
 		{
-			map( new PatchTransform( pir ), roi.x, roi.y, mapIntensities( pir, min, max ), sp );
+			final Rectangle b = pir.patch.getBoundingBox();
+			final Rectangle r = new Rectangle( b.x - roi.x - 2, b.y - roi.y - 2, b.width + 4, b.height + 4 );
+			if ( r.intersects( target ) )
+			{
+				pirs.add( pir );
+				bounds.add( r );
+			}
+		}
+
+		for ( final List< PatchIntensityRange > group : PaintingOrder.groups( pirs, bounds ) )
+		{
+			long n = 0;
+			for ( final PatchIntensityRange pir : group )
+				n = Math.max( n, ( long )pir.patch.getOWidth() * pir.patch.getOHeight() );
+			final int numConcurrent = Math.min( group.size(), threadsWithinMemory( MAPPING_BYTES_PER_PIXEL * n ) );
+			final int numThreads = Math.max( 1, Process.NUM_PROCESSORS / numConcurrent );
+			SharedExecutor.forEach( group.size(), numConcurrent, new SharedExecutor.Body()
+			{
+				@Override
+				public void run( final int i )
+				{
+					final PatchIntensityRange pir = group.get( i );
+					map( new PatchTransform( pir ), roi.x, roi.y, mapIntensities( pir, min, max ), sp, numThreads );
+				}
+			} );
 		}
 
 		return sp;
@@ -347,15 +433,50 @@ public class ExportUnsignedShort
 
 	/**
 	 *  Returns a stack of ShortProcessor, with dimensions as in the {@param roi}.
+	 *  Layers are rendered concurrently as far as the free memory allows.
 	 * @param layers
 	 * @param roi
 	 * @param backgroundValue
 	 * @return
 	 */
 	static public final ImageStack makeFlatImageStack(final List<Layer> layers, final Rectangle roi, final double backgroundValue) {
-		final ImageStack stack = new ImageStack(roi.width, roi.height);
+		final long free = Runtime.getRuntime().maxMemory() - Loader.getCurrentMemory() - Loader.MIN_FREE_BYTES;
+		return makeFlatImageStack(layers, roi, backgroundValue, free);
+	}
+
+	/**
+	 *  Returns a stack of ShortProcessor, with dimensions as in the {@param roi}, rendering as many
+	 *  layers concurrently as fit in {@param maxBytes} next to the stack itself.
+	 *  A layer in progress is assumed to need its slice plus, for each CPU core, the original pixels,
+	 *  a 16-bit copy and an alpha mask of its largest image.
+	 * @param layers
+	 * @param roi
+	 * @param backgroundValue
+	 * @param maxBytes The memory available for rendering, including the returned stack.
+	 * @return
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static public final ImageStack makeFlatImageStack(final List<Layer> layers, final Rectangle roi, final double backgroundValue, final long maxBytes) {
+		final long sliceBytes = 2L * roi.width * roi.height;
+		long maxPatchBytes = 0;
 		for (final Layer layer : layers) {
-			stack.addSlice("", makeFlatImage((List<Patch>)(List)layer.getDisplayables(Patch.class, true), roi, backgroundValue));
+			maxPatchBytes = Math.max(maxPatchBytes, MAPPING_BYTES_PER_PIXEL * maxPixels(layer.getDisplayables(Patch.class, true)));
+		}
+		final long perLayer = sliceBytes + Process.NUM_PROCESSORS * maxPatchBytes;
+		final long budget = maxBytes - layers.size() * sliceBytes;
+		final int nThreads = (int) Math.max(1, Math.min(Process.NUM_PROCESSORS, budget / Math.max(1, perLayer)));
+
+		final ShortProcessor[] slices = new ShortProcessor[layers.size()];
+		SharedExecutor.forEach(slices.length, nThreads, new SharedExecutor.Body() {
+			@Override
+			public void run(final int i) {
+				slices[i] = makeFlatImage((List<Patch>)(List)layers.get(i).getDisplayables(Patch.class, true), roi, backgroundValue);
+			}
+		});
+
+		final ImageStack stack = new ImageStack(roi.width, roi.height);
+		for (final ShortProcessor sp : slices) {
+			stack.addSlice("", sp);
 		}
 		return stack;
 	}
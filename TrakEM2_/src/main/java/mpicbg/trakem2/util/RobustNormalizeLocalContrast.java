@@ -97,6 +97,37 @@ public class RobustNormalizeLocalContrast
 			final int brx2,
 			final int bry2,
 			final float stds2 )
+	{
+		run( ip, scaleLevel, brx1, bry1, stds1, brx2, bry2, stds2, Runtime.getRuntime().availableProcessors() );
+	}
+	
+	/**
+	 * Number of rows above and below a pixel that contribute to its value, i.e. the overlap
+	 * needed to process an image in bands of rows that start at multiples of 2<sup>scaleLevel</sup>.
+	 */
+	final public static int overlap(
+			final int scaleLevel,
+			final int bry1,
+			final int bry2 )
+	{
+		final int scale = ( int )Util.pow( 2, scaleLevel );
+		return ( bry1 / scale + bry2 / scale + 2 ) * scale;
+	}
+	
+	/**
+	 * @param numThreads number of threads for the interpolation of the
+	 *   full-resolution image; with 1 everything runs in the calling thread
+	 */
+	final public static void run(
+			final ImageProcessor ip,
+			final int scaleLevel,
+			final int brx1,
+			final int bry1,
+			final float stds1,
+			final int brx2,
+			final int bry2,
+			final float stds2,
+			final int numThreads )
 	{
 		final PixelSetter setter;
 		if ( ByteProcessor.class.isInstance( ip ) )
@@ -148,7 +179,7 @@ public class RobustNormalizeLocalContrast
 		final int w = mean.getWidth();
 		final int h = mean.getHeight();
 		
-		final ExecutorService exec = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+		final ExecutorService exec = numThreads > 1 ? Executors.newFixedThreadPool( numThreads ) : null;
 		final ArrayList< Future< ? > > tasks = new ArrayList< Future< ? > >();
 		
 		/* the big inside */
@@ -157,7 +188,7 @@ public class RobustNormalizeLocalContrast
 			final int ya = y - 1;
 			final int yb = y;
 			
-			tasks.add( exec.submit( new Runnable()
+			final Runnable row = new Runnable()
 			{
 				final public void run()
 				{
@@ -196,7 +227,12 @@ public class RobustNormalizeLocalContrast
 							}
 					}
 				}
-			} ) );
+			};
+			
+			if ( null == exec )
+				row.run();
+			else
+				tasks.add( exec.submit( row ) );
 		}
 		
 		for ( Future< ? > task : tasks )
@@ -218,7 +254,8 @@ public class RobustNormalizeLocalContrast
 		}
 		
 		tasks.clear();
-		exec.shutdown();
+		if ( null != exec )
+			exec.shutdown();
 		
 		/* top and bottom */
 		for ( int x = 1; x < w; ++x )
@@ -0,0 +1,120 @@
+package ini.trakem2.imaging.filters;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import mpicbg.ij.clahe.Flat;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/** The filters that run in parallel must give the same pixels as running on the whole image at once. */
+public class ParallelFiltersTest
+{
+	static private final int WIDTH = 700, HEIGHT = 1100;
+
+	static private final ImageProcessor createImage(final int type) {
+		final Random rnd = new Random(42);
+		final FloatProcessor fp = new FloatProcessor(WIDTH, HEIGHT);
+		for (int y=0; y<HEIGHT; ++y) {
+			for (int x=0; x<WIDTH; ++x) {
+				fp.setf(x, y, (float)(100 + 60 * Math.sin(x * 0.02) * Math.cos(y * 0.013) + 40 * rnd.nextDouble()));
+			}
+		}
+		switch (type) {
+			case ImagePlus.GRAY8: return fp.convertToByte(false);
+			case ImagePlus.GRAY16:
+				final ImageProcessor sp = fp.convertToShort(false);
+				sp.multiply(100);
+				sp.resetMinAndMax();
+				return sp;
+			default:
+				fp.resetMinAndMax();
+				return fp;
+		}
+	}
+
+	static private final void assertSamePixels(final ImageProcessor expected, final ImageProcessor actual) {
+		Assert.assertEquals(expected.getClass(), actual.getClass());
+		if (expected instanceof ByteProcessor) {
+			Assert.assertTrue(Arrays.equals((byte[])expected.getPixels(), (byte[])actual.getPixels()));
+		} else if (expected instanceof ShortProcessor) {
+			Assert.assertTrue(Arrays.equals((short[])expected.getPixels(), (short[])actual.getPixels()));
+		} else {
+			Assert.assertTrue(Arrays.equals((float[])expected.getPixels(), (float[])actual.getPixels()));
+		}
+	}
+
+	@Test
+	public void testFastCLAHEThreads() {
+		for (final int type : new int[]{ImagePlus.GRAY8, ImagePlus.GRAY16, ImagePlus.GRAY32}) {
+			for (final int blockRadius : new int[]{10, 63, 400}) {
+				final ImageProcessor single = createImage(type),
+				                     multi = createImage(type);
+				FastCLAHE.run(single, blockRadius, 255, 3, 1);
+				FastCLAHE.run(multi, blockRadius, 255, 3, 8);
+				assertSamePixels(single, multi);
+			}
+		}
+	}
+
+	@Test
+	public void testFastCLAHEEqualizes() {
+		final ImageProcessor ip = createImage(ImagePlus.GRAY8);
+		final double stdBefore = ip.getStatistics().stdDev;
+		FastCLAHE.run(ip, 63, 255, 3, 4);
+		Assert.assertTrue(ip.getStatistics().stdDev > stdBefore);
+	}
+
+	@Test
+	public void testCLAHEBands() {
+		for (final int type : new int[]{ImagePlus.GRAY8, ImagePlus.GRAY16}) {
+			final ImageProcessor whole = createImage(type),
+			                     banded = createImage(type);
+			Flat.getInstance().run(new ImagePlus("", whole), 31, 255, 3, null, false);
+			new CLAHE(false, 31, 255, 3).process(banded);
+			assertSamePixels(whole, banded);
+		}
+	}
+
+	@Test
+	public void testNormalizeLocalContrastBands() {
+		for (final int type : new int[]{ImagePlus.GRAY8, ImagePlus.GRAY16}) {
+			final ImageProcessor whole = createImage(type),
+			                     banded = createImage(type);
+			mpicbg.ij.plugin.NormalizeLocalContrast.run(whole, 40, 70, 3, true, true);
+			new NormalizeLocalContrast(40, 70, 3, true, true).process(banded);
+			assertSamePixels(whole, banded);
+		}
+	}
+
+	@Test
+	public void testParallelTilesOverlap() {
+		// A 3x3 vertical box sum sees exactly the same rows in every band
+		final ImageProcessor whole = createImage(ImagePlus.GRAY32),
+		                     banded = createImage(ImagePlus.GRAY32);
+		final ParallelTiles.TileFilter sum = new ParallelTiles.TileFilter() {
+			@Override
+			public ImageProcessor process(final ImageProcessor tile) {
+				final FloatProcessor out = new FloatProcessor(tile.getWidth(), tile.getHeight());
+				for (int y=0; y<tile.getHeight(); ++y) {
+					for (int x=0; x<tile.getWidth(); ++x) {
+						float s = 0;
+						for (int dy=-1; dy<2; ++dy) s += tile.getf(x, Math.max(0, Math.min(tile.getHeight() - 1, y + dy)));
+						out.setf(x, y, s);
+					}
+				}
+				return out;
+			}
+		};
+		final ImageProcessor expected = sum.process(whole);
+		ParallelTiles.process(banded, 1, 1, 8, sum);
+		assertSamePixels(expected, banded);
+	}
+}
@@ -0,0 +1,167 @@
+package ini.trakem2.parallel;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Jobs handed to any number of workers through a directory must each run exactly once, also when a worker dies or none is there. */
+public class FileSystemExecutorServiceTest
+{
+	static private final AtomicInteger calls = new AtomicInteger(0);
+	static private final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+
+	static private final class Square implements Callable<Integer>, Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		final int i;
+
+		Square(final int i) {
+			this.i = i;
+		}
+
+		@Override
+		public Integer call() throws Exception {
+			calls.incrementAndGet();
+			threads.add(Thread.currentThread().getName() + "#" + Thread.currentThread().getId());
+			Thread.sleep(20);
+			return i * i;
+		}
+	}
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File directory;
+	private ExecutorService local;
+	private final List<Thread> serving = new ArrayList<Thread>();
+
+	@Before
+	public void setUp() throws Exception {
+		calls.set(0);
+		threads.clear();
+		directory = folder.newFolder("jobs");
+		local = Executors.newFixedThreadPool(2);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		new File(directory, "stop").createNewFile();
+		for (final Thread t : serving) t.join(10000);
+		local.shutdownNow();
+	}
+
+	/** Start a worker with numThreads threads, and wait until its heartbeat is there. */
+	private FileSystemWorker startWorker(final int numThreads) throws InterruptedException {
+		final FileSystemWorker worker = new FileSystemWorker(directory);
+		final Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					worker.serve(numThreads);
+				} catch (final InterruptedException e) {}
+			}
+		};
+		t.start();
+		serving.add(t);
+		while (!new File(worker.getHome(), JobStreams.HEARTBEAT).exists()) Thread.sleep(10);
+		return worker;
+	}
+
+	private List<Future<Integer>> submit(final ExecutorService service, final int n) {
+		final List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+		for (int i=0; i<n; ++i) futures.add(service.submit(new Square(i)));
+		return futures;
+	}
+
+	static private void assertSquares(final List<Future<Integer>> futures) throws Exception {
+		for (int i=0; i<futures.size(); ++i) {
+			Assert.assertEquals(i * i, futures.get(i).get(60, TimeUnit.SECONDS).intValue());
+		}
+		Assert.assertEquals(futures.size(), calls.get());
+	}
+
+	private int countWorkerThreads() {
+		int n = 0;
+		synchronized (threads) {
+			for (final String name : threads) {
+				if (name.startsWith("FileSystemWorker")) ++n;
+			}
+		}
+		return n;
+	}
+
+	/** Files left in the job directory other than the stop file and the directories of live workers. */
+	private List<String> leftovers() {
+		final List<String> names = new ArrayList<String>(Arrays.asList(directory.list()));
+		for (final String name : directory.list()) {
+			if (name.startsWith(JobStreams.WORKER) && 1 == new File(directory, name).list().length) names.remove(name);
+		}
+		return names;
+	}
+
+	@Test
+	public void testManyWorkers() throws Exception {
+		for (int i=0; i<3; ++i) startWorker(2);
+		final FileSystemExecutorService service = new FileSystemExecutorService(directory, local);
+		assertSquares(submit(service, 60));
+		Assert.assertEquals("all jobs run by workers", threads.size(), countWorkerThreads());
+		Assert.assertTrue("jobs spread over more than one worker", countWorkerThreads() > 2);
+		Assert.assertTrue(leftovers().toString(), leftovers().isEmpty());
+	}
+
+	@Test
+	public void testDeadWorker() throws Exception {
+		final FileSystemExecutorService service = new FileSystemExecutorService(directory, local);
+		final List<Future<Integer>> futures = submit(service, 10);
+		// a worker that claimed three jobs and stopped beating long ago
+		final File dead = new File(directory, JobStreams.WORKER + "dead");
+		Assert.assertTrue(dead.mkdir());
+		final File heartbeat = new File(dead, JobStreams.HEARTBEAT);
+		Assert.assertTrue(heartbeat.createNewFile());
+		final String[] jobs = directory.list();
+		Arrays.sort(jobs);
+		int claimed = 0;
+		for (final String job : jobs) {
+			if (job.endsWith(JobStreams.JOB) && claimed < 3 && new File(directory, job).renameTo(new File(dead, job))) ++claimed;
+		}
+		Assert.assertEquals(3, claimed);
+		final long past = System.currentTimeMillis() - 2 * FileSystemWorker.STALE_WORKER;
+		heartbeat.setLastModified(past);
+		dead.setLastModified(past);
+
+		startWorker(2);
+		assertSquares(futures);
+		Assert.assertEquals("all jobs run by the live worker", threads.size(), countWorkerThreads());
+		Assert.assertFalse(dead.exists());
+		Assert.assertTrue(leftovers().toString(), leftovers().isEmpty());
+	}
+
+	@Test
+	public void testNoWorkers() throws Exception {
+		final FileSystemExecutorService service = new FileSystemExecutorService(directory, local);
+		final long start = System.currentTimeMillis();
+		assertSquares(submit(service, 5));
+		Assert.assertTrue("no waiting for workers that are not there", System.currentTimeMillis() - start < FileSystemWorker.HEARTBEAT);
+		Assert.assertEquals(0, countWorkerThreads());
+		Assert.assertTrue(leftovers().toString(), leftovers().isEmpty());
+	}
+}
@@ -0,0 +1,121 @@
+package ini.trakem2.utils;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+import java.awt.geom.Ellipse2D;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Compacted areas must come back as the same region, and bounds and translations must not depend on whether they were compacted. */
+public class CompactAreaMapTest
+{
+	/** A pixel-aligned area with a hole and a separate piece, with the staircase outlines of those painted with a brush. */
+	static private final Area createBrushed(final int x, final int y) {
+		final RunLengthArea r = new RunLengthArea(new Ellipse2D.Double(x, y, 300, 200));
+		r.subtract(new RunLengthArea(new Ellipse2D.Double(x + 50, y + 40, 100, 60)));
+		r.add(new RunLengthArea(new Ellipse2D.Double(x + 400, y + 10, 40, 250)));
+		r.add(new RunLengthArea(new Rectangle(x + 290, y + 190, 120, 3)));
+		return r.toArea();
+	}
+
+	static private final CompactAreaMap createMap() {
+		final CompactAreaMap map = new CompactAreaMap();
+		map.put(1L, createBrushed(0, 0));
+		map.put(2L, createBrushed(-35, 1000));
+		map.put(3L, new Area(new Ellipse2D.Double(10.5, 20.25, 300, 170)));
+		map.put(4L, new Area());
+		return map;
+	}
+
+	@Test
+	public void testPackUnpack() {
+		final RunLengthArea r = new RunLengthArea(createBrushed(12, -7));
+		final RunLengthArea u = RunLengthArea.unpack(r.pack());
+		Assert.assertEquals(r.getBounds(), u.getBounds());
+		Assert.assertEquals(r.getBounds(), RunLengthArea.getBounds(r.pack()));
+		Assert.assertEquals(r.getPixelCount(), u.getPixelCount());
+		Assert.assertTrue(r.toArea().equals(u.toArea()));
+		final int[] packed = r.pack();
+		RunLengthArea.translate(packed, 5, -3);
+		r.translate(5, -3);
+		Assert.assertTrue(r.toArea().equals(RunLengthArea.unpack(packed).toArea()));
+	}
+
+	@Test
+	public void testCompact() {
+		final CompactAreaMap map = createMap();
+		final Area empty = map.get(4L);
+		// Only the pixel-aligned, non-empty areas
+		Assert.assertEquals(2, map.compact());
+		Assert.assertSame(empty, map.get(4L));
+		Assert.assertTrue(createBrushed(0, 0).equals(map.peek(1L)));
+		Assert.assertTrue(createBrushed(0, 0).equals(map.get(1L)));
+		// Unpacked by get, and kept: edits in place stick
+		map.get(1L).add(new Area(new Rectangle(1000, 1000, 10, 10)));
+		Assert.assertTrue(map.get(1L).contains(1005, 1005));
+		// Unpacked by the value of an entry
+		for (final Map.Entry<Long,Area> e : map.entrySet()) {
+			if (2L == e.getKey()) {
+				Assert.assertTrue(createBrushed(-35, 1000).equals(e.getValue()));
+				e.getValue().reset();
+			}
+		}
+		Assert.assertTrue(map.get(2L).isEmpty());
+	}
+
+	@Test
+	public void testBoundsAndTranslate() {
+		final CompactAreaMap plain = createMap(),
+		                     compact = createMap();
+		compact.compact();
+		Assert.assertEquals(plain.getBounds(), compact.getBounds());
+		plain.translate(-17, 33);
+		compact.translate(-17, 33);
+		Assert.assertEquals(plain.getBounds(), compact.getBounds());
+		for (final Long key : plain.keySet()) {
+			Assert.assertTrue(plain.get(key).equals(compact.get(key)));
+		}
+		Assert.assertTrue(createBrushed(0, 0).createTransformedArea(new AffineTransform(1, 0, 0, 1, -17, 33)).equals(compact.get(1L)));
+	}
+
+	@Test
+	public void testClone() {
+		final CompactAreaMap map = createMap();
+		map.compact();
+		final CompactAreaMap copy = map.clone();
+		copy.translate(100, 100);
+		Assert.assertTrue(createBrushed(0, 0).equals(map.get(1L)));
+		Assert.assertTrue(createBrushed(100, 100).equals(copy.get(1L)));
+		Assert.assertTrue(copy.estimateBytes() > 0);
+	}
+
+	@Test
+	public void testWriteRead() throws IOException {
+		final CompactAreaMap map = createMap();
+		map.compact();
+		map.put(5L, null);
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		map.write(out);
+		out.close();
+		final CompactAreaMap copy = CompactAreaMap.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		Assert.assertTrue(map.sameAs(copy));
+		Assert.assertTrue(copy.containsKey(5L));
+		Assert.assertNull(copy.get(5L));
+		for (final Long key : map.keySet()) {
+			if (5L == key) continue;
+			Assert.assertTrue(map.peek(key).equals(copy.peek(key)));
+		}
+		copy.translate(1, 0);
+		Assert.assertFalse(map.sameAs(copy));
+		Assert.assertTrue(map.sameAs(map.clone()));
+	}
+}
@@ -0,0 +1,116 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.trakem2.align;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import mpicbg.ij.FeatureTransform;
+import mpicbg.ij.SIFT;
+import mpicbg.imagefeatures.Feature;
+import mpicbg.imagefeatures.FloatArray2DSIFT;
+import mpicbg.models.PointMatch;
+import mpicbg.trakem2.util.Downsampler;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Features extracted from a mipmap and mapped to full resolution with
+ * {@link Align#toFullResolution(java.util.Collection, int)} must agree with
+ * those SIFT extracts from the full resolution image: as many, mostly
+ * matched by descriptor, at nearly the same locations.
+ */
+public class MipMapFeaturesTest
+{
+	/** Larger than twice the default maxOctaveSize of 600, so that a mipmap is used. */
+	static private final int size = 2048;
+
+	/** Maximal relative difference between the numbers of features of both paths. */
+	static private final double maxCountDifference = 0.2;
+	/** Minimal fraction of the full resolution features matched by a mipmap feature. */
+	static private final double minMatchedFraction = 0.5;
+	/** Maximal median distance between matched feature locations, in full resolution pixels. */
+	static private final double maxMedianLocationError = 2.0;
+
+	/** Blobs of many sizes and contrasts on a background of smooth noise. */
+	static private ByteProcessor createImage()
+	{
+		final Random rnd = new Random( 1 );
+		final FloatProcessor fp = new FloatProcessor( size, size );
+		final float[] pixels = ( float[] )fp.getPixels();
+		for ( int i = 0; i < pixels.length; ++i )
+			pixels[ i ] = ( float )rnd.nextGaussian();
+		fp.blurGaussian( 3 );
+		fp.multiply( 40 );
+		for ( int b = 0; b < 600; ++b )
+		{
+			final double x = rnd.nextDouble() * size, y = rnd.nextDouble() * size;
+			final double sigma = 4 + rnd.nextDouble() * 20;
+			final double amplitude = ( rnd.nextBoolean() ? 1 : -1 ) * ( 30 + rnd.nextDouble() * 60 );
+			final int r = ( int )Math.ceil( 3 * sigma );
+			for ( int yi = Math.max( 0, ( int )y - r ); yi < Math.min( size, ( int )y + r ); ++yi )
+				for ( int xi = Math.max( 0, ( int )x - r ); xi < Math.min( size, ( int )x + r ); ++xi )
+				{
+					final double d2 = ( xi - x ) * ( xi - x ) + ( yi - y ) * ( yi - y );
+					pixels[ yi * size + xi ] += amplitude * Math.exp( -d2 / ( 2 * sigma * sigma ) );
+				}
+		}
+		fp.add( 127 );
+		fp.setMinAndMax( 0, 255 );
+		return ( ByteProcessor )fp.convertToByte( true );
+	}
+
+	@Test
+	public void testWithinTolerance()
+	{
+		final Align.Param p = new Align.Param();
+		final ByteProcessor image = createImage();
+
+		/* the level siftSourceLevel picks for this size */
+		final double mag = ( double )p.sift.maxOctaveSize / size;
+		final int level = ( int )( 0.0001 + Math.log( 1 / mag ) / Math.log( 2 ) );
+		Assert.assertTrue( level > 0 );
+
+		final ArrayList< Feature > full = new ArrayList< Feature >();
+		new SIFT( new FloatArray2DSIFT( p.sift ) ).extractFeatures( image, full );
+
+		final ArrayList< Feature > mipMap = new ArrayList< Feature >();
+		new SIFT( new FloatArray2DSIFT( p.sift ) ).extractFeatures( Downsampler.downsampleByteProcessor( image, level ), mipMap );
+		Align.toFullResolution( mipMap, level );
+
+		final ArrayList< PointMatch > matches = new ArrayList< PointMatch >();
+		FeatureTransform.matchFeatures( full, mipMap, matches, p.rod );
+		final double[] errors = new double[ matches.size() ];
+		for ( int i = 0; i < errors.length; ++i )
+		{
+			final double[] l1 = matches.get( i ).getP1().getL(), l2 = matches.get( i ).getP2().getL();
+			errors[ i ] = Math.hypot( l2[ 0 ] - l1[ 0 ], l2[ 1 ] - l1[ 1 ] );
+		}
+		Arrays.sort( errors );
+
+		final String report = full.size() + " features at full resolution, " + mipMap.size() + " from level " + level + ", " + matches.size() + " matched";
+		Assert.assertTrue( report, full.size() > 50 );
+		Assert.assertTrue( report, Math.abs( mipMap.size() - full.size() ) <= maxCountDifference * full.size() );
+		Assert.assertTrue( report, matches.size() >= minMatchedFraction * full.size() );
+		Assert.assertTrue( report + ", median location error " + errors[ errors.length / 2 ], errors[ errors.length / 2 ] <= maxMedianLocationError );
+	}
+}
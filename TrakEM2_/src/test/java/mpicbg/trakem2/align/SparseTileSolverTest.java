@@ -0,0 +1,225 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.trakem2.align;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import mpicbg.models.AbstractAffineModel2D;
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.RigidModel2D;
+import mpicbg.models.Tile;
+import mpicbg.models.TranslationModel2D;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * On configurations small enough for the iterative relaxation of
+ * {@link mpicbg.models.TileConfiguration} to converge, the
+ * {@link SparseTileSolver conjugate gradient solver} must find the same
+ * models, with and without filtering outlier connections.
+ */
+public class SparseTileSolverTest
+{
+	static private final int columns = 4, rows = 3, size = 100, matchesPerPair = 20;
+	static private final int TRANSLATION = 0, RIGID = 1, AFFINE = 2;
+
+	/** Where a corner of a tile may land differently with either solver, in pixels. */
+	static private final double tolerance = 0.25;
+
+	/** The true transform of every tile: on a grid with 20% overlap, slightly displaced, rotated and sheared. */
+	static private AffineTransform[] createTruth( final int kind, final Random rnd )
+	{
+		final AffineTransform[] truth = new AffineTransform[ columns * rows ];
+		truth[ 0 ] = new AffineTransform();
+		for ( int i = 1; i < truth.length; ++i )
+		{
+			final AffineTransform a = AffineTransform.getTranslateInstance(
+					( i % columns ) * size * 0.8 + rnd.nextGaussian() * 5,
+					( i / columns ) * size * 0.8 + rnd.nextGaussian() * 5 );
+			if ( kind != TRANSLATION )
+				a.rotate( rnd.nextGaussian() * 0.02 );
+			if ( kind == AFFINE )
+				a.concatenate( new AffineTransform(
+						1 + rnd.nextGaussian() * 0.01, rnd.nextGaussian() * 0.01,
+						rnd.nextGaussian() * 0.01, 1 + rnd.nextGaussian() * 0.01, 0, 0 ) );
+			truth[ i ] = a;
+		}
+		return truth;
+	}
+
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	static private Tile< ? > createTile( final int kind, final AffineTransform a )
+	{
+		final AbstractAffineModel2D model;
+		switch ( kind )
+		{
+		case TRANSLATION:
+			model = new TranslationModel2D();
+			( ( TranslationModel2D )model ).set( a.getTranslateX(), a.getTranslateY() );
+			break;
+		case RIGID:
+			model = new RigidModel2D();
+			( ( RigidModel2D )model ).set( a.getScaleX(), a.getShearY(), a.getTranslateX(), a.getTranslateY() );
+			break;
+		default:
+			model = new AffineModel2D();
+			( ( AffineModel2D )model ).set( a );
+		}
+		return new Tile( model );
+	}
+
+	static private double[] local( final AffineTransform a, final double[] w, final Random rnd ) throws NoninvertibleTransformException
+	{
+		final double[] l = new double[ 2 ];
+		a.inverseTransform( w, 0, l, 0, 1 );
+		l[ 0 ] += rnd.nextGaussian() * 0.2;
+		l[ 1 ] += rnd.nextGaussian() * 0.2;
+		return l;
+	}
+
+	/**
+	 * Tiles in place on the grid, without the displacements of the truth,
+	 * connected to their right and bottom neighbors by matches of points
+	 * with some noise.  If @param outlier, the matches between tiles 5 and 6
+	 * are off by 30 pixels.
+	 */
+	static private ArrayList< Tile< ? > > createTiles( final int kind, final boolean outlier ) throws NoninvertibleTransformException
+	{
+		final Random rnd = new Random( 7 + kind );
+		final AffineTransform[] truth = createTruth( kind, rnd );
+		final ArrayList< Tile< ? > > tiles = new ArrayList< Tile< ? > >();
+		for ( int i = 0; i < truth.length; ++i )
+			tiles.add( createTile( kind, AffineTransform.getTranslateInstance( ( i % columns ) * size * 0.8, ( i / columns ) * size * 0.8 ) ) );
+		for ( int i = 0; i < truth.length; ++i )
+		{
+			for ( final int j : new int[]{ ( i % columns ) < columns - 1 ? i + 1 : -1, i + columns < truth.length ? i + columns : -1 } )
+			{
+				if ( -1 == j ) continue;
+				final double[] ci = new double[ 2 ], cj = new double[ 2 ];
+				truth[ i ].transform( new double[]{ size / 2, size / 2 }, 0, ci, 0, 1 );
+				truth[ j ].transform( new double[]{ size / 2, size / 2 }, 0, cj, 0, 1 );
+				final ArrayList< PointMatch > matches = new ArrayList< PointMatch >();
+				for ( int k = 0; k < matchesPerPair; ++k )
+				{
+					final double[] w = new double[]{
+							( ci[ 0 ] + cj[ 0 ] ) / 2 + ( rnd.nextDouble() - 0.5 ) * 20,
+							( ci[ 1 ] + cj[ 1 ] ) / 2 + ( rnd.nextDouble() - 0.5 ) * 20 };
+					final double[] lj = local( truth[ j ], w, rnd );
+					if ( outlier && 5 == i && 6 == j )
+						lj[ 0 ] += 30;
+					matches.add( new PointMatch( new Point( local( truth[ i ], w, rnd ) ), new Point( lj ) ) );
+				}
+				tiles.get( i ).connect( tiles.get( j ), matches );
+			}
+		}
+		return tiles;
+	}
+
+	static private TileConfiguration createConfiguration( final ArrayList< Tile< ? > > tiles )
+	{
+		final TileConfiguration tc = new TileConfiguration();
+		for ( final Tile< ? > t : tiles )
+			tc.addTile( t );
+		tc.fixTile( tiles.get( 0 ) );
+		return tc;
+	}
+
+	static private double meanDisplacement( final ArrayList< Tile< ? > > tiles )
+	{
+		for ( final Tile< ? > t : tiles )
+			t.update();
+		double sum = 0;
+		int n = 0;
+		for ( final Tile< ? > t : tiles )
+			for ( final PointMatch pm : t.getMatches() )
+			{
+				sum += pm.getDistance();
+				++n;
+			}
+		return sum / n;
+	}
+
+	static private void assertSameModels( final ArrayList< Tile< ? > > expected, final ArrayList< Tile< ? > > actual )
+	{
+		for ( int i = 0; i < expected.size(); ++i )
+		{
+			Assert.assertEquals( "connections of tile " + i, expected.get( i ).getConnectedTiles().size(), actual.get( i ).getConnectedTiles().size() );
+			for ( final double[] corner : new double[][]{ { 0, 0 }, { size, 0 }, { 0, size }, { size, size } } )
+			{
+				final double[] e = expected.get( i ).getModel().apply( corner );
+				final double[] a = actual.get( i ).getModel().apply( corner );
+				Assert.assertEquals( "x of tile " + i, e[ 0 ], a[ 0 ], tolerance );
+				Assert.assertEquals( "y of tile " + i, e[ 1 ], a[ 1 ], tolerance );
+			}
+		}
+	}
+
+	final private void compare( final int kind ) throws Exception
+	{
+		final ArrayList< Tile< ? > > iterative = createTiles( kind, false ), solved = createTiles( kind, false );
+		createConfiguration( iterative ).optimize( 0, 20000, 2000 );
+		createConfiguration( solved ).solve( 0, 20000, 2000, 4 );
+		assertSameModels( iterative, solved );
+		Assert.assertEquals( meanDisplacement( iterative ), meanDisplacement( solved ), 0.01 );
+	}
+
+	final private void compareFiltered( final int kind ) throws Exception
+	{
+		final ArrayList< Tile< ? > > iterative = createTiles( kind, true ), solved = createTiles( kind, true );
+		createConfiguration( iterative ).optimizeAndFilter( 0, 20000, 2000, 5 );
+		createConfiguration( solved ).solveAndFilter( 0, 20000, 2000, 5, 4 );
+		Assert.assertFalse( solved.get( 5 ).getConnectedTiles().contains( solved.get( 6 ) ) );
+		assertSameModels( iterative, solved );
+		Assert.assertEquals( meanDisplacement( iterative ), meanDisplacement( solved ), 0.01 );
+	}
+
+	@Test
+	public void testTranslation() throws Exception
+	{
+		compare( TRANSLATION );
+	}
+
+	@Test
+	public void testRigid() throws Exception
+	{
+		compare( RIGID );
+	}
+
+	@Test
+	public void testAffine() throws Exception
+	{
+		compare( AFFINE );
+	}
+
+	@Test
+	public void testFilterTranslation() throws Exception
+	{
+		compareFiltered( TRANSLATION );
+	}
+
+	@Test
+	public void testFilterAffine() throws Exception
+	{
+		compareFiltered( AFFINE );
+	}
+}
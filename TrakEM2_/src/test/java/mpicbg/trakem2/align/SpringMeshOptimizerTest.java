@@ -0,0 +1,118 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.trakem2.align;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import mpicbg.models.Point;
+import mpicbg.models.Spring;
+import mpicbg.models.SpringMesh;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.models.Vertex;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The parallel {@link SpringMeshOptimizer} must relax spring meshes to the
+ * same positions as the legacy {@link SpringMesh#optimizeMeshes2}, and
+ * measure their error the same way.
+ */
+public class SpringMeshOptimizerTest
+{
+	static private final int numX = 8, numY = 8, size = 100, offset = 80;
+	static private final double maxError = 0.01;
+	static private final int maxIterations = 5000, maxPlateauwidth = 500;
+
+	/**
+	 * A row of tiles overlapping by 20 pixels, each placed 3 pixels below
+	 * where its block matches find it.  The first tile is fixed: it has no
+	 * springs to the others.  The matches of the other tiles are slightly
+	 * warped, for the meshes to deform.
+	 */
+	static private List< SpringMesh > createMeshes( final int numTiles )
+	{
+		final List< SpringMesh > meshes = new ArrayList< SpringMesh >();
+		for ( int t = 0; t < numTiles; ++t )
+		{
+			final SpringMesh mesh = new SpringMesh( numX, numY, size, size, 0.1, 1000, 0.9 );
+			final TranslationModel2D model = new TranslationModel2D();
+			model.set( t * offset, 0 == t ? 0 : 3 );
+			mesh.init( model );
+			meshes.add( mesh );
+		}
+		for ( int t = 1; t < numTiles; ++t )
+		{
+			/* vertices of tile t in its overlap with tile t - 1 */
+			for ( final Vertex v : meshes.get( t ).getVertices() )
+			{
+				final double[] l = v.getL();
+				if ( l[ 0 ] > size - offset ) continue;
+				final double warp = 0.5 * Math.sin( l[ 1 ] * Math.PI / size );
+				final Vertex p2 = new Vertex( new Point( new double[]{ l[ 0 ] + offset + warp, l[ 1 ] } ) );
+				v.addSpring( p2, new Spring( 0, 1.0f ) );
+				meshes.get( t - 1 ).addPassiveVertex( p2 );
+			}
+		}
+		return meshes;
+	}
+
+	@Test
+	public void testSameAsLegacy() throws Exception
+	{
+		final List< SpringMesh > legacy = createMeshes( 4 ), parallel = createMeshes( 4 );
+
+		final double[] before = new SpringMeshOptimizer( parallel, 0.9, 1 ).error();
+		Assert.assertTrue( before[ 0 ] > maxError );
+
+		SpringMesh.optimizeMeshes2( legacy, maxError, maxIterations, maxPlateauwidth, false );
+		final double error = new SpringMeshOptimizer( parallel, 0.9, 4 ).optimize( maxError, maxIterations, maxPlateauwidth );
+
+		final double[] legacyError = new SpringMeshOptimizer( legacy, 0.9, 1 ).error();
+		Assert.assertEquals( legacyError[ 0 ], new SpringMeshOptimizer( parallel, 0.9, 1 ).error()[ 0 ], 2 * maxError );
+		Assert.assertTrue( error < before[ 0 ] );
+
+		for ( int m = 0; m < legacy.size(); ++m )
+		{
+			final ArrayList< Vertex > a = legacy.get( m ).getVertices(), b = parallel.get( m ).getVertices();
+			for ( int i = 0; i < a.size(); ++i )
+			{
+				Assert.assertEquals( "x of vertex " + i + " of mesh " + m, a.get( i ).getW()[ 0 ], b.get( i ).getW()[ 0 ], 0.5 );
+				Assert.assertEquals( "y of vertex " + i + " of mesh " + m, a.get( i ).getW()[ 1 ], b.get( i ).getW()[ 1 ], 0.5 );
+			}
+		}
+	}
+
+	@Test
+	public void testThreadsDoNotMatter() throws Exception
+	{
+		final List< SpringMesh > one = createMeshes( 3 ), many = createMeshes( 3 );
+		final double e1 = new SpringMeshOptimizer( one, 0.9, 1 ).optimize( maxError, 300, maxPlateauwidth );
+		final double e8 = new SpringMeshOptimizer( many, 0.9, 8 ).optimize( maxError, 300, maxPlateauwidth );
+		Assert.assertEquals( e1, e8, 0 );
+		for ( int m = 0; m < one.size(); ++m )
+		{
+			final ArrayList< Vertex > a = one.get( m ).getVertices(), b = many.get( m ).getVertices();
+			for ( int i = 0; i < a.size(); ++i )
+			{
+				Assert.assertEquals( a.get( i ).getW()[ 0 ], b.get( i ).getW()[ 0 ], 0 );
+				Assert.assertEquals( a.get( i ).getW()[ 1 ], b.get( i ).getW()[ 1 ], 0 );
+			}
+		}
+	}
+}
@@ -0,0 +1,181 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.trakem2.transform;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link TransformMesh TransformMeshes} shared by all images that are
+ * transformed by equal {@link CoordinateTransform CoordinateTransforms}
+ * at the same mesh resolution and image size, such as the tiles of a
+ * montage after lens correction.
+ *
+ * Meshes are addressed by a {@link #fingerprint(CoordinateTransform)
+ * fingerprint} of the content of their transform, so an edited transform
+ * never finds a stale mesh.  Making the fingerprint serializes the
+ * transform: callers that look up the same transform repeatedly should
+ * make it once per edit of the transform and pass it to
+ * {@link #get(String, CoordinateTransform, int, double, double)}.
+ *
+ * Each cache keeps at most the number of meshes given to its constructor,
+ * and drops the least recently used beyond that; use one cache per set of
+ * images, e.g. per project, rather than one for all.
+ *
+ * Meshes returned are shared and must not be modified, including their
+ * {@link TransformMesh#getBoundingBox() bounding box}; mapping images
+ * with them from several threads at once is fine.
+ */
+final public class TransformMeshCache
+{
+	final static public int DEFAULT_MAX_ENTRIES = 64;
+
+	final static private class Key
+	{
+		final String fingerprint;
+		final int numX;
+		final double width, height;
+		final int hash;
+
+		Key( final String fingerprint, final int numX, final double width, final double height )
+		{
+			this.fingerprint = fingerprint;
+			this.numX = numX;
+			this.width = width;
+			this.height = height;
+			this.hash = ( ( fingerprint.hashCode() * 31 + numX ) * 31 + Double.valueOf( width ).hashCode() ) * 31 + Double.valueOf( height ).hashCode();
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals( final Object o )
+		{
+			if ( this == o ) return true;
+			if ( !( o instanceof Key ) ) return false;
+			final Key k = ( Key )o;
+			return hash == k.hash && numX == k.numX && width == k.width && height == k.height && fingerprint.equals( k.fingerprint );
+		}
+	}
+
+	final static private class Entry
+	{
+		TransformMesh mesh = null;
+	}
+
+	final private Map< Key, Entry > cache;
+
+	public TransformMeshCache( final int maxEntries )
+	{
+		cache = new LinkedHashMap< Key, Entry >( 16, 0.75f, true )
+		{
+			private static final long serialVersionUID = -4826471397424839566L;
+
+			@Override
+			protected boolean removeEldestEntry( final Map.Entry< Key, Entry > eldest )
+			{
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	public TransformMeshCache()
+	{
+		this( DEFAULT_MAX_ENTRIES );
+	}
+
+	/**
+	 * The content of @param ct, that is its
+	 * {@link CoordinateTransform#toXML(String) XML} representation, which
+	 * also covers {@link CoordinateTransformList CoordinateTransformLists};
+	 * or null if it has none, and its meshes can't be shared.
+	 */
+	static public String fingerprint( final CoordinateTransform ct )
+	{
+		try
+		{
+			return ct.toXML( "" );
+		}
+		catch ( final RuntimeException e )
+		{
+			/* e.g. a list containing transforms without XML representation */
+			return null;
+		}
+	}
+
+	/**
+	 * A {@link TransformMesh} of @param ct, equal to
+	 * <code>new TransformMesh( ct, numX, width, height )</code>, built only
+	 * once for all equal transforms.
+	 */
+	public TransformMesh get(
+			final CoordinateTransform ct,
+			final int numX,
+			final double width,
+			final double height )
+	{
+		return get( fingerprint( ct ), ct, numX, width, height );
+	}
+
+	/**
+	 * Same as {@link #get(CoordinateTransform, int, double, double)}, with
+	 * the @param fingerprint of @param ct already made.  A null fingerprint
+	 * builds a mesh that is not shared.
+	 */
+	public TransformMesh get(
+			final String fingerprint,
+			final CoordinateTransform ct,
+			final int numX,
+			final double width,
+			final double height )
+	{
+		if ( fingerprint == null )
+			return new TransformMesh( ct, numX, width, height );
+
+		final Key key = new Key( fingerprint, numX, width, height );
+		Entry entry;
+		synchronized ( cache )
+		{
+			entry = cache.get( key );
+			if ( entry == null )
+			{
+				entry = new Entry();
+				cache.put( key, entry );
+			}
+		}
+
+		/* build each mesh once, without holding up lookups of other meshes */
+		synchronized ( entry )
+		{
+			if ( entry.mesh == null )
+				entry.mesh = new TransformMesh( ct, numX, width, height );
+			return entry.mesh;
+		}
+	}
+
+	public void clear()
+	{
+		synchronized ( cache )
+		{
+			cache.clear();
+		}
+	}
+}
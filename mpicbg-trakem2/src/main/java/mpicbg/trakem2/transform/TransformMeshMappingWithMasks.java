@@ -23,11 +23,13 @@ import ij.process.ShortProcessor;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import mpicbg.models.AffineModel2D;
 import mpicbg.models.PointMatch;
 import mpicbg.models.TransformMesh;
+import mpicbg.trakem2.util.SharedExecutor;
 import mpicbg.util.Util;
 
 /**
@@ -173,6 +175,302 @@ public class TransformMeshMappingWithMasks< T extends TransformMesh > extends mp
 		}
 	}
 
+	/** Rows of a band are at least that high, to make the triangle bookkeeping worth it. */
+	final static protected int MIN_BAND_HEIGHT = 16;
+
+	/**
+	 * A triangle of the mesh prepared for scanline rasterization: its target
+	 * vertices, its bounding box clipped to the target and the coefficients
+	 * of its inverse affine.
+	 */
+	final static protected class Triangle
+	{
+		final double ax, ay, bx, by, cx, cy;
+		final int minX, minY, maxX, maxY;
+		/* the inverse affine, x' = i00 * x + i01 * y + i02 */
+		final double i00, i01, i02, i10, i11, i12;
+		/* +1 or -1, the sign of the edge cross products inside the triangle */
+		final double orientation;
+
+		private Triangle(
+				final double[] a,
+				final double[] b,
+				final double[] c,
+				final int minX,
+				final int minY,
+				final int maxX,
+				final int maxY,
+				final double[] inverse )
+		{
+			ax = a[ 0 ];
+			ay = a[ 1 ];
+			bx = b[ 0 ];
+			by = b[ 1 ];
+			cx = c[ 0 ];
+			cy = c[ 1 ];
+			this.minX = minX;
+			this.minY = minY;
+			this.maxX = maxX;
+			this.maxY = maxY;
+			i00 = inverse[ 0 ];
+			i10 = inverse[ 1 ];
+			i01 = inverse[ 2 ];
+			i11 = inverse[ 3 ];
+			i02 = inverse[ 4 ];
+			i12 = inverse[ 5 ];
+			orientation = ( bx - ax ) * ( cy - ay ) - ( by - ay ) * ( cx - ax ) < 0 ? -1 : 1;
+		}
+
+		/**
+		 * @return null if the triangle does not intersect the target or its
+		 *   affine is not invertible
+		 */
+		final static Triangle create( final TransformMesh m, final AffineModel2D ai, final int width, final int height )
+		{
+			final ArrayList< PointMatch > pm = m.getAV().get( ai );
+			final double[] min = new double[ 2 ];
+			final double[] max = new double[ 2 ];
+			calculateBoundingBox( pm, min, max );
+
+			final int minX = Math.max( 0, Util.roundPos( min[ 0 ] ) );
+			final int minY = Math.max( 0, Util.roundPos( min[ 1 ] ) );
+			final int maxX = Math.min( width - 1, Util.roundPos( max[ 0 ] ) );
+			final int maxY = Math.min( height - 1, Util.roundPos( max[ 1 ] ) );
+			if ( minX > maxX || minY > maxY )
+				return null;
+
+			final double[] inverse = new double[ 6 ];
+			try
+			{
+				ai.applyInverseInPlace( new double[ 2 ] );
+				ai.createInverse().toArray( inverse );
+			}
+			catch ( final Exception e )
+			{
+				return null;
+			}
+
+			return new Triangle(
+					pm.get( 0 ).getP2().getW(),
+					pm.get( 1 ).getP2().getW(),
+					pm.get( 2 ).getP2().getW(),
+					minX, minY, maxX, maxY,
+					inverse );
+		}
+
+		final private boolean contains( final int x, final int y )
+		{
+			return isInTriangle( ax, ay, bx, by, cx, cy, x, y );
+		}
+
+		/**
+		 * Find the first and last pixel of row y inside the triangle.  The
+		 * span is computed analytically from the three edges, widened by one
+		 * pixel and then trimmed with the same inside test as the per-pixel
+		 * implementation, so that both render exactly the same pixels.
+		 *
+		 * @return false if no pixel of the row is inside
+		 */
+		final boolean span( final int y, final int[] span )
+		{
+			double l = minX, r = maxX;
+			/* edge p->q: cross( x ) = e - f * x */
+			for ( int k = 0; k < 3; ++k )
+			{
+				final double px, py, qx, qy;
+				switch ( k )
+				{
+				case 0: px = ax; py = ay; qx = bx; qy = by; break;
+				case 1: px = bx; py = by; qx = cx; qy = cy; break;
+				default: px = cx; py = cy; qx = ax; qy = ay; break;
+				}
+				final double f = qy - py;
+				if ( f == 0 )
+					continue; /* parallel to the row, left to the trimming */
+				final double e = ( qx - px ) * ( y - py ) + f * px;
+				if ( orientation * f > 0 )
+					r = Math.min( r, e / f );
+				else
+					l = Math.max( l, e / f );
+			}
+			if ( l > r + 1 )
+				return false;
+			int xs = Math.max( minX, ( int )Math.ceil( l ) - 1 );
+			int xe = Math.min( maxX, ( int )Math.floor( r ) + 1 );
+			while ( xs <= xe && !contains( xs, y ) )
+				++xs;
+			while ( xe >= xs && !contains( xe, y ) )
+				--xe;
+			span[ 0 ] = xs;
+			span[ 1 ] = xe;
+			return xs <= xe;
+		}
+	}
+
+	/**
+	 * Renders one scanline span of a triangle.  Source coordinates are
+	 * evaluated per pixel in the same order of operations as
+	 * {@link AffineModel2D#applyInverseInPlace(double[])}, so that the result
+	 * is bit-identical to the per-triangle mapping.  One implementation per
+	 * kind of mapping keeps the inner loops free of branches on the mode.
+	 */
+	static protected abstract class RowMapper
+	{
+		abstract void mapRow( int y, int xs, int xe, Triangle t );
+	}
+
+	final static private class NearestRowMapper extends RowMapper
+	{
+		final private ImageProcessor source, target;
+		final private ByteProcessor targetOutside;
+
+		NearestRowMapper( final ImageProcessor source, final ImageProcessor target, final ByteProcessor targetOutside )
+		{
+			this.source = source;
+			this.target = target;
+			this.targetOutside = targetOutside;
+		}
+
+		@Override
+		final void mapRow( final int y, final int xs, final int xe, final Triangle t )
+		{
+			final double yx = y * t.i01;
+			final double yy = y * t.i11;
+			for ( int x = xs; x <= xe; ++x )
+			{
+				final double tx = x * t.i00 + yx + t.i02;
+				final double ty = x * t.i10 + yy + t.i12;
+				target.set( x, y, source.getPixel( ( int )( tx + 0.5f ), ( int )( ty + 0.5f ) ) );
+				targetOutside.set( x, y, 0xff );
+			}
+		}
+	}
+
+	final static private class NearestMaskRowMapper extends RowMapper
+	{
+		final private ImageProcessor source, sourceMask, target, targetMask;
+		final private ByteProcessor targetOutside;
+
+		NearestMaskRowMapper(
+				final ImageProcessor source,
+				final ImageProcessor sourceMask,
+				final ImageProcessor target,
+				final ImageProcessor targetMask,
+				final ByteProcessor targetOutside )
+		{
+			this.source = source;
+			this.sourceMask = sourceMask;
+			this.target = target;
+			this.targetMask = targetMask;
+			this.targetOutside = targetOutside;
+		}
+
+		@Override
+		final void mapRow( final int y, final int xs, final int xe, final Triangle t )
+		{
+			final double yx = y * t.i01;
+			final double yy = y * t.i11;
+			for ( int x = xs; x <= xe; ++x )
+			{
+				final int sx = ( int )( x * t.i00 + yx + t.i02 + 0.5f );
+				final int sy = ( int )( x * t.i10 + yy + t.i12 + 0.5f );
+				target.set( x, y, source.getPixel( sx, sy ) );
+				targetOutside.set( x, y, 0xff );
+				targetMask.set( x, y, sourceMask.getPixel( sx, sy ) );
+			}
+		}
+	}
+
+	final static private class InterpolatedRowMapper extends RowMapper
+	{
+		final private ImageProcessor source, target;
+		final private ByteProcessor targetOutside;
+
+		InterpolatedRowMapper( final ImageProcessor source, final ImageProcessor target, final ByteProcessor targetOutside )
+		{
+			this.source = source;
+			this.target = target;
+			this.targetOutside = targetOutside;
+		}
+
+		@Override
+		final void mapRow( final int y, final int xs, final int xe, final Triangle t )
+		{
+			final double yx = y * t.i01;
+			final double yy = y * t.i11;
+			for ( int x = xs; x <= xe; ++x )
+			{
+				target.set( x, y, source.getPixelInterpolated( x * t.i00 + yx + t.i02, x * t.i10 + yy + t.i12 ) );
+				targetOutside.set( x, y, 0xff );
+			}
+		}
+	}
+
+	final static private class InterpolatedMaskRowMapper extends RowMapper
+	{
+		final private ImageProcessor source, sourceMask, target, targetMask;
+		final private ByteProcessor targetOutside;
+
+		InterpolatedMaskRowMapper(
+				final ImageProcessor source,
+				final ImageProcessor sourceMask,
+				final ImageProcessor target,
+				final ImageProcessor targetMask,
+				final ByteProcessor targetOutside )
+		{
+			this.source = source;
+			this.sourceMask = sourceMask;
+			this.target = target;
+			this.targetMask = targetMask;
+			this.targetOutside = targetOutside;
+		}
+
+		@Override
+		final void mapRow( final int y, final int xs, final int xe, final Triangle t )
+		{
+			final double yx = y * t.i01;
+			final double yy = y * t.i11;
+			for ( int x = xs; x <= xe; ++x )
+			{
+				final double tx = x * t.i00 + yx + t.i02;
+				final double ty = x * t.i10 + yy + t.i12;
+				target.set( x, y, source.getPixelInterpolated( tx, ty ) );
+				targetOutside.set( x, y, 0xff );
+				targetMask.set( x, y, sourceMask.getPixelInterpolated( tx, ty ) );
+			}
+		}
+	}
+
+	final static private class ShortAlphaRowMapper extends RowMapper
+	{
+		final private ShortProcessor source, target;
+		final private ByteProcessor alpha;
+
+		ShortAlphaRowMapper( final ShortProcessor source, final ByteProcessor alpha, final ShortProcessor target )
+		{
+			this.source = source;
+			this.alpha = alpha;
+			this.target = target;
+		}
+
+		@Override
+		final void mapRow( final int y, final int xs, final int xe, final Triangle t )
+		{
+			final double yx = y * t.i01;
+			final double yy = y * t.i11;
+			for ( int x = xs; x <= xe; ++x )
+			{
+				final double tx = x * t.i00 + yx + t.i02;
+				final double ty = x * t.i10 + yy + t.i12;
+				final int is = source.getPixelInterpolated( tx, ty );
+				final int it = target.get( x, y );
+				final double f = alpha.getPixelInterpolated( tx, ty ) / 255.0;
+				final double v = it + f  * ( is - it );
+				target.set( x, y, ( int )Math.max(  0, Math.min( 65535, Math.round( v ) ) ) );
+			}
+		}
+	}
+
 	public TransformMeshMappingWithMasks( final T t )
 	{
 		super( t );
@@ -455,7 +753,142 @@ public class TransformMeshMappingWithMasks< T extends TransformMesh > extends mp
 	}
 
 
+	/**
+	 * Render source into target, nearest neighbor.  Rows of the target are
+	 * split into bands that are rendered concurrently on the
+	 * {@link SharedExecutor}, each band rasterizing the triangles that
+	 * intersect it scanline by scanline.
+	 *
+	 * @param source
+	 * @param target
+	 * @param numThreads
+	 */
 	final public void map( final ImageProcessorWithMasks source, final ImageProcessorWithMasks target, final int numThreads )
+	{
+		target.outside = new ByteProcessor( target.getWidth(), target.getHeight() );
+		final RowMapper mapper;
+		if ( source.mask == null )
+			mapper = new NearestRowMapper( source.ip, target.ip, target.outside );
+		else
+			mapper = new NearestMaskRowMapper( source.ip, source.mask, target.ip, target.mask, target.outside );
+		mapBands( mapper, target.getWidth(), target.getHeight(), numThreads );
+	}
+
+	/**
+	 * Render source into target, bilinear interpolation.  See
+	 * {@link #map(ImageProcessorWithMasks, ImageProcessorWithMasks, int)}.
+	 *
+	 * @param source
+	 * @param target
+	 * @param numThreads
+	 */
+	final public void mapInterpolated( final ImageProcessorWithMasks source, final ImageProcessorWithMasks target, final int numThreads )
+	{
+		target.outside = new ByteProcessor( target.getWidth(), target.getHeight() );
+		source.ip.setInterpolationMethod( ImageProcessor.BILINEAR );
+		final RowMapper mapper;
+		if ( source.mask == null )
+			mapper = new InterpolatedRowMapper( source.ip, target.ip, target.outside );
+		else
+		{
+			source.mask.setInterpolationMethod( ImageProcessor.BILINEAR );
+			mapper = new InterpolatedMaskRowMapper( source.ip, source.mask, target.ip, target.mask, target.outside );
+		}
+		mapBands( mapper, target.getWidth(), target.getHeight(), numThreads );
+	}
+
+	/**
+	 * Render source into target using alpha composition.
+	 * Interpolation is specified by the interpolation methods
+	 * set in source and alpha.
+	 *
+	 * @param source
+	 * @param alpha
+	 * @param target
+	 * @param numThreads
+	 */
+	final public void map(
+			final ShortProcessor source,
+			final ByteProcessor alpha,
+			final ShortProcessor target,
+			final int numThreads )
+	{
+		mapBands( new ShortAlphaRowMapper( source, alpha, target ), target.getWidth(), target.getHeight(), numThreads );
+	}
+
+	/**
+	 * Assign each triangle to the bands of target rows that it intersects and
+	 * render the bands concurrently.  Bands own disjoint rows, so no two
+	 * threads ever write the same pixel.
+	 */
+	final protected void mapBands( final RowMapper mapper, final int width, final int height, final int numThreads )
+	{
+		final Set< AffineModel2D > keys = transform.getAV().keySet();
+		final ArrayList< Triangle > triangles = new ArrayList< Triangle >( keys.size() );
+		for ( final AffineModel2D ai : keys )
+		{
+			final Triangle triangle = Triangle.create( transform, ai, width, height );
+			if ( triangle != null )
+				triangles.add( triangle );
+		}
+		if ( triangles.isEmpty() )
+			return;
+
+		final int numChunks = Math.max( 1, numThreads ) * 4;
+		final int bandHeight = Math.max( MIN_BAND_HEIGHT, ( height + numChunks - 1 ) / numChunks );
+		final int numBands = ( height + bandHeight - 1 ) / bandHeight;
+
+		/* two passes: count, then fill in the order of the mesh, so that
+		 * pixels on shared edges end up with the value of the same triangle
+		 * as in the sequential per-triangle mapping */
+		final int[] counts = new int[ numBands ];
+		for ( final Triangle triangle : triangles )
+			for ( int b = triangle.minY / bandHeight; b <= triangle.maxY / bandHeight; ++b )
+				++counts[ b ];
+		final Triangle[][] bands = new Triangle[ numBands ][];
+		for ( int b = 0; b < numBands; ++b )
+		{
+			bands[ b ] = new Triangle[ counts[ b ] ];
+			counts[ b ] = 0;
+		}
+		for ( final Triangle triangle : triangles )
+			for ( int b = triangle.minY / bandHeight; b <= triangle.maxY / bandHeight; ++b )
+				bands[ b ][ counts[ b ]++ ] = triangle;
+
+		final SharedExecutor.Body body = new SharedExecutor.Body()
+		{
+			@Override
+			public void run( final int b )
+			{
+				final int y0 = b * bandHeight;
+				final int y1 = Math.min( height, y0 + bandHeight ) - 1;
+				final int[] span = new int[ 2 ];
+				for ( final Triangle triangle : bands[ b ] )
+				{
+					final int yMax = Math.min( y1, triangle.maxY );
+					for ( int y = Math.max( y0, triangle.minY ); y <= yMax; ++y )
+					{
+						if ( triangle.span( y, span ) )
+							mapper.mapRow( y, span[ 0 ], span[ 1 ], triangle );
+					}
+				}
+			}
+		};
+
+		if ( numThreads > 1 )
+			SharedExecutor.forEach( numBands, numThreads, body );
+		else
+			for ( int b = 0; b < numBands; ++b )
+				body.run( b );
+	}
+
+	/**
+	 * Previous implementation of
+	 * {@link #map(ImageProcessorWithMasks, ImageProcessorWithMasks, int)},
+	 * starting numThreads new {@link Thread Threads} that take triangles one
+	 * by one and test each pixel of their bounding box.  Kept for comparison.
+	 */
+	final public void mapPerTriangle( final ImageProcessorWithMasks source, final ImageProcessorWithMasks target, final int numThreads )
 	{
 		target.outside = new ByteProcessor( target.getWidth(), target.getHeight() );
 		final HashMap< AffineModel2D, ArrayList< PointMatch >> av = transform.getAV();
@@ -496,7 +929,12 @@ public class TransformMeshMappingWithMasks< T extends TransformMesh > extends mp
 		}
 	}
 
-	final public void mapInterpolated( final ImageProcessorWithMasks source, final ImageProcessorWithMasks target, final int numThreads )
+	/**
+	 * Previous implementation of
+	 * {@link #mapInterpolated(ImageProcessorWithMasks, ImageProcessorWithMasks, int)}.
+	 * Kept for comparison.
+	 */
+	final public void mapInterpolatedPerTriangle( final ImageProcessorWithMasks source, final ImageProcessorWithMasks target, final int numThreads )
 	{
 		target.outside = new ByteProcessor( target.getWidth(), target.getHeight() );
 		source.ip.setInterpolationMethod( ImageProcessor.BILINEAR );
@@ -558,16 +996,11 @@ public class TransformMeshMappingWithMasks< T extends TransformMesh > extends mp
 
 
 	/**
-	 * Render source into target using alpha composition.
-	 * Interpolation is specified by the interpolation methods
-	 * set in source and alpha.
-	 *
-	 * @param source
-	 * @param alpha
-	 * @param target
-	 * @param numThreads
+	 * Previous implementation of
+	 * {@link #map(ShortProcessor, ByteProcessor, ShortProcessor, int)}.
+	 * Kept for comparison.
 	 */
-	final public void map(
+	final public void mapPerTriangle(
 			final ShortProcessor source,
 			final ByteProcessor alpha,
 			final ShortProcessor target,
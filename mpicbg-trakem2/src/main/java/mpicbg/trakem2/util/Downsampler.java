@@ -60,80 +60,108 @@ final public class Downsampler
 		}
 	}
 	
-	final static private int averageByte( final int i1, final int i2, final int i3, final int i4, final byte[] data )
+	/* Row kernels: compute row ib..ib+wb of b from rows ia and ia+wa of a.
+	 * Plain primitive loops without calls or branches, which the JIT can
+	 * unroll and vectorize.  Shared by the per-level and the pyramid methods. */
+	
+	final static private void downsampleByteRow( final byte[] a, final int ia, final int wa, final byte[] b, final int ib, final int wb )
+	{
+		for ( int xb = 0, i = ia, j = ia + wa; xb < wb; ++xb, i += 2, j += 2 )
+			b[ ib + xb ] = ( byte )( ( ( a[ i ] & 0xff ) + ( a[ i + 1 ] & 0xff ) + ( a[ j ] & 0xff ) + ( a[ j + 1 ] & 0xff ) ) >> 2 );
+	}
+	
+	final static private void downsampleShortRow( final short[] a, final int ia, final int wa, final short[] b, final int ib, final int wb )
 	{
-		return (
-				( data[ i1 ] & 0xff ) +
-				( data[ i2 ] & 0xff ) +
-				( data[ i3 ] & 0xff ) +
-				( data[ i4 ] & 0xff ) ) / 4;
+		for ( int xb = 0, i = ia, j = ia + wa; xb < wb; ++xb, i += 2, j += 2 )
+			b[ ib + xb ] = ( short )( ( ( a[ i ] & 0xffff ) + ( a[ i + 1 ] & 0xffff ) + ( a[ j ] & 0xffff ) + ( a[ j + 1 ] & 0xffff ) ) >> 2 );
 	}
 	
-	final static private int averageShort( final int i1, final int i2, final int i3, final int i4, final short[] data )
+	final static private void downsampleFloatRow( final float[] a, final int ia, final int wa, final float[] b, final int ib, final int wb )
 	{
-		return (
-				( data[ i1 ] & 0xffff ) +
-				( data[ i2 ] & 0xffff ) +
-				( data[ i3 ] & 0xffff ) +
-				( data[ i4 ] & 0xffff ) ) / 4;
+		for ( int xb = 0, i = ia, j = ia + wa; xb < wb; ++xb, i += 2, j += 2 )
+			b[ ib + xb ] = ( a[ i ] + a[ i + 1 ] + a[ j ] + a[ j + 1 ] ) / 4;
 	}
 	
-	final static private float averageFloat( final int i1, final int i2, final int i3, final int i4, final float[] data )
+	final static private void downsampleColorRow( final int[] a, final int ia, final int wa, final int[] b, final int ib, final int wb )
 	{
-		return (
-				data[ i1 ] +
-				data[ i2 ] +
-				data[ i3 ] +
-				data[ i4 ] ) / 4;
+		for ( int xb = 0, i = ia, j = ia + wa; xb < wb; ++xb, i += 2, j += 2 )
+		{
+			final int rgb1 = a[ i ], rgb2 = a[ i + 1 ], rgb3 = a[ j ], rgb4 = a[ j + 1 ];
+			final int red = ( ( ( rgb1 >> 16 ) & 0xff ) + ( ( rgb2 >> 16 ) & 0xff ) + ( ( rgb3 >> 16 ) & 0xff ) + ( ( rgb4 >> 16 ) & 0xff ) ) >> 2;
+			final int green = ( ( ( rgb1 >> 8 ) & 0xff ) + ( ( rgb2 >> 8 ) & 0xff ) + ( ( rgb3 >> 8 ) & 0xff ) + ( ( rgb4 >> 8 ) & 0xff ) ) >> 2;
+			final int blue = ( ( rgb1 & 0xff ) + ( rgb2 & 0xff ) + ( rgb3 & 0xff ) + ( rgb4 & 0xff ) ) >> 2;
+			/* same as averageColor, whose alpha bits are shifted out */
+			b[ ib + xb ] = ( red << 16 ) | ( green << 8 ) | blue;
+		}
 	}
 	
-	final static private int averageColorRed( final int rgb1, final int rgb2, final int rgb3, final int rgb4 )
+	/** Map a row of shorts into [0,255] bytes, same rounding as {@link #downsampleShort(ShortProcessor)}. */
+	final static private void mapShortRow( final short[] a, final int ia, final byte[] b, final int ib, final int n, final double min, final double scale )
 	{
-		return (
-			( ( rgb1 >> 16 ) & 0xff ) +
-			( ( rgb2 >> 16 ) & 0xff ) +
-			( ( rgb3 >> 16 ) & 0xff ) +
-			( ( rgb4 >> 16 ) & 0xff ) ) / 4;
+		for ( int x = 0; x < n; ++x )
+		{
+			final int sb = ( int )( ( ( a[ ia + x ] & 0xffff ) - min ) * scale + 0.5 );
+			b[ ib + x ] = ( byte )Math.max( 0, Math.min( 255, sb ) );
+		}
 	}
 	
-	final static private int averageColorGreen( final int rgb1, final int rgb2, final int rgb3, final int rgb4 )
+	/** Map a row of floats into [0,255] bytes, same rounding as {@link #downsampleFloat(FloatProcessor)}. */
+	final static private void mapFloatRow( final float[] a, final int ia, final byte[] b, final int ib, final int n, final double min, final double scale )
 	{
-		return (
-			( ( rgb1 >> 8 ) & 0xff ) +
-			( ( rgb2 >> 8 ) & 0xff ) +
-			( ( rgb3 >> 8 ) & 0xff ) +
-			( ( rgb4 >> 8 ) & 0xff ) ) / 4;
+		for ( int x = 0; x < n; ++x )
+		{
+			final int sb = ( int )( ( a[ ia + x ] - min ) * scale + 0.5 );
+			b[ ib + x ] = ( byte )Math.max( 0, Math.min( 255, sb ) );
+		}
 	}
 	
-	final static private int averageColorBlue( final int rgb1, final int rgb2, final int rgb3, final int rgb4 )
+	/** Split a row of RGB ints into three byte rows. */
+	final static private void splitColorRow( final int[] a, final int ia, final byte[] r, final byte[] g, final byte[] b, final int ib, final int n )
 	{
-		return (
-			( rgb1 & 0xff ) +
-			( rgb2 & 0xff ) +
-			( rgb3 & 0xff ) +
-			( rgb4 & 0xff ) ) / 4;
+		for ( int x = 0; x < n; ++x )
+		{
+			final int rgb = a[ ia + x ];
+			r[ ib + x ] = ( byte )( rgb >> 16 );
+			g[ ib + x ] = ( byte )( rgb >> 8 );
+			b[ ib + x ] = ( byte )rgb;
+		}
 	}
 	
-	final static private int averageColor( final int i1, final int i2, final int i3, final int i4, final int[] data )
+	/**
+	 * Alpha is averaged where all four outside pixels are 255 and set to 0
+	 * elsewhere, outside becomes 255 or 0 accordingly.  The test is turned
+	 * into a bit mask instead of a branch: ( o + 1 ) >> 8 is 1 for o = 255
+	 * and 0 for any other value.
+	 */
+	final static private void downsampleAlphaAndOutsideRow(
+			final byte[] aAlpha,
+			final int iaAlpha,
+			final byte[] aOutside,
+			final int iaOutside,
+			final int wa,
+			final byte[] bAlpha,
+			final int ibAlpha,
+			final byte[] bOutside,
+			final int ibOutside,
+			final int wb )
 	{
-		final int rgb1 = data[ i1 ];
-		final int rgb2 = data[ i2 ];
-		final int rgb3 = data[ i3 ];
-		final int rgb4 = data[ i4 ];
-		
-		final int red = averageColorRed( rgb1, rgb2, rgb3, rgb4 );
-		final int green = averageColorGreen( rgb1, rgb2, rgb3, rgb4 );
-		final int blue = averageColorBlue( rgb1, rgb2, rgb3, rgb4 );
-		return ( ( ( ( 0xff000000 | red ) << 8 ) | green ) << 8 ) | blue;
+		for ( int xb = 0, i = iaAlpha, j = iaAlpha + wa, k = iaOutside, l = iaOutside + wa; xb < wb; ++xb, i += 2, j += 2, k += 2, l += 2 )
+		{
+			final int o = aOutside[ k ] & aOutside[ k + 1 ] & aOutside[ l ] & aOutside[ l + 1 ] & 0xff;
+			final int m = -( ( o + 1 ) >> 8 );
+			final int alpha = ( ( aAlpha[ i ] & 0xff ) + ( aAlpha[ i + 1 ] & 0xff ) + ( aAlpha[ j ] & 0xff ) + ( aAlpha[ j + 1 ] & 0xff ) ) >> 2;
+			bAlpha[ ibAlpha + xb ] = ( byte )( alpha & m );
+			bOutside[ ibOutside + xb ] = ( byte )m;
+		}
 	}
 	
-	final static private int andByte( final int i1, final int i2, final int i3, final int i4, final byte[] data )
+	final static private void downsampleOutsideRow( final byte[] a, final int ia, final int wa, final byte[] b, final int ib, final int wb )
 	{
-		return (
-				data[ i1 ] &
-				data[ i2 ] &
-				data[ i3 ] &
-				data[ i4 ] & 0xff );
+		for ( int xb = 0, i = ia, j = ia + wa; xb < wb; ++xb, i += 2, j += 2 )
+		{
+			final int o = a[ i ] & a[ i + 1 ] & a[ j ] & a[ j + 1 ] & 0xff;
+			b[ ib + xb ] = ( byte )-( ( o + 1 ) >> 8 );
+		}
 	}
 	
 	final static public ByteProcessor downsampleByteProcessor( final ByteProcessor a )
@@ -152,20 +180,7 @@ final public class Downsampler
 		final byte[] bPixels = ( byte[] )b.getPixels();
 		
 		for ( int ya = 0, yb = 0; yb < nb; ya += wa2, yb += wb )
-		{
-			final int ya1 = ya + wa;
-			for ( int xa = 0, xb = 0; xb < wb; xa += 2, ++xb )
-			{
-				final int xa1 = xa + 1;
-				final int s = averageByte(
-						ya + xa,
-						ya + xa1,
-						ya1 + xa,
-						ya1 + xa1,
-						aPixels );
-				bPixels[ yb + xb ] = ( byte )s;
-			}
-		}
+			downsampleByteRow( aPixels, ya, wa, bPixels, yb, wb );
 		
 		return b;
 	}
@@ -196,20 +211,7 @@ final public class Downsampler
 		final short[] bPixels = ( short[] )b.getPixels();
 		
 		for ( int ya = 0, yb = 0; yb < nb; ya += wa2, yb += wb )
-		{
-			final int ya1 = ya + wa;
-			for ( int xa = 0, xb = 0; xb < wb; xa += 2, ++xb )
-			{
-				final int xa1 = xa + 1;
-				final int s = averageShort(
-						ya + xa,
-						ya + xa1,
-						ya1 + xa,
-						ya1 + xa1,
-						aPixels );
-				bPixels[ yb + xb ] = ( short )s;
-			}
-		}
+			downsampleShortRow( aPixels, ya, wa, bPixels, yb, wb );
 		
 		return b;
 	}
@@ -230,20 +232,7 @@ final public class Downsampler
 		final float[] bPixels = ( float[] )b.getPixels();
 		
 		for ( int ya = 0, yb = 0; yb < nb; ya += wa2, yb += wb )
-		{
-			final int ya1 = ya + wa;
-			for ( int xa = 0, xb = 0; xb < wb; xa += 2, ++xb )
-			{
-				final int xa1 = xa + 1;
-				final float s = averageFloat(
-						ya + xa,
-						ya + xa1,
-						ya1 + xa,
-						ya1 + xa1,
-						aPixels );
-				bPixels[ yb + xb ] = s;
-			}
-		}
+			downsampleFloatRow( aPixels, ya, wa, bPixels, yb, wb );
 		
 		return b;
 	}
@@ -264,14 +253,7 @@ final public class Downsampler
 		final int[] bPixels = ( int[] )b.getPixels();
 		
 		for ( int ya = 0, yb = 0; yb < nb; ya += wa2, yb += wb )
-		{
-			final int ya1 = ya + wa;
-			for ( int xa = 0, xb = 0; xb < wb; xa += 2, ++xb )
-			{
-				final int xa1 = xa + 1;
-				bPixels[ yb + xb ] = averageColor( ya + xa, ya + xa1, ya1 + xa, ya1 + xa1, aPixels );
-			}
-		}
+			downsampleColorRow( aPixels, ya, wa, bPixels, yb, wb );
 		
 		return b;
 	}
@@ -357,21 +339,8 @@ final public class Downsampler
 		
 		for ( int ya = 0, yb = 0; yb < nb; ya += wa2, yb += wb )
 		{
-			final int ya1 = ya + wa;
-			for ( int xa = 0, xb = 0; xb < wb; xa += 2, ++xb )
-			{
-				final int xa1 = xa + 1;
-				final int yaxa = ya + xa;
-				final int yaxa1 = ya + xa1;
-				final int ya1xa = ya1 + xa;
-				final int ya1xa1 = ya1 + xa1;
-				final int ybxb = yb + xb;
-				
-				final int s = averageShort( yaxa, yaxa1, ya1xa, ya1xa1, aPixels );
-				bPixels[ ybxb ] = ( short )s;
-				final int sb = ( int )( ( s - min ) * scale + 0.5 );
-				bBytes[ ybxb ] = ( byte )( sb < 0 ? 0 : sb > 255 ? 255 : sb );
-			}
+			downsampleShortRow( aPixels, ya, wa, bPixels, yb, wb );
+			mapShortRow( bPixels, yb, bBytes, yb, wb, min, scale );
 		}
 		return new Pair< ShortProcessor, byte[] >( b, bBytes );
 	}
@@ -409,21 +378,8 @@ final public class Downsampler
 		
 		for ( int ya = 0, yb = 0; yb < nb; ya += wa2, yb += wb )
 		{
-			final int ya1 = ya + wa;
-			for ( int xa = 0, xb = 0; xb < wb; xa += 2, ++xb )
-			{
-				final int xa1 = xa + 1;
-				final int yaxa = ya + xa;
-				final int yaxa1 = ya + xa1;
-				final int ya1xa = ya1 + xa;
-				final int ya1xa1 = ya1 + xa1;
-				final int ybxb = yb + xb;
-				
-				final float s = averageFloat( yaxa, yaxa1, ya1xa, ya1xa1, aPixels );
-				bPixels[ ybxb ] = s;
-				final int sb = ( int )( ( s - min ) * scale + 0.5 );
-				bBytes[ ybxb ] = ( byte )( sb < 0 ? 0 : sb > 255 ? 255 : sb );
-			}
+			downsampleFloatRow( aPixels, ya, wa, bPixels, yb, wb );
+			mapFloatRow( bPixels, yb, bBytes, yb, wb, min, scale );
 		}
 		return new Pair< FloatProcessor, byte[] >( b, bBytes );
 	}
@@ -459,66 +415,13 @@ final public class Downsampler
 		
 		for ( int ya = 0, yb = 0; yb < nb; ya += wa2, yb += wb )
 		{
-			final int ya1 = ya + wa;
-			for ( int xa = 0, xb = 0; xb < wb; xa += 2, ++xb )
-			{
-				final int xa1 = xa + 1;
-				final int yaxa = ya + xa;
-				final int yaxa1 = ya + xa1;
-				final int ya1xa = ya1 + xa;
-				final int ya1xa1 = ya1 + xa1;
-				final int ybxb = yb + xb;
-				
-				final int rgb1 = aPixels[ yaxa ];
-				final int rgb2 = aPixels[ yaxa1 ];
-				final int rgb3 = aPixels[ ya1xa ];
-				final int rgb4 = aPixels[ ya1xa1 ];
-				
-				final int red = averageColorRed( rgb1, rgb2, rgb3, rgb4 );
-				final int green = averageColorGreen( rgb1, rgb2, rgb3, rgb4 );
-				final int blue = averageColorBlue( rgb1, rgb2, rgb3, rgb4 );
-				
-				bPixels[ ybxb ] = ( ( ( ( 0xff000000 | red ) << 8 ) | green ) << 8 ) | blue;
-				
-				rBytes[ ybxb ] = ( byte )red;
-				gBytes[ ybxb ] = ( byte )green;
-				bBytes[ ybxb ] = ( byte )blue;
-			}
+			downsampleColorRow( aPixels, ya, wa, bPixels, yb, wb );
+			splitColorRow( bPixels, yb, rBytes, gBytes, bBytes, yb, wb );
 		}
 		return new Pair< ColorProcessor, byte[][] >( b, new byte[][]{ rBytes, gBytes, bBytes } );
 	}
 	
 	
-	/**
-	 * Called from a single method below but when not separated into its own method,
-	 * inlining does not happen and execution time is doubled.  I beg for introducing
-	 * inline as a keyword to Java.  This magic doesn't make code readable at all.
-	 * 
-	 * @param sOutside
-	 * @param yaxa
-	 * @param yaxa1
-	 * @param ya1xa
-	 * @param ya1xa1
-	 * @param ybxb
-	 * @param aAlphaPixels
-	 * @param bAlphaPixels
-	 * @param bOutsidePixels
-	 */
-	final static private void combineAlphaAndOutside( final int sOutside, final int yaxa, final int yaxa1, final int ya1xa, final int ya1xa1, final int ybxb, final byte[] aAlphaPixels, final byte[] bAlphaPixels, final byte[] bOutsidePixels )
-	{
-		if ( sOutside == 0xff )
-		{
-			final int sAlpha = averageByte( yaxa, yaxa1, ya1xa, ya1xa1, aAlphaPixels );
-			bAlphaPixels[ ybxb ] = ( byte )sAlpha;
-			bOutsidePixels[ ybxb ] = -1;
-		}
-		else
-		{
-			bAlphaPixels[ ybxb ] = 0;
-			bOutsidePixels[ ybxb ] = 0;
-		}
-	}
-	
 	/**
 	 * Combine an alpha and outside mask into a downsampled alpha and outside
 	 * mask.  Those pixels not fully covered in the outside mask are set to 0,
@@ -547,21 +450,7 @@ final public class Downsampler
 		final byte[] bOutsidePixels = ( byte[] )bOutside.getPixels();
 		
 		for ( int ya = 0, yb = 0; yb < nb; ya += wa2, yb += wb )
-		{
-			final int ya1 = ya + wa;
-			for ( int xa = 0, xb = 0; xb < wb; xa += 2, ++xb )
-			{
-				final int xa1 = xa + 1;
-				final int yaxa = ya + xa;
-				final int yaxa1 = ya + xa1;
-				final int ya1xa = ya1 + xa;
-				final int ya1xa1 = ya1 + xa1;
-				final int ybxb = yb + xb;
-				
-				final int sOutside = andByte( yaxa, yaxa1, ya1xa, ya1xa1, aOutsidePixels );
-				combineAlphaAndOutside( sOutside, yaxa, yaxa1, ya1xa, ya1xa1, ybxb, aAlphaPixels, bAlphaPixels, bOutsidePixels );
-			}
-		}
+			downsampleAlphaAndOutsideRow( aAlphaPixels, ya, aOutsidePixels, ya, wa, bAlphaPixels, yb, bOutsidePixels, yb, wb );
 		return new Pair< ByteProcessor, ByteProcessor >( bAlpha, bOutside );
 	}
 	
@@ -588,19 +477,248 @@ final public class Downsampler
 		final byte[] bOutsidePixels = ( byte[] )bOutside.getPixels();
 		
 		for ( int ya = 0, yb = 0; yb < nb; ya += wa2, yb += wb )
+			downsampleOutsideRow( aOutsidePixels, ya, wa, bOutsidePixels, yb, wb );
+		return bOutside;
+	}
+	
+	
+	/* Pyramids: all levels of a power of 2 scale pyramid in a single pass
+	 * over the source.  Row y of level l + 1 is generated as soon as row
+	 * 2y + 1 of level l is available, so that the rows being read are still
+	 * in cache.  Level l has ( width >> l ) x ( height >> l ) pixels, the
+	 * output arrays are expected to be preallocated with at least that size
+	 * and may be recycled, every pixel is overwritten.  Levels that are not
+	 * returned are kept in two row buffers only.  Results are identical to
+	 * those of the respective single level methods applied repeatedly. */
+	
+	/**
+	 * Generate levels 1 to levels.length - 1 from levels[ 0 ].
+	 * 
+	 * @param levels
+	 * @param width of level 0
+	 * @param height of level 0
+	 */
+	final static public void downsampleBytes( final byte[][] levels, final int width, final int height )
+	{
+		final int n = levels.length;
+		if ( n < 2 ) return;
+		
+		final int w1 = width >> 1;
+		final int h1 = height >> 1;
+		for ( int y1 = 0; y1 < h1; ++y1 )
 		{
-			final int ya1 = ya + wa;
-			for ( int xa = 0, xb = 0; xb < wb; xa += 2, ++xb )
+			downsampleByteRow( levels[ 0 ], 2 * y1 * width, width, levels[ 1 ], y1 * w1, w1 );
+			for ( int l = 2, y = y1, w = w1; ( y & 1 ) == 1 && l < n; ++l )
 			{
-				final int xa1 = xa + 1;
-				final int sOutside = andByte( ya + xa, ya + xa1, ya1 + xa, ya1 + xa1, aOutsidePixels );
-				
-				if ( sOutside == 0xff )
-					bOutsidePixels[ yb + xb ] = -1;
-				else
-					bOutsidePixels[ yb + xb ] = 0;
+				final int wl = w >> 1;
+				final int ia = ( y - 1 ) * w;
+				y >>= 1;
+				downsampleByteRow( levels[ l - 1 ], ia, w, levels[ l ], y * wl, wl );
+				w = wl;
+			}
+		}
+	}
+	
+	/**
+	 * Generate the 8-bit levels 1 to bytes.length - 1 from a 16-bit image,
+	 * mapping [min, max] to [0, 255].  bytes[ 0 ] is not used.
+	 * 
+	 * @param a pixels of level 0
+	 * @param width of level 0
+	 * @param height of level 0
+	 * @param min
+	 * @param max
+	 * @param bytes
+	 */
+	final static public void downsampleShorts(
+			final short[] a,
+			final int width,
+			final int height,
+			final double min,
+			final double max,
+			final byte[][] bytes )
+	{
+		final int n = bytes.length;
+		if ( n < 2 ) return;
+		
+		final double scale = 255.0 / ( max - min );
+		final short[][] rows = new short[ n ][];
+		for ( int l = 1; l < n; ++l )
+			rows[ l ] = new short[ 2 * ( width >> l ) ];
+		
+		final int w1 = width >> 1;
+		final int h1 = height >> 1;
+		for ( int y1 = 0; y1 < h1; ++y1 )
+		{
+			int ib = ( y1 & 1 ) * w1;
+			downsampleShortRow( a, 2 * y1 * width, width, rows[ 1 ], ib, w1 );
+			mapShortRow( rows[ 1 ], ib, bytes[ 1 ], y1 * w1, w1, min, scale );
+			for ( int l = 2, y = y1, w = w1; ( y & 1 ) == 1 && l < n; ++l )
+			{
+				final int wl = w >> 1;
+				y >>= 1;
+				ib = ( y & 1 ) * wl;
+				downsampleShortRow( rows[ l - 1 ], 0, w, rows[ l ], ib, wl );
+				mapShortRow( rows[ l ], ib, bytes[ l ], y * wl, wl, min, scale );
+				w = wl;
+			}
+		}
+	}
+	
+	/**
+	 * Generate the 8-bit levels 1 to bytes.length - 1 from a 32-bit image,
+	 * mapping [min, max] to [0, 255].  bytes[ 0 ] is not used.
+	 * 
+	 * @param a pixels of level 0
+	 * @param width of level 0
+	 * @param height of level 0
+	 * @param min
+	 * @param max
+	 * @param bytes
+	 */
+	final static public void downsampleFloats(
+			final float[] a,
+			final int width,
+			final int height,
+			final double min,
+			final double max,
+			final byte[][] bytes )
+	{
+		final int n = bytes.length;
+		if ( n < 2 ) return;
+		
+		final double scale = 255.0 / ( max - min );
+		final float[][] rows = new float[ n ][];
+		for ( int l = 1; l < n; ++l )
+			rows[ l ] = new float[ 2 * ( width >> l ) ];
+		
+		final int w1 = width >> 1;
+		final int h1 = height >> 1;
+		for ( int y1 = 0; y1 < h1; ++y1 )
+		{
+			int ib = ( y1 & 1 ) * w1;
+			downsampleFloatRow( a, 2 * y1 * width, width, rows[ 1 ], ib, w1 );
+			mapFloatRow( rows[ 1 ], ib, bytes[ 1 ], y1 * w1, w1, min, scale );
+			for ( int l = 2, y = y1, w = w1; ( y & 1 ) == 1 && l < n; ++l )
+			{
+				final int wl = w >> 1;
+				y >>= 1;
+				ib = ( y & 1 ) * wl;
+				downsampleFloatRow( rows[ l - 1 ], 0, w, rows[ l ], ib, wl );
+				mapFloatRow( rows[ l ], ib, bytes[ l ], y * wl, wl, min, scale );
+				w = wl;
+			}
+		}
+	}
+	
+	/**
+	 * Generate the red, green and blue levels 1 to r.length - 1 from an RGB
+	 * image.  r[ 0 ], g[ 0 ] and b[ 0 ] are not used.
+	 * 
+	 * @param a pixels of level 0
+	 * @param width of level 0
+	 * @param height of level 0
+	 * @param r
+	 * @param g
+	 * @param b
+	 */
+	final static public void downsampleColors(
+			final int[] a,
+			final int width,
+			final int height,
+			final byte[][] r,
+			final byte[][] g,
+			final byte[][] b )
+	{
+		final int n = r.length;
+		if ( n < 2 ) return;
+		
+		final int[][] rows = new int[ n ][];
+		for ( int l = 1; l < n; ++l )
+			rows[ l ] = new int[ 2 * ( width >> l ) ];
+		
+		final int w1 = width >> 1;
+		final int h1 = height >> 1;
+		for ( int y1 = 0; y1 < h1; ++y1 )
+		{
+			int ib = ( y1 & 1 ) * w1;
+			downsampleColorRow( a, 2 * y1 * width, width, rows[ 1 ], ib, w1 );
+			splitColorRow( rows[ 1 ], ib, r[ 1 ], g[ 1 ], b[ 1 ], y1 * w1, w1 );
+			for ( int l = 2, y = y1, w = w1; ( y & 1 ) == 1 && l < n; ++l )
+			{
+				final int wl = w >> 1;
+				y >>= 1;
+				ib = ( y & 1 ) * wl;
+				downsampleColorRow( rows[ l - 1 ], 0, w, rows[ l ], ib, wl );
+				splitColorRow( rows[ l ], ib, r[ l ], g[ l ], b[ l ], y * wl, wl );
+				w = wl;
+			}
+		}
+	}
+	
+	/**
+	 * Generate the alpha levels 1 to alpha.length - 1 from alpha[ 0 ] and an
+	 * outside mask as {@link #downsampleAlphaAndOutside(ByteProcessor, ByteProcessor)}
+	 * does.  The downsampled outside masks are kept in row buffers only,
+	 * alpha is 0 wherever they are.
+	 * 
+	 * @param alpha
+	 * @param outside outside mask of level 0
+	 * @param width of level 0
+	 * @param height of level 0
+	 */
+	final static public void downsampleAlphaAndOutside( final byte[][] alpha, final byte[] outside, final int width, final int height )
+	{
+		final int n = alpha.length;
+		if ( n < 2 ) return;
+		
+		final byte[][] rows = new byte[ n ][];
+		for ( int l = 1; l < n; ++l )
+			rows[ l ] = new byte[ 2 * ( width >> l ) ];
+		
+		final int w1 = width >> 1;
+		final int h1 = height >> 1;
+		for ( int y1 = 0; y1 < h1; ++y1 )
+		{
+			final int ia1 = 2 * y1 * width;
+			downsampleAlphaAndOutsideRow( alpha[ 0 ], ia1, outside, ia1, width, alpha[ 1 ], y1 * w1, rows[ 1 ], ( y1 & 1 ) * w1, w1 );
+			for ( int l = 2, y = y1, w = w1; ( y & 1 ) == 1 && l < n; ++l )
+			{
+				final int wl = w >> 1;
+				final int ia = ( y - 1 ) * w;
+				y >>= 1;
+				downsampleAlphaAndOutsideRow( alpha[ l - 1 ], ia, rows[ l - 1 ], 0, w, alpha[ l ], y * wl, rows[ l ], ( y & 1 ) * wl, wl );
+				w = wl;
+			}
+		}
+	}
+	
+	/**
+	 * Generate the outside mask levels 1 to outside.length - 1 from
+	 * outside[ 0 ] as {@link #downsampleOutside(ByteProcessor)} does.
+	 * 
+	 * @param outside
+	 * @param width of level 0
+	 * @param height of level 0
+	 */
+	final static public void downsampleOutside( final byte[][] outside, final int width, final int height )
+	{
+		final int n = outside.length;
+		if ( n < 2 ) return;
+		
+		final int w1 = width >> 1;
+		final int h1 = height >> 1;
+		for ( int y1 = 0; y1 < h1; ++y1 )
+		{
+			downsampleOutsideRow( outside[ 0 ], 2 * y1 * width, width, outside[ 1 ], y1 * w1, w1 );
+			for ( int l = 2, y = y1, w = w1; ( y & 1 ) == 1 && l < n; ++l )
+			{
+				final int wl = w >> 1;
+				final int ia = ( y - 1 ) * w;
+				y >>= 1;
+				downsampleOutsideRow( outside[ l - 1 ], ia, w, outside[ l ], y * wl, wl );
+				w = wl;
 			}
 		}
-		return bOutside;
 	}
 }
@@ -0,0 +1,133 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.trakem2.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of daemon threads shared by all parallel loops of mpicbg-trakem2 and
+ * TrakEM2, to avoid creating and starting new {@link Thread Threads} for every
+ * mapped image, filtered tile or solver iteration.
+ *
+ * {@link #forEach(int, int, Body)} lets the calling thread take part in the
+ * work and cancels helper tasks that did not get to start, so it can be
+ * called from within tasks running in the pool itself without deadlocking.
+ */
+final public class SharedExecutor
+{
+	static public interface Body
+	{
+		public void run( int i );
+	}
+
+	static private ExecutorService exec = null;
+
+	private SharedExecutor() {}
+
+	synchronized static public ExecutorService getExecutorService()
+	{
+		if ( exec == null )
+		{
+			final AtomicInteger count = new AtomicInteger( 0 );
+			exec = Executors.newFixedThreadPool(
+					Runtime.getRuntime().availableProcessors(),
+					new ThreadFactory()
+					{
+						@Override
+						public Thread newThread( final Runnable r )
+						{
+							final Thread t = new Thread( r, "SharedExecutor-" + count.incrementAndGet() );
+							t.setDaemon( true );
+							return t;
+						}
+					} );
+		}
+		return exec;
+	}
+
+	/**
+	 * Same as {@link #forEach(int, int, Body)} with as many threads as there
+	 * are processors.
+	 *
+	 * @param n
+	 * @param body
+	 */
+	final static public void forEach( final int n, final Body body )
+	{
+		forEach( n, Runtime.getRuntime().availableProcessors(), body );
+	}
+
+	/**
+	 * Call {@link Body#run(int)} for each i in [0, n) using up to numThreads
+	 * threads, the calling thread included.  Indices are handed out one by
+	 * one, so each should stand for a reasonably large chunk of work.
+	 *
+	 * @param n
+	 * @param numThreads
+	 * @param body
+	 */
+	final static public void forEach( final int n, final int numThreads, final Body body )
+	{
+		if ( n < 1 )
+			return;
+
+		final AtomicInteger next = new AtomicInteger( 0 );
+		final Runnable worker = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				for ( int i = next.getAndIncrement(); i < n; i = next.getAndIncrement() )
+				{
+					if ( Thread.currentThread().isInterrupted() )
+						return;
+					body.run( i );
+				}
+			}
+		};
+
+		final ExecutorService exec = getExecutorService();
+		final ArrayList< Future< ? > > tasks = new ArrayList< Future< ? > >();
+		for ( int k = Math.min( Math.min( numThreads, n ), Runtime.getRuntime().availableProcessors() ) - 1; k > 0; --k )
+			tasks.add( exec.submit( worker ) );
+
+		worker.run();
+
+		try
+		{
+			for ( final Future< ? > task : tasks )
+				if ( !task.cancel( false ) )
+					task.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			for ( final Future< ? > task : tasks )
+				task.cancel( true );
+			Thread.currentThread().interrupt();
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+	}
+}
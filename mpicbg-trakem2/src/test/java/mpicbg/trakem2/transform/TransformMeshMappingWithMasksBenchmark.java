@@ -0,0 +1,96 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.trakem2.transform;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+
+import java.util.concurrent.TimeUnit;
+
+import mpicbg.models.CoordinateTransform;
+import mpicbg.trakem2.transform.TransformMeshMappingWithMasks.ImageProcessorWithMasks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks for {@link TransformMeshMappingWithMasks}: per-triangle
+ * threads versus pooled banded scanlines, for a coarse and a fine mesh,
+ * nearest neighbor and interpolated, with a mask.
+ *
+ * Run with {@link #main(String[])} from the test classpath.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 10, time = 1 )
+@Fork( 1 )
+public class TransformMeshMappingWithMasksBenchmark
+{
+	@Param( { "4", "32", "128" } )
+	public int meshResolution;
+
+	@Param( { "false", "true" } )
+	public boolean interpolated;
+
+	private int numThreads;
+	private FloatProcessor ip;
+	private ByteProcessor mask;
+	private CoordinateTransform t;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		numThreads = Runtime.getRuntime().availableProcessors();
+		ip = TransformMeshMappingWithMasksTest.createImage( 2048, 2048 );
+		mask = TransformMeshMappingWithMasksTest.createMask( 2048, 2048 );
+		t = TransformMeshMappingWithMasksTest.createMovingLeastSquares();
+	}
+
+	@Benchmark
+	public ImageProcessorWithMasks[] perTriangle()
+	{
+		return TransformMeshMappingWithMasksTest.render( t, meshResolution, ip, mask, interpolated, true, numThreads );
+	}
+
+	@Benchmark
+	public ImageProcessorWithMasks[] banded()
+	{
+		return TransformMeshMappingWithMasksTest.render( t, meshResolution, ip, mask, interpolated, false, numThreads );
+	}
+
+	public static void main( final String[] args ) throws RunnerException
+	{
+		new Runner(
+				new OptionsBuilder()
+						.include( TransformMeshMappingWithMasksBenchmark.class.getSimpleName() )
+						.build() ).run();
+	}
+}
@@ -0,0 +1,158 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.trakem2.transform;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.Random;
+
+import mpicbg.models.CoordinateTransform;
+import mpicbg.trakem2.transform.TransformMeshMappingWithMasks.ImageProcessorWithMasks;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Compares the banded scanline rendering of
+ * {@link TransformMeshMappingWithMasks} with the previous per-triangle
+ * implementation.  See {@link TransformMeshMappingWithMasksBenchmark} for
+ * timings of both.
+ */
+public class TransformMeshMappingWithMasksTest
+{
+	static private Random rnd = new Random( 0 );
+
+	static FloatProcessor createImage( final int width, final int height )
+	{
+		final FloatProcessor fp = new FloatProcessor( width, height );
+		for ( int y = 0; y < height; ++y )
+			for ( int x = 0; x < width; ++x )
+				fp.setf( x, y, ( float )( 100 * Math.sin( x * 0.05 ) * Math.cos( y * 0.03 ) + rnd.nextDouble() ) );
+		return fp;
+	}
+
+	static ByteProcessor createMask( final int width, final int height )
+	{
+		final ByteProcessor bp = new ByteProcessor( width, height );
+		for ( int i = 0; i < width * height; ++i )
+			bp.set( i, rnd.nextInt( 256 ) );
+		return bp;
+	}
+
+	static private CoordinateTransform createAffine()
+	{
+		final mpicbg.models.AffineModel2D affine = new mpicbg.models.AffineModel2D();
+		affine.set( 0.9, 0.3, -0.25, 1.1, 17.3, 42.1 );
+		return affine;
+	}
+
+	static CoordinateTransform createMovingLeastSquares() throws Exception
+	{
+		final MovingLeastSquaresTransform mls = new MovingLeastSquaresTransform();
+		mls.init( "rigid 2 1 40 40 80 80 1 280 160 220 140 1 280 40 200 80 1 1000 900 1100 950 1" );
+		return mls;
+	}
+
+	static ImageProcessorWithMasks[] render(
+			final CoordinateTransform t,
+			final int meshResolution,
+			final ImageProcessor ip,
+			final ImageProcessor mask,
+			final boolean interpolated,
+			final boolean perTriangle,
+			final int numThreads )
+	{
+		final TransformMesh mesh = new TransformMesh( t, meshResolution, ip.getWidth(), ip.getHeight() );
+		final TransformMeshMapping mapping = new TransformMeshMapping( mesh );
+		final int w = mesh.getBoundingBox().width;
+		final int h = mesh.getBoundingBox().height;
+		final ImageProcessorWithMasks source = new ImageProcessorWithMasks( ip, mask, null );
+		final ImageProcessorWithMasks target = new ImageProcessorWithMasks(
+				ip.createProcessor( w, h ),
+				mask == null ? null : mask.createProcessor( w, h ),
+				null );
+		if ( interpolated )
+		{
+			if ( perTriangle )
+				mapping.mapInterpolatedPerTriangle( source, target, numThreads );
+			else
+				mapping.mapInterpolated( source, target, numThreads );
+		}
+		else
+		{
+			if ( perTriangle )
+				mapping.mapPerTriangle( source, target, numThreads );
+			else
+				mapping.map( source, target, numThreads );
+		}
+		return new ImageProcessorWithMasks[]{ source, target };
+	}
+
+	static private void assertSame(
+			final ImageProcessorWithMasks expected,
+			final ImageProcessorWithMasks actual,
+			final double delta )
+	{
+		Assert.assertArrayEquals( ( byte[] )expected.outside.getPixels(), ( byte[] )actual.outside.getPixels() );
+		final int n = expected.getWidth() * expected.getHeight();
+		for ( int i = 0; i < n; ++i )
+		{
+			Assert.assertEquals( expected.ip.getf( i ), actual.ip.getf( i ), delta );
+			if ( expected.mask != null )
+				Assert.assertEquals( expected.mask.getf( i ), actual.mask.getf( i ), 1 );
+		}
+	}
+
+	@Test
+	public void testNearest()
+	{
+		final FloatProcessor ip = createImage( 512, 384 );
+		for ( final int numThreads : new int[]{ 1, 4 } )
+		{
+			/* a single affine, so that all triangles agree on shared edges */
+			final ImageProcessorWithMasks expected = render( createAffine(), 16, ip, null, false, true, 1 )[ 1 ];
+			final ImageProcessorWithMasks actual = render( createAffine(), 16, ip, null, false, false, numThreads )[ 1 ];
+			Assert.assertArrayEquals( ( byte[] )expected.outside.getPixels(), ( byte[] )actual.outside.getPixels() );
+			Assert.assertArrayEquals( ( float[] )expected.ip.getPixels(), ( float[] )actual.ip.getPixels(), 0 );
+		}
+	}
+
+	@Test
+	public void testInterpolatedWithMask() throws Exception
+	{
+		final FloatProcessor ip = createImage( 512, 384 );
+		final ByteProcessor mask = createMask( 512, 384 );
+		for ( final int numThreads : new int[]{ 1, 4 } )
+		{
+			final ImageProcessorWithMasks expected = render( createAffine(), 16, ip, mask, true, true, 1 )[ 1 ];
+			final ImageProcessorWithMasks actual = render( createAffine(), 16, ip, mask, true, false, numThreads )[ 1 ];
+			assertSame( expected, actual, 0.001 );
+		}
+	}
+
+	@Test
+	public void testCoverage() throws Exception
+	{
+		/* non-linear: every pixel covered by the per-triangle mapping must be covered */
+		final FloatProcessor ip = createImage( 1200, 1000 );
+		final ImageProcessorWithMasks expected = render( createMovingLeastSquares(), 32, ip, null, true, true, 1 )[ 1 ];
+		final ImageProcessorWithMasks actual = render( createMovingLeastSquares(), 32, ip, null, true, false, 4 )[ 1 ];
+		Assert.assertArrayEquals( ( byte[] )expected.outside.getPixels(), ( byte[] )actual.outside.getPixels() );
+	}
+}
@@ -0,0 +1,253 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.trakem2.util;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks for {@link Downsampler}: a complete mipmap pyramid
+ * generated one level at a time (as before) versus in a single pass into
+ * preallocated arrays, for byte, short, float, color and the alpha/outside
+ * masks.
+ *
+ * Run with {@link #main(String[])} from the test classpath.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 10, time = 1 )
+@Fork( 1 )
+public class DownsamplerBenchmark
+{
+	@Param( { "1024", "4096" } )
+	public int size;
+
+	private int numLevels;
+
+	private ByteProcessor bp;
+	private ShortProcessor sp;
+	private FloatProcessor fp;
+	private ColorProcessor cp;
+	private ByteProcessor alpha;
+	private ByteProcessor outside;
+
+	private byte[][] levels;
+	private byte[][] levelsG;
+	private byte[][] levelsB;
+
+	@Setup
+	public void setup()
+	{
+		final Random rnd = new Random( 0 );
+		final int n = size * size;
+
+		final byte[] bytes = new byte[ n ];
+		rnd.nextBytes( bytes );
+		bp = new ByteProcessor( size, size, bytes, null );
+
+		final short[] shorts = new short[ n ];
+		for ( int i = 0; i < n; ++i )
+			shorts[ i ] = ( short )rnd.nextInt( 4096 );
+		sp = new ShortProcessor( size, size, shorts, null );
+		sp.setMinAndMax( 0, 4095 );
+
+		final float[] floats = new float[ n ];
+		for ( int i = 0; i < n; ++i )
+			floats[ i ] = rnd.nextFloat();
+		fp = new FloatProcessor( size, size, floats, null );
+		fp.setMinAndMax( 0, 1 );
+
+		final int[] ints = new int[ n ];
+		for ( int i = 0; i < n; ++i )
+			ints[ i ] = rnd.nextInt();
+		cp = new ColorProcessor( size, size, ints );
+
+		final byte[] alphaBytes = new byte[ n ];
+		rnd.nextBytes( alphaBytes );
+		alpha = new ByteProcessor( size, size, alphaBytes, null );
+
+		/* mostly inside, with a ragged border */
+		final byte[] outsideBytes = new byte[ n ];
+		for ( int i = 0; i < n; ++i )
+			outsideBytes[ i ] = ( byte )( rnd.nextInt( 16 ) == 0 ? 0 : 255 );
+		outside = new ByteProcessor( size, size, outsideBytes, null );
+
+		numLevels = 1;
+		while ( ( size >> numLevels ) > 32 )
+			++numLevels;
+
+		levels = createLevels();
+		levelsG = createLevels();
+		levelsB = createLevels();
+	}
+
+	private byte[][] createLevels()
+	{
+		final byte[][] b = new byte[ numLevels ][];
+		for ( int l = 1; l < numLevels; ++l )
+			b[ l ] = new byte[ ( size >> l ) * ( size >> l ) ];
+		return b;
+	}
+
+	@Benchmark
+	public void bytePerLevel( final Blackhole bh )
+	{
+		ByteProcessor b = bp;
+		for ( int l = 1; l < numLevels; ++l )
+		{
+			b = Downsampler.downsampleByteProcessor( b );
+			bh.consume( b );
+		}
+	}
+
+	@Benchmark
+	public byte[][] bytePyramid()
+	{
+		levels[ 0 ] = ( byte[] )bp.getPixels();
+		Downsampler.downsampleBytes( levels, size, size );
+		return levels;
+	}
+
+	@Benchmark
+	public void shortPerLevel( final Blackhole bh )
+	{
+		ShortProcessor s = sp;
+		for ( int l = 1; l < numLevels; ++l )
+		{
+			final Downsampler.Pair< ShortProcessor, byte[] > p = Downsampler.downsampleShort( s );
+			s = p.a;
+			bh.consume( p.b );
+		}
+	}
+
+	@Benchmark
+	public byte[][] shortPyramid()
+	{
+		Downsampler.downsampleShorts( ( short[] )sp.getPixels(), size, size, sp.getMin(), sp.getMax(), levels );
+		return levels;
+	}
+
+	@Benchmark
+	public void floatPerLevel( final Blackhole bh )
+	{
+		FloatProcessor f = fp;
+		for ( int l = 1; l < numLevels; ++l )
+		{
+			final Downsampler.Pair< FloatProcessor, byte[] > p = Downsampler.downsampleFloat( f );
+			f = p.a;
+			bh.consume( p.b );
+		}
+	}
+
+	@Benchmark
+	public byte[][] floatPyramid()
+	{
+		Downsampler.downsampleFloats( ( float[] )fp.getPixels(), size, size, fp.getMin(), fp.getMax(), levels );
+		return levels;
+	}
+
+	@Benchmark
+	public void colorPerLevel( final Blackhole bh )
+	{
+		ColorProcessor c = cp;
+		for ( int l = 1; l < numLevels; ++l )
+		{
+			final Downsampler.Pair< ColorProcessor, byte[][] > p = Downsampler.downsampleColor( c );
+			c = p.a;
+			bh.consume( p.b );
+		}
+	}
+
+	@Benchmark
+	public byte[][] colorPyramid()
+	{
+		Downsampler.downsampleColors( ( int[] )cp.getPixels(), size, size, levels, levelsG, levelsB );
+		return levels;
+	}
+
+	@Benchmark
+	public void alphaAndOutsidePerLevel( final Blackhole bh )
+	{
+		ByteProcessor a = alpha;
+		ByteProcessor o = outside;
+		for ( int l = 1; l < numLevels; ++l )
+		{
+			final Downsampler.Pair< ByteProcessor, ByteProcessor > p = Downsampler.downsampleAlphaAndOutside( a, o );
+			a = p.a;
+			o = p.b;
+			bh.consume( a );
+		}
+	}
+
+	@Benchmark
+	public byte[][] alphaAndOutsidePyramid()
+	{
+		levels[ 0 ] = ( byte[] )alpha.getPixels();
+		Downsampler.downsampleAlphaAndOutside( levels, ( byte[] )outside.getPixels(), size, size );
+		return levels;
+	}
+
+	@Benchmark
+	public void outsidePerLevel( final Blackhole bh )
+	{
+		ByteProcessor o = outside;
+		for ( int l = 1; l < numLevels; ++l )
+		{
+			o = Downsampler.downsampleOutside( o );
+			bh.consume( o );
+		}
+	}
+
+	@Benchmark
+	public byte[][] outsidePyramid()
+	{
+		levels[ 0 ] = ( byte[] )outside.getPixels();
+		Downsampler.downsampleOutside( levels, size, size );
+		return levels;
+	}
+
+	public static void main( final String[] args ) throws RunnerException
+	{
+		new Runner(
+				new OptionsBuilder()
+						.include( DownsamplerBenchmark.class.getSimpleName() )
+						.build() ).run();
+	}
+}
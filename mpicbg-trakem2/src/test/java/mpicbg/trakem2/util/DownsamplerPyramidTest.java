@@ -0,0 +1,167 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.trakem2.util;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Random;
+
+import mpicbg.trakem2.util.Downsampler.Pair;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The single pass pyramid methods of {@link Downsampler} must produce the
+ * same pixels as the per-level methods applied repeatedly.  Odd dimensions
+ * make the last row or column of some levels drop out.
+ */
+public class DownsamplerPyramidTest
+{
+	static private final int width = 1027, height = 771, numLevels = 7;
+
+	static private Random rnd = new Random( 0 );
+
+	static private byte[][] allocate( final int n )
+	{
+		final byte[][] levels = new byte[ n ][];
+		for ( int l = 0; l < n; ++l )
+			levels[ l ] = new byte[ ( width >> l ) * ( height >> l ) ];
+		return levels;
+	}
+
+	static private ByteProcessor createBytes()
+	{
+		final ByteProcessor bp = new ByteProcessor( width, height );
+		for ( int i = 0; i < width * height; ++i )
+			bp.set( i, rnd.nextInt( 256 ) );
+		return bp;
+	}
+
+	/** An outside mask: 255 inside an ellipse, 0 outside. */
+	static private ByteProcessor createOutside()
+	{
+		final ByteProcessor bp = new ByteProcessor( width, height );
+		for ( int y = 0; y < height; ++y )
+			for ( int x = 0; x < width; ++x )
+			{
+				final double dx = ( x - width / 2.0 ) / ( width / 2.0 ), dy = ( y - height / 2.0 ) / ( height / 2.0 );
+				bp.set( x, y, dx * dx + dy * dy < 1 ? 255 : 0 );
+			}
+		return bp;
+	}
+
+	@Test
+	public void testBytes()
+	{
+		ByteProcessor a = createBytes();
+		final byte[][] levels = allocate( numLevels );
+		System.arraycopy( a.getPixels(), 0, levels[ 0 ], 0, levels[ 0 ].length );
+		Downsampler.downsampleBytes( levels, width, height );
+		for ( int l = 1; l < numLevels; ++l )
+		{
+			a = Downsampler.downsampleByteProcessor( a );
+			Assert.assertArrayEquals( "level " + l, ( byte[] )a.getPixels(), levels[ l ] );
+		}
+	}
+
+	@Test
+	public void testShorts()
+	{
+		ShortProcessor a = new ShortProcessor( width, height );
+		for ( int i = 0; i < width * height; ++i )
+			a.set( i, rnd.nextInt( 65536 ) );
+		a.setMinAndMax( 1000, 60000 );
+		final byte[][] bytes = allocate( numLevels );
+		Downsampler.downsampleShorts( ( short[] )a.getPixels(), width, height, a.getMin(), a.getMax(), bytes );
+		for ( int l = 1; l < numLevels; ++l )
+		{
+			final Pair< ShortProcessor, byte[] > p = Downsampler.downsampleShort( a );
+			a = p.a;
+			Assert.assertArrayEquals( "level " + l, p.b, bytes[ l ] );
+		}
+	}
+
+	@Test
+	public void testFloats()
+	{
+		FloatProcessor a = new FloatProcessor( width, height );
+		for ( int i = 0; i < width * height; ++i )
+			a.setf( i, ( float )rnd.nextGaussian() * 100 );
+		a.setMinAndMax( -150, 250 );
+		final byte[][] bytes = allocate( numLevels );
+		Downsampler.downsampleFloats( ( float[] )a.getPixels(), width, height, a.getMin(), a.getMax(), bytes );
+		for ( int l = 1; l < numLevels; ++l )
+		{
+			final Pair< FloatProcessor, byte[] > p = Downsampler.downsampleFloat( a );
+			a = p.a;
+			Assert.assertArrayEquals( "level " + l, p.b, bytes[ l ] );
+		}
+	}
+
+	@Test
+	public void testColors()
+	{
+		ColorProcessor a = new ColorProcessor( width, height );
+		for ( int i = 0; i < width * height; ++i )
+			a.set( i, rnd.nextInt() );
+		final byte[][] r = allocate( numLevels ), g = allocate( numLevels ), b = allocate( numLevels );
+		Downsampler.downsampleColors( ( int[] )a.getPixels(), width, height, r, g, b );
+		for ( int l = 1; l < numLevels; ++l )
+		{
+			final Pair< ColorProcessor, byte[][] > p = Downsampler.downsampleColor( a );
+			a = p.a;
+			Assert.assertArrayEquals( "red level " + l, p.b[ 0 ], r[ l ] );
+			Assert.assertArrayEquals( "green level " + l, p.b[ 1 ], g[ l ] );
+			Assert.assertArrayEquals( "blue level " + l, p.b[ 2 ], b[ l ] );
+		}
+	}
+
+	@Test
+	public void testAlphaAndOutside()
+	{
+		ByteProcessor alpha = createBytes();
+		ByteProcessor outside = createOutside();
+		final byte[][] alphas = allocate( numLevels );
+		System.arraycopy( alpha.getPixels(), 0, alphas[ 0 ], 0, alphas[ 0 ].length );
+		Downsampler.downsampleAlphaAndOutside( alphas, ( byte[] )outside.getPixels(), width, height );
+		for ( int l = 1; l < numLevels; ++l )
+		{
+			final Pair< ByteProcessor, ByteProcessor > p = Downsampler.downsampleAlphaAndOutside( alpha, outside );
+			alpha = p.a;
+			outside = p.b;
+			Assert.assertArrayEquals( "level " + l, ( byte[] )alpha.getPixels(), alphas[ l ] );
+		}
+	}
+
+	@Test
+	public void testOutside()
+	{
+		ByteProcessor outside = createOutside();
+		final byte[][] levels = allocate( numLevels );
+		System.arraycopy( outside.getPixels(), 0, levels[ 0 ], 0, levels[ 0 ].length );
+		Downsampler.downsampleOutside( levels, width, height );
+		for ( int l = 1; l < numLevels; ++l )
+		{
+			outside = Downsampler.downsampleOutside( outside );
+			Assert.assertArrayEquals( "level " + l, ( byte[] )outside.getPixels(), levels[ l ] );
+		}
+	}
+}